@@ -652,6 +652,20 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
         }
     }
 
+    /**
+     * Store the updated sync key in the database.
+     * @param c Makes provider calls
+     * @param syncKey New sync key
+     */
+    public void updateSyncKey(final Context c, final String syncKey) {
+        if (!TextUtils.equals(syncKey, mSyncKey)) {
+            final ContentValues values = new ContentValues(1);
+            values.put(MailboxColumns.SYNC_KEY, syncKey);
+            update(c, values);
+            mSyncKey = syncKey;
+        }
+    }
+
     /**
      * Convenience method to return the id of a given type of Mailbox for a given Account; the
      * common Mailbox types (Inbox, Outbox, Sent, Drafts, Trash, and Search) are all cached by
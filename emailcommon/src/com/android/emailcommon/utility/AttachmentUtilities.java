@@ -382,30 +382,64 @@ public class AttachmentUtilities {
         }
     }
 
-    private static long copyFile(InputStream in, OutputStream out) throws IOException {
-        long size = IOUtils.copy(in, out);
-        in.close();
-        out.flush();
-        out.close();
-        return size;
+    /**
+     * Writes the content of an attachment as it is being saved, e.g. straight from the network,
+     * so that it doesn't have to be stored somewhere else first.
+     */
+    public interface AttachmentWriter {
+        /**
+         * Write the attachment to {@code out}, which the caller closes.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static long writeFile(AttachmentWriter writer, OutputStream out) throws IOException {
+        try {
+            final CountingOutputStream counter = new CountingOutputStream(out);
+            writer.writeTo(counter);
+            out.flush();
+            return counter.getCount();
+        } finally {
+            out.close();
+        }
     }
 
     /**
      * Save the attachment to its final resting place (cache or sd card)
+     * @return whether the attachment was saved
      */
-    public static void saveAttachment(Context context, InputStream in, Attachment attachment) {
+    public static boolean saveAttachment(Context context, final InputStream in,
+            Attachment attachment) {
+        return saveAttachment(context, new AttachmentWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                IOUtils.copy(in, out);
+                in.close();
+            }
+        }, attachment);
+    }
+
+    /**
+     * Save the attachment to its final resting place (cache or sd card), as the writer writes it.
+     * If writing fails, the partly written file is discarded and the attachment is marked as
+     * failed.
+     * @return whether the attachment was saved
+     */
+    public static boolean saveAttachment(Context context, AttachmentWriter writer,
+            Attachment attachment) {
         final Uri uri = ContentUris.withAppendedId(Attachment.CONTENT_URI, attachment.mId);
         final ContentValues cv = new ContentValues();
         final long attachmentId = attachment.mId;
         final long accountId = attachment.mAccountKey;
         final String contentUri;
         final long size;
+        boolean saved = false;
 
         try {
             ContentResolver resolver = context.getContentResolver();
             if (attachment.mUiDestination == UIProvider.AttachmentDestination.CACHE) {
                 Uri attUri = getAttachmentUri(accountId, attachmentId);
-                size = copyFile(in, resolver.openOutputStream(attUri));
+                size = writeFile(writer, resolver.openOutputStream(attUri));
                 contentUri = attUri.toString();
             } else if (Utility.isExternalStorageMounted()) {
                 if (TextUtils.isEmpty(attachment.mFileName)) {
@@ -419,7 +453,12 @@ public class AttachmentUtilities {
                         Environment.DIRECTORY_DOWNLOADS);
                 downloads.mkdirs();
                 File file = Utility.createUniqueFile(downloads, attachment.mFileName);
-                size = copyFile(in, new FileOutputStream(file));
+                try {
+                    size = writeFile(writer, new FileOutputStream(file));
+                } catch (IOException e) {
+                    file.delete();
+                    throw e;
+                }
                 String absolutePath = file.getAbsolutePath();
 
                 // Although the download manager can scan media files, scanning only happens
@@ -455,10 +494,12 @@ public class AttachmentUtilities {
             cv.put(AttachmentColumns.SIZE, size);
             cv.put(AttachmentColumns.CONTENT_URI, contentUri);
             cv.put(AttachmentColumns.UI_STATE, UIProvider.AttachmentState.SAVED);
+            saved = true;
         } catch (IOException e) {
             // Handle failures here...
             cv.put(AttachmentColumns.UI_STATE, UIProvider.AttachmentState.FAILED);
         }
         context.getContentResolver().update(uri, cv, null, null);
+        return saved;
     }
 }
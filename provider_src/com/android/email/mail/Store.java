@@ -34,6 +34,7 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 
@@ -142,7 +143,22 @@ public abstract class Store {
      */
     public synchronized static Store removeInstance(Account account, Context context)
             throws MessagingException {
-        return sStores.remove(HostAuth.restoreHostAuthWithId(context, account.mHostAuthKeyRecv));
+        final Store store =
+                sStores.remove(HostAuth.restoreHostAuthWithId(context, account.mHostAuthKeyRecv));
+        if (store != null) {
+            store.closeConnections();
+        }
+        return store;
+    }
+
+    /**
+     * Dump the state of every cached store, e.g. its pooled connections.
+     */
+    public synchronized static void dumpInstances(PrintWriter pw) {
+        pw.println("Stores");
+        for (Store store : sStores.values()) {
+            store.dump(pw);
+        }
     }
 
     /**
@@ -230,6 +246,10 @@ public abstract class Store {
         // Base implementation does nothing.
     }
 
+    public void dump(PrintWriter pw) {
+        // Base implementation does nothing.
+    }
+
     public Account getAccount() {
         return mAccount;
     }
@@ -16,6 +16,7 @@
 
 package com.android.email.mail.store;
 
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64;
 
@@ -36,6 +37,7 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -58,6 +60,14 @@ class ImapConnection {
     public static final int CAPABILITY_STARTTLS  = 1 << 2;
     /** UIDPLUS capability per RFC 4315 */
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
+    /** IDLE capability per RFC 2177 */
+    public static final int CAPABILITY_IDLE      = 1 << 4;
+    /** The server supports mod-sequences and CHANGEDSINCE (RFC 7162) */
+    public static final int CAPABILITY_CONDSTORE = 1 << 5;
+    /** The server supports VANISHED (RFC 7162); also implies CONDSTORE */
+    public static final int CAPABILITY_QRESYNC   = 1 << 6;
+    /** MOVE capability per RFC 6851 */
+    public static final int CAPABILITY_MOVE      = 1 << 7;
 
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
@@ -68,6 +78,8 @@ class ImapConnection {
     private String mLoginPhrase;
     private String mAccessToken;
     private String mIdPhrase = null;
+    /** Whether the server accepted ENABLE QRESYNC on this connection. */
+    private boolean mQresyncEnabled;
 
     /** # of command/response lines to log upon crash. */
     private static final int DISCOURSE_LOGGER_SIZE = 64;
@@ -134,6 +146,7 @@ class ImapConnection {
             return;
         }
 
+        final long startTime = SystemClock.elapsedRealtime();
         try {
             // copy configuration into a clean transport, if necessary
             if (mTransport == null) {
@@ -174,10 +187,15 @@ class ImapConnection {
             // NAMESPACE (only valid in the Authenticated state)
             doGetNamespace(isCapable(CAPABILITY_NAMESPACE));
 
+            // QRESYNC (only valid in the Authenticated state)
+            doEnableQresync(isCapable(CAPABILITY_QRESYNC));
+
             // Gets the path separator from the server
             doGetPathSeparator();
 
             mImapStore.ensurePrefixIsValid();
+
+            mImapStore.onConnectionOpened(SystemClock.elapsedRealtime() - startTime);
         } catch (SSLException e) {
             if (DebugUtils.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, e, "SSLException");
@@ -235,6 +253,56 @@ class ImapConnection {
         if (capabilities.contains(ImapConstants.STARTTLS)) {
             mCapabilities |= CAPABILITY_STARTTLS;
         }
+        if (capabilities.contains(ImapConstants.IDLE)) {
+            mCapabilities |= CAPABILITY_IDLE;
+        }
+        if (capabilities.contains(ImapConstants.CONDSTORE)) {
+            mCapabilities |= CAPABILITY_CONDSTORE;
+        }
+        if (capabilities.contains(ImapConstants.QRESYNC)) {
+            mCapabilities |= CAPABILITY_QRESYNC;
+        }
+        if (capabilities.contains(ImapConstants.MOVE)) {
+            mCapabilities |= CAPABILITY_MOVE;
+        }
+    }
+
+    /**
+     * @return whether the server advertised IDLE.  Only valid once the connection is open.
+     */
+    boolean isIdleCapable() {
+        return isCapable(CAPABILITY_IDLE);
+    }
+
+    /**
+     * @return whether the server advertised UIDPLUS, so we can UID EXPUNGE and it reports the
+     *     UIDs of copied and appended messages.  Only valid once the connection is open.
+     */
+    boolean isUidPlusCapable() {
+        return isCapable(CAPABILITY_UIDPLUS);
+    }
+
+    /**
+     * @return whether the server advertised MOVE.  Only valid once the connection is open.
+     */
+    boolean isMoveCapable() {
+        return isCapable(CAPABILITY_MOVE);
+    }
+
+    /**
+     * @return whether the server keeps mod-sequences, so we can ask for the messages whose flags
+     *     changed since a given one.  Only valid once the connection is open.
+     */
+    boolean isCondstoreCapable() {
+        return isCapable(CAPABILITY_CONDSTORE) || mQresyncEnabled;
+    }
+
+    /**
+     * @return whether QRESYNC is enabled, so the server can also tell us the UIDs of the messages
+     *     expunged since a given mod-sequence.  Only valid once the connection is open.
+     */
+    boolean isQresyncEnabled() {
+        return mQresyncEnabled;
     }
 
     /**
@@ -255,6 +323,16 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Have the literals of the responses read from now on given to {@code handler} instead of
+     * being stored; pass null to go back to storing them.
+     */
+    void setLiteralHandler(ImapResponseParser.LiteralHandler handler) {
+        if (mParser != null) {
+            mParser.setLiteralHandler(handler);
+        }
+    }
+
     boolean isTransportOpenForTest() {
         return mTransport != null && mTransport.isOpen();
     }
@@ -393,6 +471,70 @@ class ImapConnection {
           return getCommandResponses();
       }
 
+    /**
+     * Send IDLE (RFC 2177) and wait for the server to accept it.  Once this returns, the server
+     * sends untagged responses as the selected mailbox changes; read them with
+     * {@link #readIdleResponse} and finish with {@link #endIdle}.
+     *
+     * @param responses untagged responses that arrive before the server accepts IDLE are added
+     *     here
+     * @throws ImapException if the server rejects IDLE
+     */
+    void startIdle(List<ImapResponse> responses) throws IOException, MessagingException {
+        sendCommand(ImapConstants.IDLE, false);
+        ImapResponse response;
+        while (!(response = readResponse()).isContinuationRequest()) {
+            if (response.isTagged()) {
+                final String toString = response.toString();
+                final String status = response.getStatusOrEmpty().getString();
+                final String alert = response.getAlertTextOrEmpty().getString();
+                final String responseCode = response.getResponseCodeOrEmpty().getString();
+                destroyResponses();
+                throw new ImapException(toString, status, alert, responseCode);
+            }
+            responses.add(response);
+        }
+    }
+
+    /**
+     * Wait for the server to send a response while idling.
+     *
+     * @param timeoutMillis how long to wait
+     * @return the response, or null if nothing arrived in time
+     */
+    ImapResponse readIdleResponse(int timeoutMillis) throws IOException, MessagingException {
+        mTransport.setSoTimeout(timeoutMillis);
+        try {
+            return readResponse();
+        } catch (SocketTimeoutException e) {
+            // Servers send each response in one go, so we haven't lost half of one here.
+            return null;
+        }
+    }
+
+    /**
+     * Leave IDLE by sending DONE.
+     *
+     * @return the responses up to and including the tagged completion of the IDLE command
+     */
+    List<ImapResponse> endIdle() throws IOException, MessagingException {
+        mTransport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+        mTransport.writeLine(ImapConstants.DONE, null);
+        mDiscourse.addSentCommand(ImapConstants.DONE);
+        return getCommandResponses();
+    }
+
+    /**
+     * Break off a {@link #readIdleResponse} that is blocked on another thread, by closing the
+     * transport under it.  The connection can't be used again afterwards.
+     */
+    void abortIdle() {
+        final MailTransport transport = mTransport;
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
     /**
      * Query server for capabilities.
      */
@@ -489,6 +631,33 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Enables QRESYNC, if the server supports it.  Servers don't report VANISHED responses until
+     * it is enabled.  Failing to enable it is not fatal; we just sync without it.
+     */
+    private void doEnableQresync(boolean hasQresyncCapability)
+            throws IOException, MessagingException {
+        mQresyncEnabled = false;
+        if (!hasQresyncCapability) {
+            return;
+        }
+        try {
+            final List<ImapResponse> responseList = executeSimpleCommand(
+                    ImapConstants.ENABLE + " " + ImapConstants.QRESYNC);
+            for (ImapResponse response : responseList) {
+                if (response.isDataResponse(0, ImapConstants.ENABLED)
+                        && response.contains(ImapConstants.QRESYNC)) {
+                    mQresyncEnabled = true;
+                }
+            }
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem.
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
+            }
+        }
+    }
+
     /**
      * Logs into the IMAP server
      */
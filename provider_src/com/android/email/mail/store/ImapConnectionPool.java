@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The idle connections of an {@link ImapStore}, kept open so that consecutive syncs of an account
+ * don't each pay for a new connection, TLS handshake and login.
+ *
+ * A connection handed back within {@link #FRESH_MILLIS} of its last use is very likely still
+ * alive, so the store reuses it without checking; an older one is checked with a NOOP first.
+ * Connections left idle for {@link #IDLE_EXPIRY_MILLIS} are closed in the background, as servers
+ * and NATs drop idle connections sooner or later anyway.  At most {@code maxSize} connections are
+ * kept, and the least recently used one is closed to make room for another.
+ *
+ * The pool also counts how often a connection was reused instead of opened, and how long opening
+ * one takes, so we can tell from dumpsys how much the pool saves.
+ */
+class ImapConnectionPool {
+    /** How long after its last use a connection is reused without a NOOP. */
+    @VisibleForTesting
+    static final long FRESH_MILLIS = 20 * DateUtils.SECOND_IN_MILLIS;
+    /** How long a connection may stay idle in the pool before it is closed. */
+    @VisibleForTesting
+    static final long IDLE_EXPIRY_MILLIS = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    /** Closes expired connections of every pool; its thread doesn't keep the process alive. */
+    private static ScheduledExecutorService sEvictor;
+
+    /** An idle connection and when it was last used, in {@link SystemClock#elapsedRealtime}. */
+    static class PooledConnection {
+        final ImapConnection mConnection;
+        final long mLastUsed;
+
+        PooledConnection(final ImapConnection connection, final long lastUsed) {
+            mConnection = connection;
+            mLastUsed = lastUsed;
+        }
+    }
+
+    private final int mMaxSize;
+
+    // Guarded by this.
+    /** Idle connections, most recently used first. */
+    private final ArrayDeque<PooledConnection> mIdle = new ArrayDeque<PooledConnection>();
+    private long mFreshMillis = FRESH_MILLIS;
+    private ScheduledFuture<?> mEviction;
+
+    // Statistics, guarded by this.
+    private int mReusedFresh;
+    private int mReusedChecked;
+    private int mStale;
+    private int mEvicted;
+    private int mHandshakes;
+    private long mHandshakeMillis;
+
+    ImapConnectionPool(final int maxSize) {
+        mMaxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * @return the most recently used idle connection, or null if there is none.  The caller
+     *     should verify the connection with a NOOP unless {@link #isFresh} says it needn't.
+     */
+    PooledConnection take() {
+        return take(SystemClock.elapsedRealtime());
+    }
+
+    @VisibleForTesting
+    PooledConnection take(final long now) {
+        evictExpired(now);
+        synchronized (this) {
+            return mIdle.pollFirst();
+        }
+    }
+
+    /**
+     * Save a connection for reuse, closing the least recently used one if the pool is full.
+     */
+    void put(final ImapConnection connection) {
+        put(connection, SystemClock.elapsedRealtime());
+    }
+
+    @VisibleForTesting
+    void put(final ImapConnection connection, final long now) {
+        PooledConnection evicted = null;
+        synchronized (this) {
+            if (mIdle.size() >= mMaxSize) {
+                evicted = mIdle.pollLast();
+                mEvicted++;
+            }
+            mIdle.addFirst(new PooledConnection(connection, now));
+            scheduleEviction(IDLE_EXPIRY_MILLIS);
+        }
+        if (evicted != null) {
+            evicted.mConnection.close();
+        }
+    }
+
+    /**
+     * @return whether a connection was used so recently that it needn't be checked with a NOOP
+     */
+    boolean isFresh(final PooledConnection pooled) {
+        return isFresh(pooled, SystemClock.elapsedRealtime());
+    }
+
+    @VisibleForTesting
+    synchronized boolean isFresh(final PooledConnection pooled, final long now) {
+        return now - pooled.mLastUsed < mFreshMillis;
+    }
+
+    @VisibleForTesting
+    synchronized void setFreshMillis(final long freshMillis) {
+        mFreshMillis = freshMillis;
+    }
+
+    /**
+     * Close the connections that have been idle too long.
+     */
+    @VisibleForTesting
+    void evictExpired(final long now) {
+        final List<PooledConnection> expired = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            final Iterator<PooledConnection> it = mIdle.descendingIterator();
+            while (it.hasNext()) {
+                final PooledConnection pooled = it.next();
+                if (now - pooled.mLastUsed < IDLE_EXPIRY_MILLIS) {
+                    // The rest were used more recently
+                    break;
+                }
+                it.remove();
+                expired.add(pooled);
+            }
+            mEvicted += expired.size();
+        }
+        for (final PooledConnection pooled : expired) {
+            pooled.mConnection.close();
+        }
+    }
+
+    /**
+     * Close all idle connections.
+     */
+    void clear() {
+        final List<PooledConnection> idle;
+        synchronized (this) {
+            idle = new ArrayList<PooledConnection>(mIdle);
+            mIdle.clear();
+            if (mEviction != null) {
+                mEviction.cancel(false);
+                mEviction = null;
+            }
+        }
+        for (final PooledConnection pooled : idle) {
+            pooled.mConnection.close();
+        }
+    }
+
+    synchronized int size() {
+        return mIdle.size();
+    }
+
+    /**
+     * Record the reuse of a pooled connection.
+     * @param checked whether the connection had to be checked with a NOOP first
+     */
+    synchronized void onReused(final boolean checked) {
+        if (checked) {
+            mReusedChecked++;
+        } else {
+            mReusedFresh++;
+        }
+    }
+
+    /**
+     * Record a pooled connection that turned out to be dead when checked.
+     */
+    synchronized void onStale() {
+        mStale++;
+    }
+
+    /**
+     * Record the opening of a new connection, up to and including the login.
+     */
+    synchronized void onOpened(final long millis) {
+        mHandshakes++;
+        mHandshakeMillis += millis;
+    }
+
+    /**
+     * @return the fraction of connections handed out that were reused rather than opened
+     */
+    @VisibleForTesting
+    synchronized float getReuseRatio() {
+        final int reused = mReusedFresh + mReusedChecked;
+        return reused == 0 ? 0 : (float) reused / (reused + mHandshakes);
+    }
+
+    /**
+     * @return an estimate of the time spent opening connections that reuse saved, from the
+     *     average time opening one took
+     */
+    @VisibleForTesting
+    synchronized long getHandshakeMillisSaved() {
+        if (mHandshakes == 0) {
+            return 0;
+        }
+        return (mReusedFresh + mReusedChecked) * mHandshakeMillis / mHandshakes;
+    }
+
+    // Must be called with this held.
+    private void scheduleEviction(final long delayMillis) {
+        if (mEviction != null) {
+            return;
+        }
+        mEviction = getEvictor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                final long now = SystemClock.elapsedRealtime();
+                evictExpired(now);
+                synchronized (ImapConnectionPool.this) {
+                    mEviction = null;
+                    final PooledConnection oldest = mIdle.peekLast();
+                    if (oldest != null) {
+                        scheduleEviction(Math.max(0,
+                                oldest.mLastUsed + IDLE_EXPIRY_MILLIS - now));
+                    }
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getEvictor() {
+        if (sEvictor == null) {
+            sEvictor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "ImapConnectionPool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sEvictor;
+    }
+
+    public synchronized void dump(final PrintWriter pw) {
+        pw.println("      Idle: " + mIdle.size() + "/" + mMaxSize
+                + ", Reused: " + (mReusedFresh + mReusedChecked) + " (" + mReusedChecked
+                + " after NOOP), Opened: " + mHandshakes
+                + (mHandshakes == 0 ? "" : " (avg " + (mHandshakeMillis / mHandshakes) + "ms)")
+                + ", Stale: " + mStale + ", Evicted: " + mEvicted);
+        pw.println("      Reuse ratio: " + Math.round(getReuseRatio() * 100) + "%"
+                + ", Handshake time saved: ~" + getHandshakeMillisSaved() + "ms");
+    }
+}
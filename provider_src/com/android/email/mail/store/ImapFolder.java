@@ -17,16 +17,19 @@
 package com.android.email.mail.store;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64DataException;
 
 import com.android.email.DebugUtils;
+import com.android.email.FixedLengthInputStream;
 import com.android.email.mail.store.ImapStore.ImapException;
 import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapElement;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapResponseParser;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.service.ImapService;
@@ -70,7 +73,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 
-class ImapFolder extends Folder {
+public class ImapFolder extends Folder {
     private final static Flag[] PERMANENT_FLAGS =
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
     private static final int COPY_BUFFER_SIZE = 16*1024;
@@ -81,10 +84,22 @@ class ImapFolder extends Folder {
     private ImapConnection mConnection;
     private OpenMode mMode;
     private boolean mExists;
+    /**
+     * The UIDVALIDITY, UIDNEXT and HIGHESTMODSEQ reported when the folder was selected, or 0 if
+     * none
+     */
+    private long mUidValidity;
+    private long mUidNext;
+    private long mHighestModSeq;
     /** The local mailbox associated with this remote folder */
     Mailbox mMailbox;
     /** A set of hashes that can be used to track dirtiness */
     Object mHash[];
+    /**
+     * Whether {@link #open} should fail rather than take the store over its connection limit;
+     * set for the extra folders of {@link #runInParallel}.
+     */
+    private boolean mWithinConnectionLimit;
 
     /*package*/ ImapFolder(ImapStore store, String name) {
         mStore = store;
@@ -120,7 +135,11 @@ class ImapFolder extends Folder {
                 }
             }
             synchronized (this) {
-                mConnection = mStore.getConnection();
+                mConnection = mWithinConnectionLimit
+                        ? mStore.getConnectionWithinLimit() : mStore.getConnection();
+            }
+            if (mConnection == null) {
+                throw new MessagingException("No connection to spare for " + mName);
             }
             // * FLAGS (\Answered \Flagged \Deleted \Seen \Draft NonJunk
             // $MDNSent)
@@ -140,6 +159,7 @@ class ImapFolder extends Folder {
             }
         } catch (AuthenticationFailedException e) {
             // Don't cache this connection, so we're forced to try connecting/login again
+            mStore.discardConnection(mConnection);
             mConnection = null;
             close(false);
             throw e;
@@ -264,54 +284,86 @@ class ImapFolder extends Folder {
     public void copyMessages(Message[] messages, Folder folder,
             MessageUpdateCallbacks callbacks) throws MessagingException {
         checkOpen();
+        transferMessages(ImapConstants.UID_COPY, messages, folder, callbacks);
+    }
+
+    /**
+     * Move messages to another folder.  If the server supports MOVE (RFC 6851), this is a
+     * single UID MOVE per UID set; otherwise the messages are copied, marked deleted and
+     * expunged with {@link #expungeMessages}.  Either way, the callbacks are told the new UIDs
+     * of the messages, as with {@link #copyMessages}.
+     */
+    public void moveMessages(Message[] messages, Folder folder,
+            MessageUpdateCallbacks callbacks) throws MessagingException {
+        checkOpen();
+        if (mConnection.isMoveCapable()) {
+            transferMessages(ImapConstants.UID_MOVE, messages, folder, callbacks);
+        } else {
+            transferMessages(ImapConstants.UID_COPY, messages, folder, callbacks);
+            setFlags(messages, new Flag[] { Flag.DELETED }, true);
+            expungeMessages(messages);
+        }
+    }
+
+    /**
+     * Copy or move messages to another folder, and tell the callbacks the UIDs of the messages
+     * there, either from the COPYUID response code (RFC 4315) or by searching for them.
+     * @param command {@link ImapConstants#UID_COPY} or {@link ImapConstants#UID_MOVE}
+     */
+    private void transferMessages(String command, Message[] messages, Folder folder,
+            MessageUpdateCallbacks callbacks) throws MessagingException {
         try {
-            List<ImapResponse> responseList = mConnection.executeSimpleCommand(
-                    String.format(Locale.US, ImapConstants.UID_COPY + " %s \"%s\"",
-                            ImapStore.joinMessageUids(messages),
-                            ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix)));
             // Build a message map for faster UID matching
             HashMap<String, Message> messageMap = new HashMap<String, Message>();
             boolean handledUidPlus = false;
             for (Message m : messages) {
                 messageMap.put(m.getUid(), m);
             }
-            // Process response to get the new UIDs
-            for (ImapResponse response : responseList) {
-                // All "BAD" responses are bad. Only "NO", tagged responses are bad.
-                if (response.isBad() || (response.isNo() && response.isTagged())) {
-                    String responseText = response.getStatusResponseTextOrEmpty().getString();
-                    throw new MessagingException(responseText);
-                }
-                // Skip untagged responses; they're just status
-                if (!response.isTagged()) {
-                    continue;
-                }
-                // No callback provided to report of UID changes; nothing more to do here
-                // NOTE: We check this here to catch any server errors
-                if (callbacks == null) {
-                    continue;
-                }
-                ImapList copyResponse = response.getListOrEmpty(1);
-                String responseCode = copyResponse.getStringOrEmpty(0).getString();
-                if (ImapConstants.COPYUID.equals(responseCode)) {
-                    handledUidPlus = true;
-                    String origIdSet = copyResponse.getStringOrEmpty(2).getString();
-                    String newIdSet = copyResponse.getStringOrEmpty(3).getString();
-                    String[] origIdArray = ImapUtility.getImapSequenceValues(origIdSet);
-                    String[] newIdArray = ImapUtility.getImapSequenceValues(newIdSet);
-                    // There has to be a 1:1 mapping between old and new IDs
-                    if (origIdArray.length != newIdArray.length) {
-                        throw new MessagingException("Set length mis-match; orig IDs \"" +
-                                origIdSet + "\"  new IDs \"" + newIdSet + "\"");
+            for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+                List<ImapResponse> responseList = mConnection.executeSimpleCommand(
+                        String.format(Locale.US, command + " %s \"%s\"",
+                                uidSet,
+                                ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix)));
+                // Process response to get the new UIDs
+                for (ImapResponse response : responseList) {
+                    // All "BAD" responses are bad. Only "NO", tagged responses are bad.
+                    if (response.isBad() || (response.isNo() && response.isTagged())) {
+                        String responseText = response.getStatusResponseTextOrEmpty().getString();
+                        throw new MessagingException(responseText);
+                    }
+                    // No callback provided to report of UID changes; nothing more to do here
+                    // NOTE: We check this here to catch any server errors
+                    if (callbacks == null) {
+                        continue;
+                    }
+                    // A copy reports COPYUID in the tagged response; a move reports it in an
+                    // untagged OK, as the tagged one follows the EXPUNGE responses.
+                    if (!response.isOk()) {
+                        continue;
                     }
-                    for (int i = 0; i < origIdArray.length; i++) {
-                        final String id = origIdArray[i];
-                        final Message m = messageMap.get(id);
-                        if (m != null) {
-                            callbacks.onMessageUidChange(m, newIdArray[i]);
+                    ImapList copyResponse = response.getListOrEmpty(1);
+                    String responseCode = copyResponse.getStringOrEmpty(0).getString();
+                    if (ImapConstants.COPYUID.equals(responseCode)) {
+                        handledUidPlus = true;
+                        String origIdSet = copyResponse.getStringOrEmpty(2).getString();
+                        String newIdSet = copyResponse.getStringOrEmpty(3).getString();
+                        String[] origIdArray = ImapUtility.getImapSequenceValues(origIdSet);
+                        String[] newIdArray = ImapUtility.getImapSequenceValues(newIdSet);
+                        // There has to be a 1:1 mapping between old and new IDs
+                        if (origIdArray.length != newIdArray.length) {
+                            throw new MessagingException("Set length mis-match; orig IDs \"" +
+                                    origIdSet + "\"  new IDs \"" + newIdSet + "\"");
+                        }
+                        for (int i = 0; i < origIdArray.length; i++) {
+                            final String id = origIdArray[i];
+                            final Message m = messageMap.get(id);
+                            if (m != null) {
+                                callbacks.onMessageUidChange(m, newIdArray[i]);
+                            }
                         }
                     }
                 }
+                destroyResponses();
             }
             // If the server doesn't support UIDPLUS, try a different way to get the new UID(s)
             if (callbacks != null && !handledUidPlus) {
@@ -618,6 +670,153 @@ class ImapFolder extends Folder {
         }
     }
 
+    /**
+     * Work done on one slice of the messages passed to {@link #runInParallel}.
+     */
+    public interface ParallelTask {
+        /**
+         * @param folder an open folder with a connection of its own
+         * @param messages the messages to work on
+         */
+        void run(Folder folder, Message[] messages) throws MessagingException;
+    }
+
+    /**
+     * Split {@code messages} into contiguous slices, and run {@code task} on each slice in
+     * parallel on a connection of its own.  Only the connections the store has to spare are
+     * used, so that together with this folder's and any others in use, such as a push
+     * connection, there are at most {@link ImapStore#getMaxConnections}.  This folder takes the
+     * first slice.  Anything the
+     * task shares between slices, such as a {@link MessageRetrievalListener}, must be
+     * thread-safe.
+     *
+     * If the server won't let us open another connection, or the store no longer has one to
+     * spare, that slice is run on this folder once its own slice is done.
+     *
+     * @param minMessagesPerConnection don't open a connection for fewer messages than this
+     */
+    public void runInParallel(Message[] messages, int minMessagesPerConnection,
+            ParallelTask task) throws MessagingException {
+        checkOpen();
+        // This folder's connection is already in use
+        final int connectionCount = getParallelConnectionCount(messages.length,
+                minMessagesPerConnection, 1 + mStore.getAvailableConnectionCount());
+        if (connectionCount <= 1) {
+            task.run(this, messages);
+            return;
+        }
+        final int sliceSize = (messages.length + connectionCount - 1) / connectionCount;
+        LogUtils.d(Logging.LOG_TAG, "runInParallel " + messages.length + " messages on "
+                + connectionCount + " connections");
+        final ArrayList<SliceWorker> workers = new ArrayList<SliceWorker>(connectionCount - 1);
+        for (int start = sliceSize; start < messages.length; start += sliceSize) {
+            final SliceWorker worker = new SliceWorker(task, Arrays.copyOfRange(messages, start,
+                    Math.min(messages.length, start + sliceSize)));
+            worker.start();
+            workers.add(worker);
+        }
+
+        MessagingException error = null;
+        try {
+            task.run(this, Arrays.copyOfRange(messages, 0, sliceSize));
+        } catch (MessagingException e) {
+            error = e;
+        } finally {
+            // Whatever happens here, the other slices are done when we return
+            for (SliceWorker worker : workers) {
+                worker.join();
+            }
+        }
+        for (SliceWorker worker : workers) {
+            if (error != null) {
+                break;
+            }
+            if (worker.mOpenFailed) {
+                try {
+                    task.run(this, worker.mMessages);
+                } catch (MessagingException e) {
+                    error = e;
+                }
+            } else {
+                error = worker.mError;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @return how many connections to split this many messages across; at least one
+     */
+    @VisibleForTesting
+    static int getParallelConnectionCount(int messageCount, int minMessagesPerConnection,
+            int maxConnections) {
+        final int count = messageCount / Math.max(1, minMessagesPerConnection);
+        return Math.max(1, Math.min(maxConnections, count));
+    }
+
+    /**
+     * Runs a {@link ParallelTask} on one slice of the messages, on a thread and a connection of
+     * its own.
+     */
+    private class SliceWorker implements Runnable {
+        private final ParallelTask mTask;
+        final Message[] mMessages;
+        private final Thread mThread;
+        // Only read once the thread has been joined.
+        boolean mOpenFailed;
+        MessagingException mError;
+
+        SliceWorker(ParallelTask task, Message[] messages) {
+            mTask = task;
+            mMessages = messages;
+            mThread = new Thread(this, "ImapSlice " + mName);
+        }
+
+        void start() {
+            mThread.start();
+        }
+
+        void join() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mThread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            final ImapFolder folder = new ImapFolder(mStore, mName);
+            // Another sync may have taken the connections we counted on
+            folder.mWithinConnectionLimit = true;
+            try {
+                folder.open(mMode);
+            } catch (MessagingException e) {
+                LogUtils.d(Logging.LOG_TAG, e, "Couldn't open another connection to " + mName);
+                mOpenFailed = true;
+                return;
+            }
+            try {
+                mTask.run(folder, mMessages);
+            } catch (MessagingException e) {
+                mError = e;
+            } catch (RuntimeException e) {
+                mError = new MessagingException("Error on parallel connection", e);
+            } finally {
+                folder.close(false);
+            }
+        }
+    }
+
     public void fetchInternal(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException {
         if (messages.length == 0) {
@@ -675,120 +874,188 @@ class ImapFolder extends Folder {
             }
         }
 
+        final String fetchItems =
+                Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
         try {
-            mConnection.sendCommand(String.format(Locale.US,
-                    ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                    ), false);
-            ImapResponse response;
-            do {
-                response = null;
-                try {
-                    response = mConnection.readResponse();
+            for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+                mConnection.sendCommand(String.format(Locale.US,
+                        ImapConstants.UID_FETCH + " %s (%s)", uidSet, fetchItems), false);
+                ImapResponse response;
+                do {
+                    response = null;
+                    try {
+                        response = mConnection.readResponse();
 
-                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-                        continue; // Ignore
-                    }
-                    final ImapList fetchList = response.getListOrEmpty(2);
-                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
-                            .getString();
-                    if (TextUtils.isEmpty(uid)) continue;
-
-                    ImapMessage message = (ImapMessage) messageMap.get(uid);
-                    if (message == null) continue;
-
-                    if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
+                        if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                            continue; // Ignore
                         }
-                    }
-                    if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-                        final Date internalDate = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.INTERNALDATE).getDateOrNull();
-                        final int size = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.RFC822_SIZE).getNumberOrZero();
-                        final String header = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.BODY_BRACKET_HEADER, true).getString();
-
-                        message.setInternalDate(internalDate);
-                        message.setSize(size);
-                        message.parse(Utility.streamFromAsciiString(header));
-                    }
-                    if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                        ImapList bs = fetchList.getKeyedListOrEmpty(
-                                ImapConstants.BODYSTRUCTURE);
-                        if (!bs.isEmpty()) {
-                            try {
-                                parseBodyStructure(bs, message, ImapConstants.TEXT);
-                            } catch (MessagingException e) {
-                                if (Logging.LOGD) {
-                                    LogUtils.v(Logging.LOG_TAG, e, "Error handling message");
+                        final ImapList fetchList = response.getListOrEmpty(2);
+                        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                                .getString();
+                        if (TextUtils.isEmpty(uid)) continue;
+
+                        ImapMessage message = (ImapMessage) messageMap.get(uid);
+                        if (message == null) continue;
+
+                        if (fp.contains(FetchProfile.Item.FLAGS)) {
+                            parseFlags(message,
+                                    fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS));
+                        }
+                        if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+                            final Date internalDate = fetchList.getKeyedStringOrEmpty(
+                                    ImapConstants.INTERNALDATE).getDateOrNull();
+                            final int size = fetchList.getKeyedStringOrEmpty(
+                                    ImapConstants.RFC822_SIZE).getNumberOrZero();
+                            final String header = fetchList.getKeyedStringOrEmpty(
+                                    ImapConstants.BODY_BRACKET_HEADER, true).getString();
+
+                            message.setInternalDate(internalDate);
+                            message.setSize(size);
+                            message.parse(Utility.streamFromAsciiString(header));
+                        }
+                        if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+                            ImapList bs = fetchList.getKeyedListOrEmpty(
+                                    ImapConstants.BODYSTRUCTURE);
+                            if (!bs.isEmpty()) {
+                                try {
+                                    parseBodyStructure(bs, message, ImapConstants.TEXT);
+                                } catch (MessagingException e) {
+                                    if (Logging.LOGD) {
+                                        LogUtils.v(Logging.LOG_TAG, e, "Error handling message");
+                                    }
+                                    message.setBody(null);
                                 }
-                                message.setBody(null);
                             }
                         }
-                    }
-                    if (fp.contains(FetchProfile.Item.BODY)
-                            || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        // Body is keyed by "BODY[]...".
-                        // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
-                        // TODO Should we accept "RFC822" as well??
-                        ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                        InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
-                    }
-                    if (fetchPart != null) {
-                        InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String encodings[] = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-                        String contentTransferEncoding = null;
-                        if (encodings != null && encodings.length > 0) {
-                            contentTransferEncoding = encodings[0];
-                        } else {
-                            // According to http://tools.ietf.org/html/rfc2045#section-6.1
-                            // "7bit" is the default.
-                            contentTransferEncoding = "7bit";
+                        if (fp.contains(FetchProfile.Item.BODY)
+                                || fp.contains(FetchProfile.Item.BODY_SANE)) {
+                            // Body is keyed by "BODY[]...".
+                            // Previously used "BODY[..." but this can be confused with
+                            // "BODY[HEADER..."
+                            // TODO Should we accept "RFC822" as well??
+                            ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
+                            InputStream bodyStream = body.getAsStream();
+                            message.parse(bodyStream);
                         }
+                        if (fetchPart != null) {
+                            InputStream bodyStream =
+                                    fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
+                            String contentTransferEncoding =
+                                    getContentTransferEncoding(fetchPart);
 
-                        try {
-                            // TODO Don't create 2 temp files.
-                            // decodeBody creates BinaryTempFileBody, but we could avoid this
-                            // if we implement ImapStringBody.
-                            // (We'll need to share a temp file.  Protect it with a ref-count.)
-                            fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
-                                    fetchPart.getSize(), listener));
-                        } catch(Exception e) {
-                            // TODO: Figure out what kinds of exceptions might actually be thrown
-                            // from here. This blanket catch-all is because we're not sure what to
-                            // do if we don't have a contentTransferEncoding, and we don't have
-                            // time to figure out what exceptions might be thrown.
-                            LogUtils.e(Logging.LOG_TAG, "Error fetching body %s", e);
+                            try {
+                                // This spools a large part to a temp file and decodes it into
+                                // another; fetchPart() decodes straight from the connection.
+                                fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
+                                        fetchPart.getSize(), listener));
+                            } catch(Exception e) {
+                                // TODO: Figure out what kinds of exceptions might actually be
+                                // thrown from here. This blanket catch-all is because we're not
+                                // sure what to do if we don't have a contentTransferEncoding, and
+                                // we don't have time to figure out what exceptions might be
+                                // thrown.
+                                LogUtils.e(Logging.LOG_TAG, "Error fetching body %s", e);
+                            }
                         }
-                    }
 
-                    if (listener != null) {
-                        listener.messageRetrieved(message);
+                        if (listener != null) {
+                            listener.messageRetrieved(message);
+                        }
+                    } finally {
+                        destroyResponses();
                     }
-                } finally {
-                    destroyResponses();
-                }
+                } while (!response.isTagged());
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+    }
+
+    /**
+     * Fetch a single part of a message straight into {@code out}, removing its content transfer
+     * encoding as it comes off the connection.  Unlike fetching the part with
+     * {@link #fetch(Message[], FetchProfile, MessageRetrievalListener)}, this doesn't store the
+     * encoded part in a temp file and then decode it into another, so a large attachment is
+     * written to flash only once.
+     *
+     * @param message the message the part belongs to
+     * @param part the part to fetch, which must carry its IMAP part id in
+     *     {@link MimeHeader#HEADER_ANDROID_ATTACHMENT_STORE_DATA}
+     * @param out where the decoded part is written; it isn't closed
+     * @param listener told of the progress through {@code loadAttachmentProgress}, or null
+     * @return false if the server didn't return the part
+     */
+    public boolean fetchPart(Message message, Part part, OutputStream out,
+            MessageRetrievalListener listener) throws MessagingException {
+        checkOpen();
+        final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+        if (partIds == null) {
+            throw new MessagingException("No part id to fetch");
+        }
+        final PartWriter writer = new PartWriter(out, getContentTransferEncoding(part),
+                part.getSize(), listener);
+        try {
+            mConnection.sendCommand(String.format(Locale.US,
+                    ImapConstants.UID_FETCH + " %s (" + ImapConstants.UID + " %s)",
+                    message.getUid(),
+                    ImapConstants.FETCH_FIELD_BODY_PEEK_BARE + "[" + partIds[0] + "]"), false);
+            mConnection.setLiteralHandler(writer);
+            ImapResponse response;
+            do {
+                response = mConnection.readResponse();
+                destroyResponses();
             } while (!response.isTagged());
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            if (mConnection != null) {
+                mConnection.setLiteralHandler(null);
+            }
+        }
+        return writer.mWritten;
+    }
+
+    /**
+     * Decodes the first literal the server sends, the body of the part we asked for, into the
+     * output stream of {@link #fetchPart}.
+     */
+    private static class PartWriter implements ImapResponseParser.LiteralHandler {
+        private final OutputStream mOut;
+        private final String mContentTransferEncoding;
+        private final int mSize;
+        private final MessageRetrievalListener mListener;
+        boolean mWritten;
+
+        PartWriter(OutputStream out, String contentTransferEncoding, int size,
+                MessageRetrievalListener listener) {
+            mOut = out;
+            mContentTransferEncoding = contentTransferEncoding;
+            mSize = size;
+            mListener = listener;
+        }
+
+        @Override
+        public ImapString handleLiteral(FixedLengthInputStream in) throws IOException {
+            if (mWritten) {
+                return null;
+            }
+            mWritten = true;
+            copyDecoded(in, mContentTransferEncoding, mOut, mSize, mListener);
+            return ImapString.EMPTY;
+        }
+    }
+
+    /**
+     * @return the content transfer encoding of a part, defaulting to 7bit
+     */
+    private static String getContentTransferEncoding(Part part) throws MessagingException {
+        final String encodings[] = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        if (encodings != null && encodings.length > 0) {
+            return encodings[0];
         }
+        // According to http://tools.ietf.org/html/rfc2045#section-6.1
+        // "7bit" is the default.
+        return "7bit";
     }
 
     /**
@@ -797,10 +1064,25 @@ class ImapFolder extends Folder {
      */
     private static Body decodeBody(InputStream in, String contentTransferEncoding, int size,
             MessageRetrievalListener listener) throws IOException {
-        // Get a properly wrapped input stream
-        in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
         BinaryTempFileBody tempBody = new BinaryTempFileBody();
         OutputStream out = tempBody.getOutputStream();
+        try {
+            copyDecoded(in, contentTransferEncoding, out, size, listener);
+        } finally {
+            out.close();
+        }
+        return tempBody;
+    }
+
+    /**
+     * Removes any content transfer encoding from the stream and copies the result to
+     * {@code out}, reporting the progress to the listener.
+     * @param size the expected size of the decoded data, or 0 if unknown
+     */
+    private static void copyDecoded(InputStream in, String contentTransferEncoding,
+            OutputStream out, int size, MessageRetrievalListener listener) throws IOException {
+        // Get a properly wrapped input stream
+        in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
         try {
             byte[] buffer = new byte[COPY_BUFFER_SIZE];
             int n = 0;
@@ -820,10 +1102,7 @@ class ImapFolder extends Folder {
         } catch (Base64DataException bde) {
             String warning = "\n\n" + ImapService.getMessageDecodeErrorString();
             out.write(warning.getBytes());
-        } finally {
-            out.close();
         }
-        return tempBody;
     }
 
     @Override
@@ -831,6 +1110,23 @@ class ImapFolder extends Folder {
         return PERMANENT_FLAGS;
     }
 
+    /** Set the flags in a FLAGS list from the server on {@code message}. */
+    private static void parseFlags(ImapMessage message, ImapList flags)
+            throws MessagingException {
+        for (int i = 0, count = flags.size(); i < count; i++) {
+            final ImapString flag = flags.getStringOrEmpty(i);
+            if (flag.is(ImapConstants.FLAG_DELETED)) {
+                message.setFlagInternal(Flag.DELETED, true);
+            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                message.setFlagInternal(Flag.ANSWERED, true);
+            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                message.setFlagInternal(Flag.SEEN, true);
+            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                message.setFlagInternal(Flag.FLAGGED, true);
+            }
+        }
+    }
+
     /**
      * Handle any untagged responses that the caller doesn't care to handle themselves.
      * @param responses
@@ -1169,6 +1465,347 @@ class ImapFolder extends Folder {
         return null;
     }
 
+    /**
+     * Expunge only the given messages, which must already be marked deleted, with UID EXPUNGE
+     * (RFC 4315), so that other messages marked deleted in the mailbox are left alone.  If the
+     * server doesn't support UIDPLUS this falls back to a plain {@link #expunge}.
+     */
+    public void expungeMessages(Message[] messages) throws MessagingException {
+        checkOpen();
+        if (!mConnection.isUidPlusCapable()) {
+            expunge();
+            return;
+        }
+        try {
+            for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+                handleUntaggedResponses(mConnection.executeSimpleCommand(
+                        ImapConstants.UID_EXPUNGE + " " + uidSet));
+                destroyResponses();
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * @return the UIDVALIDITY of the mailbox, or 0 if the server didn't report it.  Only valid
+     *     while the folder is open.
+     */
+    public long getUidValidity() {
+        return mUidValidity;
+    }
+
+    /**
+     * @return the UIDNEXT of the mailbox, i.e. the lowest UID a new message can get, or 0 if the
+     *     server didn't report it.  Only valid while the folder is open.
+     */
+    public long getUidNext() {
+        return mUidNext;
+    }
+
+    /**
+     * Get the messages whose UID is at least {@code uid}, e.g. those that arrived since we saw
+     * a given UIDNEXT, including any marked \Deleted.
+     */
+    public Message[] getMessagesFromUid(long uid) throws MessagingException {
+        final ArrayList<String> uids = new ArrayList<String>();
+        for (String found : searchForUids(
+                String.format(Locale.US, ImapConstants.UID + " %d:*", uid), false)) {
+            // "n:*" always matches the last message, even if its UID is below n
+            if (parseUnsigned(found) >= uid) {
+                uids.add(found);
+            }
+        }
+        return getMessagesInternal(uids.toArray(Utility.EMPTY_STRINGS), null);
+    }
+
+    /**
+     * @return the HIGHESTMODSEQ (RFC 7162) of the mailbox, or 0 if the server doesn't keep
+     *     mod-sequences for it.  Only valid while the folder is open.
+     */
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    /**
+     * @return whether we can ask for the messages whose flags changed since a mod-sequence with
+     *     {@link #fetchFlagsChangedSince}.  Only valid while the folder is open.
+     */
+    public boolean supportsModSeq() {
+        return mConnection != null && mConnection.isCondstoreCapable() && mHighestModSeq > 0;
+    }
+
+    /**
+     * @return whether we can also ask for the messages expunged since a mod-sequence with
+     *     {@link #fetchChangesSince}.  Only valid while the folder is open.
+     */
+    public boolean supportsVanished() {
+        return supportsModSeq() && mConnection.isQresyncEnabled();
+    }
+
+    /**
+     * Everything that happened to a mailbox since a given mod-sequence.
+     */
+    public static class ChangedSince {
+        /** Messages added or whose flags changed, with their current flags. */
+        public final ArrayList<Message> mChanged = new ArrayList<Message>();
+        /**
+         * The UIDs of messages expunged, as the ranges of each set from
+         * {@link ImapUtility#getImapSequenceRanges}.
+         */
+        private final ArrayList<long[]> mVanished = new ArrayList<long[]>();
+
+        public boolean hasVanished() {
+            return !mVanished.isEmpty();
+        }
+
+        /**
+         * @return whether the message with this UID was expunged
+         */
+        public boolean isVanished(String uid) {
+            final long value;
+            try {
+                value = Long.parseLong(uid);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            // The sets aren't expanded; after a big cleanup they can cover a lot of UIDs
+            for (long[] ranges : mVanished) {
+                for (int i = 0; i < ranges.length; i += 2) {
+                    if (value >= ranges[i] && value <= ranges[i + 1]) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Ask the server for every change to the mailbox since {@code modSeq}: the messages that were
+     * added or whose flags changed, and the UIDs of the messages that were expunged.  This is a
+     * single round trip, however big the mailbox.  Requires {@link #supportsVanished}.
+     *
+     * @param modSeq the HIGHESTMODSEQ of the mailbox the last time we synced it
+     */
+    public ChangedSince fetchChangesSince(long modSeq) throws MessagingException {
+        checkOpen();
+        final ChangedSince result = new ChangedSince();
+        try {
+            final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+                    String.format(Locale.US, ImapConstants.UID_FETCH + " 1:* (%s %s) (%s %d %s)",
+                            ImapConstants.UID, ImapConstants.FLAGS, ImapConstants.CHANGEDSINCE,
+                            modSeq, ImapConstants.VANISHED));
+            for (ImapResponse response : responses) {
+                if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+                    result.mVanished.add(
+                            ImapUtility.getImapSequenceRanges(getVanishedUids(response)));
+                    continue;
+                }
+                final ImapMessage message = parseFlagsResponse(response, null);
+                if (message != null) {
+                    result.mChanged.add(message);
+                }
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+        return result;
+    }
+
+    /**
+     * Fetch the flags of those of {@code messages} whose flags changed since {@code modSeq}, and
+     * leave the others alone.  Requires {@link #supportsModSeq}.
+     *
+     * @param modSeq the HIGHESTMODSEQ of the mailbox the last time we synced it
+     * @return the messages whose flags changed
+     */
+    public Message[] fetchFlagsChangedSince(Message[] messages, long modSeq)
+            throws MessagingException {
+        checkOpen();
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        for (Message m : messages) {
+            messageMap.put(m.getUid(), m);
+        }
+        final ArrayList<Message> changed = new ArrayList<Message>();
+        try {
+            for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+                final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+                        String.format(Locale.US, ImapConstants.UID_FETCH + " %s (%s %s) (%s %d)",
+                                uidSet, ImapConstants.UID, ImapConstants.FLAGS,
+                                ImapConstants.CHANGEDSINCE, modSeq));
+                for (ImapResponse response : responses) {
+                    final ImapMessage message = parseFlagsResponse(response, messageMap);
+                    if (message != null) {
+                        changed.add(message);
+                    }
+                }
+                destroyResponses();
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+        return changed.toArray(Message.EMPTY_ARRAY);
+    }
+
+    /**
+     * @param messageMap the messages to set the flags of, by UID; or null to create them
+     * @return the message whose flags a FETCH response carries, or null if it doesn't carry any
+     */
+    private ImapMessage parseFlagsResponse(ImapResponse response,
+            HashMap<String, Message> messageMap) throws MessagingException {
+        if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+            return null;
+        }
+        final ImapList fetchList = response.getListOrEmpty(2);
+        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+        if (TextUtils.isEmpty(uid)) {
+            return null;
+        }
+        final ImapMessage message;
+        if (messageMap == null) {
+            message = new ImapMessage(uid, this);
+        } else {
+            message = (ImapMessage) messageMap.get(uid);
+            if (message == null) {
+                return null;
+            }
+        }
+        parseFlags(message, fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS));
+        return message;
+    }
+
+    /**
+     * @return the set of UIDs in a VANISHED response, with or without (EARLIER)
+     */
+    private static String getVanishedUids(ImapResponse response) {
+        final int index = response.getElementOrNone(1).isList() ? 2 : 1;
+        return response.getStringOrEmpty(index).getString();
+    }
+
+    /**
+     * @return the number of UIDs in a UID set such as "41,43:116", counted without expanding the
+     *     set; parts that aren't numbers or ranges of numbers are skipped
+     */
+    @VisibleForTesting
+    static int countUids(String set) {
+        final long[] ranges = ImapUtility.getImapSequenceRanges(set);
+        long count = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            // There's no telling how many UIDs a range up to "*" covers
+            if (ranges[i + 1] != Long.MAX_VALUE) {
+                count += ranges[i + 1] - ranges[i] + 1;
+            }
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * What the server told us about the selected mailbox during one call to {@link #idle}.
+     */
+    static class IdleResult {
+        /** The message count when we started idling. */
+        final int mPreviousMessageCount;
+        /** The message count once we stopped idling. */
+        int mMessageCount;
+        /** Whether any messages were expunged. */
+        boolean mExpunged;
+        /** Whether any messages' flags changed. */
+        boolean mFlagsChanged;
+
+        IdleResult(final int messageCount) {
+            mPreviousMessageCount = messageCount;
+            mMessageCount = messageCount;
+        }
+
+        boolean hasChanges() {
+            return mExpunged || mFlagsChanged || mMessageCount != mPreviousMessageCount;
+        }
+    }
+
+    /**
+     * @return whether the server supports IDLE.  Only valid while the folder is open.
+     */
+    boolean supportsIdle() {
+        return mConnection != null && mConnection.isIdleCapable();
+    }
+
+    /**
+     * Idle (RFC 2177) on this folder until the server reports a change to the mailbox or
+     * {@code timeoutMillis} has passed, whichever comes first.  The folder must be open.
+     *
+     * @param timeoutMillis the longest time to stay in IDLE
+     * @return what changed while we were idling
+     */
+    IdleResult idle(final long timeoutMillis) throws MessagingException {
+        checkOpen();
+        final ImapConnection connection = mConnection;
+        final IdleResult result = new IdleResult(mMessageCount);
+        try {
+            final ArrayList<ImapResponse> responses = new ArrayList<ImapResponse>();
+            connection.startIdle(responses);
+            for (ImapResponse response : responses) {
+                handleIdleResponse(response, result);
+            }
+            final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (!result.hasChanges() && remaining > 0) {
+                final ImapResponse response = connection.readIdleResponse((int) remaining);
+                if (response == null) {
+                    break;
+                }
+                handleIdleResponse(response, result);
+                remaining = deadline - SystemClock.elapsedRealtime();
+            }
+            // Responses that arrive after DONE are picked up too
+            for (ImapResponse response : connection.endIdle()) {
+                handleIdleResponse(response, result);
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(connection, ioe);
+        } finally {
+            destroyResponses();
+        }
+        return result;
+    }
+
+    private void handleIdleResponse(ImapResponse response, IdleResult result) {
+        if (response.isDataResponse(1, ImapConstants.EXISTS)) {
+            mMessageCount = response.getStringOrEmpty(0).getNumberOrZero();
+        } else if (response.isDataResponse(1, ImapConstants.EXPUNGE)) {
+            // Each expunge moves the later messages down one, and there's one fewer message
+            mMessageCount--;
+            result.mExpunged = true;
+        } else if (response.isDataResponse(1, ImapConstants.FETCH)) {
+            result.mFlagsChanged = true;
+        } else if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+            // With QRESYNC enabled, expunges are reported as a set of UIDs instead
+            mMessageCount = Math.max(0, mMessageCount - countUids(getVanishedUids(response)));
+            result.mExpunged = true;
+        }
+        result.mMessageCount = mMessageCount;
+    }
+
+    /**
+     * Make a call to {@link #idle} that is blocked on another thread return now.  The folder's
+     * connection is closed, so the call to {@link #idle} fails with an IO error.
+     */
+    void abortIdle() {
+        final ImapConnection connection;
+        synchronized (this) {
+            connection = mConnection;
+        }
+        if (connection != null) {
+            connection.abortIdle();
+        }
+    }
+
     @Override
     public void setFlags(Message[] messages, Flag[] flags, boolean value)
             throws MessagingException {
@@ -1192,11 +1829,14 @@ class ImapFolder extends Folder {
             allFlags = flagList.substring(1);
         }
         try {
-            mConnection.executeSimpleCommand(String.format(Locale.US,
-                    ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
-                    ImapStore.joinMessageUids(messages),
-                    value ? "+" : "-",
-                    allFlags));
+            for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+                mConnection.executeSimpleCommand(String.format(Locale.US,
+                        ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
+                        uidSet,
+                        value ? "+" : "-",
+                        allFlags));
+                destroyResponses();
+            }
 
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
@@ -1229,12 +1869,20 @@ class ImapFolder extends Folder {
      * must be selected.
      */
     private void doSelect() throws IOException, MessagingException {
+        // Once QRESYNC is enabled every SELECT reports mod-sequences; with only CONDSTORE we
+        // have to ask for them
+        final boolean condstore =
+                mConnection.isCondstoreCapable() && !mConnection.isQresyncEnabled();
         final List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"",
-                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix)));
+                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"%s",
+                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix),
+                        condstore ? " (" + ImapConstants.CONDSTORE + ")" : ""));
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = OpenMode.READ_WRITE;
+        mUidValidity = 0;
+        mUidNext = 0;
+        mHighestModSeq = 0;
         int messageCount = -1;
         for (ImapResponse response : responses) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
@@ -1245,6 +1893,15 @@ class ImapFolder extends Folder {
                     mMode = OpenMode.READ_ONLY;
                 } else if (responseCode.is(ImapConstants.READ_WRITE)) {
                     mMode = OpenMode.READ_WRITE;
+                } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                    mUidValidity = parseUnsigned(response.getListOrEmpty(1).getStringOrEmpty(1));
+                } else if (responseCode.is(ImapConstants.UIDNEXT)) {
+                    mUidNext = parseUnsigned(response.getListOrEmpty(1).getStringOrEmpty(1));
+                } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+                    mHighestModSeq =
+                            parseUnsigned(response.getListOrEmpty(1).getStringOrEmpty(1));
+                } else if (responseCode.is(ImapConstants.NOMODSEQ)) {
+                    mHighestModSeq = 0;
                 }
             } else if (response.isTagged()) { // Not OK
                 throw new MessagingException("Can't open mailbox: "
@@ -1258,6 +1915,22 @@ class ImapFolder extends Folder {
         mExists = true;
     }
 
+    /**
+     * UIDs, UIDVALIDITY and mod-sequences don't fit in an int, so
+     * {@link ImapString#getNumberOrZero} won't do.
+     */
+    private static long parseUnsigned(ImapString string) {
+        return parseUnsigned(string.getString());
+    }
+
+    private static long parseUnsigned(String string) {
+        try {
+            return Math.max(0, Long.parseLong(string));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     private void checkOpen() throws MessagingException {
         if (!isOpen()) {
             throw new MessagingException("Folder " + mName + " is not open.");
@@ -1268,10 +1941,12 @@ class ImapFolder extends Folder {
         if (DebugUtils.DEBUG) {
             LogUtils.d(Logging.LOG_TAG, "IO Exception detected: ", ioe);
         }
-        connection.close();
         if (connection == mConnection) {
             mConnection = null; // To prevent close() from returning the connection to the pool.
+            mStore.discardConnection(connection);
             close(false);
+        } else {
+            connection.close();
         }
         return new MessagingException(MessagingException.IOERROR, "IO Error", ioe);
     }
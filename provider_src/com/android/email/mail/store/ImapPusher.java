@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+
+import com.android.email.mail.Store;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.AuthenticationFailedException;
+import com.android.emailcommon.mail.Folder.OpenMode;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps one long-lived connection to an IMAP mailbox in IDLE (RFC 2177), and tells a
+ * {@link Callback} as soon as the server reports a change, instead of waiting for the next
+ * periodic sync.
+ *
+ * The connection leaves IDLE and enters it again every {@link #IDLE_REFRESH_MILLIS}, well inside
+ * the 30 minutes after which servers may log out an idle client.  If the server doesn't advertise
+ * IDLE, the pusher stops and leaves it to the {@link Callback} to poll the mailbox, every
+ * {@link #POLL_INTERVAL_MILLIS}.  After a connection error it reconnects, backing off
+ * exponentially while the errors continue.
+ */
+public class ImapPusher {
+    private static final String TAG = "ImapPusher";
+
+    /** How long we stay in IDLE before refreshing it. */
+    @VisibleForTesting
+    static final long IDLE_REFRESH_MILLIS = 24 * DateUtils.MINUTE_IN_MILLIS;
+    /** How often the mailbox should be synced if the server can't IDLE. */
+    public static final long POLL_INTERVAL_MILLIS = 15 * DateUtils.MINUTE_IN_MILLIS;
+    /** The first and the longest wait before reconnecting after an error. */
+    private static final long MIN_BACKOFF_MILLIS = 10 * DateUtils.SECOND_IN_MILLIS;
+    private static final long MAX_BACKOFF_MILLIS = 30 * DateUtils.MINUTE_IN_MILLIS;
+
+    /**
+     * Receives the changes the server reports.  Methods are called on the pusher's thread, and
+     * the pusher doesn't go back to IDLE until they return.
+     */
+    public interface Callback {
+        /**
+         * New messages have arrived in the mailbox.
+         * @param firstSeq the message sequence number of the first new message
+         * @param lastSeq the message sequence number of the last new message
+         */
+        void onNewMessages(int firstSeq, int lastSeq);
+
+        /**
+         * Something else changed (messages were expunged or their flags changed), or we may have
+         * missed changes while we were disconnected.  The whole mailbox should be synced.
+         */
+        void onMailboxChanged();
+
+        /**
+         * Whether the server can IDLE, once the pusher has first connected.  If it can't, the
+         * pusher is done, and the mailbox should be synced every {@link #POLL_INTERVAL_MILLIS}
+         * some other way; the pusher can't keep the device awake to poll it.
+         */
+        void onIdleSupported(boolean supported);
+
+        /**
+         * The account no longer exists, and the pusher has stopped.
+         */
+        void onAccountGone();
+    }
+
+    private final Context mContext;
+    private final long mAccountId;
+    private final String mFolderName;
+    private final Callback mCallback;
+
+    // Guarded by this.
+    private Thread mThread;
+    private ImapFolder mFolder;
+    private boolean mStopped;
+    private boolean mPolling;
+    private int mErrorCount;
+
+    public ImapPusher(final Context context, final Account account, final String folderName,
+            final Callback callback) {
+        mContext = context.getApplicationContext();
+        mAccountId = account.mId;
+        mFolderName = folderName;
+        mCallback = callback;
+    }
+
+    public synchronized void start() {
+        if (mThread == null && !mStopped) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runPushLoop();
+                }
+            }, "ImapPush " + mAccountId);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stop pushing and close the connection.  The pusher can't be restarted.
+     */
+    public void stop() {
+        final ImapFolder folder;
+        synchronized (this) {
+            mStopped = true;
+            folder = mFolder;
+            notifyAll();
+        }
+        if (folder != null) {
+            folder.abortIdle();
+        }
+    }
+
+    public synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    private void runPushLoop() {
+        boolean missedChanges = false;
+        boolean connected = false;
+        while (!isStopped()) {
+            final ImapFolder folder;
+            try {
+                folder = openFolder();
+            } catch (MessagingException e) {
+                missedChanges = true;
+                onError(e);
+                continue;
+            }
+            if (folder == null) {
+                if (!isStopped()) {
+                    LogUtils.d(TAG, "Account %d is gone, stopping push", mAccountId);
+                    stop();
+                    mCallback.onAccountGone();
+                }
+                break;
+            }
+            try {
+                final boolean supportsIdle = folder.supportsIdle();
+                if (!connected) {
+                    connected = true;
+                    mCallback.onIdleSupported(supportsIdle);
+                }
+                if (!supportsIdle) {
+                    synchronized (this) {
+                        mPolling = true;
+                    }
+                    LogUtils.i(TAG, "Server for account %d can't IDLE, polling instead",
+                            mAccountId);
+                    break;
+                }
+                if (missedChanges) {
+                    mCallback.onMailboxChanged();
+                    missedChanges = false;
+                }
+                while (!isStopped()) {
+                    final ImapFolder.IdleResult result = folder.idle(IDLE_REFRESH_MILLIS);
+                    synchronized (this) {
+                        mErrorCount = 0;
+                    }
+                    if (result.mExpunged || result.mFlagsChanged
+                            || result.mMessageCount < result.mPreviousMessageCount) {
+                        mCallback.onMailboxChanged();
+                    } else if (result.mMessageCount > result.mPreviousMessageCount) {
+                        mCallback.onNewMessages(result.mPreviousMessageCount + 1,
+                                result.mMessageCount);
+                    }
+                }
+            } catch (MessagingException e) {
+                missedChanges = true;
+                if (!isStopped()) {
+                    onError(e);
+                }
+            } finally {
+                closeFolder(folder);
+            }
+        }
+    }
+
+    /**
+     * @return the open folder we push from, or null if the account has been deleted or we have
+     *     been stopped
+     */
+    private ImapFolder openFolder() throws MessagingException {
+        // Reload the account, in case its settings have changed or it has been deleted
+        final Account account = Account.restoreAccountWithId(mContext, mAccountId);
+        if (account == null) {
+            return null;
+        }
+        final Store store = Store.getInstance(account, mContext);
+        if (!(store instanceof ImapStore)) {
+            return null;
+        }
+        final ImapFolder folder = (ImapFolder) store.getFolder(mFolderName);
+        synchronized (this) {
+            if (mStopped) {
+                return null;
+            }
+            mFolder = folder;
+        }
+        folder.open(OpenMode.READ_WRITE);
+        return folder;
+    }
+
+    private void closeFolder(final ImapFolder folder) {
+        synchronized (this) {
+            mFolder = null;
+        }
+        folder.close(false);
+    }
+
+    private void onError(final MessagingException e) {
+        final long backoff;
+        synchronized (this) {
+            backoff = getBackoffMillis(mErrorCount++);
+        }
+        if (e instanceof AuthenticationFailedException) {
+            LogUtils.w(TAG, "Authentication failed for account %d", mAccountId);
+        } else {
+            LogUtils.d(Logging.LOG_TAG, e, "Push error for account %d", mAccountId);
+        }
+        waitUnlessStopped(backoff);
+    }
+
+    /**
+     * @return how long to wait before reconnecting after this many consecutive errors
+     */
+    @VisibleForTesting
+    static long getBackoffMillis(final int errorCount) {
+        long backoff = MIN_BACKOFF_MILLIS;
+        for (int i = 0; i < errorCount && backoff < MAX_BACKOFF_MILLIS; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @return false if the pusher was stopped before the time was up
+     */
+    private synchronized boolean waitUnlessStopped(final long millis) {
+        final long deadline = System.currentTimeMillis() + millis;
+        long remaining = millis;
+        while (!mStopped && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                mStopped = true;
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return !mStopped;
+    }
+
+    /**
+     * @return whether the server can't IDLE, so we are polling instead
+     */
+    public synchronized boolean isPolling() {
+        return mPolling;
+    }
+
+    public synchronized void dump(final PrintWriter pw) {
+        pw.println("    Account: " + mAccountId + ", Folder: " + mFolderName
+                + (mStopped ? " [stopped]" : (mPolling ? " [polling]" : " [idle]"))
+                + ", Errors: " + mErrorCount);
+    }
+}
@@ -25,10 +25,12 @@ import android.util.Base64;
 
 import com.android.email.LegacyConversions;
 import com.android.email.Preferences;
+import com.android.email.R;
 import com.android.email.mail.Store;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapString;
+import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.mail.transport.MailTransport;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.VendorPolicyLoader;
@@ -51,21 +53,19 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Pattern;
 
 
 /**
  * <pre>
- * TODO Need to start keeping track of UIDVALIDITY
  * TODO Need a default response handler for things like folder updates
  * TODO In fetch(), if we need a ImapMessage and were given
  *      something else we can try to do a pre-fetch first.
@@ -90,8 +90,24 @@ public class ImapStore extends Store {
 
     private boolean mUseOAuth;
 
-    private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
-            new ConcurrentLinkedQueue<ImapConnection>();
+    /**
+     * The longest UID set we'll put in a single command. Many servers limit command lines to
+     * around 8000 octets, so this leaves plenty of room for the rest of the command.
+     */
+    @VisibleForTesting
+    static final int MAX_UID_SET_LENGTH = 4000;
+
+    /** The most connections we open to the server at once. */
+    private final int mMaxConnections;
+
+    /** Idle connections; the store outlives a sync, so they can be reused by the next one. */
+    private final ImapConnectionPool mConnectionPool;
+
+    /**
+     * Connections handed out by {@link #getConnection} and not yet pooled or discarded, including
+     * a push connection sitting in IDLE.  Guarded by this.
+     */
+    private int mConnectionsInUse;
 
     /**
      * Static named constructor.
@@ -120,6 +136,47 @@ public class ImapStore extends Store {
         final Credential cred = recvAuth.getCredential(context);
         mUseOAuth = (cred != null);
         mPathPrefix = recvAuth.mDomain;
+        mMaxConnections = getMaxConnections(
+                context.getResources().getStringArray(R.array.imap_max_connections_by_host),
+                context.getResources().getInteger(R.integer.imap_max_connections),
+                recvAuth.mAddress);
+        mConnectionPool = new ImapConnectionPool(mMaxConnections);
+    }
+
+    /**
+     * @param overrides per-server limits, as "host=count"
+     * @param defaultMax the limit for servers without an override
+     * @return the most connections we may open to {@code host} at once; at least one
+     */
+    @VisibleForTesting
+    static int getMaxConnections(String[] overrides, int defaultMax, String host) {
+        int max = defaultMax;
+        for (String override : overrides) {
+            final int equals = override.indexOf('=');
+            if (equals > 0 && override.substring(0, equals).trim().equalsIgnoreCase(host)) {
+                try {
+                    max = Integer.parseInt(override.substring(equals + 1).trim());
+                } catch (NumberFormatException e) {
+                    LogUtils.w(Logging.LOG_TAG, "Bad IMAP connection limit: " + override);
+                }
+                break;
+            }
+        }
+        return Math.max(1, max);
+    }
+
+    /**
+     * @return the most connections we open to the server at once, e.g. to fetch in parallel
+     */
+    int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * @return how many more connections we may open before reaching {@link #getMaxConnections}
+     */
+    synchronized int getAvailableConnectionCount() {
+        return Math.max(0, mMaxConnections - mConnectionsInUse);
     }
 
     boolean getUseOAuth() {
@@ -155,7 +212,7 @@ public class ImapStore extends Store {
     }
 
     @VisibleForTesting
-    Collection<ImapConnection> getConnectionPoolForTest() {
+    ImapConnectionPool getConnectionPoolForTest() {
         return mConnectionPool;
     }
 
@@ -466,12 +523,14 @@ public class ImapStore extends Store {
             saveMailboxList(mContext, mailboxes);
             return mailboxes.values().toArray(new Folder[mailboxes.size()]);
         } catch (IOException ioe) {
-            connection.close();
+            discardConnection(connection);
+            connection = null;
             throw new MessagingException("Unable to get folder list", ioe);
         } catch (AuthenticationFailedException afe) {
             // We do NOT want this connection pooled, or we will continue to send NOOP and SELECT
             // commands to the server
             connection.destroyResponses();
+            discardConnection(connection);
             connection = null;
             throw afe;
         } finally {
@@ -546,30 +605,57 @@ public class ImapStore extends Store {
     }
 
     /**
-     * Gets a connection if one is available from the pool, or creates a new one if not.
+     * Gets a connection if one is available from the pool, or creates a new one if not. A pooled
+     * connection is checked with a NOOP first, unless it was used only moments ago.
      */
     ImapConnection getConnection() {
-        // TODO Why would we ever have (or need to have) more than one active connection?
+        synchronized (this) {
+            mConnectionsInUse++;
+        }
+        return takeOrCreateConnection();
+    }
+
+    /**
+     * Like {@link #getConnection}, but only if that keeps the connections in use, whoever uses
+     * them, within {@link #getMaxConnections}.  For connections we could do without, such as the
+     * extra ones of a parallel fetch.
+     *
+     * @return the connection, or null if as many connections as we may open are in use
+     */
+    ImapConnection getConnectionWithinLimit() {
+        synchronized (this) {
+            if (mConnectionsInUse >= mMaxConnections) {
+                return null;
+            }
+            mConnectionsInUse++;
+        }
+        return takeOrCreateConnection();
+    }
+
+    private ImapConnection takeOrCreateConnection() {
         // TODO We set new username/password each time, but we don't actually close the transport
         // when we do this. So if that information has changed, this connection will fail.
-        ImapConnection connection;
-        while ((connection = mConnectionPool.poll()) != null) {
+        ImapConnectionPool.PooledConnection pooled;
+        while ((pooled = mConnectionPool.take()) != null) {
+            final ImapConnection connection = pooled.mConnection;
+            connection.setStore(this);
+            if (mConnectionPool.isFresh(pooled)) {
+                mConnectionPool.onReused(false);
+                return connection;
+            }
             try {
-                connection.setStore(this);
                 connection.executeSimpleCommand(ImapConstants.NOOP);
-                break;
+                mConnectionPool.onReused(true);
+                return connection;
             } catch (MessagingException e) {
                 // Fall through
             } catch (IOException e) {
                 // Fall through
             }
+            mConnectionPool.onStale();
             connection.close();
         }
-
-        if (connection == null) {
-            connection = new ImapConnection(this);
-        }
-        return connection;
+        return new ImapConnection(this);
     }
 
     /**
@@ -578,11 +664,36 @@ public class ImapStore extends Store {
      */
     void poolConnection(ImapConnection connection) {
         if (connection != null) {
+            onConnectionReleased();
             connection.destroyResponses();
-            mConnectionPool.add(connection);
+            mConnectionPool.put(connection);
+        }
+    }
+
+    /**
+     * Close a connection from {@link #getConnection} that mustn't be reused, e.g. after an error.
+     */
+    void discardConnection(ImapConnection connection) {
+        if (connection != null) {
+            onConnectionReleased();
+            connection.close();
+        }
+    }
+
+    private synchronized void onConnectionReleased() {
+        if (mConnectionsInUse > 0) {
+            mConnectionsInUse--;
         }
     }
 
+    /**
+     * Called by a connection once it has connected and logged in.
+     * @param millis how long that took
+     */
+    void onConnectionOpened(long millis) {
+        mConnectionPool.onOpened(millis);
+    }
+
     /**
      * Prepends the folder name with the given prefix and UTF-7 encodes it.
      */
@@ -617,19 +728,22 @@ public class ImapStore extends Store {
     }
 
     /**
-     * Returns UIDs of Messages joined with "," as the separator.
+     * Returns the UIDs of the given messages as compressed sequence sets (see
+     * {@link ImapUtility#getImapSequenceSets}), each no longer than
+     * {@link #MAX_UID_SET_LENGTH}. Commands that take a list of messages should be issued once
+     * per returned set.
      */
-    static String joinMessageUids(Message[] messages) {
-        StringBuilder sb = new StringBuilder();
-        boolean notFirst = false;
-        for (Message m : messages) {
-            if (notFirst) {
-                sb.append(',');
-            }
-            sb.append(m.getUid());
-            notFirst = true;
+    static List<String> getMessageUidSets(Message[] messages) {
+        return getMessageUidSets(messages, MAX_UID_SET_LENGTH);
+    }
+
+    @VisibleForTesting
+    static List<String> getMessageUidSets(Message[] messages, int maxLength) {
+        final String[] uids = new String[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            uids[i] = messages[i].getUid();
         }
-        return sb.toString();
+        return ImapUtility.getImapSequenceSets(uids, maxLength);
     }
 
     static class ImapMessage extends MimeMessage {
@@ -686,10 +800,18 @@ public class ImapStore extends Store {
         }
     }
 
+    /**
+     * Close all idle connections. Syncs don't call this, so that the next sync can reuse them;
+     * the pool closes connections that stay idle too long by itself.
+     */
+    @Override
     public void closeConnections() {
-        ImapConnection connection;
-        while ((connection = mConnectionPool.poll()) != null) {
-            connection.close();
-        }
+        mConnectionPool.clear();
+    }
+
+    @Override
+    public void dump(PrintWriter pw) {
+        pw.println("    Account: " + mAccount.mId + ", Host: " + mTransport.getHost());
+        mConnectionPool.dump(pw);
     }
 }
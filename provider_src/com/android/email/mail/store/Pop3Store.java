@@ -43,10 +43,12 @@ import com.google.common.annotations.VisibleForTesting;
 
 import org.apache.james.mime4j.EOLConvertingInputStream;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 
 public class Pop3Store extends Store {
@@ -56,6 +58,18 @@ public class Pop3Store extends Store {
     private static boolean DEBUG_LOG_RAW_STREAM = false;
 
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED };
+    /** Maildrops with at least this many messages have their UIDLs saved between syncs. */
+    private static final int MIN_MESSAGES_TO_SAVE_UIDLS = 500;
+    /**
+     * Without PIPELINING, the most new messages to ask the UIDLs of one at a time before
+     * listing the whole maildrop instead.
+     */
+    private static final int MAX_SINGLE_UIDLS = 20;
+    /**
+     * The most commands sent with PIPELINING before reading their responses.  Our commands are
+     * short, so they never fill the socket buffers while the server waits for us to read.
+     */
+    private static final int MAX_PIPELINED_COMMANDS = 32;
     /** The name of the only mailbox available to POP3 accounts */
     private static final String POP3_MAILBOX_NAME = "INBOX";
     private final HashMap<String, Folder> mFolders = new HashMap<String, Folder>();
@@ -381,22 +395,24 @@ public class Pop3Store extends Store {
             if (!mMsgNumToMsgMap.isEmpty()) {
                 return;
             }
+            final boolean saveUidls = mMessageCount >= MIN_MESSAGES_TO_SAVE_UIDLS
+                    && start == 1 && end == mMessageCount;
+            if (saveUidls && indexSavedUidls()) {
+                return;
+            }
             UidlParser parser = new UidlParser();
             if (DEBUG_FORCE_SINGLE_LINE_UIDL || (mMessageCount > 5000)) {
                 /*
                  * In extreme cases we'll do a UIDL command per message instead of a bulk
-                 * download.
+                 * download.  With PIPELINING, these at least don't cost a round trip each.
                  */
-                for (int msgNum = start; msgNum <= end; msgNum++) {
-                    Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                    if (message == null) {
-                        String response = executeSimpleCommand("UIDL " + msgNum);
-                        if (!parser.parseSingleLine(response)) {
-                            throw new IOException();
-                        }
-                        message = new Pop3Message(parser.mUniqueId, this);
-                        indexMessage(msgNum, message);
-                    }
+                final int[] msgNums = new int[end - start + 1];
+                for (int i = 0; i < msgNums.length; i++) {
+                    msgNums[i] = start + i;
+                }
+                final String[] uids = getUidls(msgNums);
+                for (int i = 0; i < msgNums.length; i++) {
+                    indexMessage(msgNums[i], new Pop3Message(uids[i], this));
                 }
             } else {
                 String response = executeSimpleCommand("UIDL");
@@ -417,6 +433,91 @@ public class Pop3Store extends Store {
                     }
                 }
             }
+            if (saveUidls) {
+                saveUidls();
+            }
+        }
+
+        /**
+         * Index all messages from the UIDLs saved by an earlier sync, if they still hold.  Only
+         * the first and last saved messages, and any new messages after them, are asked for.
+         *
+         * @return whether the messages were indexed; if not, the caller has to list them
+         */
+        private boolean indexSavedUidls() throws MessagingException, IOException {
+            final Pop3UidlIndex saved = Pop3UidlIndex.load(getUidlIndexFile());
+            if (saved == null || saved.getCount() == 0 || saved.getCount() > mMessageCount) {
+                return false;
+            }
+            final int savedCount = saved.getCount();
+            final int newCount = mMessageCount - savedCount;
+            if (newCount > MAX_SINGLE_UIDLS && !canPipeline()) {
+                return false;
+            }
+            final String[] uids = getUidls(new int[] { 1, savedCount });
+            if (!saved.isValid(mMessageCount, uids[0], uids[1])) {
+                LogUtils.d(Logging.LOG_TAG, "POP3 maildrop changed, listing all UIDLs");
+                return false;
+            }
+            for (int msgNum = 1; msgNum <= savedCount; msgNum++) {
+                indexMessage(msgNum, new Pop3Message(saved.getUid(msgNum), this));
+            }
+            if (newCount > 0) {
+                final int[] msgNums = new int[newCount];
+                for (int i = 0; i < newCount; i++) {
+                    msgNums[i] = savedCount + 1 + i;
+                }
+                final String[] newUids = getUidls(msgNums);
+                for (int i = 0; i < newCount; i++) {
+                    indexMessage(msgNums[i], new Pop3Message(newUids[i], this));
+                }
+                saveUidls();
+            }
+            return true;
+        }
+
+        /**
+         * Save the UIDLs of all messages, which must have been indexed, for the next sync.
+         */
+        private void saveUidls() {
+            final String[] uids = new String[mMessageCount];
+            for (int msgNum = 1; msgNum <= mMessageCount; msgNum++) {
+                final Pop3Message message = mMsgNumToMsgMap.get(msgNum);
+                if (message == null) {
+                    return;
+                }
+                uids[msgNum - 1] = message.getUid();
+            }
+            new Pop3UidlIndex(uids).save(getUidlIndexFile());
+        }
+
+        private File getUidlIndexFile() {
+            return new File(mContext.getCacheDir(), "pop3-uidl-" + mAccount.mId);
+        }
+
+        /**
+         * Ask for the UIDLs of the given messages one at a time, pipelined if possible.
+         *
+         * @return the UIDL of each message, in the same order
+         */
+        private String[] getUidls(int[] msgNums) throws MessagingException, IOException {
+            final List<String> commands = new ArrayList<String>(msgNums.length);
+            for (int msgNum : msgNums) {
+                commands.add("UIDL " + msgNum);
+            }
+            final String[] responses = executeSimpleCommands(commands);
+            final String[] uids = new String[msgNums.length];
+            final UidlParser parser = new UidlParser();
+            for (int i = 0; i < responses.length; i++) {
+                if (!parser.parseSingleLine(responses[i])) {
+                    throw new IOException();
+                }
+                if (parser.mErr) {
+                    throw new MessagingException(responses[i]);
+                }
+                uids[i] = parser.mUniqueId;
+            }
+            return uids;
         }
 
         /**
@@ -558,65 +659,150 @@ public class Pop3Store extends Store {
         public void fetchBody(Pop3Message message, int lines,
                 EOLConvertingInputStream.Callback callback) throws IOException, MessagingException {
             String response = null;
-            int messageId = mUidToMsgNumMap.get(message.getUid());
             if (lines == -1) {
                 // Fetch entire message
-                response = executeSimpleCommand(String.format(Locale.US, "RETR %d", messageId));
+                response = executeSimpleCommand(getFetchCommand(message, -1));
             } else {
                 // Fetch partial message.  Try "TOP", and fall back to slower "RETR" if necessary
                 try {
-                    response = executeSimpleCommand(
-                            String.format(Locale.US, "TOP %d %d", messageId,  lines));
+                    response = executeSimpleCommand(getFetchCommand(message, lines));
                 } catch (MessagingException me) {
-                    try {
-                        response = executeSimpleCommand(
-                                String.format(Locale.US, "RETR %d", messageId));
-                    } catch (MessagingException e) {
-                        LogUtils.w(Logging.LOG_TAG, "Can't read message " + messageId);
-                    }
+                    fetchWholeBody(message, lines, callback);
+                    return;
                 }
             }
-            if (response != null)  {
+            readBody(message, lines, response, callback);
+        }
+
+        /**
+         * Fetches the bodies of the given messages as {@link #fetchBody} does, but with the
+         * TOP or RETR commands pipelined if the server supports it.  Each message is handed to
+         * the listener as soon as it has been read.
+         *
+         * @param messages the messages to fetch
+         * @param lines the number of lines to fetch of each message, or -1 for all
+         * @param listener told of each message once it's read, or null
+         */
+        public void fetchBodies(List<Pop3Message> messages, int lines,
+                MessageRetrievalListener listener) throws IOException, MessagingException {
+            open(OpenMode.READ_WRITE);
+            final int batchSize = canPipeline() ? MAX_PIPELINED_COMMANDS : 1;
+            final ArrayList<Pop3Message> failed = new ArrayList<Pop3Message>();
+            for (int i = 0; i < messages.size(); i += batchSize) {
+                final List<Pop3Message> batch =
+                        messages.subList(i, Math.min(messages.size(), i + batchSize));
+                for (Pop3Message message : batch) {
+                    mTransport.writeLine(getFetchCommand(message, lines), null);
+                }
+                boolean done = false;
                 try {
-                    int ok = response.indexOf("OK");
-                    if (ok > 0) {
-                        try {
-                            int start = ok + 3;
-                            if (start > response.length()) {
-                                // No length was supplied, this is a protocol error.
-                                LogUtils.e(Logging.LOG_TAG, "No body length supplied");
-                                message.setSize(0);
-                            } else {
-                                int end = response.indexOf(" ", start);
-                                final String intString;
-                                if (end > 0) {
-                                    intString = response.substring(start, end);
-                                } else {
-                                    intString = response.substring(start);
-                                }
-                                message.setSize(Integer.parseInt(intString));
-                            }
-                        } catch (NumberFormatException e) {
-                            // We tried
+                    for (Pop3Message message : batch) {
+                        final String response = mTransport.readLine(true);
+                        if (response.length() > 1 && response.charAt(0) == '-') {
+                            // Can't issue another command before reading the rest of the batch
+                            failed.add(message);
+                            continue;
+                        }
+                        readBody(message, lines, response, null);
+                        if (listener != null) {
+                            listener.messageRetrieved(message);
                         }
                     }
-                    InputStream in = mTransport.getInputStream();
-                    if (DEBUG_LOG_RAW_STREAM && DebugUtils.DEBUG) {
-                        in = new LoggingInputStream(in);
+                    done = true;
+                } finally {
+                    if (!done) {
+                        // The responses to the rest of the batch are still coming
+                        mTransport.close();
                     }
-                    message.parse(new Pop3ResponseInputStream(in), callback);
-                }
-                catch (MessagingException me) {
-                    /*
-                     * If we're only downloading headers it's possible
-                     * we'll get a broken MIME message which we're not
-                     * real worried about. If we've downloaded the body
-                     * and can't parse it we need to let the user know.
-                     */
+                }
+                for (Pop3Message message : failed) {
                     if (lines == -1) {
-                        throw me;
+                        throw new MessagingException("Can't read message " + message.getUid());
+                    }
+                    fetchWholeBody(message, lines, null);
+                    if (listener != null) {
+                        listener.messageRetrieved(message);
                     }
                 }
+                failed.clear();
+            }
+        }
+
+        private String getFetchCommand(Pop3Message message, int lines) {
+            int messageId = mUidToMsgNumMap.get(message.getUid());
+            if (lines == -1) {
+                return String.format(Locale.US, "RETR %d", messageId);
+            }
+            return String.format(Locale.US, "TOP %d %d", messageId, lines);
+        }
+
+        /**
+         * Fetches the entire message with RETR, for a partial fetch that TOP failed.
+         */
+        private void fetchWholeBody(Pop3Message message, int lines,
+                EOLConvertingInputStream.Callback callback) throws IOException, MessagingException {
+            String response;
+            try {
+                response = executeSimpleCommand(getFetchCommand(message, -1));
+            } catch (MessagingException e) {
+                LogUtils.w(Logging.LOG_TAG, "Can't read message " + message.getUid());
+                return;
+            }
+            readBody(message, lines, response, callback);
+        }
+
+        /**
+         * Reads the message that follows a positive response to TOP or RETR.
+         */
+        private void readBody(Pop3Message message, int lines, String response,
+                EOLConvertingInputStream.Callback callback) throws IOException, MessagingException {
+            try {
+                int ok = response.indexOf("OK");
+                if (ok > 0) {
+                    try {
+                        int start = ok + 3;
+                        if (start > response.length()) {
+                            // No length was supplied, this is a protocol error.
+                            LogUtils.e(Logging.LOG_TAG, "No body length supplied");
+                            message.setSize(0);
+                        } else {
+                            int end = response.indexOf(" ", start);
+                            final String intString;
+                            if (end > 0) {
+                                intString = response.substring(start, end);
+                            } else {
+                                intString = response.substring(start);
+                            }
+                            message.setSize(Integer.parseInt(intString));
+                        }
+                    } catch (NumberFormatException e) {
+                        // We tried
+                    }
+                }
+                InputStream in = mTransport.getInputStream();
+                if (DEBUG_LOG_RAW_STREAM && DebugUtils.DEBUG) {
+                    in = new LoggingInputStream(in);
+                }
+                final Pop3ResponseInputStream body = new Pop3ResponseInputStream(in);
+                try {
+                    message.parse(body, callback);
+                } finally {
+                    // Skip whatever the parser left, so the next response is read from its start
+                    while (body.read() != -1) {
+                        // Keep reading
+                    }
+                }
+            }
+            catch (MessagingException me) {
+                /*
+                 * If we're only downloading headers it's possible
+                 * we'll get a broken MIME message which we're not
+                 * real worried about. If we've downloaded the body
+                 * and can't parse it we need to let the user know.
+                 */
+                if (lines == -1) {
+                    throw me;
+                }
             }
         }
 
@@ -658,6 +844,8 @@ public class Pop3Store extends Store {
                         String uid = message.getUid();
                         int msgNum = mUidToMsgNumMap.get(uid);
                         executeSimpleCommand(String.format(Locale.US, "DELE %s", msgNum));
+                        // The deletion renumbers the messages after it
+                        getUidlIndexFile().delete();
                         // Remove from the maps
                         mMsgNumToMsgMap.remove(msgNum);
                         mUidToMsgNumMap.remove(uid);
@@ -680,6 +868,10 @@ public class Pop3Store extends Store {
             throw new UnsupportedOperationException("copyMessages is not supported in POP3");
         }
 
+        private boolean canPipeline() {
+            return mCapabilities != null && mCapabilities.pipelining;
+        }
+
         private Pop3Capabilities getCapabilities() throws IOException {
             Pop3Capabilities capabilities = new Pop3Capabilities();
             try {
@@ -689,6 +881,8 @@ public class Pop3Store extends Store {
                         break;
                     } else if (response.equalsIgnoreCase("STLS")){
                         capabilities.stls = true;
+                    } else if (response.equalsIgnoreCase("PIPELINING")) {
+                        capabilities.pipelining = true;
                     }
                 }
             }
@@ -712,6 +906,34 @@ public class Pop3Store extends Store {
             return executeSensitiveCommand(command, null);
         }
 
+        /**
+         * Send commands that each get a single line response, and wait for the responses.  If
+         * the server supports PIPELINING (RFC 2449) the commands are sent in batches without
+         * waiting for each response.  Reopens the connection, if it is closed.  Leaves the
+         * connection open.
+         *
+         * @param commands The command strings to send to the server.
+         * @return Returns the response strings from the server, in the order of the commands.
+         *     Unlike {@link #executeSimpleCommand}, "-ERR" responses are returned, not thrown.
+         */
+        private String[] executeSimpleCommands(List<String> commands)
+                throws IOException, MessagingException {
+            open(OpenMode.READ_WRITE);
+
+            final int batchSize = canPipeline() ? MAX_PIPELINED_COMMANDS : 1;
+            final String[] responses = new String[commands.size()];
+            for (int i = 0; i < responses.length; i += batchSize) {
+                final int batchEnd = Math.min(responses.length, i + batchSize);
+                for (int j = i; j < batchEnd; j++) {
+                    mTransport.writeLine(commands.get(j), null);
+                }
+                for (int j = i; j < batchEnd; j++) {
+                    responses[j] = mTransport.readLine(true);
+                }
+            }
+            return responses;
+        }
+
         /**
          * Send a single command and wait for a single line response.  Reopens the connection,
          * if it is closed.  Leaves the connection open.
@@ -793,10 +1015,12 @@ public class Pop3Store extends Store {
     class Pop3Capabilities {
         /** The STLS (start TLS) command is supported */
         public boolean stls;
+        /** Commands may be sent without waiting for the previous responses (RFC 2449) */
+        public boolean pipelining;
 
         @Override
         public String toString() {
-            return String.format("STLS %b", stls);
+            return String.format("STLS %b, PIPELINING %b", stls, pipelining);
         }
     }
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import com.android.emailcommon.Logging;
+import com.android.mail.utils.LogUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The UIDLs of a POP3 maildrop by message number, saved between syncs so that a large maildrop
+ * needn't be listed with UIDL again when it hasn't changed.
+ *
+ * POP3 message numbers aren't stable: deleting a message renumbers all the messages after it.
+ * Servers only ever add messages at the end, though, so if the first message and the last one in
+ * the index still have the same UIDLs, the index still holds for those message numbers, and any
+ * messages beyond them are new.
+ */
+class Pop3UidlIndex {
+    /** Written first, so that a file in another format is ignored rather than misread. */
+    private static final int VERSION = 1;
+
+    private final String[] mUids;
+
+    /**
+     * @param uids the UIDL of each message, the first one being message number 1
+     */
+    Pop3UidlIndex(final String[] uids) {
+        mUids = uids;
+    }
+
+    /**
+     * @return the number of messages in the index
+     */
+    int getCount() {
+        return mUids.length;
+    }
+
+    /**
+     * @return the UIDL of the given message, counting from 1 as POP3 does
+     */
+    String getUid(final int msgNum) {
+        return mUids[msgNum - 1];
+    }
+
+    /**
+     * Check the index against the UIDLs the server now reports for the first message and for
+     * the last message in the index.
+     *
+     * @param messageCount the number of messages the server reports in STAT
+     * @return whether the index holds for its message numbers
+     */
+    boolean isValid(final int messageCount, final String firstUid, final String lastUid) {
+        return mUids.length > 0 && mUids.length <= messageCount
+                && mUids[0].equals(firstUid) && mUids[mUids.length - 1].equals(lastUid);
+    }
+
+    /**
+     * @return the index saved in the file, or null if there is none or it can't be read
+     */
+    static Pop3UidlIndex load(final File file) {
+        try {
+            final DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != VERSION) {
+                    return null;
+                }
+                final String[] uids = new String[in.readInt()];
+                for (int i = 0; i < uids.length; i++) {
+                    uids[i] = in.readUTF();
+                }
+                return new Pop3UidlIndex(uids);
+            } finally {
+                in.close();
+            }
+        } catch (final FileNotFoundException e) {
+            return null;
+        } catch (final IOException e) {
+            LogUtils.w(Logging.LOG_TAG, e, "Could not read POP3 UIDL index");
+            return null;
+        }
+    }
+
+    /**
+     * Save the index to the file, replacing whatever it held.
+     */
+    void save(final File file) {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(mUids.length);
+                for (final String uid : mUids) {
+                    out.writeUTF(uid);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (final IOException e) {
+            LogUtils.w(Logging.LOG_TAG, e, "Could not write POP3 UIDL index");
+            tempFile.delete();
+        }
+    }
+}
@@ -20,7 +20,6 @@ import android.text.TextUtils;
 
 import com.android.email.DebugUtils;
 import com.android.email.FixedLengthInputStream;
-import com.android.email.PeekableInputStream;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.MessagingException;
@@ -29,10 +28,17 @@ import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * IMAP response parser.
+ *
+ * <p>The parser reads the stream in blocks into a reusable buffer and scans atoms, quoted strings
+ * and lines directly in that buffer, rather than pulling the response one byte at a time.
+ * Literals are read straight out of the buffer (and then the stream) by the {@link ImapString}
+ * that stores them, without going through the parser's own byte handling.
  */
 public class ImapResponseParser {
     private static final boolean DEBUG_LOG_RAW_STREAM = false; // DO NOT RELEASE AS 'TRUE'
@@ -42,8 +48,22 @@ public class ImapResponseParser {
      */
     public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
+    /** Size of {@link #mBuffer}. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
     /** Input stream */
-    private final PeekableInputStream mIn;
+    private final InputStream mIn;
+
+    /** Bytes read from {@link #mIn} that haven't been parsed yet are between mPos and mLimit. */
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+
+    /**
+     * Bytes in {@link #mBuffer} from here up to {@link #mPos} have been parsed but not yet passed
+     * to {@link #mDiscourseLogger}.
+     */
+    private int mLogPos;
 
     /**
      * To log network activities when the parser crashes.
@@ -54,11 +74,38 @@ public class ImapResponseParser {
 
     private final int mLiteralKeepInMemoryThreshold;
 
-    /** StringBuilder used by readUntil() */
-    private final StringBuilder mBufferReadUntil = new StringBuilder();
+    /** Bytes collected by readUntil() and parseBareString(); reused between calls. */
+    private byte[] mScratch = new byte[256];
+    private int mScratchLength;
 
-    /** StringBuilder used by parseBareString() */
-    private final StringBuilder mParseBareString = new StringBuilder();
+    /**
+     * The stream literals are read from.  It returns whatever is left in {@link #mBuffer} first,
+     * then reads the rest straight from {@link #mIn}, so large literals aren't copied through the
+     * buffer.
+     */
+    private final InputStream mLiteralSource = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (mPos < mLimit) {
+                return mBuffer[mPos++] & 0xff;
+            }
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (mPos < mLimit) {
+                final int count = Math.min(length, mLimit - mPos);
+                System.arraycopy(mBuffer, mPos, b, offset, count);
+                mPos += count;
+                return count;
+            }
+            return mIn.read(b, offset, length);
+        }
+    };
 
     /**
      * We store all {@link ImapResponse} in it.  {@link #destroyResponses()} must be called from
@@ -77,6 +124,24 @@ public class ImapResponseParser {
         }
     }
 
+    /**
+     * Consumes literals as they are read from the stream, so that a large literal can be
+     * processed without being stored first.
+     */
+    public interface LiteralHandler {
+        /**
+         * Called for each literal in a response, with the stream positioned at its first byte.
+         * Whatever the handler doesn't read is skipped.
+         *
+         * @param in the literal
+         * @return the string that stands in for the literal in the response, or null, without
+         *     having read from {@code in}, to have the literal stored as usual
+         */
+        ImapString handleLiteral(FixedLengthInputStream in) throws IOException;
+    }
+
+    private LiteralHandler mLiteralHandler;
+
     /**
      * Public constructor for normal use.
      */
@@ -92,11 +157,19 @@ public class ImapResponseParser {
         if (DEBUG_LOG_RAW_STREAM && DebugUtils.DEBUG) {
             in = new LoggingInputStream(in);
         }
-        mIn = new PeekableInputStream(in);
+        mIn = in;
         mDiscourseLogger = discourseLogger;
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
     }
 
+    /**
+     * Set the handler that is given the literals read from now on, or null to store them as
+     * usual.
+     */
+    public void setLiteralHandler(LiteralHandler handler) {
+        mLiteralHandler = handler;
+    }
+
     private static IOException newEOSException() {
         final String message = "End of stream reached";
         if (DebugUtils.DEBUG) {
@@ -106,32 +179,113 @@ public class ImapResponseParser {
     }
 
     /**
-     * Peek next one byte.
+     * Pass the bytes parsed since the last call to {@link #mDiscourseLogger}.
+     */
+    private void flushDiscourse() {
+        if (mPos > mLogPos) {
+            mDiscourseLogger.addReceivedBytes(mBuffer, mLogPos, mPos - mLogPos);
+        }
+        mLogPos = mPos;
+    }
+
+    /**
+     * Refill {@link #mBuffer} from {@link #mIn}.  Must only be called once all the buffered bytes
+     * have been consumed.
+     *
+     * @return false if reaches EOF.
+     */
+    private boolean fill() throws IOException {
+        flushDiscourse();
+        mPos = 0;
+        mLimit = 0;
+        mLogPos = 0;
+        int count;
+        do {
+            count = mIn.read(mBuffer, 0, BUFFER_SIZE);
+        } while (count == 0);
+        if (count < 0) {
+            return false;
+        }
+        mLimit = count;
+        return true;
+    }
+
+    /**
+     * Make sure there's at least one unread byte in {@link #mBuffer}.
      *
      * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
      * we shouldn't see EOF during parsing.
      */
-    private int peek() throws IOException {
-        final int next = mIn.peek();
-        if (next == -1) {
+    private void ensureBuffered() throws IOException {
+        if (mPos >= mLimit && !fill()) {
             throw newEOSException();
         }
-        return next;
     }
 
     /**
-     * Read and return one byte from {@link #mIn}, and put it in {@link #mDiscourseLogger}.
+     * Peek next one byte.
      *
-     * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
-     * we shouldn't see EOF during parsing.
+     * Throws IOException() if reaches EOF.
+     */
+    private int peek() throws IOException {
+        ensureBuffered();
+        return mBuffer[mPos] & 0xff;
+    }
+
+    /**
+     * Read and return one byte.  It'll be passed to {@link #mDiscourseLogger} along with the rest
+     * of the buffer.
+     *
+     * Throws IOException() if reaches EOF.
      */
     private int readByte() throws IOException {
-        int next = mIn.read();
-        if (next == -1) {
-            throw newEOSException();
+        ensureBuffered();
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    /** Append {@code length} bytes starting at {@code mBuffer[offset]} to {@link #mScratch}. */
+    private void appendScratch(int offset, int length) {
+        final int required = mScratchLength + length;
+        if (required > mScratch.length) {
+            mScratch = Arrays.copyOf(mScratch, Math.max(required, mScratch.length * 2));
         }
-        mDiscourseLogger.addReceivedByte(next);
-        return next;
+        System.arraycopy(mBuffer, offset, mScratch, mScratchLength, length);
+        mScratchLength = required;
+    }
+
+    /**
+     * Append all bytes until {@code end} to {@link #mScratch}.  The {@code end} will be read, but
+     * won't be appended.
+     */
+    private void appendScratchUntil(int end) throws IOException {
+        final byte endByte = (byte) end;
+        for (;;) {
+            ensureBuffered();
+            final int start = mPos;
+            int pos = start;
+            while (pos < mLimit && mBuffer[pos] != endByte) {
+                pos++;
+            }
+            appendScratch(start, pos - start);
+            if (pos < mLimit) {
+                mPos = pos + 1; // Skip the end char
+                return;
+            }
+            mPos = pos;
+        }
+    }
+
+    /** @return whether {@link #mScratch} contains "NIL", ignoring case. */
+    private boolean isScratchNil() {
+        return mScratchLength == 3
+                && (mScratch[0] | 0x20) == 'n'
+                && (mScratch[1] | 0x20) == 'i'
+                && (mScratch[2] | 0x20) == 'l';
+    }
+
+    /** @return a new {@link ImapSimpleString} that holds a copy of {@link #mScratch}. */
+    private ImapSimpleString newStringFromScratch() {
+        return new ImapSimpleString(mScratch, 0, mScratchLength);
     }
 
     /**
@@ -161,6 +315,7 @@ public class ImapResponseParser {
         ImapResponse response = null;
         try {
             response = parseResponse();
+            flushDiscourse();
             if (DebugUtils.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, "<<< " + response.toString());
             }
@@ -169,6 +324,10 @@ public class ImapResponseParser {
             // Parser crash -- log network activities.
             onParseError(e);
             throw e;
+        } catch (SocketTimeoutException e) {
+            // Nothing arrived in time (e.g. while idling); this isn't a parse error, and reading
+            // more bytes for the log would only wait out another timeout.
+            throw e;
         } catch (IOException e) {
             // Network error, or received an unexpected char.
             onParseError(e);
@@ -201,6 +360,7 @@ public class ImapResponseParser {
             }
         } catch (IOException ignore) {
         }
+        flushDiscourse();
         LogUtils.w(Logging.LOG_TAG, "Exception detected: " + e.getMessage());
         mDiscourseLogger.logLastDiscourse();
     }
@@ -222,15 +382,9 @@ public class ImapResponseParser {
      * The {@code end} will be read (rather than peeked) and won't be included in the result.
      */
     /* package for test */ String readUntil(char end) throws IOException {
-        mBufferReadUntil.setLength(0);
-        for (;;) {
-            final int ch = readByte();
-            if (ch != end) {
-                mBufferReadUntil.append((char) ch);
-            } else {
-                return mBufferReadUntil.toString();
-            }
-        }
+        mScratchLength = 0;
+        appendScratchUntil(end);
+        return ImapSimpleString.decode(mScratch, mScratchLength);
     }
 
     /**
@@ -336,7 +490,9 @@ public class ImapResponseParser {
                 return parseList('[', ']');
             case '"':
                 readByte(); // Skip "
-                return new ImapSimpleString(readUntil('"'));
+                mScratchLength = 0;
+                appendScratchUntil('"');
+                return newStringFromScratch();
             case '{':
                 return parseLiteral();
             case '\r':  // CR
@@ -361,44 +517,59 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
+        mScratchLength = 0;
         for (;;) {
-            final int ch = peek();
+            ensureBuffered();
 
-            // TODO Can we clean this up?  (This condition is from the old parser.)
-            if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                    // ']' is not part of atom (it's in resp-specials)
-                    ch == ']' ||
-                    // docs claim that flags are \ atom but atom isn't supposed to
-                    // contain
-                    // * and some flags contain *
-                    // ch == '%' || ch == '*' ||
-                    ch == '%' ||
-                    // TODO probably should not allow \ and should recognize
-                    // it as a flag instead
-                    // ch == '"' || ch == '\' ||
-                    ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
-                    throw new MessagingException("Expected string, none found.");
-                }
-                String s = mParseBareString.toString();
+            // Take as many bytes of the atom as we have in the buffer in one go.
+            final int start = mPos;
+            int pos = start;
+            while (pos < mLimit && !isAtomEnd(mBuffer[pos] & 0xff) && mBuffer[pos] != '[') {
+                pos++;
+            }
+            appendScratch(start, pos - start);
+            mPos = pos;
+            if (pos == mLimit) {
+                continue; // Need more data
+            }
 
-                // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
-                    return ImapString.EMPTY;
-                }
-                return new ImapSimpleString(s);
-            } else if (ch == '[') {
+            if (mBuffer[pos] == '[') {
                 // Eat all until next ']'
-                mParseBareString.append((char) readByte());
-                mParseBareString.append(readUntil(']'));
-                mParseBareString.append(']'); // readUntil won't include the end char.
-            } else {
-                mParseBareString.append((char) readByte());
+                appendScratchUntil(']');
+                appendScratch(mPos - 1, 1); // appendScratchUntil won't include the end char.
+                continue;
+            }
+
+            if (mScratchLength == 0) {
+                throw new MessagingException("Expected string, none found.");
             }
+            // NIL will be always converted into the empty string.
+            if (isScratchNil()) {
+                return ImapString.EMPTY;
+            }
+            return newStringFromScratch();
         }
     }
 
+    /**
+     * @return whether {@code ch} terminates an atom.
+     */
+    private static boolean isAtomEnd(int ch) {
+        // TODO Can we clean this up?  (This condition is from the old parser.)
+        return ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
+                // ']' is not part of atom (it's in resp-specials)
+                ch == ']' ||
+                // docs claim that flags are \ atom but atom isn't supposed to
+                // contain
+                // * and some flags contain *
+                // ch == '%' || ch == '*' ||
+                ch == '%' ||
+                // TODO probably should not allow \ and should recognize
+                // it as a flag instead
+                // ch == '"' || ch == '\' ||
+                ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f;
+    }
+
     private void parseElements(ImapList list, char end)
             throws IOException, MessagingException {
         for (;;) {
@@ -443,11 +614,34 @@ public class ImapResponseParser {
         }
         expect('\r');
         expect('\n');
-        FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
-        if (size > mLiteralKeepInMemoryThreshold) {
-            return new ImapTempFileLiteral(in);
-        } else {
-            return new ImapMemoryLiteral(in);
+
+        // Literals aren't logged.  The literal reads its data directly from mBuffer and mIn.
+        flushDiscourse();
+        final FixedLengthInputStream in = new FixedLengthInputStream(mLiteralSource, size);
+        try {
+            if (mLiteralHandler != null) {
+                final ImapString handled = mLiteralHandler.handleLiteral(in);
+                if (handled != null) {
+                    skipRemaining(in);
+                    return handled;
+                }
+            }
+            if (size > mLiteralKeepInMemoryThreshold) {
+                return new ImapTempFileLiteral(in);
+            } else {
+                return new ImapMemoryLiteral(in);
+            }
+        } finally {
+            mLogPos = mPos;
+        }
+    }
+
+    /** Read and drop whatever is left of a literal, so we can parse what follows it. */
+    private static void skipRemaining(FixedLengthInputStream in) throws IOException {
+        while (in.available() > 0) {
+            if (in.skip(in.available()) <= 0 && in.read() == -1) {
+                throw newEOSException();
+            }
         }
     }
 }
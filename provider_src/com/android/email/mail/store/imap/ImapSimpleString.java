@@ -20,36 +20,70 @@ import com.android.emailcommon.utility.Utility;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
  * Subclass of {@link ImapString} used for non literals.
+ *
+ * <p>Strings created by the parser keep the raw bytes and only decode them the first time
+ * {@link #getString()} is called, as most atoms in a response are never looked at as strings.
  */
 public class ImapSimpleString extends ImapString {
+    /** Each byte maps to the char with the same value, as the parser always did. */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
     private String mString;
 
+    /** The raw bytes of the string, or null if it was created from a String. */
+    private byte[] mBytes;
+
     /* package */  ImapSimpleString(String string) {
         mString = (string != null) ? string : "";
     }
 
+    /**
+     * Create a string from a copy of {@code length} bytes of {@code bytes}, starting at
+     * {@code offset}.
+     */
+    /* package */  ImapSimpleString(byte[] bytes, int offset, int length) {
+        mBytes = Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+    /**
+     * Decode the first {@code length} bytes of {@code bytes} the same way
+     * {@link #getString()} does.
+     */
+    /* package */ static String decode(byte[] bytes, int length) {
+        return new String(bytes, 0, length, ISO_8859_1);
+    }
+
     @Override
     public void destroy() {
         mString = null;
+        mBytes = null;
         super.destroy();
     }
 
     @Override
     public String getString() {
+        if (mString == null && mBytes != null) {
+            mString = decode(mBytes, mBytes.length);
+        }
         return mString;
     }
 
     @Override
     public InputStream getAsStream() {
+        if (mBytes != null) {
+            return new ByteArrayInputStream(mBytes);
+        }
         return new ByteArrayInputStream(Utility.toAscii(mString));
     }
 
     @Override
     public String toString() {
         // Purposefully not return just mString, in order to prevent using it instead of getString.
-        return "\"" + mString + "\"";
+        return "\"" + getString() + "\"";
     }
 }
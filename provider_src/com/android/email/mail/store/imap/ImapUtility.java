@@ -20,6 +20,9 @@ import com.android.emailcommon.Logging;
 import com.android.mail.utils.LogUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * Utility methods for use with IMAP.
@@ -89,6 +92,45 @@ public class ImapUtility {
         return list.toArray(stringList);
     }
 
+    /**
+     * Gets the ranges in a sequence set per RFC 3501, without expanding them, so that a set
+     * covering a great many numbers stays cheap. "*" is taken as the largest possible number, and
+     * any item that is not valid is skipped.
+     * <pre>
+     * sequence-number = nz-number / "*"
+     * sequence-range  = sequence-number ":" sequence-number
+     * sequence-set    = (sequence-number / sequence-range) *("," sequence-set)
+     * </pre>
+     * @return the first and last number of each range in turn, the first never greater than the
+     *     last; a single number is a range of one
+     */
+    public static long[] getImapSequenceRanges(String set) {
+        if (set == null || set.isEmpty()) {
+            return new long[0];
+        }
+        final String[] setItems = set.split(",");
+        final long[] ranges = new long[setItems.length * 2];
+        int count = 0;
+        for (String item : setItems) {
+            final int colon = item.indexOf(':');
+            try {
+                final long first = parseSequenceNumber((colon < 0) ? item
+                        : item.substring(0, colon));
+                final long last = (colon < 0) ? first
+                        : parseSequenceNumber(item.substring(colon + 1));
+                ranges[count++] = Math.min(first, last);
+                ranges[count++] = Math.max(first, last);
+            } catch (NumberFormatException e) {
+                LogUtils.d(Logging.LOG_TAG, "Invalid sequence set item", e);
+            }
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    private static long parseSequenceNumber(String number) {
+        return "*".equals(number) ? Long.MAX_VALUE : Long.parseLong(number);
+    }
+
     /**
      * Expand the given number range into a list of individual numbers. If the range is not valid,
      * an empty array is returned.
@@ -123,4 +165,73 @@ public class ImapUtility {
         String[] stringList = new String[list.size()];
         return list.toArray(stringList);
     }
+
+    /**
+     * Builds sequence sets per RFC 3501 for the given UIDs, collapsing runs of consecutive
+     * numbers into ranges (e.g. "1:4,7,9:10"). Each returned set is at most maxLength characters
+     * long, so that a command using it can be kept under a server's line length limit; callers
+     * issue one command per returned set. Duplicates are dropped, and any UID that is not a
+     * number is passed through as-is.
+     * <pre>
+     * sequence-number = nz-number / "*"
+     * sequence-range  = sequence-number ":" sequence-number
+     * sequence-set    = (sequence-number / sequence-range) *("," sequence-set)
+     * </pre>
+     * @param uids the UIDs to encode
+     * @param maxLength the maximum length of a single set; a single item is never split
+     * @return the sequence sets, in ascending order; empty if uids is empty
+     */
+    public static List<String> getImapSequenceSets(String[] uids, int maxLength) {
+        final long[] numbers = new long[uids.length];
+        int numberCount = 0;
+        final LinkedHashSet<String> others = new LinkedHashSet<String>();
+        for (String uid : uids) {
+            try {
+                final long value = Long.parseLong(uid);
+                if (value > 0) {
+                    numbers[numberCount++] = value;
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // Not a number; fall through
+            }
+            others.add(uid);
+        }
+        Arrays.sort(numbers, 0, numberCount);
+
+        final ArrayList<String> sets = new ArrayList<String>();
+        final StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < numberCount) {
+            final long first = numbers[i];
+            long last = first;
+            // Extend the run over consecutive (and duplicate) values
+            while (i + 1 < numberCount && numbers[i + 1] <= last + 1) {
+                last = numbers[++i];
+            }
+            i++;
+            appendSequenceItem(sets, sb, (first == last) ? Long.toString(first)
+                    : first + ":" + last, maxLength);
+        }
+        for (String other : others) {
+            appendSequenceItem(sets, sb, other, maxLength);
+        }
+        if (sb.length() > 0) {
+            sets.add(sb.toString());
+        }
+        return sets;
+    }
+
+    private static void appendSequenceItem(List<String> sets, StringBuilder sb, String item,
+            int maxLength) {
+        if (sb.length() > 0) {
+            if (sb.length() + 1 + item.length() > maxLength) {
+                sets.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(',');
+            }
+        }
+        sb.append(item);
+    }
 }
@@ -17,6 +17,7 @@
 package com.android.email.mail.transport;
 
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.utility.Utility;
 import com.android.mail.utils.LogUtils;
 
 import java.util.ArrayList;
@@ -63,7 +64,7 @@ public class DiscourseLogger {
      * received, the content of {@link #mReceivingLine} is added to {@link #mBuffer}.
      */
     public void addReceivedByte(int b) {
-        if (0x20 <= b && b <= 0x7e) { // Append only printable ASCII chars.
+        if (isPrintable(b)) { // Append only printable ASCII chars.
             mReceivingLine.append((char) b);
         } else if (b == '\n') { // LF
             addReceivingLineToBuffer();
@@ -74,6 +75,33 @@ public class DiscourseLogger {
         }
     }
 
+    private static boolean isPrintable(int b) {
+        return 0x20 <= b && b <= 0x7e;
+    }
+
+    /**
+     * Store a run of bytes received from the server.  This is the same as calling
+     * {@link #addReceivedByte} for each of the {@code length} bytes starting at
+     * {@code b[offset]}, but printable runs are appended all at once.
+     */
+    public void addReceivedBytes(byte[] b, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            final int start = i;
+            while (i < end && isPrintable(b[i])) {
+                i++;
+            }
+            if (i > start) {
+                mReceivingLine.append(new String(b, start, i - start, Utility.ASCII));
+            }
+            if (i < end) {
+                addReceivedByte(b[i] & 0xff);
+                i++;
+            }
+        }
+    }
+
     /** Add a line sent to the server to {@link #mBuffer}. */
     public void addSentCommand(String command) {
         addLine(command);
@@ -23,18 +23,23 @@ import android.database.CursorWindow;
 import android.database.CursorWrapper;
 import android.database.MatrixCursor;
 import android.net.Uri;
-import android.util.LruCache;
 
 import com.android.email.DebugUtils;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.MatrixCursorWithCachedColumns;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An LRU cache for EmailContent (Account, HostAuth, Mailbox, and Message, thus far).  The intended
@@ -69,10 +74,15 @@ import java.util.Set;
  * 2. Update the row: db.update(...);
  * 3. Unlock the row in the cache, passing in the new values: cache.unlock(id, values);
  *
- * Synchronization note: All of the public methods in ContentCache are synchronized (i.e. on the
- * cache itself) except for methods that are solely used for debugging and do not modify the cache.
- * All references to ContentCache that are external to the ContentCache class MUST synchronize on
- * the ContentCache instance (e.g. CachedCursor.close())
+ * Synchronization note: ContentCache is thread safe, without a lock for the whole cache.
+ * Getting a cached cursor doesn't lock at all.  The locks and tokens of each id are kept in one
+ * of a fixed number of stripes, chosen by the id, and synchronize on that stripe only; so do
+ * writes of an id into the cache.  Eviction is LRU (by a clock that counts uses of the cache),
+ * and is done, with conditional removes, by whichever thread makes the cache too big.
+ *
+ * Cached cursors are reference counted: the cache holds a reference to the cursor of each of its
+ * entries, and each open CachedCursor holds one.  The cursor is closed when its last reference is
+ * released, so an entry can be evicted or invalidated while CachedCursors still use it.
  */
 public final class ContentCache {
     private static final boolean DEBUG_CACHE = false;  // DO NOT CHECK IN TRUE
@@ -83,23 +93,29 @@ public final class ContentCache {
     // If false, reads will not use the cache; this is intended for debugging only
     private static final boolean READ_CACHE_ENABLED = true;  // DO NOT CHECK IN FALSE
 
+    // The number of stripes for locks and tokens; must be a power of two
+    private static final int STRIPE_COUNT = 16;
+
     // Count of non-cacheable queries (debug only)
     private static int sNotCacheable = 0;
     // A map of queries that aren't cacheable (debug only)
     private static final CounterMap<String> sNotCacheableMap = new CounterMap<String>();
 
-    private final LruCache<String, Cursor> mLruCache;
+    // The cached entries, by id
+    private final ConcurrentHashMap<String, CacheEntry> mEntries;
+    // The number of entries in mEntries
+    private final AtomicInteger mSize = new AtomicInteger();
+    // The maximum number of entries; more are evicted, least recently used first
+    private final int mMaxSize;
+    // Incremented on each use of an entry; an entry's last value of it gives the LRU order
+    private final AtomicLong mClock = new AtomicLong();
 
     // All defined caches
-    private static final ArrayList<ContentCache> sContentCaches = new ArrayList<ContentCache>();
-    // A set of all unclosed, cached cursors; this will typically be a very small set, as cursors
-    // tend to be closed quickly after use.  The value, for each cursor, is its reference count
-    /*package*/ static final CounterMap<Cursor> sActiveCursors = new CounterMap<Cursor>(24);
+    private static final CopyOnWriteArrayList<ContentCache> sContentCaches =
+            new CopyOnWriteArrayList<ContentCache>();
 
-    // A set of locked content id's
-    private final CounterMap<String> mLockMap = new CounterMap<String>(4);
-    // A set of active tokens
-    /*package*/ TokenList mTokenList;
+    // The locked ids and active tokens, striped by id
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
 
     // The name of the cache (used for logging)
     private final String mName;
@@ -111,7 +127,7 @@ public final class ContentCache {
     // Cache statistics
     private final Statistics mStats;
     /** If {@code true}, lock the cache for all writes */
-    private static boolean sLockCache;
+    private static volatile boolean sLockCache;
 
     /**
      * A synchronized reference counter for arbitrary objects
@@ -214,7 +230,16 @@ public final class ContentCache {
         }
 
         /*package*/ boolean remove(CacheToken token) {
-            boolean result = super.remove(token);
+            // Tokens for the same id are equal, but we must remove this very token; another
+            // reader's token must stay in the list, so that writes can still invalidate it
+            boolean result = false;
+            for (int i = 0; i < size(); i++) {
+                if (get(i) == token) {
+                    super.remove(i);
+                    result = true;
+                    break;
+                }
+            }
             if (DebugUtils.DEBUG && DEBUG_TOKENS) {
                 if (result) {
                     LogUtils.d(mLogTag, "============ Removing token for: " + token.mId);
@@ -235,6 +260,21 @@ public final class ContentCache {
         }
     }
 
+    /**
+     * The locked ids and active tokens for the ids that map to one stripe.  All access to them
+     * synchronizes on the stripe.
+     */
+    private static final class Stripe {
+        // A set of locked content id's
+        private final CounterMap<String> mLockMap = new CounterMap<String>(4);
+        // A set of active tokens
+        private final TokenList mTokenList;
+
+        private Stripe(String name) {
+            mTokenList = new TokenList(name);
+        }
+    }
+
     /**
      * A CacheToken is an opaque object that must be passed into putCursor in order to attempt to
      * write into the cache.  The token becomes invalidated by any intervening write to the cached
@@ -242,7 +282,7 @@ public final class ContentCache {
      */
     public static final class CacheToken {
         private final String mId;
-        private boolean mIsValid = READ_CACHE_ENABLED;
+        private volatile boolean mIsValid = READ_CACHE_ENABLED;
 
         /*package*/ CacheToken(String id) {
             mId = id;
@@ -271,53 +311,99 @@ public final class ContentCache {
         }
     }
 
+    /**
+     * A cached cursor, and the number of references to it: one for the cache, while the entry is
+     * in it, and one for each open CachedCursor.  The cursor is closed with the last reference.
+     */
+    /*package*/ static final class CacheEntry {
+        private final Cursor mCursor;
+        private final AtomicInteger mRefCount = new AtomicInteger(1);
+        // The value of the cache's clock when this entry was last used
+        private volatile long mLastUsed;
+
+        private CacheEntry(Cursor cursor, long lastUsed) {
+            mCursor = cursor;
+            mLastUsed = lastUsed;
+        }
+
+        /**
+         * Take a reference to the cursor, unless it has already been closed
+         * @return whether we got a reference
+         */
+        private boolean acquire() {
+            while (true) {
+                final int count = mRefCount.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (mRefCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Release a reference to the cursor, closing it if it was the last one
+         */
+        private void release() {
+            final int count = mRefCount.decrementAndGet();
+            if (count == 0) {
+                mCursor.close();
+            } else if (count < 0) {
+                throw new IllegalStateException("CacheEntry released too often");
+            }
+        }
+
+        /*package*/ int getRefCount() {
+            return mRefCount.get();
+        }
+    }
+
     /**
      * The cached cursor is simply a CursorWrapper whose underlying cursor contains zero or one
      * rows.  We handle simple movement (moveToFirst(), moveToNext(), etc.), and override close()
-     * to keep the underlying cursor alive (unless it's no longer cached due to an invalidation).
+     * to release our reference to the underlying cursor, rather than closing it.
      * Multiple CachedCursor's can use the same underlying cursor, so we override the various
      * moveX methods such that each CachedCursor can have its own position information
      */
     public static final class CachedCursor extends CursorWrapper implements CrossProcessCursor {
+        // The cache entry whose cursor we're wrapping; we hold a reference to it until closed
+        private final CacheEntry mEntry;
         // The cursor we're wrapping
         private final Cursor mCursor;
-        // The cache which generated this cursor
-        private final ContentCache mCache;
-        private final String mId;
         // The current position of the cursor (can only be 0 or 1)
         private int mPosition = -1;
         // The number of rows in this cursor (-1 = not determined)
         private int mCount = -1;
-        private boolean isClosed = false;
+        private final AtomicBoolean mClosed = new AtomicBoolean();
 
-        public CachedCursor(Cursor cursor, ContentCache cache, String id) {
-            super(cursor);
-            mCursor = cursor;
-            mCache = cache;
-            mId = id;
-            // Add this to our set of active cursors
-            sActiveCursors.add(cursor);
+        /**
+         * @param entry the entry to wrap, which the caller has acquired a reference to for us
+         */
+        /*package*/ CachedCursor(CacheEntry entry) {
+            super(entry.mCursor);
+            mEntry = entry;
+            mCursor = entry.mCursor;
         }
 
         /**
-         * Close this cursor; if the cursor's cache no longer contains the underlying cursor, and
-         * there are no other users of that cursor, we'll close it here. In any event,
-         * we'll remove the cursor from our set of active cursors.
+         * Close this cursor, releasing its reference to the underlying cursor; that will be closed
+         * when it's no longer cached, and no other cached cursors use it.
          */
         @Override
         public void close() {
-            synchronized(mCache) {
-                int count = sActiveCursors.subtract(mCursor);
-                if ((count == 0) && mCache.mLruCache.get(mId) != (mCursor)) {
-                    super.close();
-                }
+            if (mClosed.compareAndSet(false, true)) {
+                mEntry.release();
             }
-            isClosed = true;
         }
 
         @Override
         public boolean isClosed() {
-            return isClosed;
+            return mClosed.get();
+        }
+
+        /*package*/ CacheEntry getEntry() {
+            return mEntry;
         }
 
         @Override
@@ -410,20 +496,14 @@ public final class ContentCache {
      */
     public ContentCache(String name, String[] baseProjection, int maxSize) {
         mName = name;
-        mLruCache = new LruCache<String, Cursor>(maxSize) {
-            @Override
-            protected void entryRemoved(
-                    boolean evicted, String key, Cursor oldValue, Cursor newValue) {
-                // Close this cursor if it's no longer being used
-                if (evicted && !sActiveCursors.contains(oldValue)) {
-                    oldValue.close();
-                }
-            }
-        };
+        mMaxSize = maxSize;
+        mEntries = new ConcurrentHashMap<String, CacheEntry>(maxSize * 2);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe(mName);
+        }
         mBaseProjection = baseProjection;
         mLogTag = "ContentCache-" + name;
         sContentCaches.add(this);
-        mTokenList = new TokenList(mName);
         mStats = new Statistics(this);
     }
 
@@ -436,33 +516,37 @@ public final class ContentCache {
         return mBaseProjection;
     }
 
+    private Stripe getStripe(String id) {
+        return mStripes[id.hashCode() & (STRIPE_COUNT - 1)];
+    }
 
     /**
      * Get a CacheToken for a row as specified by its id (_id column)
      * @param id the id of the record
      * @return a CacheToken needed in order to write data for the record back to the cache
      */
-    public synchronized CacheToken getCacheToken(String id) {
-        // If another thread is already writing the data, return an invalid token
-        CacheToken token = mTokenList.add(id);
-        if (mLockMap.contains(id)) {
-            token.invalidate();
+    public CacheToken getCacheToken(String id) {
+        final Stripe stripe = getStripe(id);
+        synchronized (stripe) {
+            // If another thread is already writing the data, return an invalid token
+            CacheToken token = stripe.mTokenList.add(id);
+            if (stripe.mLockMap.contains(id)) {
+                token.invalidate();
+            }
+            return token;
         }
-        return token;
     }
 
     public int size() {
-        return mLruCache.size();
+        return mSize.get();
     }
 
     @VisibleForTesting
     Cursor get(String id) {
-        return mLruCache.get(id);
+        CacheEntry entry = mEntries.get(id);
+        return (entry == null) ? null : entry.mCursor;
     }
 
-    protected Map<String, Cursor> getSnapshot() {
-        return mLruCache.snapshot();
-    }
     /**
      * Try to cache a cursor for the given id and projection; returns a valid cursor, either a
      * cached cursor (if caching was successful) or the original cursor
@@ -473,131 +557,141 @@ public final class ContentCache {
      * @return whether or not the cursor was cached
      */
     public Cursor putCursor(Cursor c, String id, String[] projection, CacheToken token) {
-        // Make sure the underlying cursor is at the first row, and do this without synchronizing,
-        // to prevent deadlock with a writing thread (which might, for example, be calling into
-        // CachedCursor.invalidate)
+        // Make sure the underlying cursor is at the first row; this is where every CachedCursor
+        // reads it
         c.moveToPosition(0);
-        return putCursorImpl(c, id, projection, token);
-    }
-    public synchronized Cursor putCursorImpl(Cursor c, String id, String[] projection,
-            CacheToken token) {
-        try {
-            if (!token.isValid()) {
-                if (DebugUtils.DEBUG && DEBUG_CACHE) {
-                    LogUtils.d(mLogTag, "============ Stale token for " + id);
+        final CacheEntry entry;
+        final Stripe stripe = getStripe(id);
+        synchronized (stripe) {
+            try {
+                if (!token.isValid()) {
+                    if (DebugUtils.DEBUG && DEBUG_CACHE) {
+                        LogUtils.d(mLogTag, "============ Stale token for " + id);
+                    }
+                    mStats.mStaleCount.incrementAndGet();
+                    return c;
+                }
+                if (!Arrays.equals(projection, mBaseProjection) || sLockCache) {
+                    return c;
                 }
-                mStats.mStaleCount++;
-                return c;
-            }
-            if (c != null && Arrays.equals(projection, mBaseProjection) && !sLockCache) {
                 if (DebugUtils.DEBUG && DEBUG_CACHE) {
                     LogUtils.d(mLogTag, "============ Caching cursor for: " + id);
                 }
-                // If we've already cached this cursor, invalidate the older one
-                Cursor existingCursor = get(id);
-                if (existingCursor != null) {
-                   unlockImpl(id, null, false);
+                entry = new CacheEntry(c, mClock.incrementAndGet());
+                // Take a second reference, for the CachedCursor we return
+                entry.acquire();
+                // If we've already cached this cursor, release the older one
+                final CacheEntry oldEntry = mEntries.put(id, entry);
+                if (oldEntry != null) {
+                    oldEntry.release();
+                } else {
+                    mSize.incrementAndGet();
                 }
-                mLruCache.put(id, c);
-                return new CachedCursor(c, this, id);
+            } finally {
+                stripe.mTokenList.remove(token);
             }
-            return c;
-        } finally {
-            mTokenList.remove(token);
         }
+        trimToSize();
+        return new CachedCursor(entry);
     }
 
     /**
-     * Find and, if found, return a cursor, based on cached values, for the supplied id
+     * Find and, if found, return a cursor, based on cached values, for the supplied id.  This
+     * doesn't lock anything.
      * @param id the _id column of the desired row
      * @param projection the requested projection for a query
      * @return a cursor based on cached values, or null if the row is not cached
      */
-    public synchronized Cursor getCachedCursor(String id, String[] projection) {
+    public Cursor getCachedCursor(String id, String[] projection) {
         if (DebugUtils.DEBUG && DEBUG_STATISTICS) {
             // Every 200 calls to getCursor, report cache statistics
             dumpOnCount(200);
         }
+        final CacheEntry entry = mEntries.get(id);
+        if (entry == null || !entry.acquire()) {
+            mStats.mMissCount.incrementAndGet();
+            return null;
+        }
+        entry.mLastUsed = mClock.incrementAndGet();
         if (projection == mBaseProjection) {
-            return getCachedCursorImpl(id);
-        } else {
-            return getMatrixCursor(id, projection);
+            mStats.mHitCount.incrementAndGet();
+            // The CachedCursor takes over our reference
+            return new CachedCursor(entry);
         }
-    }
-
-    private CachedCursor getCachedCursorImpl(String id) {
-        Cursor c = get(id);
-        if (c != null) {
-            mStats.mHitCount++;
-            return new CachedCursor(c, this, id);
+        try {
+            final MatrixCursor mc = getMatrixCursor(entry.mCursor, projection, null);
+            if (mc == null) {
+                mStats.mProjectionMissCount.incrementAndGet();
+            } else {
+                mStats.mHitCount.incrementAndGet();
+            }
+            return mc;
+        } finally {
+            entry.release();
         }
-        mStats.mMissCount++;
-        return null;
     }
 
-    private MatrixCursor getMatrixCursor(String id, String[] projection) {
-        return getMatrixCursor(id, projection, null);
-    }
-
-    private MatrixCursor getMatrixCursor(String id, String[] projection,
+    /**
+     * Make a new MatrixCursor with the requested columns of a cached cursor
+     * @param c the cached cursor, which the caller holds a reference to
+     * @param projection the requested columns
+     * @param values values to use instead of those of the cached cursor (or null)
+     * @return the new cursor, or null if the cached cursor doesn't have all of the columns
+     */
+    private static MatrixCursor getMatrixCursor(Cursor c, String[] projection,
             ContentValues values) {
-        Cursor c = get(id);
-        if (c != null) {
-            // Make a new MatrixCursor with the requested columns
-            MatrixCursor mc = new MatrixCursorWithCachedColumns(projection, 1);
-            if (c.getCount() == 0) {
-                return mc;
-            }
-            Object[] row = new Object[projection.length];
-            if (values != null) {
-                // Make a copy; we don't want to change the original
-                values = new ContentValues(values);
-            }
-            int i = 0;
-            for (String column: projection) {
-                int columnIndex = c.getColumnIndex(column);
-                if (columnIndex < 0) {
-                    mStats.mProjectionMissCount++;
-                    return null;
-                } else {
-                    String value;
-                    if (values != null && values.containsKey(column)) {
-                        Object val = values.get(column);
-                        if (val instanceof Boolean) {
-                            value = (val == Boolean.TRUE) ? "1" : "0";
-                        } else {
-                            value = values.getAsString(column);
-                        }
-                        values.remove(column);
+        MatrixCursor mc = new MatrixCursorWithCachedColumns(projection, 1);
+        if (c.getCount() == 0) {
+            return mc;
+        }
+        Object[] row = new Object[projection.length];
+        if (values != null) {
+            // Make a copy; we don't want to change the original
+            values = new ContentValues(values);
+        }
+        int i = 0;
+        for (String column: projection) {
+            int columnIndex = c.getColumnIndex(column);
+            if (columnIndex < 0) {
+                return null;
+            } else {
+                String value;
+                if (values != null && values.containsKey(column)) {
+                    Object val = values.get(column);
+                    if (val instanceof Boolean) {
+                        value = (val == Boolean.TRUE) ? "1" : "0";
                     } else {
-                        value = c.getString(columnIndex);
+                        value = values.getAsString(column);
                     }
-                    row[i++] = value;
+                    values.remove(column);
+                } else {
+                    value = c.getString(columnIndex);
                 }
+                row[i++] = value;
             }
-            if (values != null && values.size() != 0) {
-                return null;
-            }
-            mc.addRow(row);
-            mStats.mHitCount++;
-            return mc;
         }
-        mStats.mMissCount++;
-        return null;
+        if (values != null && values.size() != 0) {
+            return null;
+        }
+        mc.addRow(row);
+        return mc;
     }
 
     /**
      * Lock a given row, such that no new valid CacheTokens can be created for the passed-in id.
      * @param id the id of the row to lock
      */
-    public synchronized void lock(String id) {
-        // Prevent new valid tokens from being created
-        mLockMap.add(id);
-        // Invalidate current tokens
-        int count = mTokenList.invalidateTokens(id);
-        if (DebugUtils.DEBUG && DEBUG_TOKENS) {
-            LogUtils.d(mTokenList.mLogTag, "============ Lock invalidated " + count +
-                    " tokens for: " + id);
+    public void lock(String id) {
+        final Stripe stripe = getStripe(id);
+        synchronized (stripe) {
+            // Prevent new valid tokens from being created
+            stripe.mLockMap.add(id);
+            // Invalidate current tokens
+            int count = stripe.mTokenList.invalidateTokens(id);
+            if (DebugUtils.DEBUG && DEBUG_TOKENS) {
+                LogUtils.d(stripe.mTokenList.mLogTag, "============ Lock invalidated " + count +
+                        " tokens for: " + id);
+            }
         }
     }
 
@@ -605,8 +699,8 @@ public final class ContentCache {
      * Unlock a given row, allowing new valid CacheTokens to be created for the passed-in id.
      * @param id the id of the item whose cursor is cached
      */
-    public synchronized void unlock(String id) {
-        unlockImpl(id, null, true);
+    public void unlock(String id) {
+        unlockImpl(id, null);
     }
 
     /**
@@ -616,53 +710,98 @@ public final class ContentCache {
      * @param id the id of the item whose cursor is cached
      * @param values updated values for this row
      */
-    public synchronized void unlock(String id, ContentValues values) {
-        unlockImpl(id, values, true);
+    public void unlock(String id, ContentValues values) {
+        unlockImpl(id, values);
     }
 
     /**
-     * If values are passed in, replaces any cached cursor with one containing new values, and
-     * then closes the previously cached one (if any, and if not in use)
-     * If values are not passed in, removes the row from cache
-     * If the row was locked, unlock it
+     * If values are passed in, replaces any cached cursor with one containing new values; if not,
+     * removes the row from cache.  The old cursor is closed once it's no longer used.  Then the
+     * row is unlocked.
+     * If another thread also has the row locked, we can't know which of the writes was the last,
+     * so the row is removed from the cache instead.
      * @param id the id of the row
      * @param values new ContentValues for the row (or null if row should simply be removed)
-     * @param wasLocked whether or not the row was locked; if so, the lock will be removed
      */
-    private void unlockImpl(String id, ContentValues values, boolean wasLocked) {
-        Cursor c = get(id);
-        if (c != null) {
-            if (DebugUtils.DEBUG && DEBUG_CACHE) {
-                LogUtils.d(mLogTag, "=========== Unlocking cache for: " + id);
-            }
-            if (values != null && !sLockCache) {
-                MatrixCursor cursor = getMatrixCursor(id, mBaseProjection, values);
-                if (cursor != null) {
-                    if (DebugUtils.DEBUG && DEBUG_CACHE) {
-                        LogUtils.d(mLogTag, "=========== Recaching with new values: " + id);
+    private void unlockImpl(String id, ContentValues values) {
+        final Stripe stripe = getStripe(id);
+        synchronized (stripe) {
+            final CacheEntry entry = mEntries.get(id);
+            if (entry != null) {
+                if (DebugUtils.DEBUG && DEBUG_CACHE) {
+                    LogUtils.d(mLogTag, "=========== Unlocking cache for: " + id);
+                }
+                CacheEntry newEntry = null;
+                if (values != null && !sLockCache && stripe.mLockMap.getCount(id) <= 1
+                        && entry.acquire()) {
+                    try {
+                        final MatrixCursor cursor = getMatrixCursor(entry.mCursor,
+                                mBaseProjection, values);
+                        if (cursor != null) {
+                            if (DebugUtils.DEBUG && DEBUG_CACHE) {
+                                LogUtils.d(mLogTag, "=========== Recaching with new values: " + id);
+                            }
+                            cursor.moveToFirst();
+                            newEntry = new CacheEntry(cursor, entry.mLastUsed);
+                        }
+                    } finally {
+                        entry.release();
                     }
-                    cursor.moveToFirst();
-                    mLruCache.put(id, cursor);
+                }
+                if (newEntry == null) {
+                    removeEntry(id, entry);
+                } else if (mEntries.replace(id, entry, newEntry)) {
+                    entry.release();
                 } else {
-                    mLruCache.remove(id);
+                    // The entry was evicted meanwhile
+                    newEntry.release();
                 }
-            } else {
-                mLruCache.remove(id);
-            }
-            // If there are no cursors using the old cached cursor, close it
-            if (!sActiveCursors.contains(c)) {
-                c.close();
             }
+            stripe.mLockMap.subtract(id);
         }
-        if (wasLocked) {
-            mLockMap.subtract(id);
+    }
+
+    /**
+     * Remove an entry from the cache, if it's still there, and release the cache's reference
+     * to it
+     * @return whether this call removed it
+     */
+    private boolean removeEntry(String id, CacheEntry entry) {
+        if (mEntries.remove(id, entry)) {
+            mSize.decrementAndGet();
+            entry.release();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Evict the least recently used entries until the cache is no bigger than its maximum size.
+     * Several threads may do this at once; since removeEntry is conditional, each entry is only
+     * evicted once (although a few more entries than necessary may be evicted).
+     */
+    private void trimToSize() {
+        while (mSize.get() > mMaxSize) {
+            String eldestId = null;
+            CacheEntry eldest = null;
+            for (Map.Entry<String, CacheEntry> e: mEntries.entrySet()) {
+                final CacheEntry entry = e.getValue();
+                if (eldest == null || entry.mLastUsed < eldest.mLastUsed) {
+                    eldestId = e.getKey();
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            removeEntry(eldestId, eldest);
         }
     }
 
     /**
      * Invalidate the entire cache, without logging
      */
-    public synchronized void invalidate() {
+    public void invalidate() {
         invalidate(null, null, null);
     }
 
@@ -674,23 +813,55 @@ public final class ContentCache {
      * @param uri the uri causing the invalidate (or null)
      * @param selection the selection used with the uri (or null)
      */
-    public synchronized void invalidate(String operation, Uri uri, String selection) {
+    public void invalidate(String operation, Uri uri, String selection) {
         if (DEBUG_CACHE && (operation != null)) {
             LogUtils.d(mLogTag, "============ INVALIDATED BY " + operation + ": " + uri +
                     ", SELECTION: " + selection);
         }
-        mStats.mInvalidateCount++;
-        // Close all cached cursors that are no longer in use
-        mLruCache.evictAll();
-        // Invalidate all current tokens
-        mTokenList.invalidate();
+        mStats.mInvalidateCount.incrementAndGet();
+        // Invalidate all current tokens first, so that nothing read before this invalidation
+        // can be cached after we've emptied the cache
+        for (Stripe stripe: mStripes) {
+            synchronized (stripe) {
+                stripe.mTokenList.invalidate();
+            }
+        }
+        // Release all cached cursors; those that are no longer in use are closed.  Remove whatever
+        // is cached for each id, even if unlock() just replaced it
+        for (String id: mEntries.keySet()) {
+            final CacheEntry entry = mEntries.remove(id);
+            if (entry != null) {
+                mSize.decrementAndGet();
+                entry.release();
+            }
+        }
+    }
+
+    /*package*/ int getTokenCount() {
+        int count = 0;
+        for (Stripe stripe: mStripes) {
+            synchronized (stripe) {
+                count += stripe.mTokenList.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Print the size and hit rate of this cache, e.g. for dumpsys
+     * @param writer the writer to print to
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Row cache " + mName + ": " + size() + " rows, " + mStats.mHitCount
+                + " hits, " + (mStats.mMissCount.get() + mStats.mProjectionMissCount.get())
+                + " misses, " + mStats.mStaleCount + " stale, " + mStats.mInvalidateCount
+                + " invalidations");
     }
 
     // Debugging code below
 
     private void dumpOnCount(int num) {
-        mStats.mOpCount++;
-        if ((mStats.mOpCount % num) == 0) {
+        if ((mStats.mOpCount.incrementAndGet() % num) == 0) {
             dumpStats();
         }
     }
@@ -736,19 +907,19 @@ public final class ContentCache {
 
         // Cache statistics
         // The item is in the cache AND is used to create a cursor
-        private int mHitCount = 0;
+        private final AtomicInteger mHitCount = new AtomicInteger();
         // Basic cache miss (the item is not cached)
-        private int mMissCount = 0;
+        private final AtomicInteger mMissCount = new AtomicInteger();
         // Incremented when a cachePut is invalid due to an intervening write
-        private int mStaleCount = 0;
+        private final AtomicInteger mStaleCount = new AtomicInteger();
         // A projection miss occurs when the item is cached, but not all requested columns are
         // available in the base projection
-        private int mProjectionMissCount = 0;
+        private final AtomicInteger mProjectionMissCount = new AtomicInteger();
         // Incremented whenever the entire cache is invalidated
-        private int mInvalidateCount = 0;
+        private final AtomicInteger mInvalidateCount = new AtomicInteger();
         // Count of operations put/get
-        private int mOpCount = 0;
-        // The following are for timing statistics
+        private final AtomicInteger mOpCount = new AtomicInteger();
+        // The following are for timing statistics (debug only, so not synchronized)
         private long hits = 0;
         private long hitTimes = 0;
         private long miss = 0;
@@ -770,16 +941,16 @@ public final class ContentCache {
 
         private void addCacheStatistics(ContentCache cache) {
             if (cache != null) {
-                mHitCount += cache.mStats.mHitCount;
-                mMissCount += cache.mStats.mMissCount;
-                mProjectionMissCount += cache.mStats.mProjectionMissCount;
-                mStaleCount += cache.mStats.mStaleCount;
+                mHitCount.addAndGet(cache.mStats.mHitCount.get());
+                mMissCount.addAndGet(cache.mStats.mMissCount.get());
+                mProjectionMissCount.addAndGet(cache.mStats.mProjectionMissCount.get());
+                mStaleCount.addAndGet(cache.mStats.mStaleCount.get());
                 hitTimes += cache.mStats.hitTimes;
                 missTimes += cache.mStats.missTimes;
                 hits += cache.mStats.hits;
                 miss += cache.mStats.miss;
                 mCursorCount += cache.size();
-                mTokenCount += cache.mTokenList.size();
+                mTokenCount += cache.getTokenCount();
             }
         }
 
@@ -792,16 +963,18 @@ public final class ContentCache {
 
         @Override
         public String toString() {
-            if (mHitCount + mMissCount == 0) return "No cache";
-            int totalTries = mMissCount + mProjectionMissCount + mHitCount;
+            final int hitCount = mHitCount.get();
+            final int missCount = mMissCount.get();
+            if (hitCount + missCount == 0) return "No cache";
+            int totalTries = missCount + mProjectionMissCount.get() + hitCount;
             StringBuilder sb = new StringBuilder();
             sb.append("Cache " + mName);
             append(sb, "Cursors", mCache == null ? mCursorCount : mCache.size());
-            append(sb, "Hits", mHitCount);
-            append(sb, "Misses", mMissCount + mProjectionMissCount);
+            append(sb, "Hits", hitCount);
+            append(sb, "Misses", missCount + mProjectionMissCount.get());
             append(sb, "Inval", mInvalidateCount);
-            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.mTokenList.size());
-            append(sb, "Hit%", mHitCount * 100 / totalTries);
+            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.getTokenCount());
+            append(sb, "Hit%", hitCount * 100 / totalTries);
             append(sb, "\nHit time", hitTimes / 1000000.0 / hits);
             append(sb, "Miss time", missTimes / 1000000.0 / miss);
             return sb.toString();
@@ -184,7 +184,11 @@ public final class DBHelper {
     // Version 126: Decode address lists for To, From, Cc, Bcc and Reply-To columns in Message.
     // Version 127: Force mFlags to contain the correct flags for EAS accounts given a protocol
     //              version above 12.0
-    public static final int DATABASE_VERSION = 127;
+    // Version 128: Replace the Message mailboxKey index with a composite index on mailboxKey,
+    //              timestamp, flagLoaded and accountKey for the message list and sync queries
+    // Version 129: Set syncLookback to all for POP3 accounts, which now offer a lookback; the
+    //              value they were created with was never chosen by the user
+    public static final int DATABASE_VERSION = 129;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -210,6 +214,20 @@ public final class DBHelper {
             + " on " + tableName + " (" + columnName + ");";
     }
 
+    /**
+     * Name of the index used by the message list and sync queries, which select the messages in a
+     * mailbox and sort or filter them by timestamp.  flagLoaded and accountKey are included so
+     * that the rest of those queries' selections can be checked without reading the row.
+     */
+    @VisibleForTesting
+    static final String MESSAGE_MAILBOX_TIMESTAMP_INDEX = "message_mailboxKey_timestamp";
+
+    static void createMessageMailboxTimestampIndex(final SQLiteDatabase db) {
+        db.execSQL("create index " + MESSAGE_MAILBOX_TIMESTAMP_INDEX + " on " + Message.TABLE_NAME
+                + " (" + MessageColumns.MAILBOX_KEY + ", " + MessageColumns.TIMESTAMP + ", "
+                + MessageColumns.FLAG_LOADED + ", " + MessageColumns.ACCOUNT_KEY + ");");
+    }
+
     static void createMessageCountTriggers(final SQLiteDatabase db) {
         // Insert a message.
         db.execSQL("create trigger message_count_message_insert after insert on " +
@@ -346,13 +364,14 @@ public final class DBHelper {
             MessageColumns.TIMESTAMP,
             MessageColumns.FLAG_READ,
             MessageColumns.FLAG_LOADED,
-            MessageColumns.MAILBOX_KEY,
             SyncColumns.SERVER_ID
         };
 
         for (String columnName : indexColumns) {
             db.execSQL(createIndex(Message.TABLE_NAME, columnName));
         }
+        // This also serves any query on mailboxKey alone
+        createMessageMailboxTimestampIndex(db);
 
         // Deleting a Message deletes all associated Attachments
         // Deleting the associated Body cannot be done in a trigger, because the Body is stored
@@ -1469,6 +1488,14 @@ public final class DBHelper {
             if (oldVersion <= 126) {
                 upgradeFromVersion126ToVersion127(mContext, db);
             }
+
+            if (oldVersion <= 127) {
+                upgradeFromVersion127ToVersion128(db);
+            }
+
+            if (oldVersion <= 128) {
+                upgradeFromVersion128ToVersion129(mContext, db);
+            }
         }
 
         @Override
@@ -1811,6 +1838,40 @@ public final class DBHelper {
         }
     }
 
+    /**
+     * Replace the mailboxKey index on Message with the composite index used by the message list
+     * and sync queries; see {@link #MESSAGE_MAILBOX_TIMESTAMP_INDEX}.
+     */
+    private static void upgradeFromVersion127ToVersion128(final SQLiteDatabase db) {
+        try {
+            db.execSQL("drop index if exists "
+                    + Message.TABLE_NAME.toLowerCase() + '_' + MessageColumns.MAILBOX_KEY);
+            db.execSQL("drop index if exists " + MESSAGE_MAILBOX_TIMESTAMP_INDEX);
+            createMessageMailboxTimestampIndex(db);
+        } catch (final SQLException e) {
+            LogUtils.w(TAG, "Exception upgrading EmailProvider.db from 127 to 128 " + e);
+        }
+    }
+
+    /**
+     * Sync all messages (i.e. the most recent ones, by count) for POP3 accounts, which were
+     * given the default lookback of a service that didn't offer one
+     */
+    private static void upgradeFromVersion128ToVersion129(final Context context,
+            final SQLiteDatabase db) {
+        try {
+            db.execSQL(
+                    "UPDATE " + Account.TABLE_NAME + " SET " + AccountColumns.SYNC_LOOKBACK + "=" +
+                            SyncWindow.SYNC_WINDOW_ALL + " WHERE " +
+                            AccountColumns.HOST_AUTH_KEY_RECV + " IN (SELECT " +
+                            HostAuthColumns._ID + " FROM " + HostAuth.TABLE_NAME + " WHERE " +
+                            HostAuthColumns.PROTOCOL + "='" +
+                            context.getString(R.string.protocol_pop3) + "')");
+        } catch (SQLException e) {
+            LogUtils.w(TAG, "Exception upgrading EmailProvider.db from 128 to 129 " + e);
+        }
+    }
+
     /**
      * Update all accounts that are EAS v12.0 or greater with SmartForward and search flags
      */
@@ -21,17 +21,22 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.provider.BaseColumns;
-import android.util.SparseArray;
+import android.util.LruCache;
 
 import com.android.emailcommon.provider.EmailContent.Body;
 import com.android.mail.utils.HtmlSanitizer;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * This class wraps a cursor for the purpose of bypassing the CursorWindow object for the
@@ -44,59 +49,68 @@ import java.io.InputStream;
  * This will still potentially blow up if this cursor gets wrapped in a CrossProcessCursorWrapper
  * which uses a CursorWindow to shuffle results between processes. Since we're only using this for
  * passing a cursor back to UnifiedEmail this shouldn't be an issue.
+ *
+ * Bodies are only read (and the html sanitized) when a row's body is asked for, and only the
+ * bodies of the most recently used rows are kept, so opening a long conversation doesn't read
+ * every message body up front. When a row's body is loaded, the bodies of the next few rows are
+ * loaded in the background, since they're likely to be asked for next. Sanitized html comes from
+ * the {@link SanitizedHtmlCache}, so a message that's viewed again isn't sanitized again.
  */
 public class EmailMessageCursor extends CursorWrapper {
+    /** Default number of rows whose bodies are kept in memory. */
+    private static final int DEFAULT_WINDOW_SIZE = 8;
+    /** Default number of rows after the current one whose bodies are loaded in the background. */
+    private static final int DEFAULT_PREFETCH_COUNT = 2;
+
+    /** The bodies of one row; either may be null if it isn't in the projection or is missing. */
+    private static class Bodies {
+        String mHtml;
+        String mText;
+    }
 
-    private final SparseArray<String> mTextParts;
-    private final SparseArray<String> mHtmlParts;
+    private final ContentResolver mResolver;
+    /** Where sanitized html bodies come from; if null, they're read and sanitized here. */
+    private final SanitizedHtmlCache mHtmlCache;
     private final int mTextColumnIndex;
     private final int mHtmlColumnIndex;
+    /** The message id of each row, so that bodies can be loaded without moving the cursor. */
+    private final long[] mMessageIds;
+    /** The loaded bodies, by position. Thread safe, since rows are prefetched in the background. */
+    private final LruCache<Integer, Bodies> mBodies;
+    private final int mPrefetchCount;
+    /** Positions whose bodies are being loaded in the background. */
+    private final Set<Integer> mPrefetching = Collections.synchronizedSet(new HashSet<Integer>());
+    private volatile boolean mClosed;
 
     public EmailMessageCursor(final Context c, final Cursor cursor, final String htmlColumn,
             final String textColumn) {
+        this(c.getContentResolver(), SanitizedHtmlCache.getInstance(c), cursor, htmlColumn,
+                textColumn, DEFAULT_WINDOW_SIZE, DEFAULT_PREFETCH_COUNT);
+    }
+
+    /**
+     * @param htmlCache the cache to get sanitized html bodies from, or null to read and sanitize
+     *     them through {@code resolver}
+     * @param windowSize the number of rows whose bodies are kept in memory
+     * @param prefetchCount the number of rows after one whose body is loaded that should also be
+     *     loaded, in the background; 0 to only load bodies when they're asked for
+     */
+    @VisibleForTesting
+    EmailMessageCursor(final ContentResolver resolver, final SanitizedHtmlCache htmlCache,
+            final Cursor cursor, final String htmlColumn, final String textColumn,
+            final int windowSize, final int prefetchCount) {
         super(cursor);
+        mResolver = resolver;
+        mHtmlCache = htmlCache;
         mHtmlColumnIndex = cursor.getColumnIndex(htmlColumn);
         mTextColumnIndex = cursor.getColumnIndex(textColumn);
-        final int cursorSize = cursor.getCount();
-        mHtmlParts = new SparseArray<String>(cursorSize);
-        mTextParts = new SparseArray<String>(cursorSize);
-
-        final ContentResolver cr = c.getContentResolver();
+        mBodies = new LruCache<Integer, Bodies>(windowSize);
+        mPrefetchCount = prefetchCount;
 
+        mMessageIds = new long[cursor.getCount()];
+        final int idColumnIndex = cursor.getColumnIndex(BaseColumns._ID);
         while (cursor.moveToNext()) {
-            final int position = cursor.getPosition();
-            final long messageId = cursor.getLong(cursor.getColumnIndex(BaseColumns._ID));
-            try {
-                if (mHtmlColumnIndex != -1) {
-                    final Uri htmlUri = Body.getBodyHtmlUriForMessageWithId(messageId);
-                    final InputStream in = cr.openInputStream(htmlUri);
-                    final String underlyingHtmlString;
-                    try {
-                        underlyingHtmlString = IOUtils.toString(in);
-                    } finally {
-                        in.close();
-                    }
-                    final String sanitizedHtml = HtmlSanitizer.sanitizeHtml(underlyingHtmlString);
-                    mHtmlParts.put(position, sanitizedHtml);
-                }
-            } catch (final IOException e) {
-                LogUtils.v(LogUtils.TAG, e, "Did not find html body for message %d", messageId);
-            }
-            try {
-                if (mTextColumnIndex != -1) {
-                    final Uri textUri = Body.getBodyTextUriForMessageWithId(messageId);
-                    final InputStream in = cr.openInputStream(textUri);
-                    final String underlyingTextString;
-                    try {
-                        underlyingTextString = IOUtils.toString(in);
-                    } finally {
-                        in.close();
-                    }
-                    mTextParts.put(position, underlyingTextString);
-                }
-            } catch (final IOException e) {
-                LogUtils.v(LogUtils.TAG, e, "Did not find text body for message %d", messageId);
-            }
+            mMessageIds[cursor.getPosition()] = cursor.getLong(idColumnIndex);
         }
         cursor.moveToPosition(-1);
     }
@@ -104,9 +118,11 @@ public class EmailMessageCursor extends CursorWrapper {
     @Override
     public String getString(final int columnIndex) {
         if (columnIndex == mHtmlColumnIndex) {
-            return mHtmlParts.get(getPosition());
+            final Bodies bodies = getBodies(getPosition());
+            return bodies != null ? bodies.mHtml : null;
         } else if (columnIndex == mTextColumnIndex) {
-            return mTextParts.get(getPosition());
+            final Bodies bodies = getBodies(getPosition());
+            return bodies != null ? bodies.mText : null;
         }
         return super.getString(columnIndex);
     }
@@ -121,4 +137,91 @@ public class EmailMessageCursor extends CursorWrapper {
             return super.getType(columnIndex);
         }
     }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mBodies.evictAll();
+        super.close();
+    }
+
+    /**
+     * @return the bodies of the row at {@code position}, loading them if necessary, or null if
+     *     there's no such row.
+     */
+    private Bodies getBodies(final int position) {
+        if (position < 0 || position >= mMessageIds.length) {
+            return null;
+        }
+        Bodies bodies = mBodies.get(position);
+        if (bodies == null) {
+            bodies = loadBodies(mMessageIds[position]);
+            mBodies.put(position, bodies);
+        }
+        prefetch(position);
+        return bodies;
+    }
+
+    /**
+     * Load the bodies of the rows after {@code position} that we don't have yet in the background.
+     */
+    private void prefetch(final int position) {
+        final int end = Math.min(position + mPrefetchCount, mMessageIds.length - 1);
+        for (int i = position + 1; i <= end; i++) {
+            if (mBodies.get(i) != null || !mPrefetching.add(i)) {
+                continue;
+            }
+            final int prefetchPosition = i;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (mClosed || mBodies.get(prefetchPosition) != null) {
+                            return;
+                        }
+                        final Bodies bodies = loadBodies(mMessageIds[prefetchPosition]);
+                        if (!mClosed) {
+                            mBodies.put(prefetchPosition, bodies);
+                        }
+                    } finally {
+                        mPrefetching.remove(prefetchPosition);
+                    }
+                }
+            });
+        }
+    }
+
+    private Bodies loadBodies(final long messageId) {
+        final Bodies bodies = new Bodies();
+        if (mHtmlColumnIndex != -1) {
+            try {
+                if (mHtmlCache != null) {
+                    bodies.mHtml = mHtmlCache.getSanitizedHtml(messageId);
+                } else {
+                    final Uri htmlUri = Body.getBodyHtmlUriForMessageWithId(messageId);
+                    bodies.mHtml = HtmlSanitizer.sanitizeHtml(readBody(htmlUri));
+                }
+            } catch (final IOException e) {
+                LogUtils.v(LogUtils.TAG, e, "Did not find html body for message %d", messageId);
+            }
+        }
+        if (mTextColumnIndex != -1) {
+            try {
+                final Uri textUri = Body.getBodyTextUriForMessageWithId(messageId);
+                bodies.mText = readBody(textUri);
+            } catch (final IOException e) {
+                LogUtils.v(LogUtils.TAG, e, "Did not find text body for message %d", messageId);
+            }
+        }
+        return bodies;
+    }
+
+    private String readBody(final Uri uri) throws IOException {
+        final InputStream in = mResolver.openInputStream(uri);
+        try {
+            return IOUtils.toString(in);
+        } finally {
+            in.close();
+        }
+    }
 }
@@ -52,6 +52,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Handler.Callback;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
@@ -179,6 +180,11 @@ public class EmailProvider extends ContentProvider
      */
     private static final String ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED =
         "com.android.email.MESSAGE_LIST_DATASET_CHANGED";
+    /**
+     * The id of the account whose messages changed, in
+     * {@link #ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED}.  Missing if it isn't known.
+     */
+    public static final String EXTRA_ACCOUNT_ID = "com.android.email.EXTRA_ACCOUNT_ID";
 
     private static final String EMAIL_MESSAGE_MIME_TYPE =
         "vnd.android.cursor.item/email-message";
@@ -316,6 +322,28 @@ public class EmailProvider extends ContentProvider
      */
     private static final Object sDatabaseLock = new Object();
 
+    /**
+     * Row caches for the single row lookups (e.g. Account.restoreAccountWithId) that the services
+     * and the UI make over and over.  Each caches rows in its class's CONTENT_PROJECTION; queries
+     * for other columns are answered from a cached row when it has all of them.  Writes to these
+     * tables go through the caches (see {@link #getRowCache}); any other write must invalidate
+     * the cache for its table.
+     */
+    private static final int MAX_CACHED_ACCOUNTS = 16;
+    private static final int MAX_CACHED_MAILBOXES = 64;
+    private static final int MAX_CACHED_HOSTAUTHS = 32;
+    private static final int MAX_CACHED_POLICIES = 16;
+    private static final ContentCache sCacheAccount =
+            new ContentCache("Account", Account.CONTENT_PROJECTION, MAX_CACHED_ACCOUNTS);
+    private static final ContentCache sCacheMailbox =
+            new ContentCache("Mailbox", Mailbox.CONTENT_PROJECTION, MAX_CACHED_MAILBOXES);
+    private static final ContentCache sCacheHostAuth =
+            new ContentCache("HostAuth", HostAuth.CONTENT_PROJECTION, MAX_CACHED_HOSTAUTHS);
+    private static final ContentCache sCachePolicy =
+            new ContentCache("Policy", Policy.CONTENT_PROJECTION, MAX_CACHED_POLICIES);
+    private static final ContentCache[] ROW_CACHES =
+            {sCacheAccount, sCacheMailbox, sCacheHostAuth, sCachePolicy};
+
     /**
      * Let's only generate these SQL strings once, as they are used frequently
      * Note that this isn't relevant for table creation strings, since they are used only once
@@ -473,6 +501,9 @@ public class EmailProvider extends ContentProvider
 
     }
 
+    /** Number of compiled statements SQLite keeps per connection (the maximum it allows). */
+    private static final int SQL_STATEMENT_CACHE_SIZE = SQLiteDatabase.MAX_SQL_CACHE_SIZE;
+
     // exposed for testing
     public SQLiteDatabase getDatabase(Context context) {
         synchronized (sDatabaseLock) {
@@ -487,6 +518,8 @@ public class EmailProvider extends ContentProvider
 
             DBHelper.DatabaseHelper helper = new DBHelper.DatabaseHelper(context, DATABASE_NAME);
             mDatabase = helper.getWritableDatabase();
+            // Keep the statements for the generated UI queries compiled, along with the rest
+            mDatabase.setMaxSqlCacheSize(SQL_STATEMENT_CACHE_SIZE);
             DBHelper.BodyDatabaseHelper bodyHelper =
                     new DBHelper.BodyDatabaseHelper(context, BODY_DATABASE_NAME);
             mBodyDatabase = bodyHelper.getWritableDatabase();
@@ -509,6 +542,8 @@ public class EmailProvider extends ContentProvider
                     AccountColumns.POLICY_KEY, Account.TABLE_NAME);
             fixParentKeys(mDatabase);
             initUiProvider();
+            // Anything in the row caches came from a database we had before, if any
+            ContentCache.invalidateAllCaches();
             return mDatabase;
         }
     }
@@ -639,12 +674,15 @@ public class EmailProvider extends ContentProvider
         final int table = match >> BASE_SHIFT;
         String id = "0";
         boolean messageDeletion = false;
+        long messageAccountId = Account.NO_ACCOUNT;
 
         final String tableName = TABLE_NAMES.valueAt(table);
         int result = -1;
 
         try {
             if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
+                // The message is gone by the time we notify
+                messageAccountId = getMessageAccountId(match, uri.getPathSegments().get(1), null);
                 if (!uri.getBooleanQueryParameter(IS_UIPROVIDER, false)) {
                     notifyUIConversation(uri);
                 }
@@ -722,7 +760,17 @@ public class EmailProvider extends ContentProvider
                         accountId = Account.NO_ACCOUNT;
                     }
 
-                    result = db.delete(tableName, whereWithId(id, selection), selectionArgs);
+                    final ContentCache cache = getRowCache(match);
+                    if (cache != null) {
+                        cache.lock(id);
+                    }
+                    try {
+                        result = db.delete(tableName, whereWithId(id, selection), selectionArgs);
+                    } finally {
+                        if (cache != null) {
+                            cache.unlock(id);
+                        }
+                    }
 
                     if (match == ACCOUNT_ID) {
                         notifyUI(UIPROVIDER_ACCOUNT_NOTIFIER, id);
@@ -751,6 +799,10 @@ public class EmailProvider extends ContentProvider
                 case HOSTAUTH:
                 case POLICY:
                     result = db.delete(tableName, selection, selectionArgs);
+                    final ContentCache tableCache = getRowCache(match);
+                    if (tableCache != null) {
+                        tableCache.invalidate("Delete", uri, selection);
+                    }
                     break;
                 case MESSAGE_MOVE:
                     db.delete(MessageMove.TABLE_NAME, selection, selectionArgs);
@@ -761,6 +813,13 @@ public class EmailProvider extends ContentProvider
                 default:
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
+            if (match == ACCOUNT_ID || match == ACCOUNT) {
+                // The account_delete trigger deletes the accounts' mailboxes, host auths and
+                // policies as well
+                sCacheMailbox.invalidate("Delete", uri, selection);
+                sCacheHostAuth.invalidate("Delete", uri, selection);
+                sCachePolicy.invalidate("Delete", uri, selection);
+            }
             if (messageDeletion) {
                 if (match == MESSAGE_ID) {
                     // Delete the Body record associated with the deleted message
@@ -800,7 +859,8 @@ public class EmailProvider extends ContentProvider
         }
 
         // Notify all notifier cursors
-        sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id);
+        sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id,
+                messageAccountId);
 
         // Notify all email content cursors
         notifyUI(EmailContent.CONTENT_URI, null);
@@ -1024,7 +1084,8 @@ public class EmailProvider extends ContentProvider
         }
 
         // Notify all notifier cursors
-        sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_INSERT, id);
+        sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_INSERT, id,
+                getMessageAccountId(match, id, values));
 
         // Notify all existing cursors.
         notifyUI(EmailContent.CONTENT_URI, null);
@@ -1422,31 +1483,19 @@ public class EmailProvider extends ContentProvider
                 case UPDATED_MESSAGE_ID:
                 case ATTACHMENT_ID:
                 case MAILBOX_ID:
+                case ACCOUNT_ID:
                 case HOSTAUTH_ID:
                 case CREDENTIAL_ID:
                 case POLICY_ID:
                     id = uri.getPathSegments().get(1);
-                    c = db.query(tableName, projection, whereWithId(id, selection),
-                            selectionArgs, null, null, sortOrder, limit);
-                    break;
-                case ACCOUNT_ID:
-                    id = uri.getPathSegments().get(1);
-                    // There seems to be an issue with smart forwarding sometimes including the
-                    // quoted text from the wrong message. For now, we just disable it.
-                    final String[] alternateProjection = new String[projection.length];
-                    for (int i = 0; i < projection.length; i++) {
-                        String column = projection[i];
-                        if (TextUtils.equals(column, AccountColumns.FLAGS)) {
-                            alternateProjection[i] = AccountColumns.FLAGS + " & ~" +
-                                    Account.FLAGS_SUPPORTS_SMART_FORWARD + " AS " +
-                                    AccountColumns.FLAGS;
-                        } else {
-                            alternateProjection[i] = projection[i];
-                        }
+                    if (getRowCache(match) != null && projection != null && selection == null
+                            && TextUtils.isEmpty(sortOrder) && TextUtils.isEmpty(limit)) {
+                        c = queryCachedRow(db, match, tableName, id, projection);
+                    } else {
+                        c = db.query(tableName, getQueryColumns(match, projection),
+                                whereWithId(id, selection), selectionArgs, null, null, sortOrder,
+                                limit);
                     }
-
-                    c = db.query(tableName, alternateProjection, whereWithId(id, selection),
-                            selectionArgs, null, null, sortOrder, limit);
                     break;
                 case QUICK_RESPONSE_ID:
                     id = uri.getPathSegments().get(1);
@@ -1572,6 +1621,136 @@ public class EmailProvider extends ContentProvider
         return where + " AND (" + selection + ")";
     }
 
+    /**
+     * @return the row cache for the table of the given match, or null if that table isn't cached
+     */
+    private static ContentCache getRowCache(final int match) {
+        switch (match) {
+            case ACCOUNT:
+            case ACCOUNT_ID:
+                return sCacheAccount;
+            case MAILBOX:
+            case MAILBOX_ID:
+                return sCacheMailbox;
+            case HOSTAUTH:
+            case HOSTAUTH_ID:
+                return sCacheHostAuth;
+            case POLICY:
+            case POLICY_ID:
+                return sCachePolicy;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Map a query's projection to the columns we actually select.
+     * @param match the match of the query
+     * @param projection the projection of the query
+     * @return the columns to select
+     */
+    private static String[] getQueryColumns(final int match, final String[] projection) {
+        if (match != ACCOUNT_ID || projection == null) {
+            return projection;
+        }
+        // There seems to be an issue with smart forwarding sometimes including the
+        // quoted text from the wrong message. For now, we just disable it.
+        final String[] alternateProjection = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            if (TextUtils.equals(column, AccountColumns.FLAGS)) {
+                alternateProjection[i] = AccountColumns.FLAGS + " & ~" +
+                        Account.FLAGS_SUPPORTS_SMART_FORWARD + " AS " +
+                        AccountColumns.FLAGS;
+            } else {
+                alternateProjection[i] = projection[i];
+            }
+        }
+        return alternateProjection;
+    }
+
+    /**
+     * Query a single row of a cached table, using (and filling) its row cache.
+     * @param db the EmailProvider database
+     * @param match the match of the query; {@link #getRowCache} must return a cache for it
+     * @param tableName the table to query
+     * @param id the id of the row
+     * @param projection the projection of the query
+     * @return a cursor with the row, or an empty cursor if there's no such row
+     */
+    private static Cursor queryCachedRow(final SQLiteDatabase db, final int match,
+            final String tableName, final String id, final String[] projection) {
+        final ContentCache cache = getRowCache(match);
+        Cursor c = cache.getCachedCursor(id, projection);
+        if (c != null) {
+            return c;
+        }
+
+        // Read the whole row, so that it can answer other projections later
+        final String[] baseProjection = cache.getProjection();
+        final ContentCache.CacheToken token = cache.getCacheToken(id);
+        c = db.query(tableName, getQueryColumns(match, baseProjection), whereWithId(id, null),
+                null, null, null, null);
+        if (c.getCount() == 0) {
+            // Missing rows aren't cached, so that inserts needn't invalidate anything
+            c.close();
+            return new MatrixCursorWithCachedColumns(projection, 0);
+        }
+        c = cache.putCursor(c, id, baseProjection, token);
+        if (projection == baseProjection) {
+            return c;
+        }
+        c.close();
+        final Cursor cached = cache.getCachedCursor(id, projection);
+        if (cached != null) {
+            return cached;
+        }
+        // A write got in first, or the projection has columns that aren't cached
+        return db.query(tableName, getQueryColumns(match, projection), whereWithId(id, null),
+                null, null, null, null);
+    }
+
+    /**
+     * Update a single row, writing the new values through to the row cache of its table (if any).
+     * @param db the EmailProvider database
+     * @param match the match of the update
+     * @param tableName the table to update
+     * @param id the id of the row
+     * @param values the new values
+     * @param selection additional selection, or null
+     * @param selectionArgs arguments of the selection
+     * @return the number of rows updated
+     */
+    private static int updateRow(final SQLiteDatabase db, final int match,
+            final String tableName, final String id, final ContentValues values,
+            final String selection, final String[] selectionArgs) {
+        final ContentCache cache = getRowCache(match);
+        if (cache == null) {
+            return db.update(tableName, values, whereWithId(id, selection), selectionArgs);
+        }
+        // Nobody may cache the row while we're writing it
+        cache.lock(id);
+        ContentValues cachedValues = null;
+        try {
+            final int result =
+                    db.update(tableName, values, whereWithId(id, selection), selectionArgs);
+            if (result > 0) {
+                cachedValues = values;
+                if (match == ACCOUNT_ID && values.getAsInteger(AccountColumns.FLAGS) != null) {
+                    // Cached accounts don't support smart forward either; see getQueryColumns
+                    cachedValues = new ContentValues(values);
+                    cachedValues.put(AccountColumns.FLAGS,
+                            values.getAsInteger(AccountColumns.FLAGS)
+                                    & ~Account.FLAGS_SUPPORTS_SMART_FORWARD);
+                }
+            }
+            return result;
+        } finally {
+            // Replace the cached row (if any) with the new values, or just drop it
+            cache.unlock(id, cachedValues);
+        }
+    }
+
     /**
      * Restore a HostAuth from a database, given its unique id
      * @param db the database
@@ -1844,7 +2023,7 @@ public class EmailProvider extends ContentProvider
     private static final int INDEX_SYNC_KEY = 2;
 
     /**
-     * Restart push if we need it (currently only for Exchange accounts).
+     * Restart push if we need it (currently only for Exchange and IMAP accounts).
      * @param context A {@link Context}.
      * @param db The {@link SQLiteDatabase}.
      * @param id The id of the thing we're looking for.
@@ -1858,8 +2037,10 @@ public class EmailProvider extends ContentProvider
                 if (c.moveToFirst()) {
                     final String protocol = c.getString(INDEX_PROTOCOL);
                     // Only restart push for EAS accounts that have completed initial sync.
-                    if (context.getString(R.string.protocol_eas).equals(protocol) &&
-                            !EmailContent.isInitialSyncKey(c.getString(INDEX_SYNC_KEY))) {
+                    // IMAP push is (re)started by the sync adapter, which checks the interval.
+                    if ((context.getString(R.string.protocol_eas).equals(protocol) &&
+                            !EmailContent.isInitialSyncKey(c.getString(INDEX_SYNC_KEY))) ||
+                            context.getString(R.string.protocol_legacy_imap).equals(protocol)) {
                         final String emailAddress = c.getString(INDEX_EMAIL_ADDRESS);
                         final android.accounts.Account account =
                                 getAccountManagerAccount(context, emailAddress, protocol);
@@ -2080,7 +2261,7 @@ public class EmailProvider extends ContentProvider
                     } else if (match == MESSAGE_ID) {
                         db.execSQL(UPDATED_MESSAGE_DELETE + id);
                     }
-                    result = db.update(tableName, values, whereWithId(id, selection),
+                    result = updateRow(db, match, tableName, id, values, selection,
                             selectionArgs);
                     if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
                         handleMessageUpdateNotifications(uri, id, values);
@@ -2215,6 +2396,10 @@ public class EmailProvider extends ContentProvider
                         }
                     }
                     result = db.update(tableName, values, selection, selectionArgs);
+                    final ContentCache cache = getRowCache(match);
+                    if (cache != null) {
+                        cache.invalidate("Update", uri, selection);
+                    }
                     break;
                 case MESSAGE_MOVE:
                     result = db.update(MessageMove.TABLE_NAME, values, selection, selectionArgs);
@@ -2233,7 +2418,8 @@ public class EmailProvider extends ContentProvider
 
         // Notify all notifier cursors if some records where changed in the database
         if (result > 0) {
-            sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id);
+            sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id,
+                    getMessageAccountId(match, id, values));
             notifyUI(notificationUri, null);
         }
         return result;
@@ -2251,11 +2437,10 @@ public class EmailProvider extends ContentProvider
             final int result = extras.getInt(EmailServiceStatus.SYNC_RESULT);
             final ContentValues values = new ContentValues();
             values.put(Mailbox.UI_LAST_SYNC_RESULT, result);
-            mDatabase.update(
-                    Mailbox.TABLE_NAME,
-                    values,
-                    WHERE_ID,
-                    new String[] { String.valueOf(id) });
+            updateRow(mDatabase, MAILBOX_ID, Mailbox.TABLE_NAME, String.valueOf(id), values, null,
+                    null);
+            // Show the end result of the sync without waiting for the debounce
+            getNotificationCoalescer().flush();
         }
     }
 
@@ -2279,6 +2464,7 @@ public class EmailProvider extends ContentProvider
         }
         if (TextUtils.equals(method, MailboxUtilities.FIX_PARENT_KEYS_METHOD)) {
             fixParentKeys(getDatabase(getContext()));
+            sCacheMailbox.invalidate("Call", null, method);
             return null;
         }
 
@@ -2337,6 +2523,8 @@ public class EmailProvider extends ContentProvider
             } catch (final IOException e) {
                 throw new IllegalStateException("IOException while writing html body " +
                         "for message id " + Long.toString(messageId), e);
+            } finally {
+                SanitizedHtmlCache.getInstance(c).invalidate(messageId);
             }
         }
         if (cv.containsKey(BodyColumns.TEXT_CONTENT)) {
@@ -2477,9 +2665,11 @@ public class EmailProvider extends ContentProvider
      * @param op Optional operation to be appended to the URI.
      * @param id If a positive value, the ID to append to the base URI. Otherwise, no ID will be
      *           appended to the base URI.
+     * @param accountId The account of the changed message, or {@link Account#NO_ACCOUNT}.
      */
-    private void sendNotifierChange(Uri baseUri, String op, String id) {
+    private void sendNotifierChange(Uri baseUri, String op, String id, long accountId) {
         if (baseUri == null) return;
+        final boolean messageChange = baseUri.equals(Message.NOTIFIER_URI);
 
         // Append the operation, if specified
         if (op != null) {
@@ -2497,20 +2687,84 @@ public class EmailProvider extends ContentProvider
         }
 
         // We want to send the message list changed notification if baseUri is Message.NOTIFIER_URI.
-        if (baseUri.equals(Message.NOTIFIER_URI)) {
-            sendMessageListDataChangedNotification();
+        if (messageChange) {
+            getNotificationCoalescer().sendMessageListChanged(accountId);
         }
     }
 
-    private void sendMessageListDataChangedNotification() {
+    /**
+     * @return the account of the message a write is to, if the write is to a message and the
+     *     account is known cheaply, or else {@link Account#NO_ACCOUNT}
+     */
+    private long getMessageAccountId(final int match, final String id,
+            final ContentValues values) {
+        if (!Message.NOTIFIER_URI.equals(getBaseNotificationUri(match))) {
+            return Account.NO_ACCOUNT;
+        }
+        if (values != null && values.containsKey(MessageColumns.ACCOUNT_KEY)) {
+            return values.getAsLong(MessageColumns.ACCOUNT_KEY);
+        }
+        // Looking the account up costs a query per row, which is only worth it to narrow down a
+        // lone broadcast; not in applyBatch(), nor while a broadcast is waiting to be sent anyway.
+        if (getBatchNotificationsSet() != null
+                || getNotificationCoalescer().hasPendingMessageListChanged()) {
+            return Account.NO_ACCOUNT;
+        }
+        if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
+            final Cursor c = getDatabase(getContext()).query(Message.TABLE_NAME,
+                    new String[] {MessageColumns.ACCOUNT_KEY}, BaseColumns._ID + "=?",
+                    new String[] {id}, null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    return c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return Account.NO_ACCOUNT;
+    }
+
+    private void sendMessageListDataChangedNotification(final long accountId) {
         final Context context = getContext();
         final Intent intent = new Intent(ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED);
-        // Ideally this intent would contain information about which account changed, to limit the
-        // updates to that particular account.  Unfortunately, that information is not available in
-        // sendNotifierChange().
+        // Receivers can limit their updates to the account that changed, if we know it.
+        if (accountId != Account.NO_ACCOUNT) {
+            intent.putExtra(EXTRA_ACCOUNT_ID, accountId);
+        }
         context.sendBroadcast(intent);
     }
 
+    private NotificationCoalescer mNotificationCoalescer;
+
+    /**
+     * @return the coalescer for the notifications of writes made outside of applyBatch(); its
+     *     thread also sends the notifications
+     */
+    private synchronized NotificationCoalescer getNotificationCoalescer() {
+        if (mNotificationCoalescer == null) {
+            final HandlerThread thread = new HandlerThread("EmailProviderNotifier");
+            thread.start();
+            mNotificationCoalescer = new NotificationCoalescer(new NotificationCoalescer.Sender() {
+                @Override
+                public void notifyChange(final Uri uri) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+
+                @Override
+                public void sendMessageListChanged(final long accountId) {
+                    sendMessageListDataChangedNotification(accountId);
+                }
+
+                @Override
+                public void notifyWidgets(final long mailboxId) {
+                    EmailProvider.this.notifyWidgets(mailboxId);
+                }
+            }, new Handler(thread.getLooper()));
+        }
+        return mNotificationCoalescer;
+    }
+
     // We might have more than one thread trying to make its way through applyBatch() so the
     // notification coalescing needs to be thread-local to work correctly.
     private final ThreadLocal<Set<Uri>> mTLBatchNotifications =
@@ -2536,12 +2790,18 @@ public class EmailProvider extends ContentProvider
         Context context = getContext();
         SQLiteDatabase db = getDatabase(context);
         db.beginTransaction();
+        boolean successful = false;
         try {
             ContentProviderResult[] results = super.applyBatch(operations);
             db.setTransactionSuccessful();
+            successful = true;
             return results;
         } finally {
             db.endTransaction();
+            if (!successful) {
+                // The batch's writes went through to the row caches, but were rolled back
+                ContentCache.invalidateAllCaches();
+            }
             final Set<Uri> notifications = getBatchNotificationsSet();
             setBatchNotificationsSet(null);
             for (final Uri uri : notifications) {
@@ -2957,6 +3217,11 @@ public class EmailProvider extends ContentProvider
     }
     private static ProjectionMap sAttachmentMap;
 
+    /** Number of generated UI query statements to keep; see {@link GeneratedSqlCache}. */
+    private static final int GENERATED_SQL_CACHE_SIZE = 32;
+    private static final GeneratedSqlCache sGeneratedSqlCache =
+            new GeneratedSqlCache(GENERATED_SQL_CACHE_SIZE);
+
     /**
      * Generate the SELECT clause using a specified mapping and the original UI projection
      * @param map the ProjectionMap to use for this projection
@@ -3171,6 +3436,10 @@ public class EmailProvider extends ContentProvider
      * @return the SQLite query to be executed on the EmailProvider database
      */
     private static String genQueryMailboxMessages(String[] uiProjection, final boolean unseenOnly) {
+        final String cached = sGeneratedSqlCache.get(UI_MESSAGES, uiProjection, unseenOnly);
+        if (cached != null) {
+            return cached;
+        }
         StringBuilder sb = genSelect(getMessageListMap(), uiProjection);
         appendConversationInfoColumns(sb);
         sb.append(" FROM " + Message.TABLE_NAME + " WHERE " +
@@ -3182,7 +3451,9 @@ public class EmailProvider extends ContentProvider
         }
         sb.append("ORDER BY " + MessageColumns.TIMESTAMP + " DESC ");
         sb.append("LIMIT " + UIProvider.CONVERSATION_PROJECTION_QUERY_CURSOR_WINDOW_LIMIT);
-        return sb.toString();
+        final String sql = sb.toString();
+        sGeneratedSqlCache.put(UI_MESSAGES, uiProjection, unseenOnly, sql);
+        return sql;
     }
 
     /**
@@ -3244,9 +3515,15 @@ public class EmailProvider extends ContentProvider
      * @return the SQLite query to be executed on the EmailProvider database
      */
     private static String genQueryConversation(String[] uiProjection) {
+        final String cached = sGeneratedSqlCache.get(UI_CONVERSATION, uiProjection, false);
+        if (cached != null) {
+            return cached;
+        }
         StringBuilder sb = genSelect(getMessageListMap(), uiProjection);
         sb.append(" FROM " + Message.TABLE_NAME + " WHERE " + MessageColumns._ID + "=?");
-        return sb.toString();
+        final String sql = sb.toString();
+        sGeneratedSqlCache.put(UI_CONVERSATION, uiProjection, false, sql);
+        return sql;
     }
 
     /**
@@ -3256,13 +3533,19 @@ public class EmailProvider extends ContentProvider
      * @return the SQLite query to be executed on the EmailProvider database
      */
     private static String genQueryAccountMailboxes(String[] uiProjection) {
+        final String cached = sGeneratedSqlCache.get(UI_FOLDERS, uiProjection, false);
+        if (cached != null) {
+            return cached;
+        }
         StringBuilder sb = genSelect(getFolderListMap(), uiProjection);
         sb.append(" FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.ACCOUNT_KEY +
                 "=? AND " + MailboxColumns.TYPE + " < " + Mailbox.TYPE_NOT_EMAIL +
                 " AND " + MailboxColumns.TYPE + " != " + Mailbox.TYPE_SEARCH +
                 " AND " + MailboxColumns.PARENT_KEY + " < 0 ORDER BY ");
         sb.append(MAILBOX_ORDER_BY);
-        return sb.toString();
+        final String sql = sb.toString();
+        sGeneratedSqlCache.put(UI_FOLDERS, uiProjection, false, sql);
+        return sql;
     }
 
     /**
@@ -3273,6 +3556,10 @@ public class EmailProvider extends ContentProvider
      * @return the SQLite query to be executed on the EmailProvider database
      */
     private static String genQueryAccountAllMailboxes(String[] uiProjection) {
+        final String cached = sGeneratedSqlCache.get(UI_ALL_FOLDERS, uiProjection, false);
+        if (cached != null) {
+            return cached;
+        }
         StringBuilder sb = genSelect(getFolderListMap(), uiProjection);
         // Use a derived column to choose either hierarchicalName or displayName
         sb.append(", case when " + MailboxColumns.HIERARCHICAL_NAME + " is null then " +
@@ -3283,7 +3570,9 @@ public class EmailProvider extends ContentProvider
                 "=? AND " + MailboxColumns.TYPE + " < " + Mailbox.TYPE_NOT_EMAIL +
                 " AND " + MailboxColumns.TYPE + " != " + Mailbox.TYPE_SEARCH +
                 " ORDER BY h_name");
-        return sb.toString();
+        final String sql = sb.toString();
+        sGeneratedSqlCache.put(UI_ALL_FOLDERS, uiProjection, false, sql);
+        return sql;
     }
 
     /**
@@ -3293,6 +3582,10 @@ public class EmailProvider extends ContentProvider
      * @return the SQLite query to be executed on the EmailProvider database
      */
     private static String genQueryRecentMailboxes(String[] uiProjection) {
+        final String cached = sGeneratedSqlCache.get(UI_RECENT_FOLDERS, uiProjection, false);
+        if (cached != null) {
+            return cached;
+        }
         StringBuilder sb = genSelect(getFolderListMap(), uiProjection);
         sb.append(" FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.ACCOUNT_KEY +
                 "=? AND " + MailboxColumns.TYPE + " < " + Mailbox.TYPE_NOT_EMAIL +
@@ -3300,7 +3593,9 @@ public class EmailProvider extends ContentProvider
                 " AND " + MailboxColumns.PARENT_KEY + " < 0 AND " +
                 MailboxColumns.LAST_TOUCHED_TIME + " > 0 ORDER BY " +
                 MailboxColumns.LAST_TOUCHED_TIME + " DESC");
-        return sb.toString();
+        final String sql = sb.toString();
+        sGeneratedSqlCache.put(UI_RECENT_FOLDERS, uiProjection, false, sql);
+        return sql;
     }
 
     private int getFolderCapabilities(EmailServiceInfo info, int mailboxType, long mailboxId) {
@@ -4118,11 +4413,17 @@ public class EmailProvider extends ContentProvider
      * @return the SQLite query to be executed on the EmailProvider database
      */
     private static String genQuerySubfolders(String[] uiProjection) {
+        final String cached = sGeneratedSqlCache.get(UI_SUBFOLDERS, uiProjection, false);
+        if (cached != null) {
+            return cached;
+        }
         StringBuilder sb = genSelect(getFolderListMap(), uiProjection);
         sb.append(" FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.PARENT_KEY +
                 " =? ORDER BY ");
         sb.append(MAILBOX_ORDER_BY);
-        return sb.toString();
+        final String sql = sb.toString();
+        sGeneratedSqlCache.put(UI_SUBFOLDERS, uiProjection, false, sql);
+        return sql;
     }
 
     private static final String COMBINED_ACCOUNT_ID_STRING = Long.toString(COMBINED_ACCOUNT_ID);
@@ -5622,7 +5923,7 @@ public class EmailProvider extends ContentProvider
             notifyUI(UIPROVIDER_CONVERSATION_NOTIFIER,
                     EmailProvider.combinedMailboxId(Mailbox.TYPE_INBOX));
         }
-        notifyWidgets(id);
+        getNotificationCoalescer().notifyWidgets(id);
     }
 
     /**
@@ -5710,7 +6011,7 @@ public class EmailProvider extends ContentProvider
         if (batchNotifications != null) {
             batchNotifications.add(notifyUri);
         } else {
-            getContext().getContentResolver().notifyChange(notifyUri, null);
+            getNotificationCoalescer().notifyChange(notifyUri);
         }
     }
 
@@ -5857,8 +6158,8 @@ public class EmailProvider extends ContentProvider
                     final ContentValues values = new ContentValues();
                     values.put(Mailbox.UI_SYNC_STATUS, UIProvider.SyncStatus.NO_SYNC);
                     values.put(Mailbox.UI_LAST_SYNC_RESULT, syncValue);
-                    mDatabase.update(Mailbox.TABLE_NAME, values, WHERE_ID,
-                            new String[] { String.valueOf(mailboxId) });
+                    updateRow(mDatabase, MAILBOX_ID, Mailbox.TABLE_NAME,
+                            String.valueOf(mailboxId), values, null, null);
                     notifyUIFolder(mailbox.mId, mailbox.mAccountKey);
                 }
 
@@ -6221,6 +6522,11 @@ public class EmailProvider extends ContentProvider
         } finally {
             cursor.close();
         }
+        writer.println();
+        for (final ContentCache cache : ROW_CACHES) {
+            cache.dump(writer);
+        }
+        sGeneratedSqlCache.dump(writer);
     }
 
     synchronized public Handler getDelayedSyncHandler() {
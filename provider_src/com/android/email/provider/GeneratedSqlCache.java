@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Caches the SQL that {@link EmailProvider} generates for UI queries.
+ *
+ * <p>The SQL for most UI queries depends only on which query it is, the projection UnifiedEmail
+ * asked for, and a flag or two; UnifiedEmail uses a handful of projections, so the same text is
+ * built over and over.  Returning the same String also means SQLite finds the statement in its
+ * per-connection compiled statement cache, rather than parsing and planning it again.
+ *
+ * <p>Only SQL that doesn't depend on anything else (e.g. the contents of the database) may be
+ * cached here.  This class is thread safe.
+ */
+class GeneratedSqlCache {
+    /** What a query's SQL depends on. */
+    private static final class Key {
+        private final int mQuery;
+        private final String[] mProjection;
+        private final boolean mFlag;
+        private final int mHashCode;
+
+        Key(final int query, final String[] projection, final boolean flag) {
+            mQuery = query;
+            mProjection = projection;
+            mFlag = flag;
+            mHashCode = 31 * (31 * query + Arrays.hashCode(projection)) + (flag ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mQuery == other.mQuery && mFlag == other.mFlag
+                    && Arrays.equals(mProjection, other.mProjection);
+        }
+    }
+
+    private final LruCache<Key, String> mCache;
+
+    /**
+     * @param maxEntries the number of generated statements to keep
+     */
+    GeneratedSqlCache(final int maxEntries) {
+        mCache = new LruCache<Key, String>(maxEntries);
+    }
+
+    /**
+     * @param query identifies the query, e.g. by its URI match
+     * @param projection the projection the SQL was generated for
+     * @param flag any other option the SQL depends on
+     * @return the SQL generated for these arguments, or null if we don't have it.
+     */
+    String get(final int query, final String[] projection, final boolean flag) {
+        return mCache.get(new Key(query, projection, flag));
+    }
+
+    /**
+     * Remember the SQL generated for a query; see {@link #get}.
+     */
+    void put(final int query, final String[] projection, final boolean flag, final String sql) {
+        // Copy the projection, in case the caller changes it later
+        mCache.put(new Key(query, projection.clone(), flag), sql);
+    }
+
+    int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    int getMissCount() {
+        return mCache.missCount();
+    }
+
+    void dump(final PrintWriter writer) {
+        writer.println("Generated SQL cache: " + mCache.size() + " statements, "
+                + getHitCount() + " hits, " + getMissCount() + " misses");
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.net.Uri;
+import android.os.Handler;
+
+import com.android.emailcommon.provider.Account;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Collects the change notifications {@link EmailProvider} sends for writes made outside of
+ * {@link EmailProvider#applyBatch}, and sends them together shortly after the first one.
+ *
+ * <p>A sync writing hundreds of messages one at a time would otherwise send a notification, a
+ * message list broadcast and a widget update for each of them, and have the UI requery each
+ * time.  Here, each URI is notified, each account's message list broadcast sent and each
+ * mailbox's widgets updated at most once per {@link #DEBOUNCE_MILLIS}.  The window isn't
+ * extended by later changes, so a long sync still shows its progress.  {@link #flush} sends
+ * whatever is pending right away, e.g. when a sync ends.
+ */
+class NotificationCoalescer {
+    /** How long after the first change of a window the notifications are sent. */
+    @VisibleForTesting
+    static final long DEBOUNCE_MILLIS = 200;
+
+    /**
+     * Sends the notifications once they're due.
+     */
+    interface Sender {
+        void notifyChange(Uri uri);
+
+        /**
+         * @param accountId the account whose messages changed, or {@link Account#NO_ACCOUNT} if
+         *     not known
+         */
+        void sendMessageListChanged(long accountId);
+
+        void notifyWidgets(long mailboxId);
+    }
+
+    private final Sender mSender;
+    private final Handler mHandler;
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Guarded by this.
+    private final LinkedHashSet<Uri> mUris = new LinkedHashSet<Uri>();
+    private final LinkedHashSet<Long> mMessageListAccounts = new LinkedHashSet<Long>();
+    private final LinkedHashSet<Long> mWidgetMailboxes = new LinkedHashSet<Long>();
+    private boolean mFlushScheduled;
+
+    /**
+     * @param sender sends the notifications
+     * @param handler runs the delayed flushes, and so the sender
+     */
+    NotificationCoalescer(final Sender sender, final Handler handler) {
+        mSender = sender;
+        mHandler = handler;
+    }
+
+    synchronized void notifyChange(final Uri uri) {
+        mUris.add(uri);
+        scheduleFlush();
+    }
+
+    synchronized void sendMessageListChanged(final long accountId) {
+        mMessageListAccounts.add(accountId);
+        scheduleFlush();
+    }
+
+    /**
+     * @return whether a message list broadcast, for any account, is waiting to be sent
+     */
+    synchronized boolean hasPendingMessageListChanged() {
+        return !mMessageListAccounts.isEmpty();
+    }
+
+    synchronized void notifyWidgets(final long mailboxId) {
+        mWidgetMailboxes.add(mailboxId);
+        scheduleFlush();
+    }
+
+    /**
+     * Send the pending notifications now.
+     */
+    void flush() {
+        final ArrayList<Uri> uris;
+        final ArrayList<Long> accounts;
+        final ArrayList<Long> mailboxes;
+        synchronized (this) {
+            if (mFlushScheduled) {
+                mHandler.removeCallbacks(mFlush);
+                mFlushScheduled = false;
+            }
+            uris = new ArrayList<Uri>(mUris);
+            if (mMessageListAccounts.contains(Account.NO_ACCOUNT)) {
+                // A broadcast without an account covers them all
+                accounts = new ArrayList<Long>(1);
+                accounts.add(Account.NO_ACCOUNT);
+            } else {
+                accounts = new ArrayList<Long>(mMessageListAccounts);
+            }
+            mailboxes = new ArrayList<Long>(mWidgetMailboxes);
+            mUris.clear();
+            mMessageListAccounts.clear();
+            mWidgetMailboxes.clear();
+        }
+        for (final Uri uri : uris) {
+            mSender.notifyChange(uri);
+        }
+        for (final long accountId : accounts) {
+            mSender.sendMessageListChanged(accountId);
+        }
+        for (final long mailboxId : mailboxes) {
+            mSender.notifyWidgets(mailboxId);
+        }
+    }
+
+    // Must be called with this held.
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, DEBOUNCE_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import com.android.mail.utils.HtmlSanitizer;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Caches the sanitized version of message html bodies, so that viewing a message again doesn't
+ * have to run {@link HtmlSanitizer#sanitizeHtml} again.
+ *
+ * <p>Entries are keyed by message id, and are only used while the size and modification time of
+ * the body file match those it was sanitized from.  {@link EmailProvider} also calls
+ * {@link #invalidate} whenever it rewrites or deletes a message's html body.
+ *
+ * <p>The most recently used entries are kept in memory; all of them are also written to a
+ * directory in the cache dir, which is trimmed (oldest first) when it gets too big.
+ */
+public class SanitizedHtmlCache {
+    /** Default total length, in chars, of the sanitized html kept in memory. */
+    private static final int DEFAULT_MEMORY_CHARS = 512 * 1024;
+    /** Default size of the on-disk cache, in bytes. */
+    private static final long DEFAULT_MAX_DISK_BYTES = 10 * 1024 * 1024;
+    private static final String DIRECTORY_NAME = "sanitized_html";
+
+    private static SanitizedHtmlCache sInstance;
+
+    /** The sanitized html of one body, and the body file it was made from. */
+    private static class Entry {
+        final long mModified;
+        final long mLength;
+        final String mHtml;
+
+        Entry(final long modified, final long length, final String html) {
+            mModified = modified;
+            mLength = length;
+            mHtml = html;
+        }
+
+        boolean isFor(final long modified, final long length) {
+            return mModified == modified && mLength == length;
+        }
+    }
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final long mMaxDiskBytes;
+    private final LruCache<Long, Entry> mMemory;
+    /** Total size of the files in {@link #mDirectory}, or -1 if not known yet; guarded by this. */
+    private long mDiskBytes = -1;
+
+    public static synchronized SanitizedHtmlCache getInstance(final Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new SanitizedHtmlCache(appContext,
+                    new File(appContext.getCacheDir(), DIRECTORY_NAME), DEFAULT_MEMORY_CHARS,
+                    DEFAULT_MAX_DISK_BYTES);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    SanitizedHtmlCache(final Context context, final File directory, final int memoryChars,
+            final long maxDiskBytes) {
+        mContext = context;
+        mDirectory = directory;
+        mMaxDiskBytes = maxDiskBytes;
+        mMemory = new LruCache<Long, Entry>(memoryChars) {
+            @Override
+            protected int sizeOf(final Long key, final Entry value) {
+                return value.mHtml.length() + 1;
+            }
+        };
+    }
+
+    /**
+     * @return the sanitized html body of the given message.
+     * @throws FileNotFoundException if the message has no html body.
+     */
+    public String getSanitizedHtml(final long messageId) throws IOException {
+        return getSanitizedHtml(messageId, EmailProvider.getBodyFile(mContext, messageId, "html"));
+    }
+
+    @VisibleForTesting
+    String getSanitizedHtml(final long messageId, final File bodyFile) throws IOException {
+        final long modified = bodyFile.lastModified();
+        final long length = bodyFile.length();
+        if (modified == 0) {
+            throw new FileNotFoundException("No html body for message " + messageId);
+        }
+        final Entry cached = mMemory.get(messageId);
+        if (cached != null && cached.isFor(modified, length)) {
+            return cached.mHtml;
+        }
+
+        String html = readCacheFile(messageId, modified, length);
+        if (html == null) {
+            final InputStream in = new FileInputStream(bodyFile);
+            try {
+                html = sanitize(IOUtils.toString(in));
+            } finally {
+                in.close();
+            }
+            writeCacheFile(messageId, modified, length, html);
+        }
+        mMemory.put(messageId, new Entry(modified, length, html));
+        return html;
+    }
+
+    /**
+     * Forget the sanitized html of the given message; called when its body changes.
+     */
+    public void invalidate(final long messageId) {
+        mMemory.remove(messageId);
+        synchronized (this) {
+            final File file = getCacheFile(messageId);
+            final long length = file.length();
+            if (file.delete() && mDiskBytes >= 0) {
+                mDiskBytes -= length;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    String sanitize(final String html) {
+        return HtmlSanitizer.sanitizeHtml(html);
+    }
+
+    private File getCacheFile(final long messageId) {
+        return new File(mDirectory, Long.toString(messageId));
+    }
+
+    /**
+     * @return the html in the cache file for the message, or null if there's none for the body
+     *     file with the given modification time and length.
+     */
+    private synchronized String readCacheFile(final long messageId, final long modified,
+            final long length) {
+        final File file = getCacheFile(messageId);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            final DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readLong() != modified || in.readLong() != length) {
+                    return null;
+                }
+                final String html = IOUtils.toString(in, "UTF-8");
+                // Keep recently used files when trimming
+                file.setLastModified(System.currentTimeMillis());
+                return html;
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            LogUtils.w(LogUtils.TAG, e, "Could not read sanitized html for message %d",
+                    messageId);
+            return null;
+        }
+    }
+
+    private synchronized void writeCacheFile(final long messageId, final long modified,
+            final long length, final String html) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        final File file = getCacheFile(messageId);
+        final File tempFile = new File(mDirectory, file.getName() + ".tmp");
+        try {
+            final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeLong(modified);
+                out.writeLong(length);
+                out.write(html.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            final long oldLength = file.length();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                return;
+            }
+            if (mDiskBytes < 0) {
+                mDiskBytes = getDirectorySize();
+            } else {
+                mDiskBytes += file.length() - oldLength;
+            }
+        } catch (final IOException e) {
+            LogUtils.w(LogUtils.TAG, e, "Could not write sanitized html for message %d",
+                    messageId);
+            tempFile.delete();
+            return;
+        }
+        if (mDiskBytes > mMaxDiskBytes) {
+            trim();
+        }
+    }
+
+    private long getDirectorySize() {
+        long size = 0;
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Delete the least recently used cache files until we're down to three quarters of the
+     * maximum size.  Must be called with the lock held.
+     */
+    private void trim() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        final long target = mMaxDiskBytes * 3 / 4;
+        for (final File file : files) {
+            if (mDiskBytes <= target) {
+                break;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                mDiskBytes -= length;
+            }
+        }
+    }
+}
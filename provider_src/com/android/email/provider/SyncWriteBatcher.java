@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the provider writes made during a sync and commits them with
+ * {@link ContentResolver#applyBatch}, so that many rows are written in a single transaction
+ * (and {@link EmailProvider} sends one notification per batch rather than one per row).
+ *
+ * <p>Writes are committed once {@link #DEFAULT_MAX_OPERATIONS} operations are pending, or when
+ * a write is added more than {@link #DEFAULT_MAX_DELAY_MILLIS} after the first pending one.
+ * Callers must call {@link #flush} when they're done, and before relying on the ids of rows
+ * inserted with {@link #save}.
+ *
+ * <p>If a batch can't be applied, its writes are retried one at a time, so that a bad row only
+ * loses itself rather than the whole batch.  {@link #flush} reports whether any write was lost.
+ *
+ * <p>This class is not thread safe.
+ */
+public class SyncWriteBatcher {
+    /** Commit once this many operations are pending. */
+    private static final int DEFAULT_MAX_OPERATIONS = 100;
+    /** Commit once the oldest pending operation is this old. */
+    private static final long DEFAULT_MAX_DELAY_MILLIS = DateUtils.SECOND_IN_MILLIS;
+
+    private final ContentResolver mResolver;
+    private final int mMaxOperations;
+    private final long mMaxDelayMillis;
+
+    /**
+     * One call to {@link #save}, {@link #update} or {@link #delete}: the unit that is retried on
+     * its own if its batch fails.
+     */
+    private static class Write {
+        /** Index in the pending operations of the write's first operation. */
+        final int mFirstOperation;
+        /** The content saved, or null for an update or delete. */
+        final EmailContent mContent;
+        /** Whether {@link #mContent} is being inserted, and so gets its id on commit. */
+        final boolean mIsNew;
+
+        Write(final int firstOperation, final EmailContent content, final boolean isNew) {
+            mFirstOperation = firstOperation;
+            mContent = content;
+            mIsNew = isNew;
+        }
+    }
+
+    private final ArrayList<ContentProviderOperation> mOperations =
+            new ArrayList<ContentProviderOperation>();
+    private final ArrayList<Write> mWrites = new ArrayList<Write>();
+    /** When the first pending operation was added. */
+    private long mFirstOperationTime;
+    /** Whether any write could not be applied. */
+    private boolean mWriteLost;
+
+    public SyncWriteBatcher(final Context context) {
+        this(context.getContentResolver(), DEFAULT_MAX_OPERATIONS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    @VisibleForTesting
+    SyncWriteBatcher(final ContentResolver resolver, final int maxOperations,
+            final long maxDelayMillis) {
+        mResolver = resolver;
+        mMaxOperations = maxOperations;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Insert or update {@code content}, as {@link Utilities#saveOrUpdate} would.  If it's a new
+     * row, its id is set when the batch is committed.
+     */
+    public void save(final EmailContent content) {
+        final boolean isNew = !content.isSaved();
+        final int index = mOperations.size();
+        onAdding();
+        if (content instanceof EmailContent.Message) {
+            // This may add body and attachment rows, which refer back to the message's insert.
+            ((EmailContent.Message) content).addSaveOps(mOperations);
+        } else if (isNew) {
+            mOperations.add(ContentProviderOperation.newInsert(content.mBaseUri)
+                    .withValues(content.toContentValues()).build());
+        } else {
+            mOperations.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(content.mBaseUri, content.mId))
+                    .withValues(content.toContentValues()).build());
+        }
+        mWrites.add(new Write(index, content, isNew));
+        onAdded();
+    }
+
+    /**
+     * Update the row(s) at {@code uri} with {@code values}.
+     */
+    public void update(final Uri uri, final ContentValues values) {
+        onAdding();
+        mWrites.add(new Write(mOperations.size(), null, false));
+        mOperations.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+        onAdded();
+    }
+
+    /**
+     * Delete the row(s) at {@code uri}.
+     */
+    public void delete(final Uri uri) {
+        onAdding();
+        mWrites.add(new Write(mOperations.size(), null, false));
+        mOperations.add(ContentProviderOperation.newDelete(uri).build());
+        onAdded();
+    }
+
+    /**
+     * @return the number of operations waiting to be committed.
+     */
+    public int getPendingCount() {
+        return mOperations.size();
+    }
+
+    private void onAdding() {
+        if (mOperations.isEmpty()) {
+            mFirstOperationTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private void onAdded() {
+        if (mOperations.size() >= mMaxOperations
+                || SystemClock.elapsedRealtime() - mFirstOperationTime >= mMaxDelayMillis) {
+            commit();
+        }
+    }
+
+    /**
+     * Commit all pending operations, in one transaction if possible.
+     *
+     * @return false if any write made through this batcher, including those committed
+     *     automatically as the batch filled up, could not be applied
+     */
+    public boolean flush() {
+        commit();
+        return !mWriteLost;
+    }
+
+    private void commit() {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        try {
+            final ContentProviderResult[] results =
+                    mResolver.applyBatch(EmailContent.AUTHORITY, mOperations);
+            for (final Write write : mWrites) {
+                setInsertedId(write, results, write.mFirstOperation);
+            }
+        } catch (final RemoteException e) {
+            LogUtils.w(Logging.LOG_TAG, e, "Error applying %d sync operations; retrying each",
+                    mOperations.size());
+            commitEachWrite();
+        } catch (final OperationApplicationException e) {
+            LogUtils.w(Logging.LOG_TAG, e, "Error applying %d sync operations; retrying each",
+                    mOperations.size());
+            commitEachWrite();
+        } finally {
+            mOperations.clear();
+            mWrites.clear();
+        }
+    }
+
+    /**
+     * Apply each pending write in a transaction of its own, so that only the bad ones are lost.
+     */
+    private void commitEachWrite() {
+        for (int i = 0; i < mWrites.size(); i++) {
+            final Write write = mWrites.get(i);
+            final ArrayList<ContentProviderOperation> operations;
+            if (write.mContent instanceof EmailContent.Message) {
+                // The body and attachment inserts refer back to the message's insert by its
+                // index in the batch, so build them again from the start of a new batch.
+                operations = new ArrayList<ContentProviderOperation>();
+                ((EmailContent.Message) write.mContent).addSaveOps(operations);
+            } else {
+                final int end = (i + 1 < mWrites.size())
+                        ? mWrites.get(i + 1).mFirstOperation : mOperations.size();
+                operations = new ArrayList<ContentProviderOperation>(
+                        mOperations.subList(write.mFirstOperation, end));
+            }
+            try {
+                setInsertedId(write, mResolver.applyBatch(EmailContent.AUTHORITY, operations), 0);
+            } catch (final RemoteException e) {
+                LogUtils.e(Logging.LOG_TAG, e, "Error applying sync write to %s",
+                        operations.get(0).getUri());
+                mWriteLost = true;
+            } catch (final OperationApplicationException e) {
+                LogUtils.e(Logging.LOG_TAG, e, "Error applying sync write to %s",
+                        operations.get(0).getUri());
+                mWriteLost = true;
+            }
+        }
+    }
+
+    private static void setInsertedId(final Write write, final ContentProviderResult[] results,
+            final int index) {
+        if (write.mIsNew && index < results.length && results[index].uri != null) {
+            write.mContent.mId = ContentUris.parseId(results[index].uri);
+        }
+    }
+}
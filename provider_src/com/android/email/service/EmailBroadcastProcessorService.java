@@ -305,6 +305,8 @@ public class EmailBroadcastProcessorService extends IntentService {
         AccountReconciler.reconcileAccounts(this);
         // Starts remote services, if any
         EmailServiceUtils.startRemoteServices(this);
+        // Starts IMAP push, if any account uses it
+        ImapPushManager.getInstance().startAllAccounts(this);
     }
 
     private void performOneTimeInitialization() {
@@ -30,6 +30,7 @@ import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.mail.Sender;
 import com.android.email.mail.Store;
+import com.android.email.mail.store.ImapFolder;
 import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
@@ -43,6 +44,7 @@ import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
 import com.android.emailcommon.mail.Folder.OpenMode;
 import com.android.emailcommon.mail.Message;
 import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
@@ -63,6 +65,8 @@ import com.android.emailcommon.utility.Utility;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashSet;
 
 /**
@@ -214,20 +218,39 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
             storeMessage.setBody(multipart);
 
             // 4. Now ask for the attachment to be fetched
-            final FetchProfile fp = new FetchProfile();
-            fp.add(storePart);
-            remoteFolder.fetch(new Message[] { storeMessage }, fp,
-                    new MessageRetrievalListenerBridge(messageId, attachmentId, cb));
-
-            // If we failed to load the attachment, throw an Exception here, so that
-            // AttachmentService knows that we failed
-            if (storePart.getBody() == null) {
-                throw new MessagingException("Attachment not loaded.");
+            final MessageRetrievalListenerBridge listener =
+                    new MessageRetrievalListenerBridge(messageId, attachmentId, cb);
+            final boolean saved;
+            if (remoteFolder instanceof ImapFolder) {
+                // Decode the attachment from the connection straight to wherever it's going
+                final ImapAttachmentWriter writer = new ImapAttachmentWriter(
+                        (ImapFolder) remoteFolder, storeMessage, storePart, listener);
+                saved = AttachmentUtilities.saveAttachment(mContext, writer, attachment);
+                if (writer.mError != null) {
+                    throw writer.mError;
+                }
+            } else {
+                final FetchProfile fp = new FetchProfile();
+                fp.add(storePart);
+                remoteFolder.fetch(new Message[] { storeMessage }, fp, listener);
+
+                // If we failed to load the attachment, throw an Exception here, so that
+                // AttachmentService knows that we failed
+                if (storePart.getBody() == null) {
+                    throw new MessagingException("Attachment not loaded.");
+                }
+
+                // Save the attachment to wherever it's going
+                saved = AttachmentUtilities.saveAttachment(mContext,
+                        storePart.getBody().getInputStream(), attachment);
             }
 
-            // Save the attachment to wherever it's going
-            AttachmentUtilities.saveAttachment(mContext, storePart.getBody().getInputStream(),
-                    attachment);
+            // 5. We fetched it but couldn't write it here, e.g. no storage; the attachment has
+            // already been marked as failed.  Fetching it again won't help.
+            if (!saved) {
+                cb.loadAttachmentStatus(0, attachmentId, EmailServiceStatus.IO_ERROR, 0);
+                return;
+            }
 
             // 6. Report success
             cb.loadAttachmentStatus(messageId, attachmentId, EmailServiceStatus.SUCCESS, 0);
@@ -249,6 +272,39 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
 
     }
 
+    /**
+     * Fetches an IMAP attachment into the file it is being saved to.  A failure to fetch it is
+     * kept in {@link #mError}, so that it can be reported as a connection error rather than as a
+     * failure to save.
+     */
+    private static class ImapAttachmentWriter implements AttachmentUtilities.AttachmentWriter {
+        private final ImapFolder mFolder;
+        private final Message mMessage;
+        private final Part mPart;
+        private final MessageRetrievalListener mListener;
+        MessagingException mError;
+
+        ImapAttachmentWriter(final ImapFolder folder, final Message message, final Part part,
+                final MessageRetrievalListener listener) {
+            mFolder = folder;
+            mMessage = message;
+            mPart = part;
+            mListener = listener;
+        }
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            try {
+                if (!mFolder.fetchPart(mMessage, mPart, out, mListener)) {
+                    throw new MessagingException("Attachment not loaded.");
+                }
+            } catch (final MessagingException e) {
+                mError = e;
+                throw new IOException(e);
+            }
+        }
+    }
+
     /**
      * Bridge to intercept {@link MessageRetrievalListener#loadAttachmentProgress} and
      * pass down to {@link IEmailServiceCallback}.
@@ -444,12 +500,13 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
                 EmailContent.Message.ID_COLUMN_PROJECTION,
                 MessageColumns.MAILBOX_KEY + "=?", new String[] { Long.toString(outboxId)},
                 null);
+        Sender sender = null;
         try {
             // 2.  exit early
             if (c.getCount() <= 0) {
                 return;
             }
-            final Sender sender = Sender.getInstance(context, account);
+            sender = Sender.getInstance(context, account);
             final Store remoteStore = Store.getInstance(account, context);
             final ContentValues moveToSentValues;
             if (remoteStore.requireCopyMessageToSentFolder()) {
@@ -524,6 +581,14 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
                 nc.showLoginFailedNotificationSynchronous(account.mId, false /* incoming */);
             }
         } finally {
+            // The sender keeps its session open between messages.
+            if (sender != null) {
+                try {
+                    sender.close();
+                } catch (MessagingException me) {
+                    // Nothing to do; the session is gone either way.
+                }
+            }
             c.close();
         }
     }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.PowerManager;
+import android.text.format.DateUtils;
+
+import com.android.email.R;
+import com.android.email.mail.store.ImapPusher;
+import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.utils.LogUtils;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+/**
+ * Runs an {@link ImapPusher} on the inbox of every IMAP account whose sync interval is set to
+ * push, and turns what the pushers see into syncs.
+ *
+ * New messages are fetched on their own, without resyncing the rest of the inbox; any other change
+ * gets a regular sync of the inbox. Either way the sync goes through {@link ImapSyncScheduler},
+ * so it never overlaps another sync of the same account, and holds a wake lock so that the device
+ * doesn't sleep before it has finished.
+ *
+ * If the server can't IDLE, the account gets a periodic sync from the system instead, which can
+ * wake the device up; the provider replaces it when the account's sync interval is changed.
+ */
+public class ImapPushManager {
+    private static final String TAG = "ImapPushManager";
+
+    private static final String[] ID_PROJECTION = new String[] { AccountColumns._ID };
+    private static final String PUSH_ACCOUNTS_SELECTION =
+            AccountColumns.SYNC_INTERVAL + "=" + Account.CHECK_INTERVAL_PUSH;
+
+    private static ImapPushManager sInstance;
+
+    // Pushers by account id; guarded by this.
+    private final HashMap<Long, ImapPusher> mPushers = new HashMap<Long, ImapPusher>();
+
+    public static synchronized ImapPushManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImapPushManager();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Start pushing an IMAP account's inbox if the account's sync interval is set to push, or stop
+     * if it no longer is.
+     */
+    public void updateAccount(final Context context, final Account account) {
+        if (account.mSyncInterval != Account.CHECK_INTERVAL_PUSH) {
+            stopAccount(account.mId);
+            return;
+        }
+        synchronized (this) {
+            final ImapPusher pusher = mPushers.get(account.mId);
+            if (pusher != null && !pusher.isStopped()) {
+                return;
+            }
+        }
+        final Mailbox inbox = Mailbox.restoreMailboxOfType(context, account.mId,
+                Mailbox.TYPE_INBOX);
+        if (inbox == null) {
+            // We'll be back after the first folder sync
+            return;
+        }
+        final ImapPusher pusher = new ImapPusher(context, account, inbox.mServerId,
+                new InboxCallback(context.getApplicationContext(), account.mId, inbox.mId));
+        final ImapPusher oldPusher;
+        synchronized (this) {
+            oldPusher = mPushers.get(account.mId);
+            if (oldPusher != null && !oldPusher.isStopped()) {
+                // Somebody beat us to it
+                return;
+            }
+            mPushers.put(account.mId, pusher);
+            pusher.start();
+        }
+        LogUtils.d(TAG, "Started push for account %d", account.mId);
+    }
+
+    /**
+     * Start pushing every IMAP account whose sync interval is set to push, e.g. after a reboot.
+     * This reads the database, so it must not be called on the UI thread.
+     */
+    public void startAllAccounts(final Context context) {
+        final String imapProtocol = context.getString(R.string.protocol_legacy_imap);
+        final Cursor c = context.getContentResolver().query(Account.CONTENT_URI, ID_PROJECTION,
+                PUSH_ACCOUNTS_SELECTION, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                final Account account = Account.restoreAccountWithId(context, c.getLong(0));
+                if (account != null && imapProtocol.equals(account.getProtocol(context))) {
+                    updateAccount(context, account);
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public void stopAccount(final long accountId) {
+        final ImapPusher pusher;
+        synchronized (this) {
+            pusher = mPushers.remove(accountId);
+        }
+        if (pusher != null) {
+            pusher.stop();
+            LogUtils.d(TAG, "Stopped push for account %d", accountId);
+        }
+    }
+
+    public synchronized void dump(final PrintWriter pw) {
+        pw.println("ImapPushManager");
+        for (final ImapPusher pusher : mPushers.values()) {
+            pusher.dump(pw);
+        }
+    }
+
+    /**
+     * Syncs the inbox of an account when its pusher sees a change.
+     */
+    private static class InboxCallback implements ImapPusher.Callback {
+        private final Context mContext;
+        private final long mAccountId;
+        private final long mMailboxId;
+        private final PowerManager.WakeLock mWakeLock;
+
+        InboxCallback(final Context context, final long accountId, final long mailboxId) {
+            mContext = context;
+            mAccountId = accountId;
+            mMailboxId = mailboxId;
+            final PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG + " " + accountId);
+        }
+
+        @Override
+        public void onNewMessages(final int firstSeq, final int lastSeq) {
+            final Account account = Account.restoreAccountWithId(mContext, mAccountId);
+            final Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mMailboxId);
+            if (account == null || mailbox == null) {
+                return;
+            }
+            mWakeLock.acquire();
+            try {
+                ImapService.synchronizeNewMessagesSynchronous(mContext, account, mailbox,
+                        firstSeq, lastSeq);
+            } catch (MessagingException e) {
+                LogUtils.d(Logging.LOG_TAG, e, "Error fetching pushed messages");
+            } finally {
+                mWakeLock.release();
+            }
+        }
+
+        @Override
+        public void onMailboxChanged() {
+            final Account account = Account.restoreAccountWithId(mContext, mAccountId);
+            final Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mMailboxId);
+            if (account == null || mailbox == null) {
+                return;
+            }
+            mWakeLock.acquire();
+            try {
+                ImapService.synchronizeMailboxSynchronous(mContext, account, mailbox, false,
+                        false);
+            } catch (MessagingException e) {
+                LogUtils.d(Logging.LOG_TAG, e, "Error syncing pushed mailbox");
+            } finally {
+                mWakeLock.release();
+            }
+        }
+
+        @Override
+        public void onIdleSupported(final boolean supported) {
+            final Account account = Account.restoreAccountWithId(mContext, mAccountId);
+            final EmailServiceInfo info =
+                    EmailServiceUtils.getServiceInfoForAccount(mContext, mAccountId);
+            if (account == null || info == null) {
+                return;
+            }
+            final android.accounts.Account amAccount =
+                    account.getAccountManagerAccount(info.accountType);
+            if (supported) {
+                // In case the server couldn't IDLE the last time we pushed
+                ContentResolver.removePeriodicSync(amAccount, EmailContent.AUTHORITY,
+                        Bundle.EMPTY);
+            } else {
+                ContentResolver.addPeriodicSync(amAccount, EmailContent.AUTHORITY, Bundle.EMPTY,
+                        ImapPusher.POLL_INTERVAL_MILLIS / DateUtils.SECOND_IN_MILLIS);
+            }
+        }
+
+        @Override
+        public void onAccountGone() {
+            getInstance().stopAccount(mAccountId);
+        }
+    }
+}
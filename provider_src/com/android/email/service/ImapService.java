@@ -36,6 +36,8 @@ import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.R;
 import com.android.email.mail.Store;
+import com.android.email.mail.store.ImapFolder;
+import com.android.email.provider.SyncWriteBatcher;
 import com.android.email.provider.Utilities;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
@@ -45,7 +47,6 @@ import com.android.emailcommon.mail.FetchProfile;
 import com.android.emailcommon.mail.Flag;
 import com.android.emailcommon.mail.Folder;
 import com.android.emailcommon.mail.Folder.FolderType;
-import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
 import com.android.emailcommon.mail.Folder.MessageUpdateCallbacks;
 import com.android.emailcommon.mail.Folder.OpenMode;
 import com.android.emailcommon.mail.Message;
@@ -63,13 +64,19 @@ import com.android.emailcommon.service.SyncWindow;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ImapService extends Service {
     // TODO get these from configurations or settings.
@@ -77,21 +84,26 @@ public class ImapService extends Service {
     private static final long FULL_SYNC_WINDOW_MILLIS = 7 * DateUtils.DAY_IN_MILLIS;
     private static final long FULL_SYNC_INTERVAL_MILLIS = 4 * DateUtils.HOUR_IN_MILLIS;
 
-    // The maximum number of messages to fetch in a single command.
-    private static final int MAX_MESSAGES_TO_FETCH = 500;
     private static final int MINIMUM_MESSAGES_TO_SYNC = 10;
     private static final int LOAD_MORE_MIN_INCREMENT = 10;
     private static final int LOAD_MORE_MAX_INCREMENT = 20;
     private static final long INITIAL_WINDOW_SIZE_INCREASE = 24 * 60 * 60 * 1000;
+    /** More new messages than this are picked up with a regular sync instead. */
+    private static final int MAX_NEW_MESSAGES_TO_FETCH = 100;
 
-    private static final Flag[] FLAG_LIST_SEEN = new Flag[] { Flag.SEEN };
-    private static final Flag[] FLAG_LIST_FLAGGED = new Flag[] { Flag.FLAGGED };
-    private static final Flag[] FLAG_LIST_ANSWERED = new Flag[] { Flag.ANSWERED };
+    /**
+     * The fewest messages worth opening another connection for, when fetching envelopes and when
+     * loading message bodies.  Loading a body takes a few round trips per message, so it pays off
+     * much sooner.
+     */
+    private static final int MIN_ENVELOPES_PER_CONNECTION = 200;
+    private static final int MIN_MESSAGES_TO_LOAD_PER_CONNECTION = 10;
 
     /**
      * Simple cache for last search result mailbox by account and serverId, since the most common
      * case will be repeated use of the same mailbox
      */
+    private static final Object sLastSearchLock = new Object();
     private static long mLastSearchAccountKey = Account.NO_ACCOUNT;
     private static String mLastSearchServerId = null;
     private static Mailbox mLastSearchRemoteMailbox = null;
@@ -101,8 +113,8 @@ public class ImapService extends Service {
      * redo the search (which can be quite slow).  SortableMessage is a smallish class, so memory
      * shouldn't be an issue
      */
-    private static final HashMap<Long, SortableMessage[]> sSearchResults =
-            new HashMap<Long, SortableMessage[]>();
+    private static final Map<Long, SortableMessage[]> sSearchResults =
+            Collections.synchronizedMap(new HashMap<Long, SortableMessage[]>());
 
     /**
      * We write this into the serverId field of messages that will never be upsynced.
@@ -154,24 +166,82 @@ public class ImapService extends Service {
         return mBinder;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        ImapSyncScheduler.getInstance().dump(pw);
+        ImapPushManager.getInstance().dump(pw);
+        Store.dumpInstances(pw);
+    }
+
     /**
      * Start foreground synchronization of the specified folder. This is called by
      * synchronizeMailbox or checkMail.
+     * The sync is run by {@link ImapSyncScheduler}, which serializes syncs within an account but
+     * lets different accounts sync in parallel; this call blocks until the sync has finished.
      * TODO this should use ID's instead of fully-restored objects
      * @return The status code for whether this operation succeeded.
      * @throws MessagingException
      */
-    public static synchronized int synchronizeMailboxSynchronous(Context context,
+    public static int synchronizeMailboxSynchronous(final Context context,
             final Account account, final Mailbox folder, final boolean loadMore,
             final boolean uiRefresh) throws MessagingException {
+        return ImapSyncScheduler.getInstance().runSync(account.mId, folder.mId, loadMore, false,
+                uiRefresh, new ImapSyncScheduler.SyncOperation() {
+                    @Override
+                    public int run() throws MessagingException {
+                        return synchronizeMailboxInternal(context, account, folder, loadMore,
+                                uiRefresh, 0, 0);
+                    }
+                });
+    }
+
+    /**
+     * Fetch messages that an IDLE connection saw arrive in the specified folder, without
+     * resyncing the rest of the folder. Like any other sync, this is run by
+     * {@link ImapSyncScheduler}; this call blocks until it has finished.
+     * @param firstSeq the message sequence number of the first new message
+     * @param lastSeq the message sequence number of the last new message
+     * @return The status code for whether this operation succeeded.
+     * @throws MessagingException
+     */
+    public static int synchronizeNewMessagesSynchronous(final Context context,
+            final Account account, final Mailbox folder, final int firstSeq, final int lastSeq)
+            throws MessagingException {
+        return ImapSyncScheduler.getInstance().runSync(account.mId, folder.mId, false, true,
+                false, new ImapSyncScheduler.SyncOperation() {
+                    @Override
+                    public int run() throws MessagingException {
+                        return synchronizeMailboxInternal(context, account, folder, false, false,
+                                firstSeq, lastSeq);
+                    }
+                });
+    }
+
+    /**
+     * Synchronize the specified folder on the calling thread. Callers must make sure that no
+     * other sync of the same account is running at the same time.
+     * @param firstNewSeq if non-zero, only the new messages from this sequence number to
+     *     {@code lastNewSeq} are fetched, rather than syncing the whole window
+     */
+    private static int synchronizeMailboxInternal(Context context, final Account account,
+            final Mailbox folder, final boolean loadMore, final boolean uiRefresh,
+            final int firstNewSeq, final int lastNewSeq)
+            throws MessagingException {
         TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(context, account));
         final NotificationController nc =
                 NotificationControllerCreatorHolder.getInstance(context);
-        Store remoteStore = null;
         try {
-            remoteStore = Store.getInstance(account, context);
+            // The store is cached, so its idle connections are left open for the next sync; its
+            // pool closes them once they have been idle for a while.
+            final Store remoteStore = Store.getInstance(account, context);
             processPendingActionsSynchronous(context, account, remoteStore, uiRefresh);
-            synchronizeMailboxGeneric(context, account, remoteStore, folder, loadMore, uiRefresh);
+            if (firstNewSeq > 0 && lastNewSeq - firstNewSeq < MAX_NEW_MESSAGES_TO_FETCH) {
+                synchronizeNewMessages(context, account, remoteStore, folder, firstNewSeq,
+                        lastNewSeq);
+            } else {
+                synchronizeMailboxGeneric(context, account, remoteStore, folder, loadMore,
+                        uiRefresh);
+            }
             // Clear authentication notification for this account
             nc.cancelLoginFailedNotification(account.mId);
         } catch (MessagingException e) {
@@ -183,10 +253,6 @@ public class ImapService extends Service {
                 nc.showLoginFailedNotificationSynchronous(account.mId, true /* incoming */);
             }
             throw e;
-        } finally {
-            if (remoteStore != null) {
-                remoteStore.closeConnections();
-            }
         }
         // TODO: Rather than use exceptions as logic above, return the status and handle it
         // correctly in caller.
@@ -254,10 +320,31 @@ public class ImapService extends Service {
     static void loadUnsyncedMessages(final Context context, final Account account,
             Folder remoteFolder, ArrayList<Message> messages, final Mailbox toMailbox)
             throws MessagingException {
+        final Message[] messageArray = messages.toArray(new Message[messages.size()]);
+        if (remoteFolder instanceof ImapFolder) {
+            // Spread a big batch, e.g. on the first sync of a folder, across a few connections
+            ((ImapFolder) remoteFolder).runInParallel(messageArray,
+                    MIN_MESSAGES_TO_LOAD_PER_CONNECTION, new ImapFolder.ParallelTask() {
+                        @Override
+                        public void run(Folder folder, Message[] slice)
+                                throws MessagingException {
+                            loadMessages(context, account, folder, slice, toMailbox);
+                        }
+                    });
+        } else {
+            loadMessages(context, account, remoteFolder, messageArray, toMailbox);
+        }
+    }
 
+    /**
+     * Load the structure and body of the given messages, on the calling thread.
+     */
+    private static void loadMessages(final Context context, final Account account,
+            Folder remoteFolder, Message[] messages, final Mailbox toMailbox)
+            throws MessagingException {
         FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.STRUCTURE);
-        remoteFolder.fetch(messages.toArray(new Message[messages.size()]), fp, null);
+        remoteFolder.fetch(messages, fp, null);
         Message [] oneMessageArray = new Message[1];
         for (Message message : messages) {
             // Build a list of parts we are interested in. Text parts will be downloaded
@@ -282,7 +369,7 @@ public class ImapService extends Service {
             final Mailbox mailbox, Folder remoteFolder, ArrayList<Message> unsyncedMessages,
             HashMap<String, LocalMessageInfo> localMessageMap, final ArrayList<Long> unseenMessages)
             throws MessagingException {
-        FetchProfile fp = new FetchProfile();
+        final FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.FLAGS);
         fp.add(FetchProfile.Item.ENVELOPE);
 
@@ -293,59 +380,103 @@ public class ImapService extends Service {
             localMapCopy = new HashMap<String, LocalMessageInfo>();
         }
 
-        remoteFolder.fetch(unsyncedMessages.toArray(new Message[unsyncedMessages.size()]), fp,
-                new MessageRetrievalListener() {
+        // Network reads and provider writes run on separate threads; see MessageWritePipeline.
+        // Each batch of messages is written in one transaction.
+        final SyncWriteBatcher batcher = new SyncWriteBatcher(context);
+        final ArrayList<EmailContent.Message> unseenLocalMessages =
+                new ArrayList<EmailContent.Message>();
+        final MessageWritePipeline pipeline = new MessageWritePipeline("ImapEnvelopeWriter",
+                new MessageWritePipeline.BatchWriter() {
                     @Override
-                    public void messageRetrieved(Message message) {
-                        try {
-                            // Determine if the new message was already known (e.g. partial)
-                            // And create or reload the full message info
-                            final LocalMessageInfo localMessageInfo =
-                                    localMapCopy.get(message.getUid());
-                            final boolean localExists = localMessageInfo != null;
-
-                            if (!localExists && message.isSet(Flag.DELETED)) {
-                                // This is a deleted message that we don't have locally, so don't
-                                // create it
-                                return;
-                            }
-
-                            final EmailContent.Message localMessage;
-                            if (!localExists) {
-                                localMessage = new EmailContent.Message();
-                            } else {
-                                localMessage = EmailContent.Message.restoreMessageWithId(
-                                        context, localMessageInfo.mId);
-                            }
-
-                            if (localMessage != null) {
-                                try {
-                                    // Copy the fields that are available into the message
-                                    LegacyConversions.updateMessageFields(localMessage,
-                                            message, account.mId, mailbox.mId);
-                                    // Commit the message to the local store
-                                    Utilities.saveOrUpdate(localMessage, context);
-                                    // Track the "new" ness of the downloaded message
-                                    if (!message.isSet(Flag.SEEN) && unseenMessages != null) {
-                                        unseenMessages.add(localMessage.mId);
-                                    }
-                                } catch (MessagingException me) {
-                                    LogUtils.e(Logging.LOG_TAG,
-                                            "Error while copying downloaded message." + me);
+                    public void writeMessages(ArrayList<Message> messages) {
+                        for (Message message : messages) {
+                            saveEnvelope(context, account, mailbox, message, localMapCopy,
+                                    batcher, unseenLocalMessages);
+                        }
+                        batcher.flush();
+                        // New messages only have an id once the batch has been committed.
+                        if (unseenMessages != null) {
+                            for (EmailContent.Message localMessage : unseenLocalMessages) {
+                                if (localMessage.isSaved()) {
+                                    unseenMessages.add(localMessage.mId);
                                 }
                             }
                         }
-                        catch (Exception e) {
-                            LogUtils.e(Logging.LOG_TAG,
-                                    "Error while storing downloaded message." + e.toString());
-                        }
-                    }
-
-                    @Override
-                    public void loadAttachmentProgress(int progress) {
+                        unseenLocalMessages.clear();
                     }
                 });
+        pipeline.start();
+        try {
+            final Message[] messages =
+                    unsyncedMessages.toArray(new Message[unsyncedMessages.size()]);
+            if (remoteFolder instanceof ImapFolder) {
+                // A big batch is split across a few connections, which all feed the pipeline
+                ((ImapFolder) remoteFolder).runInParallel(messages, MIN_ENVELOPES_PER_CONNECTION,
+                        new ImapFolder.ParallelTask() {
+                            @Override
+                            public void run(Folder folder, Message[] slice)
+                                    throws MessagingException {
+                                folder.fetch(slice, fp, pipeline);
+                            }
+                        });
+            } else {
+                remoteFolder.fetch(messages, fp, pipeline);
+            }
+        } finally {
+            pipeline.finish();
+        }
+        checkWrites(batcher);
+    }
 
+    /**
+     * Create or update the local copy of a message we've fetched the flags and envelope of.
+     * The write is added to {@code batcher}; unread messages are added to {@code unseenMessages}.
+     */
+    private static void saveEnvelope(final Context context, final Account account,
+            final Mailbox mailbox, final Message message,
+            final HashMap<String, LocalMessageInfo> localMessageMap,
+            final SyncWriteBatcher batcher, final ArrayList<EmailContent.Message> unseenMessages) {
+        try {
+            // Determine if the new message was already known (e.g. partial)
+            // And create or reload the full message info
+            final LocalMessageInfo localMessageInfo = localMessageMap.get(message.getUid());
+            final boolean localExists = localMessageInfo != null;
+
+            if (!localExists && message.isSet(Flag.DELETED)) {
+                // This is a deleted message that we don't have locally, so don't
+                // create it
+                return;
+            }
+
+            final EmailContent.Message localMessage;
+            if (!localExists) {
+                localMessage = new EmailContent.Message();
+            } else {
+                localMessage = EmailContent.Message.restoreMessageWithId(
+                        context, localMessageInfo.mId);
+            }
+
+            if (localMessage != null) {
+                try {
+                    // Copy the fields that are available into the message
+                    LegacyConversions.updateMessageFields(localMessage,
+                            message, account.mId, mailbox.mId);
+                    // Commit the message to the local store
+                    batcher.save(localMessage);
+                    // Track the "new" ness of the downloaded message
+                    if (!message.isSet(Flag.SEEN)) {
+                        unseenMessages.add(localMessage);
+                    }
+                } catch (MessagingException me) {
+                    LogUtils.e(Logging.LOG_TAG,
+                            "Error while copying downloaded message." + me);
+                }
+            }
+        }
+        catch (Exception e) {
+            LogUtils.e(Logging.LOG_TAG,
+                    "Error while storing downloaded message." + e.toString());
+        }
     }
 
     /**
@@ -359,7 +490,7 @@ public class ImapService extends Service {
      * @param uiRefresh whether this request is in response to a user action
      * @throws MessagingException
      */
-    private synchronized static void synchronizeMailboxGeneric(final Context context,
+    private static void synchronizeMailboxGeneric(final Context context,
             final Account account, Store remoteStore, final Mailbox mailbox, final boolean loadMore,
             final boolean uiRefresh)
             throws MessagingException {
@@ -367,8 +498,6 @@ public class ImapService extends Service {
         LogUtils.d(Logging.LOG_TAG, "synchronizeMailboxGeneric " + account + " " + mailbox + " "
                 + loadMore + " " + uiRefresh);
 
-        final ArrayList<Long> unseenMessages = new ArrayList<Long>();
-
         ContentResolver resolver = context.getContentResolver();
 
         // 0. We do not ever sync DRAFTS or OUTBOX (down or up)
@@ -453,6 +582,25 @@ public class ImapService extends Service {
             }
         }
         remoteFolder.open(OpenMode.READ_WRITE);
+        try {
+            synchronizeOpenMailbox(context, account, remoteStore, mailbox, remoteFolder, loadMore,
+                    fullSync, endDate);
+        } finally {
+            // 14. Clean up and report results
+            remoteFolder.close(false);
+        }
+    }
+
+    /**
+     * The rest of {@link #synchronizeMailboxGeneric}, once the remote folder is open. The caller
+     * closes the folder, however this returns.
+     * @param endDate the end of the sync window, as first worked out
+     */
+    private static void synchronizeOpenMailbox(final Context context, final Account account,
+            final Store remoteStore, final Mailbox mailbox, final Folder remoteFolder,
+            final boolean loadMore, final boolean fullSync, long endDate)
+            throws MessagingException {
+        final ArrayList<Long> unseenMessages = new ArrayList<Long>();
 
         // 3. Trash any remote messages that are marked as trashed locally.
         // TODO - this comment was here, but no code was here.
@@ -465,9 +613,46 @@ public class ImapService extends Service {
         // 5. Save folder message count locally.
         mailbox.updateMessageCount(context, remoteMessageCount);
 
+        // 5.5 Compare the state the server reports for the mailbox with its state as of the last
+        // sync.  If its UIDs have been reassigned, the messages we have are meaningless, so start
+        // over with a full sync.
+        final ImapFolder imapFolder =
+                (remoteFolder instanceof ImapFolder) ? (ImapFolder) remoteFolder : null;
+        final ImapSyncKey lastSyncKey = ImapSyncKey.parse(mailbox.mSyncKey);
+        final ImapSyncKey newSyncKey =
+                (imapFolder != null) ? ImapSyncKey.fromFolder(imapFolder) : null;
+        if (newSyncKey != null && lastSyncKey.isUidValidityChanged(newSyncKey.mUidValidity)) {
+            LogUtils.i(Logging.LOG_TAG, "UIDVALIDITY of " + mailbox + " changed, resyncing");
+            remoteFolder.close(false);
+            deleteLocalMessages(context, account, mailbox);
+            mailbox.updateSyncKey(context, null);
+            synchronizeMailboxGeneric(context, account, remoteStore, mailbox, loadMore, true);
+            return;
+        }
+
+        // 5.6 If the server keeps mod-sequences (RFC 7162), we can ask for only what changed since
+        // the last sync.  With QRESYNC that includes expunged messages, so a quick sync needs
+        // nothing else.
+        final long modSeq = (newSyncKey != null && imapFolder.supportsModSeq())
+                ? lastSyncKey.getModSeqSince(newSyncKey.mUidValidity) : 0;
+        if (modSeq > 0 && !fullSync && imapFolder.supportsVanished()) {
+            synchronizeChangesSince(context, account, mailbox, imapFolder, modSeq, lastSyncKey);
+            mailbox.updateSyncKey(context, newSyncKey.toString());
+            return;
+        }
+
         // 6. Get all message Ids in our sync window:
-        Message[] remoteMessages;
-        remoteMessages = remoteFolder.getMessages(0, endDate, null);
+        // On a quick sync, the UIDNEXT and message count may tell us that no messages were
+        // expunged since the last sync; then the window holds the messages we already have, plus
+        // any that arrived since, and we don't need to search it.
+        Message[] remoteMessages = null;
+        if (newSyncKey != null && !fullSync) {
+            remoteMessages = getWindowMessagesSinceLastSync(context, account, mailbox, imapFolder,
+                    lastSyncKey, newSyncKey, endDate);
+        }
+        if (remoteMessages == null) {
+            remoteMessages = remoteFolder.getMessages(0, endDate, null);
+        }
         LogUtils.d(Logging.LOG_TAG, "received " + remoteMessages.length + " messages");
 
         // 7. See if we need any additional messages beyond our date query range results.
@@ -545,41 +730,8 @@ public class ImapService extends Service {
         // Note that this complicates deletion: It's not okay to delete anything that is in the
         // localMessageMap but not in the remote result, because we know that we may be getting
         // Ids of local messages that are outside the IMAP query window.
-        Cursor localUidCursor = null;
-        HashMap<String, LocalMessageInfo> localMessageMap = new HashMap<String, LocalMessageInfo>();
-        try {
-            // FLAG: There is a problem that causes us to store the wrong date on some messages,
-            // so messages get a date of zero. If we filter these messages out and don't put them
-            // in our localMessageMap, then we'll end up loading the same message again.
-            // See b/10508861
-//            final long queryEndDate = endDate - DateUtils.DAY_IN_MILLIS - DateUtils.HOUR_IN_MILLIS;
-            final long queryEndDate = 0;
-            localUidCursor = resolver.query(
-                    EmailContent.Message.CONTENT_URI,
-                    LocalMessageInfo.PROJECTION,
-                    EmailContent.MessageColumns.ACCOUNT_KEY + "=?"
-                            + " AND " + MessageColumns.MAILBOX_KEY + "=?"
-                            + " AND " + MessageColumns.TIMESTAMP + ">=?",
-                    new String[] {
-                            String.valueOf(account.mId),
-                            String.valueOf(mailbox.mId),
-                            String.valueOf(queryEndDate) },
-                    null);
-            while (localUidCursor.moveToNext()) {
-                LocalMessageInfo info = new LocalMessageInfo(localUidCursor);
-                // If the message has no server id, it's local only. This should only happen for
-                // mail created on the client that has failed to upsync. We want to ignore such
-                // mail during synchronization (i.e. leave it as-is and let the next sync try again
-                // to upsync).
-                if (!TextUtils.isEmpty(info.mServerId)) {
-                    localMessageMap.put(info.mServerId, info);
-                }
-            }
-        } finally {
-            if (localUidCursor != null) {
-                localUidCursor.close();
-            }
-        }
+        final HashMap<String, LocalMessageInfo> localMessageMap =
+                getLocalMessageMap(context, account, mailbox);
 
         // 9. Get a list of the messages that are in the remote list but not on the
         // local store, or messages that are in the local store but failed to download
@@ -626,22 +778,23 @@ public class ImapService extends Service {
         // the flags and envelope for previously.
         // TODO: the fetch() function, and others, should take List<>s of messages, not
         // arrays of messages.
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.FLAGS);
-        if (remoteMessages.length > MAX_MESSAGES_TO_FETCH) {
-            List<Message> remoteMessageList = Arrays.asList(remoteMessages);
-            for (int start = 0; start < remoteMessageList.size(); start += MAX_MESSAGES_TO_FETCH) {
-                int end = start + MAX_MESSAGES_TO_FETCH;
-                if (end >= remoteMessageList.size()) {
-                    end = remoteMessageList.size() - 1;
-                }
-                List<Message> chunk = remoteMessageList.subList(start, end);
-                final Message[] partialArray = chunk.toArray(new Message[chunk.size()]);
-                // Fetch this one chunk of messages
-                remoteFolder.fetch(partialArray, fp, null);
+        // The folder compresses the UIDs into ranges and splits the command as needed to keep
+        // each command line within bounds, so we can hand it the whole window at once.
+        // On a quick sync, if the server keeps mod-sequences, only the flags that changed since the
+        // last sync are fetched; a full sync still refetches them all.
+        final Message[] flagMessages;
+        if (modSeq > 0 && !fullSync) {
+            if (imapFolder.getHighestModSeq() == modSeq) {
+                flagMessages = Message.EMPTY_ARRAY;
+            } else {
+                flagMessages = imapFolder.fetchFlagsChangedSince(remoteMessages, modSeq);
             }
+            LogUtils.d(Logging.LOG_TAG, flagMessages.length + " flag changes since " + modSeq);
         } else {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.FLAGS);
             remoteFolder.fetch(remoteMessages, fp, null);
+            flagMessages = remoteMessages;
         }
         boolean remoteSupportsSeen = false;
         boolean remoteSupportsFlagged = false;
@@ -659,36 +812,16 @@ public class ImapService extends Service {
         }
 
         // 12. Update SEEN/FLAGGED/ANSWERED (star) flags (if supported remotely - e.g. not for POP3)
+        // The flag updates of step 12 and the deletions of step 13 are committed in batches.
+        final SyncWriteBatcher batcher = new SyncWriteBatcher(context);
         if (remoteSupportsSeen || remoteSupportsFlagged || remoteSupportsAnswered) {
-            for (Message remoteMessage : remoteMessages) {
+            for (Message remoteMessage : flagMessages) {
                 LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
                 if (localMessageInfo == null) {
                     continue;
                 }
-                boolean localSeen = localMessageInfo.mFlagRead;
-                boolean remoteSeen = remoteMessage.isSet(Flag.SEEN);
-                boolean newSeen = (remoteSupportsSeen && (remoteSeen != localSeen));
-                boolean localFlagged = localMessageInfo.mFlagFavorite;
-                boolean remoteFlagged = remoteMessage.isSet(Flag.FLAGGED);
-                boolean newFlagged = (remoteSupportsFlagged && (localFlagged != remoteFlagged));
-                int localFlags = localMessageInfo.mFlags;
-                boolean localAnswered = (localFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0;
-                boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
-                boolean newAnswered = (remoteSupportsAnswered && (localAnswered != remoteAnswered));
-                if (newSeen || newFlagged || newAnswered) {
-                    Uri uri = ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, localMessageInfo.mId);
-                    ContentValues updateValues = new ContentValues();
-                    updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
-                    updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
-                    if (remoteAnswered) {
-                        localFlags |= EmailContent.Message.FLAG_REPLIED_TO;
-                    } else {
-                        localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
-                    }
-                    updateValues.put(MessageColumns.FLAGS, localFlags);
-                    resolver.update(uri, updateValues, null, null);
-                }
+                updateLocalFlags(batcher, localMessageInfo, remoteMessage, remoteSupportsSeen,
+                        remoteSupportsFlagged, remoteSupportsAnswered);
             }
         }
 
@@ -709,33 +842,379 @@ public class ImapService extends Service {
             // If this message is inside our sync window, and we cannot find it in our list
             // of remote messages, then we know it's been deleted from the server.
             if (info.mTimestamp >= endDate && !remoteUidMap.containsKey(info.mServerId)) {
-                // Delete associated data (attachment files)
-                // Attachment & Body records are auto-deleted when we delete the Message record
-                AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId, info.mId);
-
-                // Delete the message itself
-                final Uri uriToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.CONTENT_URI, info.mId);
-                resolver.delete(uriToDelete, null, null);
-
-                // Delete extra rows (e.g. updated or deleted)
-                final Uri updateRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.UPDATED_CONTENT_URI, info.mId);
-                resolver.delete(updateRowToDelete, null, null);
-                final Uri deleteRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.DELETED_CONTENT_URI, info.mId);
-                resolver.delete(deleteRowToDelete, null, null);
+                deleteLocalMessage(context, account, batcher, info);
             }
         }
+        checkWrites(batcher);
 
         loadUnsyncedMessages(context, account, remoteFolder, unsyncedMessages, mailbox);
 
         if (fullSync) {
             mailbox.updateLastFullSyncTime(context, SystemClock.elapsedRealtime());
         }
+        if (newSyncKey != null) {
+            mailbox.updateSyncKey(context, newSyncKey.toString());
+        }
+    }
+
+    /**
+     * Get every local message in the mailbox that has a server id, by server id.
+     */
+    private static HashMap<String, LocalMessageInfo> getLocalMessageMap(final Context context,
+            final Account account, final Mailbox mailbox) {
+        Cursor localUidCursor = null;
+        final HashMap<String, LocalMessageInfo> localMessageMap =
+                new HashMap<String, LocalMessageInfo>();
+        try {
+            // FLAG: There is a problem that causes us to store the wrong date on some messages,
+            // so messages get a date of zero. If we filter these messages out and don't put them
+            // in our localMessageMap, then we'll end up loading the same message again.
+            // See b/10508861
+            final long queryEndDate = 0;
+            localUidCursor = context.getContentResolver().query(
+                    EmailContent.Message.CONTENT_URI,
+                    LocalMessageInfo.PROJECTION,
+                    EmailContent.MessageColumns.ACCOUNT_KEY + "=?"
+                            + " AND " + MessageColumns.MAILBOX_KEY + "=?"
+                            + " AND " + MessageColumns.TIMESTAMP + ">=?",
+                    new String[] {
+                            String.valueOf(account.mId),
+                            String.valueOf(mailbox.mId),
+                            String.valueOf(queryEndDate) },
+                    null);
+            while (localUidCursor.moveToNext()) {
+                LocalMessageInfo info = new LocalMessageInfo(localUidCursor);
+                // If the message has no server id, it's local only. This should only happen for
+                // mail created on the client that has failed to upsync. We want to ignore such
+                // mail during synchronization (i.e. leave it as-is and let the next sync try again
+                // to upsync).
+                if (!TextUtils.isEmpty(info.mServerId)) {
+                    localMessageMap.put(info.mServerId, info);
+                }
+            }
+        } finally {
+            if (localUidCursor != null) {
+                localUidCursor.close();
+            }
+        }
+        return localMessageMap;
+    }
+
+    /**
+     * Update the SEEN/FLAGGED/ANSWERED flags of a local message to match the server's, if they
+     * differ.  The write is added to {@code batcher}.
+     */
+    private static void updateLocalFlags(final SyncWriteBatcher batcher,
+            final LocalMessageInfo localMessageInfo, final Message remoteMessage,
+            final boolean remoteSupportsSeen, final boolean remoteSupportsFlagged,
+            final boolean remoteSupportsAnswered) {
+        boolean localSeen = localMessageInfo.mFlagRead;
+        boolean remoteSeen = remoteMessage.isSet(Flag.SEEN);
+        boolean newSeen = (remoteSupportsSeen && (remoteSeen != localSeen));
+        boolean localFlagged = localMessageInfo.mFlagFavorite;
+        boolean remoteFlagged = remoteMessage.isSet(Flag.FLAGGED);
+        boolean newFlagged = (remoteSupportsFlagged && (localFlagged != remoteFlagged));
+        int localFlags = localMessageInfo.mFlags;
+        boolean localAnswered = (localFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0;
+        boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
+        boolean newAnswered = (remoteSupportsAnswered && (localAnswered != remoteAnswered));
+        if (newSeen || newFlagged || newAnswered) {
+            Uri uri = ContentUris.withAppendedId(
+                    EmailContent.Message.CONTENT_URI, localMessageInfo.mId);
+            ContentValues updateValues = new ContentValues();
+            updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
+            updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
+            if (remoteAnswered) {
+                localFlags |= EmailContent.Message.FLAG_REPLIED_TO;
+            } else {
+                localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
+            }
+            updateValues.put(MessageColumns.FLAGS, localFlags);
+            batcher.update(uri, updateValues);
+        }
+    }
+
+    /**
+     * Commit the writes pending in {@code batcher}, and fail the sync if any of its writes were
+     * lost, so that it's retried rather than reported as a success.
+     */
+    private static void checkWrites(final SyncWriteBatcher batcher) throws MessagingException {
+        if (!batcher.flush()) {
+            throw new MessagingException(MessagingException.UNSPECIFIED_EXCEPTION,
+                    "Could not store some synced changes");
+        }
+    }
+
+    /**
+     * Delete a local message that is no longer on the server.  The deletes are added to
+     * {@code batcher}.
+     */
+    private static void deleteLocalMessage(final Context context, final Account account,
+            final SyncWriteBatcher batcher, final LocalMessageInfo info) {
+        // Delete associated data (attachment files)
+        // Attachment & Body records are auto-deleted when we delete the Message record
+        AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId, info.mId);
+
+        // Delete the message itself
+        final Uri uriToDelete = ContentUris.withAppendedId(
+                EmailContent.Message.CONTENT_URI, info.mId);
+        batcher.delete(uriToDelete);
+
+        // Delete extra rows (e.g. updated or deleted)
+        final Uri updateRowToDelete = ContentUris.withAppendedId(
+                EmailContent.Message.UPDATED_CONTENT_URI, info.mId);
+        batcher.delete(updateRowToDelete);
+        final Uri deleteRowToDelete = ContentUris.withAppendedId(
+                EmailContent.Message.DELETED_CONTENT_URI, info.mId);
+        batcher.delete(deleteRowToDelete);
+    }
+
+    /**
+     * Delete every local message in the mailbox that came from the server.
+     */
+    private static void deleteLocalMessages(final Context context, final Account account,
+            final Mailbox mailbox) throws MessagingException {
+        final SyncWriteBatcher batcher = new SyncWriteBatcher(context);
+        for (final LocalMessageInfo info : getLocalMessageMap(context, account, mailbox).values()) {
+            deleteLocalMessage(context, account, batcher, info);
+        }
+        checkWrites(batcher);
+    }
+
+    /**
+     * Work out the messages in the sync window without searching it, from the local messages in
+     * the window and the mailbox's state as of the last sync.  This only works if no messages
+     * have been expunged since: the message count must have grown by exactly the number of
+     * messages that arrived since, i.e. those from the old UIDNEXT up.  If nothing arrived and
+     * the UIDNEXT hasn't moved, this costs no round trip at all.
+     *
+     * @return the messages in the window, oldest first, or null if the window must be searched
+     */
+    private static Message[] getWindowMessagesSinceLastSync(final Context context,
+            final Account account, final Mailbox mailbox, final ImapFolder remoteFolder,
+            final ImapSyncKey lastSyncKey, final ImapSyncKey newSyncKey, final long endDate)
+            throws MessagingException {
+        if (!lastSyncKey.isUidValidityCurrent(newSyncKey.mUidValidity)
+                || lastSyncKey.mUidNext == 0 || newSyncKey.mUidNext == 0) {
+            return null;
+        }
+        final int arrivedCount = newSyncKey.mMessageCount - lastSyncKey.mMessageCount;
+        if (arrivedCount < 0) {
+            return null;
+        }
+        final Message[] newMessages;
+        if (newSyncKey.mUidNext == lastSyncKey.mUidNext) {
+            if (arrivedCount != 0) {
+                return null;
+            }
+            newMessages = Message.EMPTY_ARRAY;
+        } else {
+            newMessages = remoteFolder.getMessagesFromUid(lastSyncKey.mUidNext);
+            if (newMessages.length != arrivedCount) {
+                return null;
+            }
+        }
+        LogUtils.d(Logging.LOG_TAG, "no messages expunged, " + arrivedCount + " arrived");
+
+        final ArrayList<Long> uids = new ArrayList<Long>();
+        final Cursor c = context.getContentResolver().query(EmailContent.Message.CONTENT_URI,
+                new String[] { SyncColumns.SERVER_ID },
+                MessageColumns.ACCOUNT_KEY + "=? AND " + MessageColumns.MAILBOX_KEY + "=? AND "
+                        + MessageColumns.TIMESTAMP + ">=?",
+                new String[] { String.valueOf(account.mId), String.valueOf(mailbox.mId),
+                        String.valueOf(endDate) },
+                null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    final long uid = parseUid(c.getString(0));
+                    if (uid > 0 && uid < lastSyncKey.mUidNext) {
+                        uids.add(uid);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        Collections.sort(uids);
+        final Message[] messages = new Message[uids.size() + newMessages.length];
+        for (int i = 0; i < uids.size(); i++) {
+            messages[i] = remoteFolder.createMessage(String.valueOf(uids.get(i)));
+        }
+        System.arraycopy(newMessages, 0, messages, uids.size(), newMessages.length);
+        return messages;
+    }
+
+    /**
+     * @return the numeric value of a UID, or 0 if it isn't one
+     */
+    private static long parseUid(final String uid) {
+        try {
+            return Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Apply the changes to a mailbox since the last sync, which the server reports with QRESYNC
+     * (RFC 7162): new messages, flag changes and expunged messages.  If nothing changed, the
+     * SELECT that opened the folder was the only round trip.
+     *
+     * @param account the account to sync
+     * @param mailbox the mailbox to sync
+     * @param remoteFolder the open folder, which must support VANISHED
+     * @param modSeq the HIGHESTMODSEQ of the mailbox as of the last sync
+     * @param lastSyncKey the state of the mailbox as of the last sync
+     * @throws MessagingException
+     */
+    private static void synchronizeChangesSince(final Context context, final Account account,
+            final Mailbox mailbox, final ImapFolder remoteFolder, final long modSeq,
+            final ImapSyncKey lastSyncKey) throws MessagingException {
+        if (remoteFolder.getHighestModSeq() == modSeq) {
+            LogUtils.d(Logging.LOG_TAG, "no changes since modseq " + modSeq);
+            return;
+        }
+        final ImapFolder.ChangedSince changes = remoteFolder.fetchChangesSince(modSeq);
+        LogUtils.d(Logging.LOG_TAG, changes.mChanged.size() + " changes since modseq " + modSeq);
+
+        final HashMap<String, LocalMessageInfo> localMessageMap =
+                getLocalMessageMap(context, account, mailbox);
+        // Messages we don't have with UIDs below this one are outside our sync window; only
+        // their flags changed, and we don't want to start syncing them now.
+        long newUid = lastSyncKey.mUidNext;
+        if (newUid == 0) {
+            for (final String uid : localMessageMap.keySet()) {
+                newUid = Math.max(newUid, parseUid(uid) + 1);
+            }
+        }
+        final List<Flag> permanentFlags = Arrays.asList(remoteFolder.getPermanentFlags());
+        final boolean remoteSupportsSeen = permanentFlags.contains(Flag.SEEN);
+        final boolean remoteSupportsFlagged = permanentFlags.contains(Flag.FLAGGED);
+        final boolean remoteSupportsAnswered = permanentFlags.contains(Flag.ANSWERED);
 
-        // 14. Clean up and report results
-        remoteFolder.close(false);
+        final SyncWriteBatcher batcher = new SyncWriteBatcher(context);
+        final ArrayList<Message> unsyncedMessages = new ArrayList<Message>();
+        // The server reports changes in UID order; load the most recent messages first.
+        for (int i = changes.mChanged.size() - 1; i >= 0; i--) {
+            final Message remoteMessage = changes.mChanged.get(i);
+            final LocalMessageInfo localMessage = localMessageMap.get(remoteMessage.getUid());
+            if (remoteMessage.isSet(Flag.DELETED)) {
+                if (localMessage != null) {
+                    deleteLocalMessage(context, account, batcher, localMessage);
+                }
+            } else if (localMessage == null) {
+                if (parseUid(remoteMessage.getUid()) >= newUid) {
+                    unsyncedMessages.add(remoteMessage);
+                }
+            } else {
+                updateLocalFlags(batcher, localMessage, remoteMessage, remoteSupportsSeen,
+                        remoteSupportsFlagged, remoteSupportsAnswered);
+                if (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_UNLOADED ||
+                        localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_PARTIAL) {
+                    unsyncedMessages.add(remoteMessage);
+                }
+            }
+        }
+        if (changes.hasVanished()) {
+            for (final LocalMessageInfo info : localMessageMap.values()) {
+                if (changes.isVanished(info.mServerId)) {
+                    deleteLocalMessage(context, account, batcher, info);
+                }
+            }
+        }
+        checkWrites(batcher);
+
+        if (unsyncedMessages.size() > 0) {
+            downloadFlagAndEnvelope(context, account, mailbox, remoteFolder, unsyncedMessages,
+                    localMessageMap, null);
+            loadUnsyncedMessages(context, account, remoteFolder, unsyncedMessages, mailbox);
+        }
+    }
+
+    /**
+     * Fetch the given new messages, which an IDLE connection saw arrive, and nothing else.
+     *
+     * The sequence numbers are the ones the messages had on the IDLE connection. They are the
+     * same on this connection unless messages were expunged in between, in which case the IDLE
+     * connection also sees the expunge and asks for a full sync; messages we already have are
+     * skipped, so the worst case is that we fetch a few messages the full sync would have.
+     *
+     * @param account the account to sync
+     * @param mailbox the mailbox to sync
+     * @param firstSeq the message sequence number of the first new message
+     * @param lastSeq the message sequence number of the last new message
+     * @throws MessagingException
+     */
+    private static void synchronizeNewMessages(final Context context, final Account account,
+            final Store remoteStore, final Mailbox mailbox, final int firstSeq, int lastSeq)
+            throws MessagingException {
+        LogUtils.d(Logging.LOG_TAG, "synchronizeNewMessages " + account + " " + mailbox + " "
+                + firstSeq + ":" + lastSeq);
+        if (remoteStore == null) {
+            LogUtils.d(Logging.LOG_TAG, "account is apparently deleted");
+            return;
+        }
+        final Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
+        remoteFolder.open(OpenMode.READ_WRITE);
+        try {
+            final int remoteMessageCount = remoteFolder.getMessageCount();
+            mailbox.updateMessageCount(context, remoteMessageCount);
+            lastSeq = Math.min(lastSeq, remoteMessageCount);
+            if (firstSeq > lastSeq) {
+                return;
+            }
+            final Message[] remoteMessages = remoteFolder.getMessages(firstSeq, lastSeq, null);
+            if (remoteMessages.length == 0) {
+                return;
+            }
+
+            // Find any of these we already have, e.g. because another sync got them first
+            final String[] selectionArgs = new String[remoteMessages.length + 2];
+            final StringBuilder selection = new StringBuilder(MessageColumns.ACCOUNT_KEY + "=? AND "
+                    + MessageColumns.MAILBOX_KEY + "=? AND " + SyncColumns.SERVER_ID + " IN (");
+            selectionArgs[0] = String.valueOf(account.mId);
+            selectionArgs[1] = String.valueOf(mailbox.mId);
+            for (int i = 0; i < remoteMessages.length; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i + 2] = remoteMessages[i].getUid();
+            }
+            selection.append(')');
+            final HashMap<String, LocalMessageInfo> localMessageMap =
+                    new HashMap<String, LocalMessageInfo>();
+            final Cursor localUidCursor = context.getContentResolver().query(
+                    EmailContent.Message.CONTENT_URI, LocalMessageInfo.PROJECTION,
+                    selection.toString(), selectionArgs, null);
+            if (localUidCursor != null) {
+                try {
+                    while (localUidCursor.moveToNext()) {
+                        final LocalMessageInfo info = new LocalMessageInfo(localUidCursor);
+                        localMessageMap.put(info.mServerId, info);
+                    }
+                } finally {
+                    localUidCursor.close();
+                }
+            }
+
+            // Newest first, as in synchronizeMailboxGeneric
+            final ArrayList<Message> unsyncedMessages = new ArrayList<Message>();
+            for (int i = remoteMessages.length - 1; i >= 0; i--) {
+                final Message message = remoteMessages[i];
+                final LocalMessageInfo localMessage = localMessageMap.get(message.getUid());
+                if (localMessage == null ||
+                        (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_UNLOADED) ||
+                        (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_PARTIAL)) {
+                    unsyncedMessages.add(message);
+                }
+            }
+            if (unsyncedMessages.size() > 0) {
+                downloadFlagAndEnvelope(context, account, mailbox, remoteFolder, unsyncedMessages,
+                        localMessageMap, null);
+                loadUnsyncedMessages(context, account, remoteFolder, unsyncedMessages, mailbox);
+            }
+        } finally {
+            remoteFolder.close(false);
+        }
     }
 
     /**
@@ -783,9 +1262,11 @@ public class ImapService extends Service {
         if (!TextUtils.isEmpty(message.mProtocolSearchInfo)) {
             long accountKey = message.mAccountKey;
             String protocolSearchInfo = message.mProtocolSearchInfo;
-            if (accountKey == mLastSearchAccountKey &&
-                    protocolSearchInfo.equals(mLastSearchServerId)) {
-                return mLastSearchRemoteMailbox;
+            synchronized (sLastSearchLock) {
+                if (accountKey == mLastSearchAccountKey &&
+                        protocolSearchInfo.equals(mLastSearchServerId)) {
+                    return mLastSearchRemoteMailbox;
+                }
             }
             Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI,
                     Mailbox.CONTENT_PROJECTION, Mailbox.PATH_AND_ACCOUNT_SELECTION,
@@ -795,9 +1276,11 @@ public class ImapService extends Service {
                 if (c.moveToNext()) {
                     Mailbox mailbox = new Mailbox();
                     mailbox.restore(c);
-                    mLastSearchAccountKey = accountKey;
-                    mLastSearchServerId = protocolSearchInfo;
-                    mLastSearchRemoteMailbox = mailbox;
+                    synchronized (sLastSearchLock) {
+                        mLastSearchAccountKey = accountKey;
+                        mLastSearchServerId = protocolSearchInfo;
+                        mLastSearchRemoteMailbox = mailbox;
+                    }
                     return mailbox;
                 } else {
                     return null;
@@ -920,9 +1403,6 @@ public class ImapService extends Service {
                     if (upsyncs1 != null) {
                         upsyncs1.close();
                     }
-                    if (remoteStore != null) {
-                        remoteStore.closeConnections();
-                    }
                 }
             }
         } catch (MessagingException me) {
@@ -942,6 +1422,9 @@ public class ImapService extends Service {
     /**
      * Scan for messages that are in the Message_Updates table, look for differences that
      * we can deal with, and do the work.
+     *
+     * The changes are planned first and then sent a mailbox at a time, so that marking many
+     * messages read, or moving them, takes a few commands rather than a few per message.
      */
     private static void processPendingUpdatesSynchronous(Context context, Account account,
             Store remoteStore, String[] accountIdArgs) {
@@ -950,73 +1433,59 @@ public class ImapService extends Service {
                 EmailContent.Message.CONTENT_PROJECTION,
                 EmailContent.MessageColumns.ACCOUNT_KEY + "=?", accountIdArgs,
                 EmailContent.MessageColumns.MAILBOX_KEY);
-        long lastMessageId = -1;
+        final ImapUpsyncPlan plan = new ImapUpsyncPlan();
         try {
-            // Demand load mailbox (note order-by to reduce thrashing here)
-            Mailbox mailbox = null;
             // loop through messages marked as needing updates
             while (updates.moveToNext()) {
-                boolean changeMoveToTrash = false;
-                boolean changeRead = false;
-                boolean changeFlagged = false;
-                boolean changeMailbox = false;
-                boolean changeAnswered = false;
-
                 EmailContent.Message oldMessage =
                         EmailContent.getContent(context, updates, EmailContent.Message.class);
-                lastMessageId = oldMessage.mId;
                 EmailContent.Message newMessage =
                         EmailContent.Message.restoreMessageWithId(context, oldMessage.mId);
                 if (newMessage != null) {
-                    mailbox = Mailbox.restoreMailboxWithId(context, newMessage.mMailboxKey);
+                    final Mailbox mailbox =
+                            Mailbox.restoreMailboxWithId(context, newMessage.mMailboxKey);
                     if (mailbox == null) {
                         continue; // Mailbox removed. Move to the next message.
                     }
-                    if (oldMessage.mMailboxKey != newMessage.mMailboxKey) {
-                        if (mailbox.mType == Mailbox.TYPE_TRASH) {
-                            changeMoveToTrash = true;
-                        } else {
-                            changeMailbox = true;
-                        }
+                    if (planPendingUpdate(context, plan, mailbox, oldMessage, newMessage)) {
+                        // The update is deleted once its mailbox's changes have been sent
+                        continue;
                     }
-                    changeRead = oldMessage.mFlagRead != newMessage.mFlagRead;
-                    changeFlagged = oldMessage.mFlagFavorite != newMessage.mFlagFavorite;
-                    changeAnswered = (oldMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) !=
-                            (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO);
                 }
 
+                // Nothing to send to the server; just delete the update
+                Uri uri = ContentUris.withAppendedId(EmailContent.Message.UPDATED_CONTENT_URI,
+                        oldMessage.mId);
+                resolver.delete(uri, null, null);
+            }
+        } finally {
+            updates.close();
+        }
+
+        long lastMailboxId = -1;
+        try {
+            for (ImapUpsyncPlan.MailboxChanges changes : plan.getMailboxChanges()) {
+                lastMailboxId = changes.mMailbox.mId;
                 // Load the remote store if it will be needed
-                if (remoteStore == null &&
-                        (changeMoveToTrash || changeRead || changeFlagged || changeMailbox ||
-                                changeAnswered)) {
+                if (remoteStore == null) {
                     remoteStore = Store.getInstance(account, context);
                 }
+                processPendingChanges(context, remoteStore, changes);
 
-                // Dispatch here for specific change types
-                if (changeMoveToTrash) {
-                    // Move message to trash
-                    processPendingMoveToTrash(context, remoteStore, mailbox, oldMessage,
-                            newMessage);
-                } else if (changeRead || changeFlagged || changeMailbox || changeAnswered) {
-                    processPendingDataChange(context, remoteStore, mailbox, changeRead,
-                            changeFlagged, changeMailbox, changeAnswered, oldMessage, newMessage);
+                // Finally, delete the updates
+                for (long messageId : changes.mMessageIds) {
+                    Uri uri = ContentUris.withAppendedId(
+                            EmailContent.Message.UPDATED_CONTENT_URI, messageId);
+                    resolver.delete(uri, null, null);
                 }
-
-                // Finally, delete the update
-                Uri uri = ContentUris.withAppendedId(EmailContent.Message.UPDATED_CONTENT_URI,
-                        oldMessage.mId);
-                resolver.delete(uri, null, null);
             }
-
         } catch (MessagingException me) {
             // Presumably an error here is an account connection failure, so there is
             // no point in continuing through the rest of the pending updates.
             if (DebugUtils.DEBUG) {
-                LogUtils.d(Logging.LOG_TAG, "Unable to process pending update for id="
-                        + lastMessageId + ": " + me);
+                LogUtils.d(Logging.LOG_TAG, "Unable to process pending updates for mailbox id="
+                        + lastMailboxId + ": " + me);
             }
-        } finally {
-            updates.close();
         }
     }
 
@@ -1069,203 +1538,226 @@ public class ImapService extends Service {
     }
 
     /**
-     * Upsync changes to read, flagged, or mailbox
+     * Add the changes to read, flagged, answered, or mailbox of a message to the plan.
      *
-     * @param remoteStore the remote store for this mailbox
-     * @param mailbox the mailbox the message is stored in
-     * @param changeRead whether the message's read state has changed
-     * @param changeFlagged whether the message's flagged state has changed
-     * @param changeMailbox whether the message's mailbox has changed
+     * @param plan the changes to send to the server
+     * @param mailbox the mailbox the message is in now
      * @param oldMessage the message in it's pre-change state
      * @param newMessage the current version of the message
+     * @return whether there is anything to send to the server
      */
-    private static void processPendingDataChange(final Context context, Store remoteStore,
-            Mailbox mailbox, boolean changeRead, boolean changeFlagged, boolean changeMailbox,
-            boolean changeAnswered, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
-        // New mailbox is the mailbox this message WILL be in (same as the one it WAS in if it isn't
-        // being moved
-        Mailbox newMailbox = mailbox;
-        // Mailbox is the original remote mailbox (the one we're acting on)
-        mailbox = getRemoteMailboxForMessage(context, oldMessage);
+    private static boolean planPendingUpdate(final Context context, final ImapUpsyncPlan plan,
+            final Mailbox mailbox, final EmailContent.Message oldMessage,
+            final EmailContent.Message newMessage) {
+        boolean changeMoveToTrash = false;
+        boolean changeMailbox = false;
+        if (oldMessage.mMailboxKey != newMessage.mMailboxKey) {
+            if (mailbox.mType == Mailbox.TYPE_TRASH) {
+                changeMoveToTrash = true;
+            } else {
+                changeMailbox = true;
+            }
+        }
+        final boolean changeRead = oldMessage.mFlagRead != newMessage.mFlagRead;
+        final boolean changeFlagged = oldMessage.mFlagFavorite != newMessage.mFlagFavorite;
+        final boolean answered = (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0;
+        final boolean changeAnswered =
+                ((oldMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0) != answered;
+        if (!changeMoveToTrash && !changeMailbox && !changeRead && !changeFlagged
+                && !changeAnswered) {
+            return false;
+        }
 
         // 0. No remote update if the message is local-only
         if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX) || (mailbox == null)) {
-            return;
+                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
+            return false;
         }
 
-        // 1. No remote update for DRAFTS or OUTBOX
-        if (mailbox.mType == Mailbox.TYPE_DRAFTS || mailbox.mType == Mailbox.TYPE_OUTBOX) {
-            return;
+        // Remote mailbox is the one the message is in on the server (the one we're acting on)
+        final Mailbox remoteMailbox = getRemoteMailboxForMessage(context, oldMessage);
+        if (remoteMailbox == null) {
+            // can't find old mailbox, it may have been deleted.
+            return false;
         }
 
-        // 2. Open the remote store & folder
-        Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
-        }
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            return;
+        if (changeMoveToTrash) {
+            // We don't support delete-from-trash here
+            if (remoteMailbox.mType == Mailbox.TYPE_TRASH) {
+                return false;
+            }
+            plan.addMove(remoteMailbox, newMessage.mId, oldMessage.mServerId, null, mailbox,
+                    true);
+            return true;
         }
 
-        // 3. Finally, apply the changes to the message
-        Message remoteMessage = remoteFolder.getMessage(newMessage.mServerId);
-        if (remoteMessage == null) {
-            return;
+        // 1. No remote update for DRAFTS or OUTBOX
+        if (remoteMailbox.mType == Mailbox.TYPE_DRAFTS
+                || remoteMailbox.mType == Mailbox.TYPE_OUTBOX) {
+            return false;
         }
+
         if (DebugUtils.DEBUG) {
             LogUtils.d(Logging.LOG_TAG,
                     "Update for msg id=" + newMessage.mId
                     + " read=" + newMessage.mFlagRead
                     + " flagged=" + newMessage.mFlagFavorite
-                    + " answered="
-                    + ((newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0)
+                    + " answered=" + answered
                     + " new mailbox=" + newMessage.mMailboxKey);
         }
-        Message[] messages = new Message[] { remoteMessage };
+        final String uid = newMessage.mServerId;
         if (changeRead) {
-            remoteFolder.setFlags(messages, FLAG_LIST_SEEN, newMessage.mFlagRead);
+            plan.addFlagChange(remoteMailbox, newMessage.mId, uid, Flag.SEEN,
+                    newMessage.mFlagRead);
         }
         if (changeFlagged) {
-            remoteFolder.setFlags(messages, FLAG_LIST_FLAGGED, newMessage.mFlagFavorite);
+            plan.addFlagChange(remoteMailbox, newMessage.mId, uid, Flag.FLAGGED,
+                    newMessage.mFlagFavorite);
         }
         if (changeAnswered) {
-            remoteFolder.setFlags(messages, FLAG_LIST_ANSWERED,
-                    (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0);
+            plan.addFlagChange(remoteMailbox, newMessage.mId, uid, Flag.ANSWERED, answered);
         }
         if (changeMailbox) {
-            Folder toFolder = remoteStore.getFolder(newMailbox.mServerId);
-            if (!remoteFolder.exists()) {
-                return;
-            }
             // We may need the message id to search for the message in the destination folder
-            remoteMessage.setMessageId(newMessage.mMessageId);
-            // Copy the message to its new folder
-            remoteFolder.copyMessages(messages, toFolder, new MessageUpdateCallbacks() {
-                @Override
-                public void onMessageUidChange(Message message, String newUid) {
-                    ContentValues cv = new ContentValues();
-                    cv.put(MessageColumns.SERVER_ID, newUid);
-                    // We only have one message, so, any updates _must_ be for it. Otherwise,
-                    // we'd have to cycle through to find the one with the same server ID.
-                    context.getContentResolver().update(ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, newMessage.mId), cv, null, null);
-                }
-
-                @Override
-                public void onMessageNotFound(Message message) {
-                }
-            });
-            // Delete the message from the remote source folder
-            remoteMessage.setFlag(Flag.DELETED, true);
-            remoteFolder.expunge();
+            plan.addMove(remoteMailbox, newMessage.mId, uid, newMessage.mMessageId, mailbox,
+                    false);
         }
-        remoteFolder.close(false);
+        return true;
     }
 
     /**
-     * Process a pending trash message command.
+     * Send the planned changes to one remote mailbox: a UID STORE for each flag set or cleared,
+     * and a UID MOVE for each destination mailbox.  Servers without MOVE get a UID COPY, STORE
+     * and UID EXPUNGE instead, which only expunges the moved messages.  The mailbox is selected
+     * once for all of them.
      *
      * @param remoteStore the remote store we're working in
-     * @param newMailbox The local trash mailbox
-     * @param oldMessage The message copy that was saved in the updates shadow table
-     * @param newMessage The message that was moved to the mailbox
+     * @param changes the changes to the mailbox
      */
-    private static void processPendingMoveToTrash(final Context context, Store remoteStore,
-            Mailbox newMailbox, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
-
-        // 0. No remote move if the message is local-only
-        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
-            return;
-        }
-
-        // 1. Escape early if we can't find the local mailbox
-        // TODO smaller projection here
-        Mailbox oldMailbox = getRemoteMailboxForMessage(context, oldMessage);
-        if (oldMailbox == null) {
-            // can't find old mailbox, it may have been deleted.  just return.
-            return;
-        }
-        // 2. We don't support delete-from-trash here
-        if (oldMailbox.mType == Mailbox.TYPE_TRASH) {
+    private static void processPendingChanges(final Context context, final Store remoteStore,
+            final ImapUpsyncPlan.MailboxChanges changes) throws MessagingException {
+        // 1. Open the remote folder
+        final Folder remoteFolder = remoteStore.getFolder(changes.mMailbox.mServerId);
+        if (!remoteFolder.exists()) {
             return;
         }
+        remoteFolder.open(OpenMode.READ_WRITE);
+        try {
+            if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
+                return;
+            }
 
-        // The rest of this method handles server-side deletion
+            // 2. Set and clear flags
+            for (ImapUpsyncPlan.FlagChange change : changes.mFlagChanges) {
+                remoteFolder.setFlags(createMessages(remoteFolder, change.mUids),
+                        new Flag[] { change.mFlag }, change.mValue);
+            }
 
-        // 4.  Find the remote mailbox (that we deleted from), and open it
-        Folder remoteFolder = remoteStore.getFolder(oldMailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
-        }
+            // 3. Move the messages to their new mailboxes
+            final List<String> movedUids = changes.getMovedUids();
+            for (ImapUpsyncPlan.Move move : changes.mMoves.values()) {
+                if (moveMessages(context, remoteStore, remoteFolder, move)) {
+                    movedUids.removeAll(move.mMessageIds.keySet());
+                }
+            }
 
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
+            // 4. Delete the messages that weren't moved away from the remote source folder
+            if (!movedUids.isEmpty()) {
+                final Message[] messages = createMessages(remoteFolder, movedUids);
+                remoteFolder.setFlags(messages, new Flag[] { Flag.DELETED }, true);
+                expungeMessages(remoteFolder, messages);
+            }
+        } finally {
             remoteFolder.close(false);
-            return;
         }
+    }
 
-        // 5. Find the remote original message
-        Message remoteMessage = remoteFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
-            remoteFolder.close(false);
-            return;
+    /**
+     * Move a group of messages to the mailbox they were moved to, and update the local copies
+     * with their UIDs there.
+     *
+     * @return whether the messages are gone from the source folder; if not, they have at most
+     *     been copied, and the caller still has to delete them
+     */
+    private static boolean moveMessages(final Context context, final Store remoteStore,
+            final Folder remoteFolder, final ImapUpsyncPlan.Move move)
+            throws MessagingException {
+        final Folder toFolder = remoteStore.getFolder(move.mDestination.mServerId);
+        if (move.mToTrash && !toFolder.exists()) {
+            // If the remote trash folder doesn't exist we try to create it.
+            toFolder.create(FolderType.HOLDS_MESSAGES);
+            if (!toFolder.exists()) {
+                return false;
+            }
         }
-
-        // 6. Find the remote trash folder, and create it if not found
-        Folder remoteTrashFolder = remoteStore.getFolder(newMailbox.mServerId);
-        if (!remoteTrashFolder.exists()) {
-            /*
-             * If the remote trash folder doesn't exist we try to create it.
-             */
-            remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
+        final Message[] messages = createMessages(remoteFolder, move.mMessageIds.keySet());
+        for (Message message : messages) {
+            final String messageIdHeader = move.mMessageIdHeaders.get(message.getUid());
+            if (messageIdHeader != null) {
+                message.setMessageId(messageIdHeader);
+            }
         }
-
-        // 7. Try to copy the message into the remote trash folder
-        // Note, this entire section will be skipped for POP3 because there's no remote trash
-        if (remoteTrashFolder.exists()) {
-            /*
-             * Because remoteTrashFolder may be new, we need to explicitly open it
-             */
-            remoteTrashFolder.open(OpenMode.READ_WRITE);
-            if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-                remoteFolder.close(false);
-                remoteTrashFolder.close(false);
-                return;
+        final MessageUpdateCallbacks callbacks = new MessageUpdateCallbacks() {
+            @Override
+            public void onMessageUidChange(Message message, String newUid) {
+                final Long messageId = move.mMessageIds.get(message.getUid());
+                if (messageId == null) {
+                    return;
+                }
+                // Some stores have to change the UID when copying
+                ContentValues cv = new ContentValues();
+                cv.put(MessageColumns.SERVER_ID, newUid);
+                context.getContentResolver().update(ContentUris.withAppendedId(
+                        EmailContent.Message.CONTENT_URI, messageId), cv, null, null);
             }
 
-            remoteFolder.copyMessages(new Message[] { remoteMessage }, remoteTrashFolder,
-                    new Folder.MessageUpdateCallbacks() {
-                @Override
-                public void onMessageUidChange(Message message, String newUid) {
-                    // update the UID in the local trash folder, because some stores will
-                    // have to change it when copying to remoteTrashFolder
-                    ContentValues cv = new ContentValues();
-                    cv.put(MessageColumns.SERVER_ID, newUid);
-                    context.getContentResolver().update(newMessage.getUri(), cv, null, null);
+            /**
+             * This will be called if the deleted message doesn't exist and can't be
+             * deleted (e.g. it was already deleted from the server.)  In this case,
+             * attempt to delete the local copy as well.
+             */
+            @Override
+            public void onMessageNotFound(Message message) {
+                final Long messageId = move.mMessageIds.get(message.getUid());
+                if (move.mToTrash && messageId != null) {
+                    context.getContentResolver().delete(ContentUris.withAppendedId(
+                            EmailContent.Message.CONTENT_URI, messageId), null, null);
                 }
+            }
+        };
+        if (remoteFolder instanceof ImapFolder) {
+            ((ImapFolder) remoteFolder).moveMessages(messages, toFolder, callbacks);
+            return true;
+        }
+        remoteFolder.copyMessages(messages, toFolder, callbacks);
+        return false;
+    }
 
-                /**
-                 * This will be called if the deleted message doesn't exist and can't be
-                 * deleted (e.g. it was already deleted from the server.)  In this case,
-                 * attempt to delete the local copy as well.
-                 */
-                @Override
-                public void onMessageNotFound(Message message) {
-                    context.getContentResolver().delete(newMessage.getUri(), null, null);
-                }
-            });
-            remoteTrashFolder.close(false);
+    /**
+     * Expunge messages marked deleted.  IMAP folders only expunge the given messages if the
+     * server supports it, so that other messages marked deleted are left alone.
+     */
+    private static void expungeMessages(final Folder folder, final Message[] messages)
+            throws MessagingException {
+        if (folder instanceof ImapFolder) {
+            ((ImapFolder) folder).expungeMessages(messages);
+        } else {
+            folder.expunge();
         }
+    }
 
-        // 8. Delete the message from the remote source folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteFolder.expunge();
-        remoteFolder.close(false);
+    /**
+     * @return messages of the folder with the given UIDs, to pass to commands; they aren't
+     *     fetched, and needn't exist on the server
+     */
+    private static Message[] createMessages(final Folder folder, final Collection<String> uids)
+            throws MessagingException {
+        final Message[] messages = new Message[uids.size()];
+        int i = 0;
+        for (String uid : uids) {
+            messages[i++] = folder.createMessage(uid);
+        }
+        return messages;
     }
 
     /**
@@ -1291,22 +1783,23 @@ public class ImapService extends Service {
         }
 
         remoteTrashFolder.open(OpenMode.READ_WRITE);
-        if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-            remoteTrashFolder.close(false);
-            return;
-        }
+        try {
+            if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
+                return;
+            }
 
-        // 3. Find the remote original message
-        Message remoteMessage = remoteTrashFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
+            // 3. Find the remote original message
+            Message remoteMessage = remoteTrashFolder.getMessage(oldMessage.mServerId);
+            if (remoteMessage == null) {
+                return;
+            }
+
+            // 4. Delete the message from the remote trash folder
+            remoteMessage.setFlag(Flag.DELETED, true);
+            expungeMessages(remoteTrashFolder, new Message[] { remoteMessage });
+        } finally {
             remoteTrashFolder.close(false);
-            return;
         }
-
-        // 4. Delete the message from the remote trash folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteTrashFolder.expunge();
-        remoteTrashFolder.close(false);
     }
 
     /**
@@ -1323,10 +1816,6 @@ public class ImapService extends Service {
     private static boolean processPendingAppend(Context context, Store remoteStore, Mailbox mailbox,
             EmailContent.Message message, boolean manualSync)
             throws MessagingException {
-        boolean updateInternalDate = false;
-        boolean updateMessage = false;
-        boolean deleteMessage = false;
-
         // 1. Find the remote folder that we're appending to and create and/or open it
         Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
         if (!remoteFolder.exists()) {
@@ -1336,9 +1825,26 @@ public class ImapService extends Service {
             }
         }
         remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            return false;
+        try {
+            if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
+                return false;
+            }
+            processPendingAppend(context, remoteFolder, message, manualSync);
+            return true;
+        } finally {
+            remoteFolder.close(false);
         }
+    }
+
+    /**
+     * The rest of {@link #processPendingAppend(Context, Store, Mailbox, EmailContent.Message,
+     * boolean)}, once the remote folder is open.
+     */
+    private static void processPendingAppend(Context context, Folder remoteFolder,
+            EmailContent.Message message, boolean manualSync) throws MessagingException {
+        boolean updateInternalDate = false;
+        boolean updateMessage = false;
+        boolean deleteMessage = false;
 
         // 2. If possible, load a remote message with the matching UID
         Message remoteMessage = null;
@@ -1436,8 +1942,6 @@ public class ImapService extends Service {
                 resolver.update(uri, cv, null, null);
             }
         }
-
-        return true;
     }
 
     /**
@@ -1453,6 +1957,39 @@ public class ImapService extends Service {
         }
     }
 
+    /**
+     * Save a message found by a search into the search results mailbox.
+     */
+    private static void saveSearchResult(final Account account, final Mailbox mailbox,
+            final long destMailboxId, final Message message, final SyncWriteBatcher batcher) {
+        try {
+            EmailContent.Message localMessage = new EmailContent.Message();
+
+            // Copy the fields that are available into the message
+            LegacyConversions.updateMessageFields(localMessage,
+                    message, account.mId, mailbox.mId);
+            // Save off the mailbox that this message *really* belongs in.
+            // We need this information if we need to do more lookups
+            // (like loading attachments) for this message. See b/11294681
+            localMessage.mMainMailboxKey = localMessage.mMailboxKey;
+            localMessage.mMailboxKey = destMailboxId;
+            // We load 50k or so; maybe it's complete, maybe not...
+            int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
+            // We store the serverId of the source mailbox into protocolSearchInfo
+            // This will be used by loadMessageForView, etc. to use the proper remote
+            // folder
+            localMessage.mProtocolSearchInfo = mailbox.mServerId;
+            // Commit the message to the local store
+            batcher.save(localMessage);
+        } catch (MessagingException me) {
+            LogUtils.e(Logging.LOG_TAG, me,
+                    "Error while copying downloaded message.");
+        } catch (Exception e) {
+            LogUtils.e(Logging.LOG_TAG, e,
+                    "Error while storing downloaded message.");
+        }
+    }
+
     private static int searchMailboxImpl(final Context context, final long accountId,
             final SearchParams searchParams, final long destMailboxId) throws MessagingException {
         final Account account = Account.restoreAccountWithId(context, accountId);
@@ -1463,17 +2000,30 @@ public class ImapService extends Service {
                     + "but account or mailbox information was missing", searchParams);
             return 0;
         }
+        return searchMailbox(context, Store.getInstance(account, context), account, mailbox,
+                searchParams, destMailbox);
+    }
+
+    /**
+     * Search {@code mailbox} on the server, and put the results in {@code destMailbox}.
+     * @return the number of messages that matched
+     */
+    @VisibleForTesting
+    public static int searchMailbox(final Context context, final Store remoteStore,
+            final Account account, final Mailbox mailbox, final SearchParams searchParams,
+            final Mailbox destMailbox) throws MessagingException {
+        final long accountId = account.mId;
+        final long destMailboxId = destMailbox.mId;
 
         // Tell UI that we're loading messages
         final ContentValues statusValues = new ContentValues(2);
         statusValues.put(Mailbox.UI_SYNC_STATUS, UIProvider.SyncStatus.LIVE_QUERY);
         destMailbox.update(context, statusValues);
 
-        Store remoteStore = null;
+        Folder remoteFolder = null;
         int numSearchResults = 0;
         try {
-            remoteStore = Store.getInstance(account, context);
-            final Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
+            remoteFolder = remoteStore.getFolder(mailbox.mServerId);
             remoteFolder.open(OpenMode.READ_WRITE);
 
             SortableMessage[] sortableMessages = new SortableMessage[0];
@@ -1526,54 +2076,30 @@ public class ImapService extends Service {
 
             Message[] messageArray = messageList.toArray(new Message[messageList.size()]);
 
-            // TODO: We are purposely processing messages with a MessageRetrievalListener here,
-            // rather than just walking the messageArray after the operation completes. This is so
-            // that we can immediately update the database so the user can see something useful
-            // happening, even if the message body has not yet been fetched.
-            // There are some issues with this approach:
-            // 1. It means that we have a single thread doing both network and database operations,
-            // and either can block the other. The database updates could slow down the network
-            // reads, keeping our network connection open longer than is really necessary.
-            // 2. We still load all of this data into messageArray, even though it's not used.
-            // It would be nicer if we had one thread doing the network operation, and a separate
-            // thread consuming that data and performing the appropriate database work, then
-            // discarding the data as soon as it is no longer needed. This would reduce our memory
-            // footprint and potentially allow our network operation to complete faster.
-            remoteFolder.fetch(messageArray, fp, new MessageRetrievalListener() {
+            // We process messages as they arrive, rather than walking messageArray after the
+            // fetch completes, so that the user sees something useful even if the message body
+            // has not yet been fetched. The database writes happen on the pipeline's own thread,
+            // so they don't hold up the network reads (and vice versa).
+            // TODO: We still load all of this data into messageArray, as it's needed to fetch
+            // the structure and body below.
+            final SyncWriteBatcher batcher = new SyncWriteBatcher(context);
+            final MessageWritePipeline pipeline = new MessageWritePipeline("ImapSearchWriter",
+                    new MessageWritePipeline.BatchWriter() {
                 @Override
-                public void messageRetrieved(Message message) {
-                    try {
-                        EmailContent.Message localMessage = new EmailContent.Message();
-
-                        // Copy the fields that are available into the message
-                        LegacyConversions.updateMessageFields(localMessage,
-                                message, account.mId, mailbox.mId);
-                        // Save off the mailbox that this message *really* belongs in.
-                        // We need this information if we need to do more lookups
-                        // (like loading attachments) for this message. See b/11294681
-                        localMessage.mMainMailboxKey = localMessage.mMailboxKey;
-                        localMessage.mMailboxKey = destMailboxId;
-                        // We load 50k or so; maybe it's complete, maybe not...
-                        int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
-                        // We store the serverId of the source mailbox into protocolSearchInfo
-                        // This will be used by loadMessageForView, etc. to use the proper remote
-                        // folder
-                        localMessage.mProtocolSearchInfo = mailbox.mServerId;
-                        // Commit the message to the local store
-                        Utilities.saveOrUpdate(localMessage, context);
-                    } catch (MessagingException me) {
-                        LogUtils.e(Logging.LOG_TAG, me,
-                                "Error while copying downloaded message.");
-                    } catch (Exception e) {
-                        LogUtils.e(Logging.LOG_TAG, e,
-                                "Error while storing downloaded message.");
+                public void writeMessages(ArrayList<Message> messages) {
+                    for (Message message : messages) {
+                        saveSearchResult(account, mailbox, destMailboxId, message, batcher);
                     }
-                }
-
-                @Override
-                public void loadAttachmentProgress(int progress) {
+                    batcher.flush();
                 }
             });
+            pipeline.start();
+            try {
+                remoteFolder.fetch(messageArray, fp, pipeline);
+            } finally {
+                pipeline.finish();
+            }
+            checkWrites(batcher);
 
             // Now load the structure for all of the messages:
             fp.clear();
@@ -1603,8 +2129,8 @@ public class ImapService extends Service {
             }
 
         } finally {
-            if (remoteStore != null) {
-                remoteStore.closeConnections();
+            if (remoteFolder != null) {
+                remoteFolder.close(false);
             }
             // Tell UI that we're done loading messages
             statusValues.put(Mailbox.SYNC_TIME, System.currentTimeMillis());
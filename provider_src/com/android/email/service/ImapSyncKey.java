@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.text.TextUtils;
+
+import com.android.email.mail.store.ImapFolder;
+import com.android.emailcommon.provider.Mailbox;
+
+/**
+ * The state of an IMAP mailbox as of its last sync, so that the next sync can ask the server for
+ * only what changed since.  It is kept in the mailbox's {@link Mailbox#mSyncKey}, which IMAP
+ * doesn't otherwise use, as "uidvalidity:highestmodseq:uidnext:exists".
+ *
+ * A missing or malformed sync key, such as the "0" that {@link Mailbox#resyncMailbox} stores,
+ * reads as all zeroes, which never matches a server's state, so the next sync is a full one.
+ */
+class ImapSyncKey {
+    private static final String SEPARATOR = ":";
+
+    /** The UIDVALIDITY of the mailbox; its UIDs are only meaningful while this is unchanged. */
+    final long mUidValidity;
+    /** The HIGHESTMODSEQ (RFC 7162) of the mailbox, or 0 if the server doesn't keep one. */
+    final long mHighestModSeq;
+    /** The UIDNEXT of the mailbox; messages with this UID or above are new since. */
+    final long mUidNext;
+    /** The number of messages in the mailbox. */
+    final int mMessageCount;
+
+    ImapSyncKey(final long uidValidity, final long highestModSeq, final long uidNext,
+            final int messageCount) {
+        mUidValidity = uidValidity;
+        mHighestModSeq = highestModSeq;
+        mUidNext = uidNext;
+        mMessageCount = messageCount;
+    }
+
+    /**
+     * @return the state of a folder, as the server reported it when the folder was opened
+     */
+    static ImapSyncKey fromFolder(final ImapFolder folder) {
+        return new ImapSyncKey(folder.getUidValidity(),
+                folder.supportsModSeq() ? folder.getHighestModSeq() : 0, folder.getUidNext(),
+                folder.getMessageCount());
+    }
+
+    static ImapSyncKey parse(final String syncKey) {
+        if (TextUtils.isEmpty(syncKey)) {
+            return new ImapSyncKey(0, 0, 0, 0);
+        }
+        final String[] values = syncKey.split(SEPARATOR);
+        return new ImapSyncKey(getValue(values, 0), getValue(values, 1), getValue(values, 2),
+                (int) Math.min(Integer.MAX_VALUE, getValue(values, 3)));
+    }
+
+    private static long getValue(final String[] values, final int index) {
+        if (index >= values.length) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(values[index]));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the mod-sequence to ask the server for changes since, or 0 if we can't, because
+     *     the server doesn't keep mod-sequences or the mailbox's UIDs are no longer valid
+     */
+    long getModSeqSince(final long uidValidity) {
+        return isUidValidityCurrent(uidValidity) ? mHighestModSeq : 0;
+    }
+
+    /**
+     * @return whether the UIDs we have are still the mailbox's UIDs
+     */
+    boolean isUidValidityCurrent(final long uidValidity) {
+        return uidValidity != 0 && uidValidity == mUidValidity;
+    }
+
+    /**
+     * @return whether the mailbox's UIDs have been reassigned since the last sync, so the
+     *     messages we have must be thrown away
+     */
+    boolean isUidValidityChanged(final long uidValidity) {
+        return uidValidity != 0 && mUidValidity != 0 && uidValidity != mUidValidity;
+    }
+
+    @Override
+    public String toString() {
+        return mUidValidity + SEPARATOR + mHighestModSeq + SEPARATOR + mUidNext + SEPARATOR
+                + mMessageCount;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.mail.MessagingException;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules IMAP mailbox syncs.
+ *
+ * Syncs for a single account run one at a time, in the order they were requested, because they
+ * share the account's {@link com.android.email.mail.Store} and its connection pool. Syncs for
+ * different accounts run in parallel on a small, bounded pool of worker threads, so one slow
+ * account no longer holds up every other account on the device.
+ *
+ * Syncs requested by the user (uiRefresh) are run ahead of any background syncs that are still
+ * waiting. A request for a mailbox that is already waiting in the queue is merged with the
+ * waiting request rather than queued a second time. A partial sync (such as fetching just the
+ * messages an IDLE connection saw arrive) is covered by a full sync of the same mailbox, but not
+ * by another partial sync, which may be for different messages.
+ */
+public class ImapSyncScheduler {
+    private static final String TAG = "ImapSyncScheduler";
+
+    /** Maximum number of accounts that may sync at the same time. */
+    private static final int DEFAULT_MAX_WORKERS = 3;
+    /** Maximum number of background syncs that may be waiting to run. */
+    private static final int DEFAULT_MAX_QUEUED = 32;
+    /** How long an idle worker thread is kept around before it exits. */
+    private static final long WORKER_KEEP_ALIVE_MILLIS = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    static final int PRIORITY_FOREGROUND = 0;
+    static final int PRIORITY_BACKGROUND = 1;
+
+    /**
+     * The work done for a single sync request; this is run on one of the worker threads.
+     */
+    public interface SyncOperation {
+        /**
+         * @return The status code for whether this operation succeeded.
+         * @throws MessagingException
+         */
+        int run() throws MessagingException;
+    }
+
+    /**
+     * A single sync request. Any number of callers may be waiting on the same request if their
+     * requests were merged while it was queued.
+     */
+    @VisibleForTesting
+    static class SyncRequest implements Runnable {
+        final long mAccountId;
+        final long mMailboxId;
+        final boolean mLoadMore;
+        final long mSequence;
+        int mPriority;
+        boolean mPartial;
+        SyncOperation mOperation;
+
+        // Status of the request; guarded by the request itself.
+        private boolean mDone;
+        private int mResult;
+        private MessagingException mException;
+        private RuntimeException mRuntimeException;
+
+        // Owned by the scheduler; guarded by the scheduler.
+        private ImapSyncScheduler mScheduler;
+        int mWaiters;
+
+        SyncRequest(final long accountId, final long mailboxId, final boolean loadMore,
+                final boolean partial, final int priority, final long sequence,
+                final SyncOperation operation) {
+            mAccountId = accountId;
+            mMailboxId = mailboxId;
+            mLoadMore = loadMore;
+            mPartial = partial;
+            mPriority = priority;
+            mSequence = sequence;
+            mOperation = operation;
+        }
+
+        /**
+         * @return whether a request with these parameters can be merged into this one
+         */
+        boolean isSameSync(final long accountId, final long mailboxId, final boolean loadMore,
+                final boolean partial) {
+            return mAccountId == accountId && mMailboxId == mailboxId && mLoadMore == loadMore
+                    && !(mPartial && partial);
+        }
+
+        @Override
+        public void run() {
+            int result = EmailServiceStatus.SUCCESS;
+            MessagingException exception = null;
+            RuntimeException runtimeException = null;
+            try {
+                result = mOperation.run();
+            } catch (final MessagingException e) {
+                exception = e;
+            } catch (final RuntimeException e) {
+                runtimeException = e;
+            } finally {
+                mScheduler.onRequestFinished(this);
+            }
+            complete(result, exception, runtimeException);
+        }
+
+        synchronized void complete(final int result, final MessagingException exception,
+                final RuntimeException runtimeException) {
+            mResult = result;
+            mException = exception;
+            mRuntimeException = runtimeException;
+            mDone = true;
+            notifyAll();
+        }
+
+        synchronized int await() throws MessagingException, InterruptedException {
+            while (!mDone) {
+                wait();
+            }
+            if (mException != null) {
+                throw mException;
+            }
+            if (mRuntimeException != null) {
+                throw mRuntimeException;
+            }
+            return mResult;
+        }
+    }
+
+    /**
+     * Requests are ordered first by priority, then by the order in which they were made.
+     */
+    private static class SyncComparator implements Comparator<SyncRequest> {
+        @Override
+        public int compare(final SyncRequest req1, final SyncRequest req2) {
+            if (req1.mPriority != req2.mPriority) {
+                return (req1.mPriority < req2.mPriority) ? -1 : 1;
+            }
+            if (req1.mSequence == req2.mSequence) {
+                return 0;
+            }
+            return (req1.mSequence < req2.mSequence) ? -1 : 1;
+        }
+    }
+
+    private static ImapSyncScheduler sInstance;
+
+    private final int mMaxWorkers;
+    private final int mMaxQueued;
+    private final ThreadPoolExecutor mExecutor;
+    private final SyncComparator mComparator = new SyncComparator();
+
+    // Requests waiting to run, kept sorted with mComparator; guarded by this.
+    private final ArrayList<SyncRequest> mQueue = new ArrayList<SyncRequest>();
+    // Accounts that currently have a sync running; guarded by this.
+    private final HashSet<Long> mActiveAccounts = new HashSet<Long>();
+    private long mNextSequence;
+
+    // Statistics, for dump().
+    private int mCompletedCount;
+    private int mMergedCount;
+    private int mRejectedCount;
+
+    public static synchronized ImapSyncScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImapSyncScheduler(DEFAULT_MAX_WORKERS, DEFAULT_MAX_QUEUED);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ImapSyncScheduler(final int maxWorkers, final int maxQueued) {
+        mMaxWorkers = maxWorkers;
+        mMaxQueued = maxQueued;
+        mExecutor = new ThreadPoolExecutor(maxWorkers, maxWorkers, WORKER_KEEP_ALIVE_MILLIS,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(r, "ImapSync #" + mCount.getAndIncrement());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a sync of the given mailbox and wait for it to finish. The sync itself is run on one of
+     * the scheduler's worker threads once no other sync for the same account is running.
+     *
+     * @param accountId the account being synced
+     * @param mailboxId the mailbox being synced
+     * @param loadMore whether we should be loading more older messages
+     * @param partial whether the operation only does part of a full sync of the mailbox
+     * @param uiRefresh whether this request is in response to a user action
+     * @param operation the work to do
+     * @return The status code returned by the operation
+     * @throws MessagingException if the operation failed, or the sync could not be queued
+     */
+    public int runSync(final long accountId, final long mailboxId, final boolean loadMore,
+            final boolean partial, final boolean uiRefresh, final SyncOperation operation)
+            throws MessagingException {
+        final SyncRequest request = enqueue(accountId, mailboxId, loadMore, partial,
+                uiRefresh ? PRIORITY_FOREGROUND : PRIORITY_BACKGROUND, operation);
+        try {
+            return request.await();
+        } catch (final InterruptedException e) {
+            abandon(request);
+            Thread.currentThread().interrupt();
+            throw new MessagingException(MessagingException.IOERROR, e.toString());
+        }
+    }
+
+    /**
+     * Add a request to the queue, or join a matching request that is already waiting.
+     */
+    @VisibleForTesting
+    synchronized SyncRequest enqueue(final long accountId, final long mailboxId,
+            final boolean loadMore, final boolean partial, final int priority,
+            final SyncOperation operation) throws MessagingException {
+        SyncRequest request = null;
+        for (final SyncRequest queued : mQueue) {
+            if (queued.isSameSync(accountId, mailboxId, loadMore, partial)) {
+                request = queued;
+                break;
+            }
+        }
+        if (request != null) {
+            mMergedCount++;
+            request.mWaiters++;
+            if (request.mPartial && !partial) {
+                // The full sync does everything the partial one would have.
+                request.mPartial = false;
+                request.mOperation = operation;
+            } else if (priority < request.mPriority && request.mPartial == partial) {
+                // A user is waiting on this sync now; it runs with their latest operation.
+                request.mOperation = operation;
+            }
+            if (priority < request.mPriority) {
+                request.mPriority = priority;
+                Collections.sort(mQueue, mComparator);
+            }
+        } else {
+            if (priority != PRIORITY_FOREGROUND && mQueue.size() >= mMaxQueued) {
+                mRejectedCount++;
+                LogUtils.w(TAG, "Sync queue full, rejecting sync of mailbox %d", mailboxId);
+                throw new MessagingException(MessagingException.IOERROR, "Sync queue full");
+            }
+            request = new SyncRequest(accountId, mailboxId, loadMore, partial, priority,
+                    mNextSequence++, operation);
+            request.mScheduler = this;
+            request.mWaiters = 1;
+            int index = Collections.binarySearch(mQueue, request, mComparator);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            mQueue.add(index, request);
+        }
+        dispatchLocked();
+        return request;
+    }
+
+    /**
+     * Give up on a request that the caller is no longer waiting for. The request is dropped if it
+     * has not started yet and nobody else is waiting on it.
+     */
+    private synchronized void abandon(final SyncRequest request) {
+        request.mWaiters--;
+        if (request.mWaiters <= 0 && mQueue.remove(request)) {
+            LogUtils.d(TAG, "Dropping abandoned sync of mailbox %d", request.mMailboxId);
+        }
+    }
+
+    /**
+     * Start as many queued requests as we have workers for, skipping requests whose account is
+     * already syncing. Must be called with the lock held.
+     */
+    private void dispatchLocked() {
+        final Iterator<SyncRequest> it = mQueue.iterator();
+        while (mActiveAccounts.size() < mMaxWorkers && it.hasNext()) {
+            final SyncRequest request = it.next();
+            if (mActiveAccounts.contains(request.mAccountId)) {
+                continue;
+            }
+            it.remove();
+            mActiveAccounts.add(request.mAccountId);
+            mExecutor.execute(request);
+        }
+    }
+
+    private synchronized void onRequestFinished(final SyncRequest request) {
+        mActiveAccounts.remove(request.mAccountId);
+        mCompletedCount++;
+        dispatchLocked();
+    }
+
+    /**
+     * @return the number of syncs waiting to run
+     */
+    public synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return the number of syncs that are currently running
+     */
+    public synchronized int getActiveCount() {
+        return mActiveAccounts.size();
+    }
+
+    public synchronized void dump(final PrintWriter pw) {
+        pw.println("ImapSyncScheduler");
+        pw.println("  Active: " + mActiveAccounts.size() + "/" + mMaxWorkers
+                + ", Queued: " + mQueue.size() + "/" + mMaxQueued);
+        pw.println("  Completed: " + mCompletedCount + ", Merged: " + mMergedCount
+                + ", Rejected: " + mRejectedCount);
+        for (final SyncRequest req : mQueue) {
+            pw.println("    Account: " + req.mAccountId + ", Mailbox: " + req.mMailboxId
+                    + ", Priority: " + req.mPriority + (req.mLoadMore ? " [load more]" : "")
+                    + (req.mPartial ? " [partial]" : ""));
+        }
+    }
+}
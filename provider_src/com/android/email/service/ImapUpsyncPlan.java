@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import com.android.emailcommon.mail.Flag;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The pending flag changes and moves of an account, grouped so that they can be sent to the
+ * server as a few commands per mailbox rather than a few per message.
+ *
+ * Changes are grouped by the remote mailbox the messages are in, so that each mailbox is only
+ * selected once.  Within a mailbox, the messages that have the same flag set or cleared make up
+ * one group, as do the messages moved to the same mailbox; each group becomes a single UID STORE
+ * or UID MOVE, whose UID set the store compresses into ranges.
+ */
+class ImapUpsyncPlan {
+    /**
+     * A flag to set or clear on a group of messages.
+     */
+    static class FlagChange {
+        final Flag mFlag;
+        final boolean mValue;
+        final ArrayList<String> mUids = new ArrayList<String>();
+
+        FlagChange(final Flag flag, final boolean value) {
+            mFlag = flag;
+            mValue = value;
+        }
+    }
+
+    /**
+     * A group of messages to move to the same mailbox.
+     */
+    static class Move {
+        final Mailbox mDestination;
+        /** Whether this is a delete, which creates the remote trash if it doesn't exist yet. */
+        final boolean mToTrash;
+        /** The local message id, by the UID of the message in the source mailbox. */
+        final LinkedHashMap<String, Long> mMessageIds = new LinkedHashMap<String, Long>();
+        /**
+         * The Message-ID header of each message, by UID, so that we can find the copies if the
+         * server doesn't tell us their UIDs.
+         */
+        final LinkedHashMap<String, String> mMessageIdHeaders =
+                new LinkedHashMap<String, String>();
+
+        Move(final Mailbox destination, final boolean toTrash) {
+            mDestination = destination;
+            mToTrash = toTrash;
+        }
+    }
+
+    /**
+     * Everything to do in one remote mailbox.  Flags are changed before messages are moved, so
+     * the copies carry the new flags.
+     */
+    static class MailboxChanges {
+        final Mailbox mMailbox;
+        final ArrayList<FlagChange> mFlagChanges = new ArrayList<FlagChange>();
+        /** Moves by destination mailbox id. */
+        final LinkedHashMap<Long, Move> mMoves = new LinkedHashMap<Long, Move>();
+        /** The local messages whose pending updates these changes cover. */
+        final LinkedHashSet<Long> mMessageIds = new LinkedHashSet<Long>();
+
+        MailboxChanges(final Mailbox mailbox) {
+            mMailbox = mailbox;
+        }
+
+        /**
+         * @return the UIDs of all messages moved out of the mailbox, which are deleted from it
+         *     once they have been copied
+         */
+        List<String> getMovedUids() {
+            final ArrayList<String> uids = new ArrayList<String>();
+            for (final Move move : mMoves.values()) {
+                uids.addAll(move.mMessageIds.keySet());
+            }
+            return uids;
+        }
+
+        private FlagChange getFlagChange(final Flag flag, final boolean value) {
+            for (final FlagChange change : mFlagChanges) {
+                if (change.mFlag == flag && change.mValue == value) {
+                    return change;
+                }
+            }
+            final FlagChange change = new FlagChange(flag, value);
+            mFlagChanges.add(change);
+            return change;
+        }
+
+        private Move getMove(final Mailbox destination, final boolean toTrash) {
+            Move move = mMoves.get(destination.mId);
+            if (move == null) {
+                move = new Move(destination, toTrash);
+                mMoves.put(destination.mId, move);
+            }
+            return move;
+        }
+    }
+
+    private final LinkedHashMap<Long, MailboxChanges> mChanges =
+            new LinkedHashMap<Long, MailboxChanges>();
+
+    private MailboxChanges getMailboxChanges(final Mailbox mailbox) {
+        MailboxChanges changes = mChanges.get(mailbox.mId);
+        if (changes == null) {
+            changes = new MailboxChanges(mailbox);
+            mChanges.put(mailbox.mId, changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Set or clear a flag on a message.
+     * @param mailbox the remote mailbox the message is in
+     * @param messageId the id of the local message
+     * @param uid the UID of the message in {@code mailbox}
+     */
+    void addFlagChange(final Mailbox mailbox, final long messageId, final String uid,
+            final Flag flag, final boolean value) {
+        final MailboxChanges changes = getMailboxChanges(mailbox);
+        changes.getFlagChange(flag, value).mUids.add(uid);
+        changes.mMessageIds.add(messageId);
+    }
+
+    /**
+     * Move a message to another mailbox.
+     * @param mailbox the remote mailbox the message is in
+     * @param messageId the id of the local message
+     * @param uid the UID of the message in {@code mailbox}
+     * @param messageIdHeader the Message-ID header of the message, or null
+     * @param destination the mailbox to move the message to
+     * @param toTrash whether {@code destination} is the trash
+     */
+    void addMove(final Mailbox mailbox, final long messageId, final String uid,
+            final String messageIdHeader, final Mailbox destination, final boolean toTrash) {
+        final MailboxChanges changes = getMailboxChanges(mailbox);
+        final Move move = changes.getMove(destination, toTrash);
+        move.mMessageIds.put(uid, messageId);
+        move.mMessageIdHeaders.put(uid, messageIdHeader);
+        changes.mMessageIds.add(messageId);
+    }
+
+    /**
+     * @return the changes, one entry per remote mailbox, in the order the mailboxes were first
+     *     added
+     */
+    Collection<MailboxChanges> getMailboxChanges() {
+        return mChanges.values();
+    }
+}
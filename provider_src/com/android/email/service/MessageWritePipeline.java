@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.internet.MimeMessage;
+import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
+import com.android.emailcommon.mail.Message;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decouples reading messages from the network from writing them to the provider.
+ *
+ * <p>The pipeline is used as the {@link MessageRetrievalListener} of a fetch.  Messages are handed
+ * from the thread doing the fetch to a writer thread through a bounded queue, and the writer
+ * thread passes them to a {@link BatchWriter} in batches.  When the writer falls behind, the queue
+ * fills up and the fetch blocks until there's room again, so we never hold more than a queue's
+ * worth of fetched messages in memory.  Several fetches may feed the same pipeline at
+ * once, e.g. one per connection.
+ *
+ * <p>Usage:
+ * <pre>
+ * final MessageWritePipeline pipeline = new MessageWritePipeline(name, writer);
+ * pipeline.start();
+ * try {
+ *     remoteFolder.fetch(messages, fp, pipeline);
+ * } finally {
+ *     pipeline.finish();
+ * }
+ * </pre>
+ */
+public class MessageWritePipeline implements MessageRetrievalListener {
+    /** Default number of fetched messages that may be waiting to be written. */
+    private static final int DEFAULT_CAPACITY = 100;
+    /** Default maximum number of messages passed to the {@link BatchWriter} at once. */
+    private static final int DEFAULT_BATCH_SIZE = 25;
+
+    /** Marks the end of the fetch in {@link #mQueue}. */
+    private static final Message END_OF_FETCH = new MimeMessage();
+
+    /**
+     * Writes a batch of fetched messages.  Called on the pipeline's writer thread, with the
+     * messages in the order they were fetched.
+     */
+    public interface BatchWriter {
+        void writeMessages(ArrayList<Message> messages);
+    }
+
+    private final String mName;
+    private final int mBatchSize;
+    private final BatchWriter mWriter;
+    private final BlockingQueue<Message> mQueue;
+    private Thread mThread;
+    /**
+     * Set by the writer thread if the {@link BatchWriter} threw an Error.  The writer thread then
+     * drops the rest of the fetch, so that the fetch isn't blocked forever, and {@link #finish}
+     * throws the error.
+     */
+    private volatile Error mWriterError;
+
+    // Statistics, for logging; only touched by the writer thread until it has been joined.
+    private int mMessageCount;
+    private int mBatchCount;
+
+    public MessageWritePipeline(final String name, final BatchWriter writer) {
+        this(name, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, writer);
+    }
+
+    @VisibleForTesting
+    MessageWritePipeline(final String name, final int capacity, final int batchSize,
+            final BatchWriter writer) {
+        mName = name;
+        mBatchSize = batchSize;
+        mWriter = writer;
+        mQueue = new ArrayBlockingQueue<Message>(capacity);
+    }
+
+    /**
+     * Start the writer thread.  Must be called before the fetch.
+     */
+    public void start() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, mName);
+        mThread.start();
+    }
+
+    /**
+     * Wait until all the messages fetched so far have been written, and stop the writer thread.
+     * Must be called once the fetch is over, whether or not it succeeded.
+     * @throws Error if the {@link BatchWriter} threw one
+     */
+    public void finish() {
+        if (mThread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(END_OF_FETCH);
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        while (true) {
+            try {
+                mThread.join();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        LogUtils.d(Logging.LOG_TAG, "%s: wrote %d messages in %d batches", mName, mMessageCount,
+                mBatchCount);
+        if (mWriterError != null) {
+            throw mWriterError;
+        }
+    }
+
+    @Override
+    public void messageRetrieved(final Message message) {
+        // Blocks while the writer is behind.  Don't lose the message if we're interrupted, and
+        // leave the writing to the writer thread; the BatchWriter needn't be thread safe.
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(message);
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void loadAttachmentProgress(final int progress) {
+    }
+
+    /**
+     * The writer thread: take messages off the queue and write them a batch at a time until the
+     * end of the fetch.
+     */
+    private void drain() {
+        final ArrayList<Message> batch = new ArrayList<Message>(mBatchSize);
+        boolean done = false;
+        while (!done) {
+            try {
+                batch.add(mQueue.take());
+            } catch (final InterruptedException e) {
+                // Nobody interrupts this thread; keep going until we see the end of the fetch.
+                continue;
+            }
+            mQueue.drainTo(batch, mBatchSize - 1);
+            final int last = batch.size() - 1;
+            if (batch.get(last) == END_OF_FETCH) {
+                batch.remove(last);
+                done = true;
+            }
+            if (!batch.isEmpty() && mWriterError == null) {
+                writeBatch(batch);
+                mMessageCount += batch.size();
+                mBatchCount++;
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(final ArrayList<Message> batch) {
+        try {
+            mWriter.writeMessages(batch);
+        } catch (final RuntimeException e) {
+            LogUtils.e(Logging.LOG_TAG, e, "%s: error while storing downloaded messages", mName);
+        } catch (final Error e) {
+            LogUtils.e(Logging.LOG_TAG, e, "%s: writer failed, dropping the rest of the fetch",
+                    mName);
+            mWriterError = e;
+        }
+    }
+}
@@ -27,18 +27,22 @@ import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.text.format.DateUtils;
 
 import com.android.email.DebugUtils;
 import com.android.email.NotificationController;
+import com.android.email.LegacyConversions;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.mail.Store;
 import com.android.email.mail.store.Pop3Store;
 import com.android.email.mail.store.Pop3Store.Pop3Folder;
 import com.android.email.mail.store.Pop3Store.Pop3Message;
+import com.android.email.provider.SyncWriteBatcher;
 import com.android.email.provider.Utilities;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
 import com.android.emailcommon.mail.AuthenticationFailedException;
+import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
 import com.android.emailcommon.mail.Folder.OpenMode;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
@@ -51,21 +55,27 @@ import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailServiceCallback;
+import com.android.emailcommon.service.SyncWindow;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.providers.UIProvider.AttachmentState;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import org.apache.james.mime4j.EOLConvertingInputStream;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 public class Pop3Service extends Service {
     private static final String TAG = "Pop3Service";
     private static final int DEFAULT_SYNC_COUNT = 100;
+    /** How many messages' headers to fetch at a time when looking for the sync window's end. */
+    private static final int WINDOW_PROBE_BLOCK_SIZE = 20;
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -136,25 +146,39 @@ public class Pop3Service extends Service {
      * seeing if the local message requires sync. Later (for messages that need
      * syncing) we'll do a full readout from the DB.
      */
-    private static class LocalMessageInfo {
+    @VisibleForTesting
+    static class LocalMessageInfo {
         private static final int COLUMN_ID = 0;
         private static final int COLUMN_FLAG_LOADED = 1;
         private static final int COLUMN_SERVER_ID = 2;
+        private static final int COLUMN_TIMESTAMP = 3;
         private static final String[] PROJECTION = new String[] {
-                EmailContent.RECORD_ID, MessageColumns.FLAG_LOADED, SyncColumns.SERVER_ID
+                EmailContent.RECORD_ID, MessageColumns.FLAG_LOADED, SyncColumns.SERVER_ID,
+                MessageColumns.TIMESTAMP
         };
 
         final long mId;
         final int mFlagLoaded;
         final String mServerId;
+        final long mTimestamp;
 
         public LocalMessageInfo(Cursor c) {
             mId = c.getLong(COLUMN_ID);
             mFlagLoaded = c.getInt(COLUMN_FLAG_LOADED);
             mServerId = c.getString(COLUMN_SERVER_ID);
+            mTimestamp = c.getLong(COLUMN_TIMESTAMP);
             // Note: mailbox key and account key not needed - they are projected
             // for the SELECT
         }
+
+        @VisibleForTesting
+        LocalMessageInfo(final long id, final int flagLoaded, final String serverId,
+                final long timestamp) {
+            mId = id;
+            mFlagLoaded = flagLoaded;
+            mServerId = serverId;
+            mTimestamp = timestamp;
+        }
     }
 
     /**
@@ -175,33 +199,185 @@ public class Pop3Service extends Service {
         }
 
         try {
-            int cnt = unsyncedMessages.size();
             // They are in most recent to least recent order, process them that way.
-            for (int i = 0; i < cnt; i++) {
-                final Pop3Message message = unsyncedMessages.get(i);
-                remoteFolder.fetchBody(message, Pop3Store.FETCH_BODY_SANE_SUGGESTED_SIZE / 76,
-                        null);
-                int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
-                if (!message.isComplete()) {
-                    // TODO: when the message is not complete, this should mark the message as
-                    // partial.  When that change is made, we need to make sure that:
-                    // 1) Partial messages are shown in the conversation list
-                    // 2) We are able to download the rest of the message/attachment when the
-                    //    user requests it.
-                     flag = EmailContent.Message.FLAG_LOADED_PARTIAL;
+            remoteFolder.fetchBodies(unsyncedMessages,
+                    Pop3Store.FETCH_BODY_SANE_SUGGESTED_SIZE / 76, new MessageRetrievalListener() {
+                @Override
+                public void messageRetrieved(final com.android.emailcommon.mail.Message message) {
+                    int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
+                    if (!message.isComplete()) {
+                        // TODO: when the message is not complete, this should mark the message
+                        // as partial.  When that change is made, we need to make sure that:
+                        // 1) Partial messages are shown in the conversation list
+                        // 2) We are able to download the rest of the message/attachment when
+                        //    the user requests it.
+                        flag = EmailContent.Message.FLAG_LOADED_PARTIAL;
+                    }
+                    if (DebugUtils.DEBUG) {
+                        LogUtils.d(TAG, "Message is " + (message.isComplete() ? "" : "NOT ")
+                                + "complete");
+                    }
+                    // If message is incomplete, create a "fake" attachment
+                    Utilities.copyOneMessageToProvider(context, message, account, toMailbox,
+                            flag);
                 }
-                if (DebugUtils.DEBUG) {
-                    LogUtils.d(TAG, "Message is " + (message.isComplete() ? "" : "NOT ")
-                            + "complete");
+
+                @Override
+                public void loadAttachmentProgress(final int progress) {
                 }
-                // If message is incomplete, create a "fake" attachment
-                Utilities.copyOneMessageToProvider(context, message, account, toMailbox, flag);
-            }
+            });
+        } catch (IOException e) {
+            throw new MessagingException(MessagingException.IOERROR);
+        }
+    }
+
+    /**
+     * @param deltaMessageCount the requested change in number of messages to sync; loading more
+     *     messages on request always goes by count
+     * @param now the current time
+     * @return the start of the mailbox's (or else the account's) sync window, or 0 if this sync
+     *     goes by a number of messages instead, as it does when no window was chosen
+     */
+    @VisibleForTesting
+    static long getSyncWindowStart(final Account account, final Mailbox mailbox,
+            final int deltaMessageCount, final long now) {
+        final int window = (mailbox.mSyncLookback != SyncWindow.SYNC_WINDOW_ACCOUNT)
+                ? mailbox.mSyncLookback : account.mSyncLookback;
+        if (deltaMessageCount != 0
+                || window < SyncWindow.SYNC_WINDOW_1_DAY || window >= SyncWindow.SYNC_WINDOW_ALL) {
+            return 0;
+        }
+        return now - SyncWindow.toDays(window) * DateUtils.DAY_IN_MILLIS;
+    }
+
+    /**
+     * The network reads and provider writes of {@link #walkSyncWindow}.
+     */
+    @VisibleForTesting
+    interface SyncWindowWalker {
+        /** Fetch the headers of these messages, so that they have their dates. */
+        void fetchHeaders(List<Pop3Message> messages) throws MessagingException, IOException;
+
+        /** Save a message we only have the headers of. */
+        void saveEnvelope(Pop3Message message);
+    }
+
+    /**
+     * Find the messages in the sync window, walking the maildrop from the newest message back.
+     * POP3 can't search by date, so we learn the dates of the messages we don't have yet from
+     * their headers, fetched a block at a time with "TOP n 0", and stop at the first message
+     * older than the window.  That keeps the cost of a sync in proportion to the window rather
+     * than to the size of the maildrop.
+     *
+     * The headers are saved right away as messages without a body, so they needn't be fetched
+     * again to place a message; the bodies are loaded afterwards, by this sync or the next.
+     *
+     * @param remoteMessages all messages in the maildrop, newest first
+     * @param localMessageMap the messages we have, by UIDL
+     * @param windowStart the start of the sync window
+     * @param unsyncedMessages receives the messages in the window whose bodies need loading
+     */
+    private static void findMessagesInWindow(final Context context, final Account account,
+            final Mailbox mailbox, final Pop3Folder remoteFolder,
+            final Pop3Message[] remoteMessages,
+            final HashMap<String, LocalMessageInfo> localMessageMap, final long windowStart,
+            final ArrayList<Pop3Message> unsyncedMessages) throws MessagingException {
+        final SyncWriteBatcher batcher = new SyncWriteBatcher(context);
+        boolean writesApplied = false;
+        try {
+            walkSyncWindow(remoteMessages, localMessageMap, windowStart, unsyncedMessages,
+                    new SyncWindowWalker() {
+                        @Override
+                        public void fetchHeaders(List<Pop3Message> messages)
+                                throws MessagingException, IOException {
+                            remoteFolder.fetchBodies(messages, 0, null);
+                        }
+
+                        @Override
+                        public void saveEnvelope(Pop3Message message) {
+                            Pop3Service.saveEnvelope(account, mailbox, message, batcher);
+                        }
+                    });
         } catch (IOException e) {
             throw new MessagingException(MessagingException.IOERROR);
+        } finally {
+            // Keep what we've found even if the probe failed part way
+            writesApplied = batcher.flush();
+        }
+        if (!writesApplied) {
+            throw new MessagingException(MessagingException.UNSPECIFIED_EXCEPTION,
+                    "Could not store some synced messages");
         }
     }
 
+    /**
+     * The walk of {@link #findMessagesInWindow}: a block at a time, fetch the headers of the
+     * messages we don't have, and go through the block until the first message older than the
+     * window.  The messages we don't have are saved as we go.
+     */
+    @VisibleForTesting
+    static void walkSyncWindow(final Pop3Message[] remoteMessages,
+            final HashMap<String, LocalMessageInfo> localMessageMap, final long windowStart,
+            final ArrayList<Pop3Message> unsyncedMessages, final SyncWindowWalker walker)
+            throws MessagingException, IOException {
+        final ArrayList<Pop3Message> probe = new ArrayList<Pop3Message>();
+        for (int i = 0; i < remoteMessages.length; i += WINDOW_PROBE_BLOCK_SIZE) {
+            final int blockEnd = Math.min(remoteMessages.length, i + WINDOW_PROBE_BLOCK_SIZE);
+            // We already know the dates of the messages we have
+            probe.clear();
+            for (int j = i; j < blockEnd; j++) {
+                if (!localMessageMap.containsKey(remoteMessages[j].getUid())) {
+                    probe.add(remoteMessages[j]);
+                }
+            }
+            if (!probe.isEmpty()) {
+                walker.fetchHeaders(probe);
+            }
+            for (int j = i; j < blockEnd; j++) {
+                final Pop3Message message = remoteMessages[j];
+                final LocalMessageInfo localMessage = localMessageMap.get(message.getUid());
+                final long timestamp;
+                if (localMessage != null) {
+                    timestamp = localMessage.mTimestamp;
+                } else {
+                    final Date sentDate = message.getSentDate();
+                    timestamp = (sentDate != null) ? sentDate.getTime() : 0;
+                }
+                // A message without a date can't tell us where the window ends
+                if (timestamp != 0 && timestamp < windowStart) {
+                    LogUtils.d(Logging.LOG_TAG, "reached the end of the sync window at "
+                            + message.getUid());
+                    return;
+                }
+                if (localMessage == null) {
+                    walker.saveEnvelope(message);
+                    unsyncedMessages.add(message);
+                } else if (localMessage.mFlagLoaded != Message.FLAG_LOADED_COMPLETE
+                        && localMessage.mFlagLoaded != Message.FLAG_LOADED_PARTIAL) {
+                    unsyncedMessages.add(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Save a message we've only fetched the headers of.  It stays unloaded, so that its body
+     * is fetched even if this sync is interrupted before getting to it.
+     */
+    private static void saveEnvelope(final Account account, final Mailbox mailbox,
+            final Pop3Message message, final SyncWriteBatcher batcher) {
+        final EmailContent.Message localMessage = new EmailContent.Message();
+        try {
+            LegacyConversions.updateMessageFields(localMessage, message, account.mId,
+                    mailbox.mId);
+        } catch (MessagingException me) {
+            LogUtils.e(Logging.LOG_TAG, "Error while copying message headers." + me);
+            return;
+        }
+        localMessage.mFlagLoaded = Message.FLAG_LOADED_UNLOADED;
+        batcher.save(localMessage);
+    }
+
     private static class FetchCallback implements EOLConvertingInputStream.Callback {
         private final ContentResolver mResolver;
         private final Uri mAttachmentUri;
@@ -321,64 +497,69 @@ public class Pop3Service extends Service {
             remoteMessages = remoteFolder.getMessages(remoteMessageCount, remoteMessageCount);
             LogUtils.d(Logging.LOG_TAG, "remoteMessageCount " + remoteMessageCount);
 
-            /*
-             * TODO: It would be nicer if the default sync window were time based rather than
-             * count based, but POP3 does not support time based queries, and the UIDL command
-             * does not report timestamps. To handle this, we would need to load a block of
-             * Ids, sync those messages to get the timestamps, and then load more Ids until we
-             * have filled out our window.
-             */
-            int count = 0;
-            int countNeeded = DEFAULT_SYNC_COUNT;
             for (final Pop3Message message : remoteMessages) {
                 final String uid = message.getUid();
                 remoteUidMap.put(uid, message);
             }
 
-            /*
-             * Figure out which messages we need to sync. Start at the most recent ones, and keep
-             * going until we hit one of four end conditions:
-             * 1. We currently have zero local messages. In this case, we will sync the most recent
-             * DEFAULT_SYNC_COUNT, then stop.
-             * 2. We have some local messages, and after encountering them, we find some older
-             * messages that do not yet exist locally. In this case, we will load whichever came
-             * before the ones we already had locally, and also deltaMessageCount additional
-             * older messages.
-             * 3. We have some local messages, but after examining the most recent
-             * DEFAULT_SYNC_COUNT remote messages, we still have not encountered any that exist
-             * locally. In this case, we'll stop adding new messages to sync, leaving a gap between
-             * the ones we've just loaded and the ones we already had.
-             * 4. We examine all of the remote messages before running into any of our count
-             * limitations.
-             */
-            for (final Pop3Message message : remoteMessages) {
-                final String uid = message.getUid();
-                final LocalMessageInfo localMessage = localMessageMap.get(uid);
-                if (localMessage == null) {
-                    count++;
-                } else {
-                    // We have found a message that already exists locally. We may or may not
-                    // need to keep looking, depending on what deltaMessageCount is.
-                    LogUtils.d(Logging.LOG_TAG, "found a local message, need " +
-                            deltaMessageCount + " more remote messages");
-                    countNeeded = deltaMessageCount;
-                    count = 0;
-                }
+            final long windowStart =
+                    getSyncWindowStart(account, mailbox, deltaMessageCount,
+                            System.currentTimeMillis());
+            if (windowStart > 0) {
+                // Sync the messages in the account's sync window
+                findMessagesInWindow(context, account, mailbox, remoteFolder, remoteMessages,
+                        localMessageMap, windowStart, unsyncedMessages);
+            } else {
+                // Sync a number of messages; this is also how older messages are loaded on
+                // request
+                int count = 0;
+                int countNeeded = DEFAULT_SYNC_COUNT;
+
+                /*
+                 * Figure out which messages we need to sync. Start at the most recent ones, and
+                 * keep going until we hit one of four end conditions:
+                 * 1. We currently have zero local messages. In this case, we will sync the most
+                 * recent DEFAULT_SYNC_COUNT, then stop.
+                 * 2. We have some local messages, and after encountering them, we find some
+                 * older messages that do not yet exist locally. In this case, we will load
+                 * whichever came before the ones we already had locally, and also
+                 * deltaMessageCount additional older messages.
+                 * 3. We have some local messages, but after examining the most recent
+                 * DEFAULT_SYNC_COUNT remote messages, we still have not encountered any that
+                 * exist locally. In this case, we'll stop adding new messages to sync, leaving a
+                 * gap between the ones we've just loaded and the ones we already had.
+                 * 4. We examine all of the remote messages before running into any of our count
+                 * limitations.
+                 */
+                for (final Pop3Message message : remoteMessages) {
+                    final String uid = message.getUid();
+                    final LocalMessageInfo localMessage = localMessageMap.get(uid);
+                    if (localMessage == null) {
+                        count++;
+                    } else {
+                        // We have found a message that already exists locally. We may or may not
+                        // need to keep looking, depending on what deltaMessageCount is.
+                        LogUtils.d(Logging.LOG_TAG, "found a local message, need " +
+                                deltaMessageCount + " more remote messages");
+                        countNeeded = deltaMessageCount;
+                        count = 0;
+                    }
 
-                // localMessage == null -> message has never been created (not even headers)
-                // mFlagLoaded != FLAG_LOADED_COMPLETE -> message failed to sync completely
-                if (localMessage == null ||
-                        (localMessage.mFlagLoaded != EmailContent.Message.FLAG_LOADED_COMPLETE &&
-                                localMessage.mFlagLoaded != Message.FLAG_LOADED_PARTIAL)) {
-                    LogUtils.d(Logging.LOG_TAG, "need to sync " + uid);
-                    unsyncedMessages.add(message);
-                } else {
-                    LogUtils.d(Logging.LOG_TAG, "don't need to sync " + uid);
-                }
+                    // localMessage == null -> message has never been created (not even headers)
+                    // mFlagLoaded != FLAG_LOADED_COMPLETE -> message failed to sync completely
+                    if (localMessage == null || (localMessage.mFlagLoaded
+                            != EmailContent.Message.FLAG_LOADED_COMPLETE &&
+                                    localMessage.mFlagLoaded != Message.FLAG_LOADED_PARTIAL)) {
+                        LogUtils.d(Logging.LOG_TAG, "need to sync " + uid);
+                        unsyncedMessages.add(message);
+                    } else {
+                        LogUtils.d(Logging.LOG_TAG, "don't need to sync " + uid);
+                    }
 
-                if (count >= countNeeded) {
-                    LogUtils.d(Logging.LOG_TAG, "loaded " + count + " messages, stopping");
-                    break;
+                    if (count >= countNeeded) {
+                        LogUtils.d(Logging.LOG_TAG, "loaded " + count + " messages, stopping");
+                        break;
+                    }
                 }
             }
         } else {
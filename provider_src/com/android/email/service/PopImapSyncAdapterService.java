@@ -202,6 +202,14 @@ public class PopImapSyncAdapterService extends Service {
             if (c != null && c.moveToNext()) {
                 Account acct = new Account();
                 acct.restore(c);
+                if (context.getString(R.string.protocol_legacy_imap).equals(
+                        acct.getProtocol(context))) {
+                    // Start or stop pushing the inbox, in case the sync interval has changed.
+                    ImapPushManager.getInstance().updateAccount(context, acct);
+                }
+                if (Mailbox.isPushOnlyExtras(extras)) {
+                    return;
+                }
                 if (extras.getBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD)) {
                     LogUtils.d(TAG, "Upload sync request for " + acct.mDisplayName);
                     // See if any boxes have mail...
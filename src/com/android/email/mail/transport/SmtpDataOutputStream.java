@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes a message for the SMTP DATA or BDAT command as it is written.
+ *
+ * <p>In a single pass over the message, bare LFs are converted to CRLF (as
+ * {@link com.android.emailcommon.utility.EOLConvertingOutputStream} does) and, for DATA, lines
+ * starting with "." get an extra "." (RFC 5321 section 4.5.2).  The result is collected in a
+ * caller supplied buffer, which is only written out when it's full or on {@link #finish}.
+ *
+ * <p>For BDAT (RFC 3030 CHUNKING), every buffer full is sent as one "BDAT &lt;size&gt;" chunk,
+ * without dot-stuffing, and {@link #finish} sends the final "BDAT &lt;size&gt; LAST" chunk.  The
+ * chunks are pipelined; the caller reads one response per chunk (see {@link #getChunkCount}).
+ *
+ * <p>{@link #flush} does nothing, so that the message goes out in full buffers, and
+ * {@link #close} does not close the underlying stream.
+ */
+public class SmtpDataOutputStream extends OutputStream {
+    private final OutputStream mOut;
+    private final byte[] mBuffer;
+    private final boolean mChunking;
+
+    /** Number of bytes in {@link #mBuffer}. */
+    private int mCount;
+    /** The last byte of the message we were given; we start at the beginning of a line. */
+    private int mLastChar = '\n';
+    private long mBytesSent;
+    private int mChunkCount;
+
+    /**
+     * @param out the stream to the server
+     * @param buffer the buffer to collect the encoded message in; it can be reused once
+     *     {@link #finish} has returned
+     * @param chunking true to send the message with BDAT, false for DATA
+     */
+    public SmtpDataOutputStream(OutputStream out, byte[] buffer, boolean chunking) {
+        mOut = out;
+        mBuffer = buffer;
+        mChunking = chunking;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        encode(oneByte & 0xff);
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            encode(b[i] & 0xff);
+        }
+    }
+
+    private void encode(int b) throws IOException {
+        if (b == '\n') {
+            if (mLastChar != '\r') {
+                append('\r');
+            }
+        } else if (b == '.' && mLastChar == '\n' && !mChunking) {
+            append('.');
+        }
+        append(b);
+        mLastChar = b;
+    }
+
+    private void append(int b) throws IOException {
+        if (mCount == mBuffer.length) {
+            writeBuffer(false);
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    private void writeBuffer(boolean last) throws IOException {
+        if (mChunking) {
+            final String command = "BDAT " + mCount + (last ? " LAST" : "") + "\r\n";
+            mOut.write(command.getBytes());
+            mChunkCount++;
+        }
+        mOut.write(mBuffer, 0, mCount);
+        mBytesSent += mCount;
+        mCount = 0;
+    }
+
+    @Override
+    public void flush() {
+        // Nothing is sent until the buffer is full or finish() is called.
+    }
+
+    /**
+     * Write out the rest of the message.  For DATA, the message will end with a CRLF, and the
+     * caller must then send the terminating "."; for BDAT, the final chunk has been sent.
+     */
+    public void finish() throws IOException {
+        if (mLastChar == '\r') {
+            encode('\n');
+        } else if (mLastChar != '\n' && !mChunking) {
+            encode('\r');
+            encode('\n');
+        }
+        writeBuffer(true);
+        mOut.flush();
+    }
+
+    /**
+     * @return the number of bytes of the encoded message written out so far.
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return the number of BDAT chunks sent; the server sends a response to each of them.
+     */
+    public int getChunkCount() {
+        return mChunkCount;
+    }
+}
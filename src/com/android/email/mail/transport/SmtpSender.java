@@ -17,6 +17,7 @@
 package com.android.email.mail.transport;
 
 import android.content.Context;
+import android.text.TextUtils;
 import android.util.Base64;
 
 import com.android.email.DebugUtils;
@@ -32,19 +33,29 @@ import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.Credential;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.HostAuth;
-import com.android.emailcommon.utility.EOLConvertingOutputStream;
 import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.ArrayList;
 
 import javax.net.ssl.SSLException;
 
 /**
  * This class handles all of the protocol-level aspects of sending messages via SMTP.
+ *
+ * <p>One authenticated session is kept open across calls to {@link #sendMessage}, with an RSET
+ * between messages, so that flushing an outbox only pays for the connection, TLS handshake and
+ * authentication once.  We reconnect if the session can't be reset.  Callers must call
+ * {@link #close} when they're done sending.
+ *
+ * <p>Message content is encoded with a {@link SmtpDataOutputStream}, and sent with BDAT
+ * (RFC 3030) rather than DATA when the server supports it.
  */
 public class SmtpSender extends Sender {
+    /** Size of the buffer messages are encoded into, and of each BDAT chunk. */
+    private static final int DATA_BUFFER_SIZE = 64 * 1024;
 
     private final Context mContext;
     private MailTransport mTransport;
@@ -52,6 +63,14 @@ public class SmtpSender extends Sender {
     private String mUsername;
     private String mPassword;
     private boolean mUseOAuth;
+    /** Whether the server advertised PIPELINING (RFC 2920) when we opened the session. */
+    private boolean mPipelining;
+    /** Whether the open session has been used for a mail transaction since it was last reset. */
+    private boolean mSessionUsed;
+    /** Whether we can send messages with pipelined BDAT commands instead of DATA. */
+    private boolean mChunking;
+    /** Reused for every message sent by this sender; allocated on first use. */
+    private byte[] mDataBuffer;
 
     /**
      * Static named constructor.
@@ -88,6 +107,17 @@ public class SmtpSender extends Sender {
 
     @Override
     public void open() throws MessagingException {
+        mSessionUsed = false;
+        try {
+            openSession();
+        } catch (MessagingException me) {
+            // Don't leave a half open (e.g. unauthenticated) session around to be reused.
+            close();
+            throw me;
+        }
+    }
+
+    private void openSession() throws MessagingException {
         try {
             mTransport.open();
 
@@ -138,6 +168,9 @@ public class SmtpSender extends Sender {
             /*
              * result contains the results of the EHLO in concatenated form
              */
+            mPipelining = result.contains("PIPELINING");
+            // BDAT chunks are only pipelined; without PIPELINING, DATA is just as good.
+            mChunking = mPipelining && result.contains("CHUNKING");
             boolean authLoginSupported = result.matches(".*AUTH.*LOGIN.*$");
             boolean authPlainSupported = result.matches(".*AUTH.*PLAIN.*$");
             boolean authOAuthSupported = result.matches(".*AUTH.*XOAUTH2.*$");
@@ -176,10 +209,32 @@ public class SmtpSender extends Sender {
         }
     }
 
+    /**
+     * Make sure we have an authenticated session that's ready for a new mail transaction.  A
+     * session used by a previous message is reset with RSET; if that fails, we reconnect.
+     */
+    private void openOrResetSession() throws MessagingException {
+        if (mTransport.isOpen()) {
+            if (!mSessionUsed) {
+                return;
+            }
+            try {
+                executeSimpleCommand("RSET");
+                mSessionUsed = false;
+                return;
+            } catch (IOException ioe) {
+                LogUtils.d(Logging.LOG_TAG, "RSET failed, reconnecting: %s", ioe.toString());
+            } catch (MessagingException me) {
+                LogUtils.d(Logging.LOG_TAG, "RSET failed, reconnecting: %s", me.getMessage());
+            }
+            close();
+        }
+        open();
+    }
+
     @Override
     public void sendMessage(long messageId) throws MessagingException {
-        close();
-        open();
+        openOrResetSession();
 
         Message message = Message.restoreMessageWithId(mContext, messageId);
         if (message == null) {
@@ -191,27 +246,60 @@ public class SmtpSender extends Sender {
         Address[] cc = Address.fromHeader(message.mCc);
         Address[] bcc = Address.fromHeader(message.mBcc);
 
+        final ArrayList<String> envelope = new ArrayList<String>();
+        envelope.add("MAIL FROM:" + "<" + from.getAddress() + ">");
+        for (Address address : to) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+        }
+        for (Address address : cc) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+        }
+        for (Address address : bcc) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+        }
+
+        mSessionUsed = true;
+        boolean sent = false;
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from.getAddress() + ">");
-            for (Address address : to) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+            if (mPipelining) {
+                executePipelinedCommands(envelope);
+            } else {
+                for (String command : envelope) {
+                    executeSimpleCommand(command);
+                }
             }
-            for (Address address : cc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+            final boolean chunking = mChunking;
+            if (!chunking) {
+                executeSimpleCommand("DATA");
             }
-            for (Address address : bcc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+            if (mDataBuffer == null) {
+                mDataBuffer = new byte[DATA_BUFFER_SIZE];
             }
-            executeSimpleCommand("DATA");
-            // TODO byte stuffing
-            Rfc822Output.writeTo(mContext, message,
-                    new EOLConvertingOutputStream(mTransport.getOutputStream()),
+            final SmtpDataOutputStream out = new SmtpDataOutputStream(
+                    mTransport.getOutputStream(), mDataBuffer, chunking);
+            Rfc822Output.writeTo(mContext, message, out,
                     false /* do not use smart reply */,
                     false /* do not send BCC */,
                     null  /* attachments are in the message itself */);
-            executeSimpleCommand("\r\n.");
+            out.finish();
+            if (chunking) {
+                readResponses(out.getChunkCount());
+            } else {
+                executeSimpleCommand(".");
+            }
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG, "Sent message %d: %d bytes with %s", messageId,
+                        out.getBytesSent(), chunking ? "BDAT" : "DATA");
+            }
+            sent = true;
         } catch (IOException ioe) {
             throw new MessagingException("Unable to send message", ioe);
+        } finally {
+            if (!sent) {
+                // We don't know what state the session is in (we may have stopped in the middle
+                // of the message data); start over for the next message.
+                close();
+            }
         }
     }
 
@@ -223,6 +311,7 @@ public class SmtpSender extends Sender {
     @Override
     public void close() {
         mTransport.close();
+        mSessionUsed = false;
     }
 
     /**
@@ -251,7 +340,52 @@ public class SmtpSender extends Sender {
         if (command != null) {
             mTransport.writeLine(command, sensitiveReplacement);
         }
+        return readResponse();
+    }
+
+    /**
+     * Send a group of commands at once, then read their responses (RFC 2920).  All the responses
+     * are read, even if some of them are errors, so that the session stays in sync.
+     *
+     * @param commands The commands to send.  They must not include sensitive data.
+     * @throws MessagingException for the first command whose response code is 4xx or 5xx.
+     */
+    private void executePipelinedCommands(ArrayList<String> commands)
+            throws IOException, MessagingException {
+        mTransport.writeLine(TextUtils.join("\r\n", commands), null);
+        readResponses(commands.size());
+    }
+
+    /**
+     * Read the responses to a group of pipelined commands.  All of them are read, even if some of
+     * them are errors, so that the session stays in sync.
+     *
+     * @param count The number of responses to read.
+     * @throws MessagingException for the first response whose code is 4xx or 5xx.
+     */
+    private void readResponses(int count) throws IOException, MessagingException {
+        MessagingException error = null;
+        for (int i = 0; i < count; i++) {
+            try {
+                readResponse();
+            } catch (MessagingException me) {
+                if (error == null) {
+                    error = me;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
 
+    /**
+     * Read a single response.  Handles responses that continue onto multiple lines.  Throws
+     * MessagingException if response code is 4xx or 5xx.
+     *
+     * @return Returns the response string from the server.
+     */
+    private String readResponse() throws IOException, MessagingException {
         String line = mTransport.readLine(true);
 
         String result = line;
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the ImapPusher
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.store.ImapPusherTests email
+ */
+@SmallTest
+public class ImapPusherTests extends TestCase {
+
+    public void testRefreshBeforeServerTimeout() {
+        // RFC 2177 lets servers drop a client that has been idle for 30 minutes
+        assertTrue(ImapPusher.IDLE_REFRESH_MILLIS < 29 * DateUtils.MINUTE_IN_MILLIS);
+    }
+
+    public void testBackoff() {
+        final long first = ImapPusher.getBackoffMillis(0);
+        assertTrue(first > 0);
+        assertEquals(2 * first, ImapPusher.getBackoffMillis(1));
+        assertEquals(4 * first, ImapPusher.getBackoffMillis(2));
+
+        // The backoff is capped, however many errors there are
+        final long max = ImapPusher.getBackoffMillis(100);
+        assertEquals(max, ImapPusher.getBackoffMillis(Integer.MAX_VALUE));
+        assertTrue(max <= 30 * DateUtils.MINUTE_IN_MILLIS);
+        assertTrue(max >= ImapPusher.getBackoffMillis(5));
+    }
+}
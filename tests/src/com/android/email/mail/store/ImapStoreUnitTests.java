@@ -34,9 +34,11 @@ import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapTestUtils;
 import com.android.email.mail.transport.MockTransport;
+import com.android.email.service.ImapService;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.VendorPolicyLoader;
 import com.android.emailcommon.internet.MimeBodyPart;
+import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.internet.TextBody;
@@ -55,10 +57,12 @@ import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.Utility;
 
 import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.regex.Pattern;
@@ -100,6 +104,8 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
     /** The tag for the current IMAP command; used for mock transport responses */
     private int mTag;
+    /** Capabilities the mock server advertises in addition to the usual ones */
+    private String mExtraCapabilities = "";
     // Fields specific to the CopyMessages tests
     private MockTransport mCopyMock;
     private Folder mCopyToFolder;
@@ -157,19 +163,27 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         testAuth.setConnection("imap", "server", 999);
         testAccount.mHostAuthRecv = testAuth;
         mStore = (ImapStore) ImapStore.newInstance(testAccount, mTestContext);
+        // Always check pooled connections, so reusing one costs a NOOP
+        mStore.getConnectionPoolForTest().setFreshMillis(0);
         mFolder = (ImapFolder) mStore.getFolder(FOLDER_NAME);
         resetTag();
     }
 
-    public void testJoinMessageUids() throws Exception {
-        assertEquals("", ImapStore.joinMessageUids(new Message[] {}));
-        assertEquals("a", ImapStore.joinMessageUids(new Message[] {
-                mFolder.createMessage("a")
-                }));
-        assertEquals("a,XX", ImapStore.joinMessageUids(new Message[] {
-                mFolder.createMessage("a"),
-                mFolder.createMessage("XX"),
-                }));
+    public void testGetMessageUidSets() throws Exception {
+        assertTrue(ImapStore.getMessageUidSets(new Message[] {}).isEmpty());
+        MoreAsserts.assertEquals(new String[] {"3:5,9"}, ImapStore.getMessageUidSets(
+                new Message[] {
+                        mFolder.createMessage("9"),
+                        mFolder.createMessage("4"),
+                        mFolder.createMessage("3"),
+                        mFolder.createMessage("5"),
+                }).toArray());
+        MoreAsserts.assertEquals(new String[] {"1,3", "5"}, ImapStore.getMessageUidSets(
+                new Message[] {
+                        mFolder.createMessage("1"),
+                        mFolder.createMessage("3"),
+                        mFolder.createMessage("5"),
+                }, 3).toArray());
     }
 
     /**
@@ -669,6 +683,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         String capabilityList = "* cAPABILITY iMAP4rev1 sTARTTLS aUTH=gSSAPI lOGINDISABLED";
         capabilityList += withId ? " iD" : "";
         capabilityList += withUidPlus ? " UiDPlUs" : "";
+        capabilityList += mExtraCapabilities;
 
         mockTransport.expect(getNextTag(false) + " CAPABILITY", new String[] {
             capabilityList,
@@ -1057,6 +1072,36 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    public void testFetchPart() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2] {4}",
+                "YWJj)", // abc in base64
+                getNextTag(true) + " oK SUCCESS"
+        });
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(mFolder.fetchPart(message, part, out, null));
+        assertEquals("abc", Utility.fromUtf8(out.toByteArray()));
+
+        // The server doesn't have the part
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2] NIL)",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        out.reset();
+        assertFalse(mFolder.fetchPart(message, part, out, null));
+        assertEquals(0, out.size());
+    }
+
     /**
      * Test for proper operations on servers that return "NIL" for empty message bodies.
      */
@@ -1576,7 +1621,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
      * Returns the pattern for the IMAP request to copy messages.
      */
     private String getCopyMessagesPattern() {
-        return getNextTag(false) + " UID COPY 11\\,12 \\\"&ZeVnLIqe-\\\"";
+        return getNextTag(false) + " UID COPY 11:12 \\\"&ZeVnLIqe-\\\"";
     }
 
     /**
@@ -1817,6 +1862,330 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response. (permission denied)
     }
 
+    /**
+     * Test that only the given messages are expunged if the server supports UIDPLUS.
+     */
+    public void testExpungeMessages() throws Exception {
+        setupCopyMessages(true);
+        mCopyMock.expect(getNextTag(false) + " UID EXPUNGE 11:12",
+                new String[] {
+                "* 3 eXPUNGE",
+                "* 3 eXPUNGE",
+                getNextTag(true) + " oK success"
+                });
+
+        mFolder.expungeMessages(mCopyMessages);
+    }
+
+    /**
+     * Test that the whole mailbox is expunged if the server doesn't support UIDPLUS.
+     */
+    public void testExpungeMessagesWithoutUidPlus() throws Exception {
+        setupCopyMessages(false);
+        mCopyMock.expect(getNextTag(false) + " EXPUNGE",
+                new String[] {
+                getNextTag(true) + " oK success"
+                });
+
+        mFolder.expungeMessages(mCopyMessages);
+    }
+
+    /**
+     * Test that a server with MOVE gets a single UID MOVE, and that the new UIDs are taken from
+     * the untagged COPYUID response that comes before the expunges.
+     */
+    public void testMoveMessages() throws Exception {
+        mExtraCapabilities = " mOVE";
+        setupCopyMessages(true);
+        mCopyMock.expect(getNextTag(false) + " UID MOVE 11:12 \\\"&ZeVnLIqe-\\\"",
+                new String[] {
+                "* oK [COPYUID 777 11,12 45,46] Moved",
+                "* 3 eXPUNGE",
+                "* 3 eXPUNGE",
+                getNextTag(true) + " oK UID MOVE completed"
+                });
+
+        MessageUpdateCallbackCounter cb = new MessageUpdateCallbackCounter();
+        mFolder.moveMessages(mCopyMessages, mCopyToFolder, cb);
+
+        assertEquals(0, cb.messageNotFoundCalled);
+        assertEquals(2, cb.messageUidChangeCalled);
+    }
+
+    /**
+     * Test that a server without MOVE gets a copy, and only the copied messages are expunged.
+     */
+    public void testMoveMessagesWithoutMove() throws Exception {
+        setupCopyMessages(true);
+        mCopyMock.expect(getCopyMessagesPattern(),
+                new String[] {
+                getNextTag(true) + " oK [COPYUID 777 11,12 45,46] UID COPY completed"
+                });
+        mCopyMock.expect(getNextTag(false) + " UID STORE 11:12 \\+FLAGS\\.SILENT \\(\\\\DELETED\\)",
+                new String[] {
+                getNextTag(true) + " oK success"
+                });
+        mCopyMock.expect(getNextTag(false) + " UID EXPUNGE 11:12",
+                new String[] {
+                getNextTag(true) + " oK success"
+                });
+
+        MessageUpdateCallbackCounter cb = new MessageUpdateCallbackCounter();
+        mFolder.moveMessages(mCopyMessages, mCopyToFolder, cb);
+
+        assertEquals(0, cb.messageNotFoundCalled);
+        assertEquals(2, cb.messageUidChangeCalled);
+    }
+
+    /**
+     * Test that IDLE returns as soon as new messages arrive, and is ended with DONE.
+     */
+    public void testIdleNewMessages() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mExtraCapabilities = " iDLE";
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertTrue(mFolder.supportsIdle());
+
+        mock.expect(getNextTag(false) + " IDLE", new String[] {
+                "+ idling",
+                "* 2 eXISTS"
+                });
+        mock.expect("DONE", new String[] {
+                "* 3 eXISTS",
+                getNextTag(true) + " oK IDLE terminated"
+                });
+
+        ImapFolder.IdleResult result = mFolder.idle(ImapPusher.IDLE_REFRESH_MILLIS);
+        assertTrue(result.hasChanges());
+        assertEquals(0, result.mPreviousMessageCount);
+        assertEquals(3, result.mMessageCount);
+        assertFalse(result.mExpunged);
+        assertFalse(result.mFlagsChanged);
+        assertEquals(3, mFolder.getMessageCount());
+    }
+
+    /**
+     * Test that expunges and flag changes seen during IDLE are reported.
+     */
+    public void testIdleExpungeAndFlags() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mExtraCapabilities = " iDLE";
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(getNextTag(false) + " IDLE", new String[] {
+                "* 1 fETCH (fLAGS (\\Seen))",
+                "+ idling"
+                });
+        mock.expect("DONE", new String[] {
+                getNextTag(true) + " oK IDLE terminated"
+                });
+
+        ImapFolder.IdleResult result = mFolder.idle(ImapPusher.IDLE_REFRESH_MILLIS);
+        assertTrue(result.hasChanges());
+        assertTrue(result.mFlagsChanged);
+        assertFalse(result.mExpunged);
+    }
+
+    /**
+     * Test that a server that doesn't advertise IDLE is detected, so we can poll instead.
+     */
+    public void testIdleNotSupported() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertFalse(mFolder.supportsIdle());
+    }
+
+    /**
+     * Test that IDLE rejected by the server is reported as an error.
+     */
+    public void testIdleRejected() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mExtraCapabilities = " iDLE";
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(getNextTag(false) + " IDLE", new String[] {
+                getNextTag(true) + " bAD IDLE not allowed now"
+                });
+        try {
+            mFolder.idle(ImapPusher.IDLE_REFRESH_MILLIS);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+    }
+
+    /**
+     * Test that QRESYNC is enabled when advertised, and that the changes since a mod-sequence,
+     * including VANISHED UIDs, are parsed.
+     */
+    public void testFetchChangesSince() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mExtraCapabilities = " cONDSTORE qRESYNC";
+        expectLogin(mock);
+        mock.expect(getNextTag(false) + " ENABLE QRESYNC", new String[] {
+                "* eNABLED qRESYNC",
+                getNextTag(true) + " oK enabled"
+                });
+        mock.expect(getNextTag(false) + " SELECT \"" + FOLDER_ENCODED + "\"", new String[] {
+                "* 172 eXISTS",
+                "* oK [uIDVALIDITY 3857529045] UIDs valid",
+                "* oK [hIGHESTMODSEQ 90060115205545359] Highest",
+                getNextTag(true) + " oK [rEAD-wRITE] selected"
+                });
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals(3857529045L, mFolder.getUidValidity());
+        assertEquals(90060115205545359L, mFolder.getHighestModSeq());
+        assertTrue(mFolder.supportsModSeq());
+        assertTrue(mFolder.supportsVanished());
+
+        mock.expect(getNextTag(false)
+                + " UID FETCH 1:\\* \\(UID FLAGS\\) \\(CHANGEDSINCE 90060115194045000 VANISHED\\)",
+                new String[] {
+                "* vANISHED (eARLIER) 41,43:116,118",
+                "* 49 fETCH (uID 117 fLAGS (\\Seen \\Answered) mODSEQ (90060115194045001))",
+                "* 50 fETCH (uID 119 fLAGS (\\Draft $MDNSent) mODSEQ (90060115194045308))",
+                getNextTag(true) + " oK fetch completed"
+                });
+        ImapFolder.ChangedSince changes = mFolder.fetchChangesSince(90060115194045000L);
+        assertEquals(2, changes.mChanged.size());
+        Message message = changes.mChanged.get(0);
+        assertEquals("117", message.getUid());
+        assertTrue(message.isSet(Flag.SEEN));
+        assertTrue(message.isSet(Flag.ANSWERED));
+        assertFalse(message.isSet(Flag.FLAGGED));
+        message = changes.mChanged.get(1);
+        assertEquals("119", message.getUid());
+        assertFalse(message.isSet(Flag.SEEN));
+
+        assertTrue(changes.hasVanished());
+        assertTrue(changes.isVanished("41"));
+        assertFalse(changes.isVanished("42"));
+        assertTrue(changes.isVanished("43"));
+        assertTrue(changes.isVanished("100"));
+        assertTrue(changes.isVanished("116"));
+        assertFalse(changes.isVanished("117"));
+        assertTrue(changes.isVanished("118"));
+        assertFalse(changes.isVanished("119"));
+    }
+
+    public void testCountUids() {
+        assertEquals(0, ImapFolder.countUids(""));
+        assertEquals(1, ImapFolder.countUids("41"));
+        assertEquals(76, ImapFolder.countUids("41,43:116,118"));
+        // Ranges may be given either way round
+        assertEquals(3, ImapFolder.countUids("7:5"));
+        assertEquals(200000, ImapFolder.countUids("1:200000"));
+        assertEquals(1, ImapFolder.countUids("x,3,5:*"));
+    }
+
+    /**
+     * Test that a CONDSTORE server without QRESYNC is asked for mod-sequences when selecting,
+     * and for only the flags that changed.
+     */
+    public void testFetchFlagsChangedSince() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mExtraCapabilities = " cONDSTORE";
+        expectLogin(mock);
+        mock.expect(getNextTag(false) + " SELECT \"" + FOLDER_ENCODED + "\" \\(CONDSTORE\\)",
+                new String[] {
+                "* 3 eXISTS",
+                "* oK [uIDVALIDITY 1] UIDs valid",
+                "* oK [hIGHESTMODSEQ 120] Highest",
+                getNextTag(true) + " oK [rEAD-wRITE] selected"
+                });
+        mFolder.open(OpenMode.READ_WRITE);
+        assertTrue(mFolder.supportsModSeq());
+        assertFalse(mFolder.supportsVanished());
+
+        Message[] messages = new Message[] {
+                mFolder.createMessage("1"),
+                mFolder.createMessage("2"),
+                mFolder.createMessage("3"),
+                };
+        mock.expect(getNextTag(false) + " UID FETCH 1:3 \\(UID FLAGS\\) \\(CHANGEDSINCE 100\\)",
+                new String[] {
+                "* 2 fETCH (uID 2 fLAGS (\\Flagged) mODSEQ (120))",
+                getNextTag(true) + " oK fetch completed"
+                });
+        Message[] changed = mFolder.fetchFlagsChangedSince(messages, 100);
+        assertEquals(1, changed.length);
+        assertSame(messages[1], changed[0]);
+        assertTrue(messages[1].isSet(Flag.FLAGGED));
+    }
+
+    /**
+     * Test that the UIDNEXT is kept, and that only messages from a UID up are returned even
+     * though "n:*" always matches the last message.
+     */
+    public void testGetMessagesFromUid() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals(1, mFolder.getUidNext());
+
+        mock.expect(getNextTag(false) + " UID SEARCH UID 5:\\*", new String[] {
+                "* sEARCH 3",
+                getNextTag(true) + " oK success"
+                });
+        assertEquals(0, mFolder.getMessagesFromUid(5).length);
+
+        mock.expect(getNextTag(false) + " UID SEARCH UID 5:\\*", new String[] {
+                "* sEARCH 5 7",
+                getNextTag(true) + " oK success"
+                });
+        Message[] messages = mFolder.getMessagesFromUid(5);
+        assertEquals(2, messages.length);
+        assertEquals("5", messages[0].getUid());
+        assertEquals("7", messages[1].getUid());
+    }
+
+    /**
+     * Test that a mailbox without mod-sequences is detected.
+     */
+    public void testSelectNoModSeq() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mExtraCapabilities = " cONDSTORE";
+        expectLogin(mock);
+        mock.expect(getNextTag(false) + " SELECT \"" + FOLDER_ENCODED + "\" \\(CONDSTORE\\)",
+                new String[] {
+                "* 3 eXISTS",
+                "* oK [uIDVALIDITY 1] UIDs valid",
+                "* oK [nOMODSEQ] No mod-sequences",
+                getNextTag(true) + " oK [rEAD-wRITE] selected"
+                });
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals(1, mFolder.getUidValidity());
+        assertEquals(0, mFolder.getHighestModSeq());
+        assertFalse(mFolder.supportsModSeq());
+    }
+
+    public void testGetMaxConnections() {
+        final String[] overrides = new String[] {
+                "imap.example.com=1",
+                " Busy.Example.com = 6 ",
+                "bad.example.com=x",
+        };
+        assertEquals(3, ImapStore.getMaxConnections(overrides, 3, "other.example.com"));
+        assertEquals(1, ImapStore.getMaxConnections(overrides, 3, "imap.example.com"));
+        assertEquals(6, ImapStore.getMaxConnections(overrides, 3, "busy.example.com"));
+        assertEquals(3, ImapStore.getMaxConnections(overrides, 3, "bad.example.com"));
+        // Always at least one
+        assertEquals(1, ImapStore.getMaxConnections(new String[0], 0, "imap.example.com"));
+    }
+
+    public void testGetParallelConnectionCount() {
+        // Too few messages to be worth another connection
+        assertEquals(1, ImapFolder.getParallelConnectionCount(0, 10, 3));
+        assertEquals(1, ImapFolder.getParallelConnectionCount(19, 10, 3));
+        assertEquals(2, ImapFolder.getParallelConnectionCount(20, 10, 3));
+        // Capped
+        assertEquals(3, ImapFolder.getParallelConnectionCount(1000, 10, 3));
+        assertEquals(1, ImapFolder.getParallelConnectionCount(1000, 10, 1));
+    }
+
     public void testSetFlags() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -1829,7 +2198,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         // Set
         mock.expect(
-                getNextTag(false) + " UID STORE 11\\,12 \\+FLAGS.SILENT \\(\\\\FLAGGED \\\\SEEN\\)",
+                getNextTag(false) + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\FLAGGED \\\\SEEN\\)",
                 new String[] {
                 getNextTag(true) + " oK success"
                 });
@@ -1837,7 +2206,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         // Clear
         mock.expect(
-                getNextTag(false) + " UID STORE 11\\,12 \\-FLAGS.SILENT \\(\\\\DELETED\\)",
+                getNextTag(false) + " UID STORE 11:12 \\-FLAGS.SILENT \\(\\\\DELETED\\)",
                 new String[] {
                 getNextTag(true) + " oK success"
                 });
@@ -2051,6 +2420,116 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertNotSame(con2, con3);
     }
 
+    public void testConnectionLimit() {
+        final int max = mStore.getMaxConnections();
+        assertEquals(max, mStore.getAvailableConnectionCount());
+
+        // e.g. a push connection and this sync's
+        final ArrayList<ImapConnection> connections = new ArrayList<ImapConnection>();
+        for (int i = 0; i < max; i++) {
+            connections.add(mStore.getConnection());
+        }
+        assertEquals(0, mStore.getAvailableConnectionCount());
+        assertNull(mStore.getConnectionWithinLimit());
+
+        mStore.discardConnection(connections.remove(0));
+        assertEquals(1, mStore.getAvailableConnectionCount());
+        final ImapConnection extra = mStore.getConnectionWithinLimit();
+        assertNotNull(extra);
+        assertEquals(0, mStore.getAvailableConnectionCount());
+
+        mStore.poolConnection(extra);
+        for (ImapConnection connection : connections) {
+            mStore.discardConnection(connection);
+        }
+        assertEquals(max, mStore.getAvailableConnectionCount());
+        mStore.closeConnections();
+    }
+
+    /**
+     * A search gives back the connection it used, even when nothing matched
+     */
+    public void testSearchReleasesConnection() throws Exception {
+        final int max = mStore.getMaxConnections();
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mock.expect(getNextTag(false) + " UID SEARCH CHARSET US-ASCII OR FROM \\{5\\}",
+                "+ Ready");
+        mock.expect("query \\(OR TO \\{5\\}", "+ Ready");
+        mock.expect("query \\(OR CC \\{5\\}", "+ Ready");
+        mock.expect("query \\(OR SUBJECT \\{5\\}", "+ Ready");
+        mock.expect("query BODY \\{5\\}", "+ Ready");
+        mock.expect("query\\)\\)\\)", new String[] {
+                "* sEaRcH",
+                getNextTag(true) + " oK UID SEARCH completed"});
+
+        final Mailbox mailbox = new Mailbox();
+        mailbox.mServerId = FOLDER_NAME;
+        assertEquals(0, ImapService.searchMailbox(mTestContext, mStore, new Account(), mailbox,
+                new SearchParams(mailbox.mId, "query"), new Mailbox()));
+        assertEquals(max, mStore.getAvailableConnectionCount());
+    }
+
+    public void testGetConnectionFresh() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mStore.getConnectionPoolForTest().setFreshMillis(ImapConnectionPool.FRESH_MILLIS);
+
+        final ImapConnection con1 = mStore.getConnection();
+        expectLogin(mock);
+        con1.open();
+        mStore.poolConnection(con1);
+
+        // Just used, so we get it back without a NOOP (the mock transport would fail one)
+        final ImapConnection con1b = mStore.getConnection();
+        assertSame(con1, con1b);
+        assertEquals(0, mStore.getConnectionPoolForTest().size());
+        assertTrue(con1.isTransportOpenForTest());
+    }
+
+    public void testConnectionPool() {
+        final ImapConnectionPool pool = new ImapConnectionPool(2);
+        final ImapConnection con1 = new ImapConnection(mStore);
+        final ImapConnection con2 = new ImapConnection(mStore);
+        final ImapConnection con3 = new ImapConnection(mStore);
+
+        // The least recently used connection makes room
+        pool.put(con1, 1000);
+        pool.put(con2, 2000);
+        pool.put(con3, 3000);
+        assertEquals(2, pool.size());
+
+        // The most recently used connection is handed out first
+        ImapConnectionPool.PooledConnection pooled = pool.take(3000);
+        assertSame(con3, pooled.mConnection);
+        assertTrue(pool.isFresh(pooled, 3000 + ImapConnectionPool.FRESH_MILLIS - 1));
+        assertFalse(pool.isFresh(pooled, 3000 + ImapConnectionPool.FRESH_MILLIS));
+
+        // Connections idle for too long are closed
+        pool.put(con3, 10000);
+        pool.evictExpired(2000 + ImapConnectionPool.IDLE_EXPIRY_MILLIS);
+        assertEquals(1, pool.size());
+        pooled = pool.take(10000 + ImapConnectionPool.IDLE_EXPIRY_MILLIS - 1);
+        assertSame(con3, pooled.mConnection);
+        assertNull(pool.take(10000));
+
+        pool.put(con1, 20000);
+        assertNull(pool.take(20000 + ImapConnectionPool.IDLE_EXPIRY_MILLIS));
+        pool.clear();
+    }
+
+    public void testConnectionPoolStats() {
+        final ImapConnectionPool pool = new ImapConnectionPool(2);
+        assertEquals(0f, pool.getReuseRatio());
+        assertEquals(0, pool.getHandshakeMillisSaved());
+
+        pool.onOpened(100);
+        pool.onOpened(300);
+        pool.onReused(false);
+        pool.onReused(true);
+        assertEquals(0.5f, pool.getReuseRatio());
+        assertEquals(400, pool.getHandshakeMillisSaved());
+    }
+
     public void testCheckSettings() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
 
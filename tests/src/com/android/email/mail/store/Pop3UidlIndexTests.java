@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests of the Pop3UidlIndex
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.store.Pop3UidlIndexTests email
+ */
+@SmallTest
+public class Pop3UidlIndexTests extends TestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("pop3-uidl", null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testSaveAndLoad() {
+        new Pop3UidlIndex(new String[] {"ABCDEF-1", "ABCDEF-2", "ABCDEF-3"}).save(mFile);
+        final Pop3UidlIndex index = Pop3UidlIndex.load(mFile);
+        assertEquals(3, index.getCount());
+        assertEquals("ABCDEF-1", index.getUid(1));
+        assertEquals("ABCDEF-3", index.getUid(3));
+    }
+
+    public void testLoadMissingOrCorrupt() throws Exception {
+        mFile.delete();
+        assertNull(Pop3UidlIndex.load(mFile));
+
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 5, 0});
+        out.close();
+        assertNull(Pop3UidlIndex.load(mFile));
+    }
+
+    public void testIsValid() {
+        final Pop3UidlIndex index =
+                new Pop3UidlIndex(new String[] {"ABCDEF-1", "ABCDEF-2", "ABCDEF-3"});
+        // Unchanged, or new messages at the end
+        assertTrue(index.isValid(3, "ABCDEF-1", "ABCDEF-3"));
+        assertTrue(index.isValid(5, "ABCDEF-1", "ABCDEF-3"));
+        // A message was deleted, so the ones after it moved down
+        assertFalse(index.isValid(3, "ABCDEF-1", "ABCDEF-4"));
+        assertFalse(index.isValid(3, "ABCDEF-2", "ABCDEF-4"));
+        // Fewer messages than we knew of
+        assertFalse(index.isValid(2, "ABCDEF-1", "ABCDEF-3"));
+        assertFalse(new Pop3UidlIndex(new String[0]).isValid(3, "ABCDEF-1", "ABCDEF-3"));
+    }
+}
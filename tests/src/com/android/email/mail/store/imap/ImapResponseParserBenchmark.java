@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import static com.android.email.mail.store.imap.ImapTestUtils.buildBodyStructureTranscript;
+import static com.android.email.mail.store.imap.ImapTestUtils.buildEnvelopeFetchTranscript;
+import static com.android.email.mail.store.imap.ImapTestUtils.buildFlagsFetchTranscript;
+import static com.android.email.mail.store.imap.ImapTestUtils.buildLiteralFetchTranscript;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.email.mail.transport.DiscourseLogger;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.utility.Utility;
+import com.android.mail.utils.LogUtils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Benchmarks of {@link ImapResponseParser} and the {@link ImapList} lookups done on its output,
+ * replaying generated server transcripts of realistic size.
+ *
+ * Each benchmark logs the throughput in responses per second and the number of bytes allocated
+ * per response, so that the numbers can be compared before and after a parser change.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.store.imap.ImapResponseParserBenchmark email
+ */
+@LargeTest
+public class ImapResponseParserBenchmark extends TestCase {
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int ITERATIONS = 5;
+
+    public void testFlagsFetch() throws Exception {
+        runBenchmark("FLAGS fetch x10000", buildFlagsFetchTranscript(10000), 10000);
+    }
+
+    public void testEnvelopeFetch() throws Exception {
+        runBenchmark("ENVELOPE fetch x1000", buildEnvelopeFetchTranscript(1000), 1000);
+    }
+
+    public void testNestedBodyStructure() throws Exception {
+        runBenchmark("BODYSTRUCTURE depth 10 x500", buildBodyStructureTranscript(500, 10), 500);
+    }
+
+    public void testLargeLiterals() throws Exception {
+        runBenchmark("BODY[] 256KB x20", buildLiteralFetchTranscript(20, 256 * 1024), 20);
+    }
+
+    /**
+     * Parse {@code transcript} repeatedly and log the average throughput and allocation.
+     *
+     * @param name name used in the log
+     * @param transcript the server responses to replay, ending with a tagged response
+     * @param expectedUntagged the number of untagged responses in {@code transcript}
+     */
+    private static void runBenchmark(String name, String transcript, int expectedUntagged)
+            throws Exception {
+        final byte[] data = Utility.toAscii(transcript);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            assertEquals(expectedUntagged, replay(data));
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        final long start = System.nanoTime();
+        int responses = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            responses += replay(data) + 1; // Plus the tagged response
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+        final long allocated = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        LogUtils.w(Logging.LOG_TAG, "ImapResponseParserBenchmark %s: %d responses/s,"
+                + " %d bytes allocated/response, %d bytes/transcript", name,
+                (long) (responses * 1e9 / Math.max(elapsedNanos, 1)), allocated / responses,
+                data.length);
+    }
+
+    /**
+     * Parse all the responses in {@code data} and do the lookups ImapFolder does on each FETCH
+     * response.
+     *
+     * @return the number of untagged responses.
+     */
+    private static int replay(byte[] data) throws Exception {
+        final ImapResponseParser parser = new ImapResponseParser(new ByteArrayInputStream(data),
+                new DiscourseLogger(64));
+        int untagged = 0;
+        for (;;) {
+            final ImapResponse response = parser.readResponse();
+            if (response.isTagged()) {
+                assertTrue(response.isOk());
+                parser.destroyResponses();
+                return untagged;
+            }
+            untagged++;
+            assertTrue(response.isDataResponse(1, ImapConstants.FETCH));
+            final ImapList fetchList = response.getListOrEmpty(2);
+            assertFalse(fetchList.getKeyedStringOrEmpty(ImapConstants.UID).isEmpty());
+            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+            fetchList.getKeyedStringOrEmpty(ImapConstants.RFC822_SIZE).getNumberOrZero();
+            fetchList.getKeyedStringOrEmpty(ImapConstants.INTERNALDATE).getDateOrNull();
+            fetchList.getKeyedListOrEmpty(ImapConstants.BODYSTRUCTURE);
+            fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream().close();
+            parser.destroyResponses();
+        }
+    }
+}
@@ -21,6 +21,7 @@ import static com.android.email.mail.store.imap.ImapTestUtils.buildList;
 import static com.android.email.mail.store.imap.ImapTestUtils.buildResponse;
 import static com.android.email.mail.store.imap.ImapTestUtils.createFixedLengthInputStream;
 
+import com.android.email.FixedLengthInputStream;
 import com.android.email.mail.store.imap.ImapResponseParser.ByeException;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.emailcommon.TempDirectory;
@@ -31,7 +32,9 @@ import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 @SmallTest
 public class ImapResponseParserTest extends AndroidTestCase {
@@ -220,6 +223,33 @@ public class ImapResponseParserTest extends AndroidTestCase {
                 ), r);
     }
 
+    public void testLiteralHandler() throws Exception {
+        final ImapResponseParser p = generateParser(3,
+                "* test {3}\r\n" +
+                "ABC {4}\r\n" +
+                "wxyz\r\n"
+                );
+        final StringBuilder handled = new StringBuilder();
+        p.setLiteralHandler(new ImapResponseParser.LiteralHandler() {
+            @Override
+            public ImapString handleLiteral(FixedLengthInputStream in) throws IOException {
+                if (handled.length() > 0) {
+                    return null;
+                }
+                // Only read part of the literal; the parser skips the rest
+                handled.append((char) in.read());
+                return ImapString.EMPTY;
+            }
+        });
+        final ImapResponse r = p.readResponse();
+        assertEquals("A", handled.toString());
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("test"),
+                ImapString.EMPTY,
+                new ImapTempFileLiteral(createFixedLengthInputStream("wxyz"))
+                ), r);
+    }
+
     public void testAlert() throws Exception {
         ImapResponse r;
         final ImapResponseParser p = generateParser(100000,
@@ -374,6 +404,65 @@ public class ImapResponseParserTest extends AndroidTestCase {
         assertTrue(p.readResponse().isOk());
     }
 
+    /**
+     * An input stream that returns at most one byte per read, so that every token crosses a
+     * buffer boundary.
+     */
+    private static class OneByteInputStream extends FilterInputStream {
+        public OneByteInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            return super.read(b, offset, Math.min(length, 1));
+        }
+    }
+
+    /** Responses that arrive in small pieces should be parsed the same way. */
+    public void testSmallReads() throws Exception {
+        final ImapResponseParser p = new ImapResponseParser(new OneByteInputStream(
+                new ByteArrayInputStream(Utility.toAscii(
+                        "* 1 FETCH (BODY[HEADER.FIELDS (DATE)] {3}\r\n" +
+                        "ABC UID 5 FLAGS (\\Seen) \"x y\" NIL)\r\n" +
+                        "100 OK done\r\n"))),
+                new DiscourseLogger(4), 100000);
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("1"),
+                new ImapSimpleString("FETCH"),
+                buildList(
+                        new ImapSimpleString("BODY[HEADER.FIELDS (DATE)]"),
+                        new ImapMemoryLiteral(createFixedLengthInputStream("ABC")),
+                        new ImapSimpleString("UID"),
+                        new ImapSimpleString("5"),
+                        new ImapSimpleString("FLAGS"),
+                        buildList(new ImapSimpleString("\\Seen")),
+                        new ImapSimpleString("x y"),
+                        ImapString.EMPTY
+                        )
+                ), p.readResponse());
+        assertElement(buildResponse("100", false,
+                new ImapSimpleString("OK"),
+                new ImapSimpleString("done")
+                ), p.readResponse());
+    }
+
+    /** A literal larger than the read buffer must come through intact. */
+    public void testLargeLiteral() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        final String body = sb.toString();
+        final ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (BODY[] {" + body.length() + "}\r\n" + body + " UID 5)\r\n" +
+                "100 OK done\r\n");
+        final ImapResponse r = p.readResponse();
+        assertEquals(body, r.getListOrEmpty(2).getStringOrEmpty(1).getString());
+        assertEquals("5", r.getListOrEmpty(2).getStringOrEmpty(3).getString());
+        assertTrue(p.readResponse().isOk());
+    }
+
     /** Make sure literals and strings are interchangeable. */
     public void testLiteralStringConversion() throws Exception {
         ImapResponse r;
@@ -26,6 +26,7 @@ import com.android.email.mail.transport.DiscourseLogger;
 import com.android.emailcommon.utility.Utility;
 
 import java.io.ByteArrayInputStream;
+import java.util.Locale;
 
 import junit.framework.Assert;
 
@@ -94,6 +95,97 @@ public final class ImapTestUtils {
         }
     }
 
+    /**
+     * Build a server transcript of {@code count} FETCH responses to a "UID FETCH 1:* (UID FLAGS)"
+     * command, followed by the tagged OK.
+     */
+    public static String buildFlagsFetchTranscript(int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= count; i++) {
+            sb.append(String.format(Locale.US, "* %d FETCH (UID %d FLAGS (%s))\r\n", i, i + 1000,
+                    (i % 3 == 0) ? "" : (i % 3 == 1) ? "\\Seen" : "\\Seen \\Flagged"));
+        }
+        sb.append("1 OK UID FETCH completed\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Build a server transcript of {@code count} FETCH responses with the fields we ask for when
+     * syncing message headers (UID, size, date, flags, envelope and the Message-ID header),
+     * followed by the tagged OK.
+     */
+    public static String buildEnvelopeFetchTranscript(int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= count; i++) {
+            final String header = String.format(Locale.US,
+                    "Message-ID: <%d.%d@mail.example.com>\r\n\r\n", i, i * 7919);
+            sb.append(String.format(Locale.US, "* %d FETCH (UID %d RFC822.SIZE %d" +
+                    " INTERNALDATE \"17-Jun-2014 10:%02d:%02d -0700\" FLAGS (\\Seen)" +
+                    " ENVELOPE (\"Tue, 17 Jun 2014 10:%02d:%02d -0700\" \"Subject number %d\"" +
+                    " ((\"Sender %d\" NIL \"sender%d\" \"example.com\"))" +
+                    " ((\"Sender %d\" NIL \"sender%d\" \"example.com\"))" +
+                    " ((NIL NIL \"reply\" \"example.com\"))" +
+                    " ((\"Me\" NIL \"me\" \"example.com\") (NIL NIL \"list\" \"example.org\"))" +
+                    " NIL NIL NIL \"<%d.%d@mail.example.com>\")" +
+                    " BODY[HEADER.FIELDS (message-id)] {%d}\r\n%s)\r\n",
+                    i, i + 1000, 2000 + i, i % 60, i % 60, i % 60, i % 60, i, i, i, i, i,
+                    i, i * 7919, header.length(), header));
+        }
+        sb.append("1 OK UID FETCH completed\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Build a server transcript of {@code count} FETCH responses, each with the BODYSTRUCTURE of
+     * a multipart message nested {@code depth} levels deep, followed by the tagged OK.
+     */
+    public static String buildBodyStructureTranscript(int count, int depth) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= count; i++) {
+            sb.append(String.format(Locale.US, "* %d FETCH (UID %d BODYSTRUCTURE ", i, i + 1000));
+            appendMultipart(sb, depth);
+            sb.append(")\r\n");
+        }
+        sb.append("1 OK UID FETCH completed\r\n");
+        return sb.toString();
+    }
+
+    private static void appendMultipart(StringBuilder sb, int depth) {
+        sb.append('(');
+        sb.append("(\"TEXT\" \"PLAIN\" (\"CHARSET\" \"UTF-8\") NIL NIL \"QUOTED-PRINTABLE\"" +
+                " 1024 20 NIL NIL NIL)");
+        if (depth > 1) {
+            appendMultipart(sb, depth - 1);
+        } else {
+            sb.append("(\"IMAGE\" \"JPEG\" (\"NAME\" \"photo.jpg\") \"<photo@example.com>\"" +
+                    " NIL \"BASE64\" 123456 NIL (\"ATTACHMENT\" (\"FILENAME\" \"photo.jpg\"))" +
+                    " NIL)");
+        }
+        sb.append(" \"MIXED\" (\"BOUNDARY\" \"----=_Part_").append(depth)
+                .append("\") NIL NIL)");
+    }
+
+    /**
+     * Build a server transcript of {@code count} FETCH responses, each with a BODY[] literal of
+     * {@code size} bytes, followed by the tagged OK.
+     */
+    public static String buildLiteralFetchTranscript(int count, int size) {
+        final StringBuilder body = new StringBuilder(size);
+        while (body.length() < size) {
+            body.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\r\n");
+        }
+        body.setLength(size);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= count; i++) {
+            sb.append(String.format(Locale.US, "* %d FETCH (UID %d BODY[] {%d}\r\n", i, i + 1000,
+                    size));
+            sb.append(body);
+            sb.append(")\r\n");
+        }
+        sb.append("1 OK UID FETCH completed\r\n");
+        return sb.toString();
+    }
+
     /**
      * Convenience method to build an {@link FixedLengthInputStream} from a String, using
      * US-ASCII.
@@ -20,6 +20,9 @@ import android.test.AndroidTestCase;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import java.util.Arrays;
+import java.util.List;
+
 @SmallTest
 public class ImapUtilityTests extends AndroidTestCase {
     public static final String[] EmptyArrayString = new String[0];
@@ -136,4 +139,56 @@ public class ImapUtilityTests extends AndroidTestCase {
         actual = ImapUtility.getImapRangeValues("1:*");
         MoreAsserts.assertEquals(expected, actual);
     }
+
+    private static void assertRanges(String set, long... expected) {
+        assertEquals(Arrays.toString(expected),
+                Arrays.toString(ImapUtility.getImapSequenceRanges(set)));
+    }
+
+    /**
+     * Test getting the ranges of an IMAP sequence set.
+     */
+    public void testGetImapSequenceRanges() {
+        // Single numbers are ranges of one, and ranges are put in order
+        assertRanges("41,43:116", 41, 41, 43, 116);
+        assertRanges("7:5", 5, 7);
+
+        // "*" is the largest number there is
+        assertRanges("5:*", 5, Long.MAX_VALUE);
+        assertRanges("*:5", 5, Long.MAX_VALUE);
+
+        // Invalid items are skipped
+        assertRanges("a,3,1:x,8:9", 3, 3, 8, 9);
+        assertRanges("");
+        assertRanges(null);
+    }
+
+    /**
+     * Test building compressed sequence sets from lists of UIDs.
+     */
+    public void testGetImapSequenceSets() {
+        List<String> actual;
+
+        actual = ImapUtility.getImapSequenceSets(EmptyArrayString, 100);
+        assertTrue(actual.isEmpty());
+
+        actual = ImapUtility.getImapSequenceSets(new String[] {"7"}, 100);
+        MoreAsserts.assertEquals(new String[] {"7"}, actual.toArray());
+
+        // Runs are collapsed, out of order and duplicate values are handled
+        actual = ImapUtility.getImapSequenceSets(
+                new String[] {"4", "1", "2", "3", "3", "10", "8", "7"}, 100);
+        MoreAsserts.assertEquals(new String[] {"1:4,7:8,10"}, actual.toArray());
+
+        // Non-numeric values are passed through once, after the numbers
+        actual = ImapUtility.getImapSequenceSets(new String[] {"x", "2", "1", "x"}, 100);
+        MoreAsserts.assertEquals(new String[] {"1:2,x"}, actual.toArray());
+
+        // Sets are split at the length limit, but a single item is never split
+        actual = ImapUtility.getImapSequenceSets(
+                new String[] {"1", "3", "5", "7", "100:200"}, 5);
+        MoreAsserts.assertEquals(new String[] {"1,3,5", "7", "100:200"}, actual.toArray());
+        actual = ImapUtility.getImapSequenceSets(new String[] {"100", "101", "102", "200"}, 7);
+        MoreAsserts.assertEquals(new String[] {"100:102", "200"}, actual.toArray());
+    }
 }
@@ -123,6 +123,28 @@ public class DiscourseLoggerTest extends TestCase {
                 ));
     }
 
+    public void testAddReceivedBytes() {
+        final byte[] received = b("xx* aaa\r\n* b\u0080\nyy");
+        final DiscourseLogger store = new DiscourseLogger(4);
+        store.addSentCommand("1 NOOP");
+        store.addReceivedBytes(received, 2, received.length - 4);
+        MoreAsserts.assertEquals(s("1 NOOP", "* aaa", "* b\\x80"), store.getLines());
+    }
+
+    public void testAddReceivedBytesMatchesSingleBytes() {
+        final byte[] received = new byte[512];
+        for (int i = 0; i < received.length; i++) {
+            received[i] = (byte) i;
+        }
+        final DiscourseLogger bulk = new DiscourseLogger(4);
+        bulk.addReceivedBytes(received, 0, received.length);
+        final DiscourseLogger single = new DiscourseLogger(4);
+        for (byte b : received) {
+            single.addReceivedByte(b & 0xff);
+        }
+        MoreAsserts.assertEquals(single.getLines(), bulk.getLines());
+    }
+
     private void checkDiscourseStore(int storeSize, Object[] discource, String[] expected) {
         DiscourseLogger store = new DiscourseLogger(storeSize);
         for (Object o : discource) {
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests of the SmtpDataOutputStream
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.transport.SmtpDataOutputStreamTests email
+ */
+@SmallTest
+public class SmtpDataOutputStreamTests extends TestCase {
+
+    private static String encode(String message, int bufferSize, boolean chunking)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final SmtpDataOutputStream data =
+                new SmtpDataOutputStream(out, new byte[bufferSize], chunking);
+        data.write(message.getBytes());
+        data.finish();
+        return out.toString();
+    }
+
+    public void testDotStuffing() throws IOException {
+        assertEquals("..a\r\nb.c\r\n..\r\n...d\r\n",
+                encode(".a\r\nb.c\r\n.\r\n..d\r\n", 64, false));
+    }
+
+    public void testEolConversion() throws IOException {
+        assertEquals("a\r\n\r\nb\r\n..c\r\n", encode("a\n\nb\r\n.c\n", 64, false));
+    }
+
+    public void testMessageEndsWithCrlf() throws IOException {
+        assertEquals("a\r\n", encode("a", 64, false));
+        assertEquals("a\r\n", encode("a\r", 64, false));
+        assertEquals("", encode("", 64, false));
+    }
+
+    public void testSmallBuffer() throws IOException {
+        // The stuffed dots and inserted CRs cross buffer boundaries
+        assertEquals("..a\r\n..b\r\n", encode(".a\n.b", 1, false));
+        assertEquals("..a\r\n..b\r\n", encode(".a\n.b", 3, false));
+    }
+
+    public void testChunking() throws IOException {
+        // Dots aren't stuffed, and the last chunk needn't end with CRLF
+        assertEquals("BDAT 4\r\n.a\r\nBDAT 4 LAST\r\n\r\n.b",
+                encode(".a\n\n.b", 4, true));
+        assertEquals("BDAT 6 LAST\r\n.a\r\n.b", encode(".a\n.b", 64, true));
+    }
+
+    public void testCounts() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final SmtpDataOutputStream data = new SmtpDataOutputStream(out, new byte[4], true);
+        data.write("0123456789".getBytes());
+        data.flush();
+        assertEquals(8, data.getBytesSent());
+        data.finish();
+
+        assertEquals(3, data.getChunkCount());
+        assertEquals(10, data.getBytesSent());
+    }
+}
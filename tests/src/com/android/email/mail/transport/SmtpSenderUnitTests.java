@@ -105,8 +105,7 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
     public void testSendMessageWithBody() throws Exception {
         MockTransport mockTransport = openAndInjectMockTransport();
 
-        // Since SmtpSender.sendMessage() does a close then open, we need to preset for the open
-        mockTransport.expectClose();
+        // SmtpSender.sendMessage() opens the session if it isn't open yet
         setupOpen(mockTransport, null);
 
         Message message = setupSimpleMessage();
@@ -124,7 +123,7 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         mockTransport.expect("Content-Transfer-Encoding: base64");
         mockTransport.expect("");
         mockTransport.expect(TEST_STRING_BASE64);
-        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+        mockTransport.expect("\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
 
         // Now trigger the transmission
         mSender.sendMessage(message.mId);
@@ -136,8 +135,7 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
     public void testSendMessageWithEmptyAttachment() throws MessagingException, IOException {
         MockTransport mockTransport = openAndInjectMockTransport();
 
-        // Since SmtpSender.sendMessage() does a close then open, we need to preset for the open
-        mockTransport.expectClose();
+        // SmtpSender.sendMessage() opens the session if it isn't open yet
         setupOpen(mockTransport, null);
 
         Message message = setupSimpleMessage();
@@ -154,12 +152,136 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         expectSimpleAttachment(mockTransport, attachment);
         mockTransport.expect("");
         mockTransport.expect("----.*--");
-        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+        mockTransport.expect("\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
 
         // Now trigger the transmission
         mSender.sendMessage(message.mId);
     }
 
+    /**
+     * Test:  Send two messages over one session, with the envelope pipelined
+     */
+    public void testSessionReusedWithPipelining() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpen(mockTransport, "PIPELINING,AUTH PLAIN");
+
+        Message message1 = setupSimpleMessage();
+        message1.save(mProviderContext);
+        saveSimpleBody(message1);
+        Message message2 = setupSimpleMessage();
+        message2.save(mProviderContext);
+        saveSimpleBody(message2);
+
+        expectPipelinedSimpleMessage(mockTransport);
+        // The session is reset, rather than reopened, for the second message
+        mockTransport.expect("RSET", "250 2.0.0 OK");
+        expectPipelinedSimpleMessage(mockTransport);
+
+        mSender.sendMessage(message1.mId);
+        mSender.sendMessage(message2.mId);
+        assertTrue(mockTransport.isOpen());
+
+        mSender.close();
+        assertFalse(mockTransport.isOpen());
+    }
+
+    /**
+     * Test:  A failed send closes the session, and the next message is sent on a new one
+     */
+    public void testSessionClosedAfterFailedSend() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpen(mockTransport, "AUTH PLAIN");
+
+        Message message1 = setupSimpleMessage();
+        message1.save(mProviderContext);
+        saveSimpleBody(message1);
+        Message message2 = setupSimpleMessage();
+        message2.save(mProviderContext);
+        saveSimpleBody(message2);
+
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org>",
+                "250 2.1.0 <Jones@Registry.Org> sender ok");
+        mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
+                "550 5.1.1 <Smith@Registry.Org> no such user");
+        try {
+            mSender.sendMessage(message1.mId);
+            fail("Should not be able to send to a rejected recipient");
+        } catch (MessagingException me) {
+            // good - expected
+        }
+        assertFalse(mockTransport.isOpen());
+
+        // The session is opened again, rather than reset
+        setupOpen(mockTransport, "AUTH PLAIN");
+        expectSimpleMessage(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING_BASE64);
+        mockTransport.expect("\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+        mSender.sendMessage(message2.mId);
+        assertTrue(mockTransport.isOpen());
+    }
+
+    /**
+     * Test:  Send a message with BDAT when the server supports CHUNKING
+     */
+    public void testSendMessageWithChunking() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpen(mockTransport, "PIPELINING,CHUNKING,AUTH PLAIN");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+        saveSimpleBody(message);
+
+        mockTransport.expectLiterally("MAIL FROM:<Jones@Registry.Org>\r\n" +
+                "RCPT TO:<Smith@Registry.Org>", new String[] {
+                "250 2.1.0 <Jones@Registry.Org> sender ok",
+                "250 2.1.5 <Smith@Registry.Org> recipient ok"});
+        // The whole message fits in one chunk; there's no DATA and no "." at the end
+        mockTransport.expect("BDAT \\d+ LAST");
+        mockTransport.expect("Date: .*");
+        mockTransport.expect("Message-ID: .*");
+        mockTransport.expect("From: Jones@Registry.Org");
+        mockTransport.expect("To: Smith@Registry.Org");
+        mockTransport.expect("MIME-Version: 1.0");
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING_BASE64,
+                "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+
+        mSender.sendMessage(message.mId);
+    }
+
+    private void saveSimpleBody(Message message) {
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+    }
+
+    /**
+     * Prepare to receive a simple message with a body, with MAIL FROM and RCPT TO sent at once
+     */
+    private void expectPipelinedSimpleMessage(MockTransport mockTransport) {
+        mockTransport.expectLiterally("MAIL FROM:<Jones@Registry.Org>\r\n" +
+                "RCPT TO:<Smith@Registry.Org>", new String[] {
+                "250 2.1.0 <Jones@Registry.Org> sender ok",
+                "250 2.1.5 <Smith@Registry.Org> recipient ok"});
+        mockTransport.expect("DATA", "354 enter mail, end with . on a line by itself");
+        mockTransport.expect("Date: .*");
+        mockTransport.expect("Message-ID: .*");
+        mockTransport.expect("From: Jones@Registry.Org");
+        mockTransport.expect("To: Smith@Registry.Org");
+        mockTransport.expect("MIME-Version: 1.0");
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING_BASE64);
+        mockTransport.expect("\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+    }
+
     /**
      * Prepare to send a simple message (see setReceiveSimpleMessage)
      */
@@ -228,8 +350,7 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
     public void testEmptyLineResponse() throws Exception {
         MockTransport mockTransport = openAndInjectMockTransport();
 
-        // Since SmtpSender.sendMessage() does a close then open, we need to preset for the open
-        mockTransport.expectClose();
+        // SmtpSender.sendMessage() opens the session if it isn't open yet
 
         // Load up just the bare minimum to expose the error
         mockTransport.expect(null, "220 MockTransport 2000 Ready To Assist You Peewee");
@@ -18,6 +18,7 @@ package com.android.email.provider;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
@@ -26,6 +27,7 @@ import android.net.Uri;
 import android.test.ProviderTestCase2;
 import android.test.suitebuilder.annotation.Suppress;
 
+import com.android.email.provider.ContentCache.CacheEntry;
 import com.android.email.provider.ContentCache.CacheToken;
 import com.android.email.provider.ContentCache.CachedCursor;
 import com.android.email.provider.ContentCache.TokenList;
@@ -34,6 +36,13 @@ import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.mail.utils.MatrixCursorWithCachedColumns;
 
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Tests of ContentCache
  *
@@ -155,9 +164,9 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         // The cursor wrapped in cachedCursor is the underlying cursor
         Cursor activeCursor = cachedCursor.getWrappedCursor();
 
-        // The cursor should be in active cursors
-        int activeCount = ContentCache.sActiveCursors.getCount(activeCursor);
-        assertEquals(1, activeCount);
+        // The cache and our cursor both have a reference to the underlying cursor
+        CacheEntry entry = cachedCursor.getEntry();
+        assertEquals(2, entry.getRefCount());
 
         // Some basic functionality that shouldn't throw exceptions and should otherwise act as the
         // underlying cursor would
@@ -180,8 +189,8 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         // The underlying cursor shouldn't be closed because it's in a cache (we'll test
         // that in testContentCache)
         assertFalse(activeCursor.isClosed());
-        // Our cursor should no longer be in the active cursors map
-        assertFalse(ContentCache.sActiveCursors.contains(activeCursor));
+        // Our cursor should no longer have a reference
+        assertEquals(1, entry.getRefCount());
 
         // TODO - change the code or the test to enforce the assertion that a cached cursor
         // should have only zero or one rows.  We cannot test this in the constructor, however,
@@ -266,37 +275,156 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         ContentCache cache = new ContentCache("Name", SIMPLE_PROJECTION, 2);
         // Random cursor; what's in it doesn't matter
         Cursor underlyingCursor = getOneRowCursor();
-        Cursor cachedCursor1 = new CachedCursor(underlyingCursor, cache, "1");
-        Cursor cachedCursor2 = new CachedCursor(underlyingCursor, cache, "1");
-        assertEquals(2, ContentCache.sActiveCursors.getCount(underlyingCursor));
+        Cursor cachedCursor1 = cache.putCursor(
+                underlyingCursor, "1", SIMPLE_PROJECTION, cache.getCacheToken("1"));
+        Cursor cachedCursor2 = cache.getCachedCursor("1", SIMPLE_PROJECTION);
+        // The cache and both cached cursors have a reference to the underlying cursor
+        CacheEntry entry = ((CachedCursor)cachedCursor1).getEntry();
+        assertSame(entry, ((CachedCursor)cachedCursor2).getEntry());
+        assertEquals(3, entry.getRefCount());
         cachedCursor1.close();
         assertTrue(cachedCursor1.isClosed());
-        // Underlying cursor should be open (still one cached cursor open)
-        assertFalse(underlyingCursor.isClosed());
-        cachedCursor2.close();
-        assertTrue(cachedCursor2.isClosed());
-        assertEquals(0, ContentCache.sActiveCursors.getCount(underlyingCursor));
-        // Underlying cursor should be closed (no cached cursors open)
-        assertTrue(underlyingCursor.isClosed());
-
-        underlyingCursor = getOneRowCursor();
-        cachedCursor1 = cache.putCursor(
-                underlyingCursor, "2", SIMPLE_PROJECTION, cache.getCacheToken("2"));
-        cachedCursor2 = new CachedCursor(underlyingCursor, cache, "2");
-        assertEquals(2, ContentCache.sActiveCursors.getCount(underlyingCursor));
+        // Closing again doesn't release another reference
         cachedCursor1.close();
+        assertEquals(2, entry.getRefCount());
         cachedCursor2.close();
-        assertEquals(0, ContentCache.sActiveCursors.getCount(underlyingCursor));
+        assertTrue(cachedCursor2.isClosed());
+        assertEquals(1, entry.getRefCount());
         // Underlying cursor should still be open; it's in the cache
         assertFalse(underlyingCursor.isClosed());
-        // Cache a new cursor
-        cachedCursor2 = new CachedCursor(underlyingCursor, cache, "2");
-        assertEquals(1, ContentCache.sActiveCursors.getCount(underlyingCursor));
-        // Remove "2" from the cache and close the cursor
+
+        // Remove "1" from the cache while a cached cursor is still using it
+        cachedCursor1 = cache.getCachedCursor("1", SIMPLE_PROJECTION);
         cache.invalidate();
-        cachedCursor2.close();
+        assertNull(cache.getCachedCursor("1", SIMPLE_PROJECTION));
+        assertFalse(underlyingCursor.isClosed());
         // The underlying cursor should now be closed (not in the cache and no cached cursors)
-        assertEquals(0, ContentCache.sActiveCursors.getCount(underlyingCursor));
+        cachedCursor1.close();
+        assertEquals(0, entry.getRefCount());
         assertTrue(underlyingCursor.isClosed());
     }
+
+    /** A one row cursor that fails if it's read after being closed. */
+    private static class CheckedCursor extends MatrixCursor {
+        CheckedCursor(int version) {
+            super(SIMPLE_PROJECTION, 1);
+            addRow(new Object[] {version});
+        }
+
+        @Override
+        public String getString(int column) {
+            if (isClosed()) {
+                throw new IllegalStateException("Read after close");
+            }
+            return super.getString(column);
+        }
+    }
+
+    /**
+     * Run readers and writers of a small cache concurrently, and check that readers never see
+     * a closed cursor, or a value older than the last completed write of the row.  The
+     * "database" is an array of version numbers, one per row.
+     */
+    public void testConcurrentReadersAndWriters() throws Exception {
+        final int rows = 16;
+        final int readers = 4;
+        final int writers = 2;
+        final int iterations = 5000;
+        final ContentCache cache = new ContentCache("Stress", SIMPLE_PROJECTION, rows / 2);
+        // The current version of each row
+        final AtomicIntegerArray versions = new AtomicIntegerArray(rows);
+        // The version of each row as of its last completed write
+        final AtomicIntegerArray committed = new AtomicIntegerArray(rows);
+        final ConcurrentLinkedQueue<Cursor> cursors = new ConcurrentLinkedQueue<Cursor>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < readers; i++) {
+            final Random random = new Random(i);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < iterations && failure.get() == null; n++) {
+                            final int row = random.nextInt(rows);
+                            final String id = Integer.toString(row);
+                            final int oldest = committed.get(row);
+                            Cursor c = cache.getCachedCursor(id, SIMPLE_PROJECTION);
+                            if (c == null) {
+                                final CacheToken token = cache.getCacheToken(id);
+                                final Cursor dbCursor = new CheckedCursor(versions.get(row));
+                                cursors.add(dbCursor);
+                                c = cache.putCursor(dbCursor, id, SIMPLE_PROJECTION, token);
+                            }
+                            try {
+                                assertTrue(c.moveToFirst());
+                                final int version = Integer.parseInt(c.getString(0));
+                                assertTrue("Stale row " + id, version >= oldest);
+                                assertTrue("Future row " + id, version <= versions.get(row));
+                            } finally {
+                                c.close();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < writers; i++) {
+            final Random random = new Random(readers + i);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < iterations && failure.get() == null; n++) {
+                            final int row = random.nextInt(rows);
+                            final String id = Integer.toString(row);
+                            final int version;
+                            if (n % 100 == 0) {
+                                // Occasionally, a write that invalidates the whole cache
+                                version = versions.incrementAndGet(row);
+                                cache.invalidate();
+                            } else {
+                                cache.lock(id);
+                                version = versions.incrementAndGet(row);
+                                final ContentValues values = new ContentValues();
+                                values.put(SIMPLE_PROJECTION[0], version);
+                                cache.unlock(id, values);
+                            }
+                            int last = committed.get(row);
+                            while (last < version
+                                    && !committed.compareAndSet(row, last, version)) {
+                                last = committed.get(row);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        assertTrue(cache.size() <= rows / 2);
+        // Once nothing is cached, every cursor we made has been closed
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        for (Cursor cursor : cursors) {
+            assertTrue(cursor.isClosed());
+        }
+    }
 }
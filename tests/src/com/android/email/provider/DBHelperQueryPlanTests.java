@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that the hot Message queries are answered from an index, without a full table scan or a
+ * sort.  The selections here mirror those of EmailProvider.genQueryMailboxMessages and of the
+ * local message queries in ImapService.synchronizeMailboxGeneric.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.DBHelperQueryPlanTests email
+ */
+@SmallTest
+public class DBHelperQueryPlanTests extends AndroidTestCase {
+    private DBHelper.DatabaseHelper mHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A null name gives us an in-memory database
+        mHelper = new DBHelper.DatabaseHelper(getContext(), null);
+        mDatabase = mHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        super.tearDown();
+    }
+
+    /**
+     * @return the "detail" column of each row of the query's plan.
+     */
+    private ArrayList<String> getQueryPlan(String sql, String... args) {
+        final ArrayList<String> plan = new ArrayList<String>();
+        final Cursor c = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            final int detailColumn = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.add(c.getString(detailColumn));
+            }
+        } finally {
+            c.close();
+        }
+        return plan;
+    }
+
+    private void assertUsesMailboxTimestampIndex(String sql, String... args) {
+        final ArrayList<String> plan = getQueryPlan(sql, args);
+        assertFalse(plan.isEmpty());
+        for (String step : plan) {
+            assertFalse("Sort in " + plan, step.contains("TEMP B-TREE"));
+            assertTrue("Full scan in " + plan, step.contains("USING"));
+            assertTrue("Wrong index in " + plan,
+                    step.contains(DBHelper.MESSAGE_MAILBOX_TIMESTAMP_INDEX));
+        }
+    }
+
+    public void testMessageListQuery() {
+        final String sql = "SELECT * FROM " + Message.TABLE_NAME + " WHERE "
+                + Message.FLAG_LOADED_SELECTION + " AND " + MessageColumns.MAILBOX_KEY + "=?"
+                + " ORDER BY " + MessageColumns.TIMESTAMP + " DESC LIMIT 100";
+        assertUsesMailboxTimestampIndex(sql, "1");
+    }
+
+    public void testUnseenMessageListQuery() {
+        final String sql = "SELECT * FROM " + Message.TABLE_NAME + " WHERE "
+                + Message.FLAG_LOADED_SELECTION + " AND " + MessageColumns.MAILBOX_KEY + "=?"
+                + " AND " + MessageColumns.FLAG_SEEN + "=0 AND " + MessageColumns.FLAG_READ + "=0"
+                + " ORDER BY " + MessageColumns.TIMESTAMP + " DESC LIMIT 100";
+        assertUsesMailboxTimestampIndex(sql, "1");
+    }
+
+    public void testLocalMessagesSyncQuery() {
+        final String sql = "SELECT * FROM " + Message.TABLE_NAME + " WHERE "
+                + MessageColumns.ACCOUNT_KEY + "=? AND " + MessageColumns.MAILBOX_KEY + "=? AND "
+                + MessageColumns.TIMESTAMP + ">=?";
+        assertUsesMailboxTimestampIndex(sql, "1", "1", "0");
+    }
+
+    public void testOldestMessageSyncQuery() {
+        final String sql = "SELECT MIN(" + MessageColumns.TIMESTAMP + ") FROM "
+                + Message.TABLE_NAME + " WHERE " + MessageColumns.ACCOUNT_KEY + "=? AND "
+                + MessageColumns.MAILBOX_KEY + "=? AND " + MessageColumns.TIMESTAMP + "!=0";
+        assertUsesMailboxTimestampIndex(sql, "1", "1");
+    }
+}
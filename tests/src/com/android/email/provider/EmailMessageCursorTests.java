@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.EmailContent;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Tests of the EmailMessageCursor
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.EmailMessageCursorTests email
+ */
+@SmallTest
+public class EmailMessageCursorTests extends AndroidTestCase {
+    private static final String HTML_COLUMN = "bodyHtml";
+    private static final String TEXT_COLUMN = "bodyText";
+    private static final int MESSAGE_COUNT = 5;
+    /** This message has no text body. */
+    private static final long MISSING_TEXT_ID = 3;
+
+    /** A provider that serves "text N" as the text body of message N, and counts the opens. */
+    private class BodyProvider extends MockContentProvider {
+        int mOpenCount;
+
+        @Override
+        public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+            mOpenCount++;
+            // See Body.getBodyTextUriForMessageWithId() and getBodyHtmlUriForMessageWithId()
+            final boolean isText = "bodyText".equals(uri.getPathSegments().get(0));
+            final String id = uri.getLastPathSegment();
+            if (isText && Long.parseLong(id) == MISSING_TEXT_ID) {
+                throw new FileNotFoundException();
+            }
+            final String body = isText ? "text " + id : "<p>html " + id + "</p>";
+            try {
+                final File file = new File(getContext().getCacheDir(), "body");
+                final FileWriter writer = new FileWriter(file);
+                try {
+                    writer.write(body);
+                } finally {
+                    writer.close();
+                }
+                return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (IOException e) {
+                throw new FileNotFoundException(e.toString());
+            }
+        }
+    }
+
+    private BodyProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new BodyProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(EmailContent.AUTHORITY, mProvider);
+    }
+
+    private EmailMessageCursor createCursor(int windowSize) {
+        final MatrixCursor cursor = new MatrixCursor(
+                new String[] {BaseColumns._ID, HTML_COLUMN, TEXT_COLUMN});
+        for (long id = 0; id < MESSAGE_COUNT; id++) {
+            cursor.addRow(new Object[] {id, null, null});
+        }
+        return new EmailMessageCursor(mResolver, null, cursor, HTML_COLUMN, TEXT_COLUMN,
+                windowSize, 0);
+    }
+
+    private static String getText(EmailMessageCursor cursor, int position) {
+        assertTrue(cursor.moveToPosition(position));
+        return cursor.getString(cursor.getColumnIndex(TEXT_COLUMN));
+    }
+
+    public void testBodiesLoadedOnDemand() {
+        final EmailMessageCursor cursor = createCursor(MESSAGE_COUNT);
+        assertEquals(0, mProvider.mOpenCount);
+
+        assertEquals("text 1", getText(cursor, 1));
+        // Both of the row's bodies are loaded together
+        assertEquals(2, mProvider.mOpenCount);
+        assertNotNull(cursor.getString(cursor.getColumnIndex(HTML_COLUMN)));
+        assertEquals("text 1", getText(cursor, 1));
+        assertEquals(2, mProvider.mOpenCount);
+
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(cursor.getColumnIndex(TEXT_COLUMN)));
+        assertEquals(2, mProvider.mOpenCount);
+        cursor.close();
+    }
+
+    public void testOnlyWindowKept() {
+        final EmailMessageCursor cursor = createCursor(2);
+        assertEquals("text 0", getText(cursor, 0));
+        assertEquals("text 1", getText(cursor, 1));
+        assertEquals(4, mProvider.mOpenCount);
+        assertEquals("text 0", getText(cursor, 0));
+        assertEquals(4, mProvider.mOpenCount);
+
+        // Row 1 is the least recently used, so it's the one dropped to make room for row 2
+        assertEquals("text 2", getText(cursor, 2));
+        assertEquals("text 0", getText(cursor, 0));
+        assertEquals(6, mProvider.mOpenCount);
+        assertEquals("text 1", getText(cursor, 1));
+        assertEquals(8, mProvider.mOpenCount);
+        cursor.close();
+    }
+
+    public void testMissingBody() {
+        final EmailMessageCursor cursor = createCursor(MESSAGE_COUNT);
+        assertNull(getText(cursor, (int) MISSING_TEXT_ID));
+        assertNotNull(cursor.getString(cursor.getColumnIndex(HTML_COLUMN)));
+        cursor.close();
+    }
+}
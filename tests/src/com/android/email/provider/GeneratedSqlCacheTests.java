@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the GeneratedSqlCache
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.GeneratedSqlCacheTests email
+ */
+@SmallTest
+public class GeneratedSqlCacheTests extends TestCase {
+    private static final int QUERY_1 = 1;
+    private static final int QUERY_2 = 2;
+
+    public void testKeyedByProjectionContents() {
+        final GeneratedSqlCache cache = new GeneratedSqlCache(10);
+        assertNull(cache.get(QUERY_1, new String[] {"a", "b"}, false));
+        cache.put(QUERY_1, new String[] {"a", "b"}, false, "sql");
+
+        // The projection usually arrives in a new array each time
+        assertEquals("sql", cache.get(QUERY_1, new String[] {"a", "b"}, false));
+        assertNull(cache.get(QUERY_1, new String[] {"b", "a"}, false));
+        assertNull(cache.get(QUERY_1, new String[] {"a", "b"}, true));
+        assertNull(cache.get(QUERY_2, new String[] {"a", "b"}, false));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+    }
+
+    public void testProjectionCopied() {
+        final GeneratedSqlCache cache = new GeneratedSqlCache(10);
+        final String[] projection = new String[] {"a", "b"};
+        cache.put(QUERY_1, projection, false, "sql");
+        projection[0] = "c";
+        assertNull(cache.get(QUERY_1, projection, false));
+        assertEquals("sql", cache.get(QUERY_1, new String[] {"a", "b"}, false));
+    }
+
+    public void testBounded() {
+        final GeneratedSqlCache cache = new GeneratedSqlCache(2);
+        cache.put(QUERY_1, new String[] {"a"}, false, "sql 1");
+        cache.put(QUERY_1, new String[] {"b"}, false, "sql 2");
+        cache.put(QUERY_1, new String[] {"c"}, false, "sql 3");
+        assertNull(cache.get(QUERY_1, new String[] {"a"}, false));
+        assertEquals("sql 3", cache.get(QUERY_1, new String[] {"c"}, false));
+    }
+}
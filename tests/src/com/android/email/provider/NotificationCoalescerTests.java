@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Tests of the NotificationCoalescer
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.NotificationCoalescerTests email
+ */
+@SmallTest
+public class NotificationCoalescerTests extends TestCase {
+    private static final Uri URI_1 = Uri.parse("content://com.android.email.notifier/message/1");
+    private static final Uri URI_2 = Uri.parse("content://com.android.email.notifier/message/2");
+
+    private static class RecordingSender implements NotificationCoalescer.Sender {
+        final ArrayList<Uri> mUris = new ArrayList<Uri>();
+        final ArrayList<Long> mAccounts = new ArrayList<Long>();
+        final ArrayList<Long> mMailboxes = new ArrayList<Long>();
+
+        @Override
+        public void notifyChange(final Uri uri) {
+            mUris.add(uri);
+        }
+
+        @Override
+        public void sendMessageListChanged(final long accountId) {
+            mAccounts.add(accountId);
+        }
+
+        @Override
+        public void notifyWidgets(final long mailboxId) {
+            mMailboxes.add(mailboxId);
+        }
+    }
+
+    private RecordingSender mSender;
+    private NotificationCoalescer mCoalescer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSender = new RecordingSender();
+        mCoalescer = new NotificationCoalescer(mSender, new Handler(Looper.getMainLooper()));
+    }
+
+    public void testDuplicatesSentOnce() {
+        mCoalescer.notifyChange(URI_1);
+        mCoalescer.notifyChange(URI_2);
+        mCoalescer.notifyChange(URI_1);
+        mCoalescer.sendMessageListChanged(1);
+        mCoalescer.sendMessageListChanged(2);
+        mCoalescer.sendMessageListChanged(1);
+        mCoalescer.notifyWidgets(5);
+        mCoalescer.notifyWidgets(5);
+
+        // Nothing is sent until the window ends
+        assertTrue(mSender.mUris.isEmpty());
+        assertTrue(mSender.mAccounts.isEmpty());
+        assertTrue(mSender.mMailboxes.isEmpty());
+
+        mCoalescer.flush();
+        MoreAsserts.assertEquals(new Uri[] {URI_1, URI_2}, mSender.mUris.toArray());
+        MoreAsserts.assertEquals(new Long[] {1L, 2L}, mSender.mAccounts.toArray());
+        MoreAsserts.assertEquals(new Long[] {5L}, mSender.mMailboxes.toArray());
+    }
+
+    public void testBroadcastWithoutAccountCoversAll() {
+        assertFalse(mCoalescer.hasPendingMessageListChanged());
+        mCoalescer.sendMessageListChanged(1);
+        assertTrue(mCoalescer.hasPendingMessageListChanged());
+        mCoalescer.sendMessageListChanged(Account.NO_ACCOUNT);
+        mCoalescer.sendMessageListChanged(2);
+        mCoalescer.flush();
+        MoreAsserts.assertEquals(new Long[] {Account.NO_ACCOUNT}, mSender.mAccounts.toArray());
+        assertFalse(mCoalescer.hasPendingMessageListChanged());
+    }
+
+    public void testFlushClearsPending() {
+        mCoalescer.notifyChange(URI_1);
+        mCoalescer.flush();
+        mCoalescer.flush();
+        assertEquals(1, mSender.mUris.size());
+
+        // Changes after a flush are sent by the next one
+        mCoalescer.notifyChange(URI_1);
+        mCoalescer.flush();
+        assertEquals(2, mSender.mUris.size());
+    }
+}
@@ -1334,6 +1334,38 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(0, numMessages);
     }
 
+    /**
+     * Test that cached rows see updates of and cascaded deletes of their rows
+     */
+    public void testRowCacheWrites() {
+        final ContentResolver resolver = mMockContext.getContentResolver();
+        final Account account = ProviderTestUtils.setupAccount("row-cache", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box1", account.mId, true, mMockContext);
+        final Uri accountUri = ContentUris.withAppendedId(Account.CONTENT_URI, account.mId);
+        final Uri boxUri = ContentUris.withAppendedId(Mailbox.CONTENT_URI, box.mId);
+
+        // Read (and so cache) the mailbox, then rename it
+        assertEquals("box1", Mailbox.restoreMailboxWithId(mMockContext, box.mId).mDisplayName);
+        ContentValues values = new ContentValues();
+        values.put(MailboxColumns.DISPLAY_NAME, "box2");
+        assertEquals(1, resolver.update(boxUri, values, null, null));
+        assertEquals("box2", Mailbox.restoreMailboxWithId(mMockContext, box.mId).mDisplayName);
+
+        // Smart forward stays disabled in cached accounts
+        Account.restoreAccountWithId(mMockContext, account.mId);
+        values = new ContentValues();
+        values.put(AccountColumns.FLAGS,
+                Account.FLAGS_INCOMPLETE | Account.FLAGS_SUPPORTS_SMART_FORWARD);
+        assertEquals(1, resolver.update(accountUri, values, null, null));
+        assertEquals(Account.FLAGS_INCOMPLETE,
+                Account.restoreAccountWithId(mMockContext, account.mId).mFlags);
+
+        // Deleting the account deletes its mailbox too
+        resolver.delete(accountUri, null, null);
+        assertNull(Account.restoreAccountWithId(mMockContext, account.mId));
+        assertNull(Mailbox.restoreMailboxWithId(mMockContext, box.mId));
+    }
+
     /**
      * Test cascaded delete mailbox
      * TODO: body
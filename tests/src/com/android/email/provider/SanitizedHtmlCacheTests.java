@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Tests of the SanitizedHtmlCache
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.SanitizedHtmlCacheTests email
+ */
+@SmallTest
+public class SanitizedHtmlCacheTests extends AndroidTestCase {
+    private static final int MEMORY_CHARS = 1024;
+    private static final long MAX_DISK_BYTES = 1024;
+
+    /** A cache that "sanitizes" by upper casing, and counts how often it does so. */
+    private class CountingCache extends SanitizedHtmlCache {
+        int mSanitizeCount;
+
+        CountingCache(long maxDiskBytes) {
+            super(getContext(), mCacheDir, MEMORY_CHARS, maxDiskBytes);
+        }
+
+        @Override
+        String sanitize(String html) {
+            mSanitizeCount++;
+            return html.toUpperCase();
+        }
+    }
+
+    private File mCacheDir;
+    private File mBodyDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = new File(getContext().getCacheDir(), "SanitizedHtmlCacheTests");
+        mBodyDir = new File(getContext().getCacheDir(), "SanitizedHtmlCacheTestsBodies");
+        deleteDirectory(mCacheDir);
+        deleteDirectory(mBodyDir);
+        assertTrue(mBodyDir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory(mCacheDir);
+        deleteDirectory(mBodyDir);
+        super.tearDown();
+    }
+
+    private static void deleteDirectory(File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private File writeBody(long messageId, String html) throws IOException {
+        final File file = new File(mBodyDir, messageId + ".html");
+        final FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(html);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    public void testSanitizedOnce() throws IOException {
+        final File body = writeBody(1, "<p>body</p>");
+        final CountingCache cache = new CountingCache(MAX_DISK_BYTES);
+        assertEquals("<P>BODY</P>", cache.getSanitizedHtml(1, body));
+        assertEquals("<P>BODY</P>", cache.getSanitizedHtml(1, body));
+        assertEquals(1, cache.mSanitizeCount);
+
+        // A new cache (e.g. after a restart) finds it on disk
+        final CountingCache newCache = new CountingCache(MAX_DISK_BYTES);
+        assertEquals("<P>BODY</P>", newCache.getSanitizedHtml(1, body));
+        assertEquals(0, newCache.mSanitizeCount);
+    }
+
+    public void testChangedBodySanitizedAgain() throws IOException {
+        final CountingCache cache = new CountingCache(MAX_DISK_BYTES);
+        assertEquals("<P>BODY</P>", cache.getSanitizedHtml(1, writeBody(1, "<p>body</p>")));
+        assertEquals("<P>NEW BODY</P>", cache.getSanitizedHtml(1, writeBody(1, "<p>new body</p>")));
+        assertEquals(2, cache.mSanitizeCount);
+    }
+
+    public void testInvalidate() throws IOException {
+        final File body = writeBody(1, "<p>body</p>");
+        final CountingCache cache = new CountingCache(MAX_DISK_BYTES);
+        cache.getSanitizedHtml(1, body);
+        cache.invalidate(1);
+        cache.getSanitizedHtml(1, body);
+        assertEquals(2, cache.mSanitizeCount);
+
+        cache.invalidate(1);
+        final CountingCache newCache = new CountingCache(MAX_DISK_BYTES);
+        newCache.getSanitizedHtml(1, body);
+        assertEquals(1, newCache.mSanitizeCount);
+    }
+
+    public void testMissingBody() throws IOException {
+        final CountingCache cache = new CountingCache(MAX_DISK_BYTES);
+        try {
+            cache.getSanitizedHtml(1, new File(mBodyDir, "missing.html"));
+            fail("Expected FileNotFoundException");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    public void testDiskSizeBounded() throws IOException {
+        final long maxDiskBytes = 200;
+        final CountingCache cache = new CountingCache(maxDiskBytes);
+        for (long id = 0; id < 20; id++) {
+            cache.getSanitizedHtml(id, writeBody(id, "<p>body of message " + id + "</p>"));
+        }
+        long size = 0;
+        for (File file : mCacheDir.listFiles()) {
+            size += file.length();
+        }
+        assertTrue(size <= maxDiskBytes);
+    }
+}
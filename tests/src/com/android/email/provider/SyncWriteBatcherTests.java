@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Tests of the SyncWriteBatcher
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.SyncWriteBatcherTests email
+ */
+@SmallTest
+public class SyncWriteBatcherTests extends TestCase {
+    private static final long NO_DELAY_LIMIT = Long.MAX_VALUE;
+
+    /**
+     * A provider that records the size of each batch, and gives every row id 100 + index.  A batch
+     * that touches {@link #mBadUri} fails.
+     */
+    private static class BatchRecordingProvider extends MockContentProvider {
+        final ArrayList<Integer> mBatchSizes = new ArrayList<Integer>();
+        Uri mBadUri;
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            for (ContentProviderOperation operation : operations) {
+                if (operation.getUri().equals(mBadUri)) {
+                    throw new OperationApplicationException();
+                }
+            }
+            mBatchSizes.add(operations.size());
+            final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new ContentProviderResult(
+                        ContentUris.withAppendedId(operations.get(i).getUri(), 100 + i));
+            }
+            return results;
+        }
+    }
+
+    private BatchRecordingProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new BatchRecordingProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(EmailContent.AUTHORITY, mProvider);
+    }
+
+    private static void deleteMessage(SyncWriteBatcher batcher, long id) {
+        batcher.delete(ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, id));
+    }
+
+    public void testFlushesWhenFull() {
+        final SyncWriteBatcher batcher = new SyncWriteBatcher(mResolver, 3, NO_DELAY_LIMIT);
+        for (int i = 0; i < 7; i++) {
+            deleteMessage(batcher, i);
+        }
+        assertEquals(2, mProvider.mBatchSizes.size());
+        assertEquals(1, batcher.getPendingCount());
+
+        assertTrue(batcher.flush());
+        assertEquals(0, batcher.getPendingCount());
+        assertEquals(3, mProvider.mBatchSizes.size());
+        assertEquals(3, (int) mProvider.mBatchSizes.get(0));
+        assertEquals(3, (int) mProvider.mBatchSizes.get(1));
+        assertEquals(1, (int) mProvider.mBatchSizes.get(2));
+
+        // Nothing left to commit
+        assertTrue(batcher.flush());
+        assertEquals(3, mProvider.mBatchSizes.size());
+    }
+
+    public void testFlushesWhenOld() {
+        final SyncWriteBatcher batcher = new SyncWriteBatcher(mResolver, 100, 0);
+        deleteMessage(batcher, 1);
+        deleteMessage(batcher, 2);
+        assertEquals(2, mProvider.mBatchSizes.size());
+        assertEquals(0, batcher.getPendingCount());
+    }
+
+    public void testInsertGetsId() {
+        final SyncWriteBatcher batcher = new SyncWriteBatcher(mResolver, 100, NO_DELAY_LIMIT);
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.FLAG_READ, 1);
+        batcher.update(ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, 1), values);
+
+        final EmailContent.Message message = new EmailContent.Message();
+        message.mSubject = "subject";
+        batcher.save(message);
+        assertFalse(message.isSaved());
+
+        assertTrue(batcher.flush());
+        assertTrue(message.isSaved());
+        assertEquals(101, message.mId);
+    }
+
+    public void testFailedBatchRetriesEachWrite() {
+        final SyncWriteBatcher batcher = new SyncWriteBatcher(mResolver, 100, NO_DELAY_LIMIT);
+        mProvider.mBadUri = ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, 2);
+        deleteMessage(batcher, 1);
+        deleteMessage(batcher, 2);
+        final EmailContent.Message message = new EmailContent.Message();
+        message.mSubject = "subject";
+        message.mText = "text";
+        batcher.save(message);
+
+        // Only the bad write is lost
+        assertFalse(batcher.flush());
+        assertEquals(0, batcher.getPendingCount());
+        assertEquals(2, mProvider.mBatchSizes.size());
+        assertEquals(1, (int) mProvider.mBatchSizes.get(0));
+        // The message and its body, in a batch of their own
+        assertEquals(2, (int) mProvider.mBatchSizes.get(1));
+        assertEquals(100, message.mId);
+
+        // The loss is still reported by later flushes
+        deleteMessage(batcher, 3);
+        assertFalse(batcher.flush());
+        assertEquals(3, mProvider.mBatchSizes.size());
+    }
+
+    public void testLossInAutomaticCommitIsReported() {
+        final SyncWriteBatcher batcher = new SyncWriteBatcher(mResolver, 2, NO_DELAY_LIMIT);
+        mProvider.mBadUri = ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, 1);
+        deleteMessage(batcher, 1);
+        deleteMessage(batcher, 2);
+        assertEquals(0, batcher.getPendingCount());
+        assertFalse(batcher.flush());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the ImapSyncKey
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.ImapSyncKeyTests email
+ */
+@SmallTest
+public class ImapSyncKeyTests extends TestCase {
+
+    public void testRoundTrip() {
+        final ImapSyncKey key = ImapSyncKey.parse(
+                new ImapSyncKey(3857529045L, 90060115205545359L, 4392, 172).toString());
+        assertEquals(3857529045L, key.mUidValidity);
+        assertEquals(90060115205545359L, key.mHighestModSeq);
+        assertEquals(4392, key.mUidNext);
+        assertEquals(172, key.mMessageCount);
+    }
+
+    public void testParseShort() {
+        // Missing values read as unknown
+        final ImapSyncKey key = ImapSyncKey.parse("100:5000");
+        assertEquals(100, key.mUidValidity);
+        assertEquals(5000, key.mHighestModSeq);
+        assertEquals(0, key.mUidNext);
+        assertEquals(0, key.mMessageCount);
+    }
+
+    public void testParseInvalid() {
+        // Never synced, reset by Mailbox.resyncMailbox, or garbage
+        for (String syncKey : new String[] {null, "", "0", "x:y", "-1:-1:-1:-1"}) {
+            final ImapSyncKey key = ImapSyncKey.parse(syncKey);
+            assertEquals(0, key.mUidValidity);
+            assertEquals(0, key.mHighestModSeq);
+            assertEquals(0, key.mUidNext);
+            assertEquals(0, key.mMessageCount);
+        }
+    }
+
+    public void testGetModSeqSince() {
+        final ImapSyncKey key = new ImapSyncKey(100, 5000, 0, 0);
+        assertEquals(5000, key.getModSeqSince(100));
+        // The mailbox was recreated, so our mod-sequence means nothing
+        assertEquals(0, key.getModSeqSince(101));
+        // The server doesn't report UIDVALIDITY
+        assertEquals(0, new ImapSyncKey(0, 5000, 0, 0).getModSeqSince(0));
+    }
+
+    public void testUidValidity() {
+        final ImapSyncKey key = new ImapSyncKey(100, 0, 20, 10);
+        assertTrue(key.isUidValidityCurrent(100));
+        assertFalse(key.isUidValidityChanged(100));
+        assertFalse(key.isUidValidityCurrent(101));
+        assertTrue(key.isUidValidityChanged(101));
+
+        // Unknown on either side is neither current nor a change
+        assertFalse(key.isUidValidityCurrent(0));
+        assertFalse(key.isUidValidityChanged(0));
+        final ImapSyncKey unknown = ImapSyncKey.parse(null);
+        assertFalse(unknown.isUidValidityCurrent(100));
+        assertFalse(unknown.isUidValidityChanged(100));
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.service.EmailServiceStatus;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of the ImapSyncScheduler
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.ImapSyncSchedulerTests email
+ */
+@SmallTest
+public class ImapSyncSchedulerTests extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /** An operation that blocks until it is released. */
+    private static class GateOperation implements ImapSyncScheduler.SyncOperation {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @Override
+        public int run() throws MessagingException {
+            mStarted.countDown();
+            try {
+                mRelease.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new MessagingException(MessagingException.IOERROR);
+            }
+            return EmailServiceStatus.SUCCESS;
+        }
+    }
+
+    /** An operation that records its id in a shared list. */
+    private static class RecordingOperation implements ImapSyncScheduler.SyncOperation {
+        private final List<Long> mOrder;
+        private final long mId;
+
+        RecordingOperation(List<Long> order, long id) {
+            mOrder = order;
+            mId = id;
+        }
+
+        @Override
+        public int run() {
+            mOrder.add(mId);
+            return EmailServiceStatus.SUCCESS;
+        }
+    }
+
+    public void testDifferentAccountsRunInParallel() throws Exception {
+        final ImapSyncScheduler scheduler = new ImapSyncScheduler(2, 10);
+        final GateOperation gate1 = new GateOperation();
+        final GateOperation gate2 = new GateOperation();
+        final ImapSyncScheduler.SyncRequest req1 = scheduler.enqueue(1, 10, false, false,
+                ImapSyncScheduler.PRIORITY_BACKGROUND, gate1);
+        final ImapSyncScheduler.SyncRequest req2 = scheduler.enqueue(2, 20, false, false,
+                ImapSyncScheduler.PRIORITY_BACKGROUND, gate2);
+        // Both accounts must be able to start before either one finishes
+        assertTrue(gate1.mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(gate2.mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.getActiveCount());
+        gate1.mRelease.countDown();
+        gate2.mRelease.countDown();
+        assertEquals(EmailServiceStatus.SUCCESS, req1.await());
+        assertEquals(EmailServiceStatus.SUCCESS, req2.await());
+    }
+
+    public void testSameAccountSerializedWithForegroundFirst() throws Exception {
+        final ImapSyncScheduler scheduler = new ImapSyncScheduler(2, 10);
+        final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+        final GateOperation gate = new GateOperation();
+        final ImapSyncScheduler.SyncRequest gateReq = scheduler.enqueue(1, 10, false, false,
+                ImapSyncScheduler.PRIORITY_BACKGROUND, gate);
+        assertTrue(gate.mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // While the account is busy, later syncs of it must wait
+        final ImapSyncScheduler.SyncRequest background = scheduler.enqueue(1, 11, false, false,
+                ImapSyncScheduler.PRIORITY_BACKGROUND, new RecordingOperation(order, 11));
+        final ImapSyncScheduler.SyncRequest foreground = scheduler.enqueue(1, 12, false, false,
+                ImapSyncScheduler.PRIORITY_FOREGROUND, new RecordingOperation(order, 12));
+        assertEquals(2, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getActiveCount());
+
+        gate.mRelease.countDown();
+        gateReq.await();
+        background.await();
+        foreground.await();
+        assertEquals(2, order.size());
+        assertEquals(12L, (long) order.get(0));
+        assertEquals(11L, (long) order.get(1));
+    }
+
+    public void testQueuedRequestsAreMerged() throws Exception {
+        final ImapSyncScheduler scheduler = new ImapSyncScheduler(1, 10);
+        final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+        final GateOperation gate = new GateOperation();
+        scheduler.enqueue(1, 10, false, false, ImapSyncScheduler.PRIORITY_BACKGROUND, gate);
+        assertTrue(gate.mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final ImapSyncScheduler.SyncRequest first = scheduler.enqueue(1, 11, false, false,
+                ImapSyncScheduler.PRIORITY_BACKGROUND, new RecordingOperation(order, 11));
+        final ImapSyncScheduler.SyncRequest second = scheduler.enqueue(1, 11, false, false,
+                ImapSyncScheduler.PRIORITY_BACKGROUND, new RecordingOperation(order, 11));
+        assertSame(first, second);
+        assertEquals(1, scheduler.getQueueDepth());
+
+        // A load more of the same mailbox is a different sync
+        final ImapSyncScheduler.SyncRequest loadMore = scheduler.enqueue(1, 11, true, false,
+                ImapSyncScheduler.PRIORITY_BACKGROUND, new RecordingOperation(order, 11));
+        assertNotSame(first, loadMore);
+        assertEquals(2, scheduler.getQueueDepth());
+
+        gate.mRelease.countDown();
+        first.await();
+        loadMore.await();
+        assertEquals(2, order.size());
+    }
+
+    public void testFullSyncReplacesPartialSync() throws Exception {
+        final ImapSyncScheduler scheduler = new ImapSyncScheduler(1, 10);
+        final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+        final GateOperation gate = new GateOperation();
+        scheduler.enqueue(1, 10, false, false, ImapSyncScheduler.PRIORITY_BACKGROUND, gate);
+        assertTrue(gate.mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Partial syncs may be for different messages, so they aren't merged with each other
+        final ImapSyncScheduler.SyncRequest partial = scheduler.enqueue(1, 11, false, true,
+                ImapSyncScheduler.PRIORITY_BACKGROUND, new RecordingOperation(order, 1));
+        final ImapSyncScheduler.SyncRequest otherPartial = scheduler.enqueue(1, 11, false, true,
+                ImapSyncScheduler.PRIORITY_BACKGROUND, new RecordingOperation(order, 2));
+        assertNotSame(partial, otherPartial);
+
+        // A full sync takes over a partial one, and a partial sync joins a full one
+        final ImapSyncScheduler.SyncRequest full = scheduler.enqueue(1, 11, false, false,
+                ImapSyncScheduler.PRIORITY_BACKGROUND, new RecordingOperation(order, 3));
+        assertSame(partial, full);
+        final ImapSyncScheduler.SyncRequest laterPartial = scheduler.enqueue(1, 11, false, true,
+                ImapSyncScheduler.PRIORITY_FOREGROUND, new RecordingOperation(order, 4));
+        assertSame(full, laterPartial);
+        assertEquals(2, scheduler.getQueueDepth());
+
+        gate.mRelease.countDown();
+        full.await();
+        otherPartial.await();
+        // The merged request ran the full sync, and was moved ahead of the other partial sync
+        assertEquals(2, order.size());
+        assertEquals(3L, (long) order.get(0));
+        assertEquals(2L, (long) order.get(1));
+    }
+
+    public void testAdmissionLimit() throws Exception {
+        final ImapSyncScheduler scheduler = new ImapSyncScheduler(1, 1);
+        final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+        final GateOperation gate = new GateOperation();
+        scheduler.enqueue(1, 10, false, false, ImapSyncScheduler.PRIORITY_BACKGROUND, gate);
+        assertTrue(gate.mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        scheduler.enqueue(1, 11, false, false, ImapSyncScheduler.PRIORITY_BACKGROUND,
+                new RecordingOperation(order, 11));
+
+        boolean rejected = false;
+        try {
+            scheduler.enqueue(1, 12, false, false, ImapSyncScheduler.PRIORITY_BACKGROUND,
+                    new RecordingOperation(order, 12));
+        } catch (MessagingException e) {
+            rejected = true;
+        }
+        assertTrue(rejected);
+
+        // User requested syncs are always admitted
+        final ImapSyncScheduler.SyncRequest foreground = scheduler.enqueue(1, 13, false, false,
+                ImapSyncScheduler.PRIORITY_FOREGROUND, new RecordingOperation(order, 13));
+        assertEquals(2, scheduler.getQueueDepth());
+        gate.mRelease.countDown();
+        foreground.await();
+    }
+
+    public void testExceptionIsDelivered() throws Exception {
+        final ImapSyncScheduler scheduler = new ImapSyncScheduler(1, 10);
+        boolean thrown = false;
+        try {
+            scheduler.runSync(1, 10, false, false, false, new ImapSyncScheduler.SyncOperation() {
+                @Override
+                public int run() throws MessagingException {
+                    throw new MessagingException(MessagingException.AUTHENTICATION_FAILED);
+                }
+            });
+        } catch (MessagingException e) {
+            thrown = true;
+            assertEquals(MessagingException.AUTHENTICATION_FAILED, e.getExceptionType());
+        }
+        assertTrue(thrown);
+        assertEquals(0, scheduler.getActiveCount());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.mail.Flag;
+import com.android.emailcommon.provider.Mailbox;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Tests of the ImapUpsyncPlan
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.ImapUpsyncPlanTests email
+ */
+@SmallTest
+public class ImapUpsyncPlanTests extends TestCase {
+
+    private static Mailbox createMailbox(final long id) {
+        final Mailbox mailbox = new Mailbox();
+        mailbox.mId = id;
+        mailbox.mServerId = "mailbox" + id;
+        return mailbox;
+    }
+
+    public void testGroupFlagChanges() {
+        final Mailbox inbox = createMailbox(1);
+        final Mailbox other = createMailbox(2);
+        final ImapUpsyncPlan plan = new ImapUpsyncPlan();
+        plan.addFlagChange(inbox, 101, "1", Flag.SEEN, true);
+        plan.addFlagChange(other, 201, "7", Flag.SEEN, true);
+        plan.addFlagChange(inbox, 102, "2", Flag.SEEN, true);
+        plan.addFlagChange(inbox, 102, "2", Flag.FLAGGED, true);
+        plan.addFlagChange(inbox, 103, "3", Flag.SEEN, false);
+        plan.addFlagChange(inbox, 104, "4", Flag.SEEN, true);
+
+        // One entry per mailbox, in the order they were first seen
+        assertEquals(2, plan.getMailboxChanges().size());
+        final Iterator<ImapUpsyncPlan.MailboxChanges> it = plan.getMailboxChanges().iterator();
+        final ImapUpsyncPlan.MailboxChanges inboxChanges = it.next();
+        assertSame(inbox, inboxChanges.mMailbox);
+        assertSame(other, it.next().mMailbox);
+
+        // One group per flag and value
+        assertEquals(3, inboxChanges.mFlagChanges.size());
+        final ImapUpsyncPlan.FlagChange seen = inboxChanges.mFlagChanges.get(0);
+        assertEquals(Flag.SEEN, seen.mFlag);
+        assertTrue(seen.mValue);
+        MoreAsserts.assertEquals(new String[] {"1", "2", "4"}, seen.mUids.toArray());
+        final ImapUpsyncPlan.FlagChange flagged = inboxChanges.mFlagChanges.get(1);
+        assertEquals(Flag.FLAGGED, flagged.mFlag);
+        MoreAsserts.assertEquals(new String[] {"2"}, flagged.mUids.toArray());
+        final ImapUpsyncPlan.FlagChange unseen = inboxChanges.mFlagChanges.get(2);
+        assertEquals(Flag.SEEN, unseen.mFlag);
+        assertFalse(unseen.mValue);
+        MoreAsserts.assertEquals(new String[] {"3"}, unseen.mUids.toArray());
+
+        // Each update is covered once
+        MoreAsserts.assertEquals(new Long[] {101L, 102L, 103L, 104L},
+                inboxChanges.mMessageIds.toArray());
+        assertTrue(inboxChanges.mMoves.isEmpty());
+        assertTrue(inboxChanges.getMovedUids().isEmpty());
+    }
+
+    public void testGroupMoves() {
+        final Mailbox inbox = createMailbox(1);
+        final Mailbox archive = createMailbox(2);
+        final Mailbox trash = createMailbox(3);
+        final ImapUpsyncPlan plan = new ImapUpsyncPlan();
+        plan.addMove(inbox, 101, "1", "<a@example.com>", archive, false);
+        plan.addMove(inbox, 102, "2", null, trash, true);
+        plan.addMove(inbox, 103, "3", "<c@example.com>", archive, false);
+        plan.addFlagChange(inbox, 103, "3", Flag.SEEN, true);
+
+        assertEquals(1, plan.getMailboxChanges().size());
+        final ImapUpsyncPlan.MailboxChanges changes = plan.getMailboxChanges().iterator().next();
+        assertEquals(2, changes.mMoves.size());
+
+        final ImapUpsyncPlan.Move toArchive = changes.mMoves.get(archive.mId);
+        assertSame(archive, toArchive.mDestination);
+        assertFalse(toArchive.mToTrash);
+        assertEquals(Long.valueOf(101), toArchive.mMessageIds.get("1"));
+        assertEquals(Long.valueOf(103), toArchive.mMessageIds.get("3"));
+        assertEquals("<c@example.com>", toArchive.mMessageIdHeaders.get("3"));
+
+        final ImapUpsyncPlan.Move toTrash = changes.mMoves.get(trash.mId);
+        assertTrue(toTrash.mToTrash);
+        assertEquals(Long.valueOf(102), toTrash.mMessageIds.get("2"));
+        assertNull(toTrash.mMessageIdHeaders.get("2"));
+
+        // All moved messages are deleted from the source at once
+        final ArrayList<String> moved = new ArrayList<String>(changes.getMovedUids());
+        MoreAsserts.assertEquals(new String[] {"1", "3", "2"}, moved.toArray());
+        MoreAsserts.assertEquals(new Long[] {101L, 102L, 103L}, changes.mMessageIds.toArray());
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.internet.MimeMessage;
+import com.android.emailcommon.mail.Message;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of the MessageWritePipeline
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.MessageWritePipelineTests email
+ */
+@SmallTest
+public class MessageWritePipelineTests extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /** A writer that records the uids and batch sizes it's given. */
+    private static class RecordingWriter implements MessageWritePipeline.BatchWriter {
+        final List<String> mUids = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> mBatchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void writeMessages(ArrayList<Message> messages) {
+            mBatchSizes.add(messages.size());
+            for (Message message : messages) {
+                mUids.add(message.getUid());
+            }
+        }
+    }
+
+    private static Message createMessage(int uid) {
+        final MimeMessage message = new MimeMessage();
+        message.setUid(Integer.toString(uid));
+        return message;
+    }
+
+    public void testAllMessagesWrittenInOrder() {
+        final RecordingWriter writer = new RecordingWriter();
+        final MessageWritePipeline pipeline = new MessageWritePipeline("test", 4, 3, writer);
+        pipeline.start();
+        for (int i = 0; i < 20; i++) {
+            pipeline.messageRetrieved(createMessage(i));
+        }
+        pipeline.finish();
+
+        assertEquals(20, writer.mUids.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Integer.toString(i), writer.mUids.get(i));
+        }
+        for (int size : writer.mBatchSizes) {
+            assertTrue(size >= 1 && size <= 3);
+        }
+    }
+
+    public void testFinishWithoutMessages() {
+        final RecordingWriter writer = new RecordingWriter();
+        final MessageWritePipeline pipeline = new MessageWritePipeline("test", 4, 3, writer);
+        pipeline.start();
+        pipeline.finish();
+        assertEquals(0, writer.mBatchSizes.size());
+    }
+
+    public void testFetchBlocksWhileWriterIsBehind() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingWriter writer = new RecordingWriter() {
+            @Override
+            public void writeMessages(ArrayList<Message> messages) {
+                writing.countDown();
+                try {
+                    release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    fail();
+                }
+                super.writeMessages(messages);
+            }
+        };
+        final MessageWritePipeline pipeline = new MessageWritePipeline("test", 2, 1, writer);
+        pipeline.start();
+        pipeline.messageRetrieved(createMessage(1));
+        assertTrue(writing.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // The writer is stuck on message 1; the queue holds two more, and the next one must wait.
+        final CountDownLatch fetched = new CountDownLatch(1);
+        final Thread fetcher = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 2; i <= 4; i++) {
+                    pipeline.messageRetrieved(createMessage(i));
+                }
+                fetched.countDown();
+            }
+        };
+        fetcher.start();
+        assertFalse(fetched.await(200, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(fetched.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        pipeline.finish();
+        assertEquals(4, writer.mUids.size());
+    }
+
+    public void testInterruptedFetchLeavesWritingToWriter() {
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        final RecordingWriter writer = new RecordingWriter() {
+            @Override
+            public void writeMessages(ArrayList<Message> messages) {
+                threads.add(Thread.currentThread().getName());
+                super.writeMessages(messages);
+            }
+        };
+        final MessageWritePipeline pipeline = new MessageWritePipeline("writer", 4, 1, writer);
+        pipeline.start();
+        Thread.currentThread().interrupt();
+        pipeline.messageRetrieved(createMessage(1));
+        // The interrupt is kept for the caller
+        assertTrue(Thread.interrupted());
+        pipeline.finish();
+
+        assertEquals(1, writer.mUids.size());
+        assertEquals("writer", threads.get(0));
+    }
+
+    public void testWriterExceptionDoesNotStopPipeline() {
+        final RecordingWriter writer = new RecordingWriter() {
+            @Override
+            public void writeMessages(ArrayList<Message> messages) {
+                super.writeMessages(messages);
+                throw new IllegalStateException();
+            }
+        };
+        final MessageWritePipeline pipeline = new MessageWritePipeline("test", 4, 1, writer);
+        pipeline.start();
+        pipeline.messageRetrieved(createMessage(1));
+        pipeline.messageRetrieved(createMessage(2));
+        pipeline.finish();
+        assertEquals(2, writer.mUids.size());
+    }
+
+    public void testWriterErrorDoesNotBlockFetch() {
+        final AssertionError error = new AssertionError();
+        final RecordingWriter writer = new RecordingWriter() {
+            @Override
+            public void writeMessages(ArrayList<Message> messages) {
+                super.writeMessages(messages);
+                throw error;
+            }
+        };
+        final MessageWritePipeline pipeline = new MessageWritePipeline("test", 2, 1, writer);
+        pipeline.start();
+        // Many more messages than the queue holds
+        for (int i = 0; i < 20; i++) {
+            pipeline.messageRetrieved(createMessage(i));
+        }
+        try {
+            pipeline.finish();
+            fail("The writer's error should be thrown");
+        } catch (AssertionError e) {
+            assertSame(error, e);
+        }
+        // Nothing was written after the error
+        assertEquals(1, writer.mUids.size());
+    }
+}
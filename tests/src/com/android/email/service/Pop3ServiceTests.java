@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import com.android.email.mail.store.Pop3Store.Pop3Message;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.service.SyncWindow;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tests of the sync window walk of the Pop3Service
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.Pop3ServiceTests email
+ */
+@SmallTest
+public class Pop3ServiceTests extends TestCase {
+    private static final long NOW = 1400000000000L;
+    private static final long WINDOW_START = NOW - 7 * DateUtils.DAY_IN_MILLIS;
+
+    /** Records the headers fetched and the envelopes saved. */
+    private static class RecordingWalker implements Pop3Service.SyncWindowWalker {
+        final ArrayList<String> mFetched = new ArrayList<String>();
+        final ArrayList<String> mSaved = new ArrayList<String>();
+
+        @Override
+        public void fetchHeaders(List<Pop3Message> messages) {
+            for (Pop3Message message : messages) {
+                mFetched.add(message.getUid());
+            }
+        }
+
+        @Override
+        public void saveEnvelope(Pop3Message message) {
+            mSaved.add(message.getUid());
+        }
+    }
+
+    private final HashMap<String, Pop3Service.LocalMessageInfo> mLocalMessages =
+            new HashMap<String, Pop3Service.LocalMessageInfo>();
+    private final ArrayList<Pop3Message> mUnsynced = new ArrayList<Pop3Message>();
+    private final RecordingWalker mWalker = new RecordingWalker();
+
+    /**
+     * @param sent when the message was sent, or 0 for a message without a date
+     */
+    private static Pop3Message createMessage(String uid, long sent) throws MessagingException {
+        final Pop3Message message = new Pop3Message(uid, null);
+        if (sent != 0) {
+            message.setSentDate(new Date(sent));
+        }
+        return message;
+    }
+
+    private void addLocalMessage(String uid, int flagLoaded, long timestamp) {
+        mLocalMessages.put(uid,
+                new Pop3Service.LocalMessageInfo(mLocalMessages.size() + 1, flagLoaded, uid,
+                        timestamp));
+    }
+
+    private void walk(Pop3Message... messages) throws MessagingException, IOException {
+        Pop3Service.walkSyncWindow(messages, mLocalMessages, WINDOW_START, mUnsynced, mWalker);
+    }
+
+    private String[] getUnsyncedUids() {
+        final String[] uids = new String[mUnsynced.size()];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = mUnsynced.get(i).getUid();
+        }
+        return uids;
+    }
+
+    public void testStopsAtFirstOlderMessage() throws Exception {
+        walk(createMessage("5", NOW),
+                createMessage("4", NOW - DateUtils.DAY_IN_MILLIS),
+                createMessage("3", WINDOW_START - 1),
+                // Out of order, but past the end of the window
+                createMessage("2", NOW));
+
+        MoreAsserts.assertEquals(new String[] {"5", "4"}, getUnsyncedUids());
+        MoreAsserts.assertEquals(new String[] {"5", "4"}, mWalker.mSaved.toArray());
+        // The whole block was probed at once
+        MoreAsserts.assertEquals(new String[] {"5", "4", "3", "2"}, mWalker.mFetched.toArray());
+    }
+
+    public void testMessagesWithoutDate() throws Exception {
+        walk(createMessage("3", 0),
+                createMessage("2", NOW),
+                createMessage("1", 0));
+
+        // A message without a date is synced, and doesn't end the walk
+        MoreAsserts.assertEquals(new String[] {"3", "2", "1"}, getUnsyncedUids());
+    }
+
+    public void testLocalMessagesUseStoredTimestamp() throws Exception {
+        addLocalMessage("4", Message.FLAG_LOADED_COMPLETE, NOW);
+        addLocalMessage("3", Message.FLAG_LOADED_UNLOADED, NOW - DateUtils.DAY_IN_MILLIS);
+        addLocalMessage("2", Message.FLAG_LOADED_COMPLETE, WINDOW_START - 1);
+        // The headers of messages we have aren't fetched, so their own dates don't count
+        walk(createMessage("5", NOW),
+                createMessage("4", 0),
+                createMessage("3", 0),
+                createMessage("2", 0),
+                createMessage("1", NOW));
+
+        MoreAsserts.assertEquals(new String[] {"5", "1"}, mWalker.mFetched.toArray());
+        MoreAsserts.assertEquals(new String[] {"5"}, mWalker.mSaved.toArray());
+        // Only the messages that still need their bodies; the walk stops at 2
+        MoreAsserts.assertEquals(new String[] {"5", "3"}, getUnsyncedUids());
+    }
+
+    public void testProbesABlockAtATime() throws Exception {
+        final Pop3Message[] messages = new Pop3Message[50];
+        for (int i = 0; i < messages.length; i++) {
+            // The window ends at the 25th message
+            final long sent = (i < 24) ? NOW : WINDOW_START - 1;
+            messages[i] = createMessage(Integer.toString(messages.length - i), sent);
+        }
+        walk(messages);
+
+        assertEquals(24, mUnsynced.size());
+        // Two blocks of 20, and nothing past the block the window ended in
+        assertEquals(40, mWalker.mFetched.size());
+    }
+
+    public void testGetSyncWindowStart() {
+        final Account account = new Account();
+        final Mailbox mailbox = new Mailbox();
+        account.mSyncLookback = SyncWindow.SYNC_WINDOW_1_WEEK;
+        assertEquals(WINDOW_START, Pop3Service.getSyncWindowStart(account, mailbox, 0, NOW));
+
+        // Loading more messages on request still goes by count
+        assertEquals(0, Pop3Service.getSyncWindowStart(account, mailbox, 10, NOW));
+
+        // So does syncing all messages, or a window that wasn't chosen
+        account.mSyncLookback = SyncWindow.SYNC_WINDOW_ALL;
+        assertEquals(0, Pop3Service.getSyncWindowStart(account, mailbox, 0, NOW));
+        account.mSyncLookback = SyncWindow.SYNC_WINDOW_ACCOUNT;
+        assertEquals(0, Pop3Service.getSyncWindowStart(account, mailbox, 0, NOW));
+        account.mSyncLookback = SyncWindow.SYNC_WINDOW_USER;
+        assertEquals(0, Pop3Service.getSyncWindowStart(account, mailbox, 0, NOW));
+
+        // The mailbox's own window wins over the account's
+        mailbox.mSyncLookback = SyncWindow.SYNC_WINDOW_1_WEEK;
+        assertEquals(WINDOW_START, Pop3Service.getSyncWindowStart(account, mailbox, 0, NOW));
+    }
+}